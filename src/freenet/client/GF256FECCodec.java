@@ -0,0 +1,414 @@
+package freenet.client;
+
+import java.util.Arrays;
+
+import freenet.client.InsertContext.CompatibilityMode;
+import freenet.support.LRUMap;
+
+/**
+ * The same Reed-Solomon code over GF(2^8) as {@link OnionFECCodec}, producing exactly the same
+ * check blocks, but without going through onion-fec's PureCode.
+ *
+ * PureCode multiplies a byte at a time by looking up a 256 entry table for each coefficient.
+ * Here, when there are several blocks to compute, we split each 64 byte chunk of a block into 8
+ * bit planes held in longs, so bit i of plane p is bit p of byte i. Multiplying by a constant is
+ * then a linear map on the planes, so for each input we build two 16 entry tables of the XORs
+ * of the low and high 4 planes, and each output plane is the XOR of one entry from each. That
+ * works on 64 bytes at a time using only XORs and table lookups which stay in L1 cache. When
+ * there are only a few blocks to compute (common when decoding), converting to and from
+ * bit planes costs more than it saves, so we use byte tables, computing several outputs from
+ * each pass over an input.
+ */
+public class GF256FECCodec extends FECCodec {
+
+    /** x^8 + x^4 + x^3 + x^2 + 1, as used by onion-fec. */
+    private static final int POLYNOMIAL = 0x11d;
+    private static final int[] EXP = new int[510];
+    private static final int[] LOG = new int[256];
+    /** MUL[(c << 8) + x] = c * x */
+    private static final byte[] MUL = new byte[256 * 256];
+    /** The bit matrix for multiplying by each constant, see planeMatrix(). */
+    private static final long[] PLANE_MATRIX = new long[256];
+
+    static {
+        int x = 1;
+        for(int i=0;i<255;i++) {
+            EXP[i] = EXP[i+255] = x;
+            LOG[x] = i;
+            x <<= 1;
+            if(x >= 256) x ^= POLYNOMIAL;
+        }
+        for(int c=0;c<256;c++) {
+            for(int y=0;y<256;y++)
+                MUL[(c << 8) + y] = (byte) mul(c, y);
+            PLANE_MATRIX[c] = planeMatrix(c);
+        }
+    }
+
+    /** Use bit planes if computing at least this many blocks. */
+    static final int MIN_OUTPUTS_BIT_PLANES = 4;
+    /** Bytes of each block to process at a time with byte tables, so the outputs stay in cache. */
+    private static final int STRIP_SIZE = 4096;
+    /** Maximum number of encode matrices to cache. They are small, and there are usually few
+     * different segment sizes in use. */
+    private static final int MAX_CACHED_MATRICES = 8;
+
+    static int mul(int a, int b) {
+        if(a == 0 || b == 0) return 0;
+        return EXP[LOG[a] + LOG[b]];
+    }
+
+    private static int inverse(int a) {
+        return EXP[255 - LOG[a]];
+    }
+
+    /** @return The 8x8 bit matrix for multiplying by c: Bit a of byte p is bit p of c * 2^a, so
+     * bit p of c * x is the parity of byte p ANDed with x. */
+    private static long planeMatrix(int c) {
+        long matrix = 0;
+        for(int a=0;a<8;a++) {
+            int cx = mul(c, 1 << a);
+            for(int p=0;p<8;p++)
+                if((cx & (1 << p)) != 0) matrix |= 1L << (8*p + a);
+        }
+        return matrix;
+    }
+
+    @Override
+    public void decode(byte[][] dataBlocks, byte[][] checkBlocks, boolean[] dataBlocksPresent, boolean[] checkBlocksPresent, int blockLength) {
+        int k = dataBlocks.length;
+        int n = dataBlocks.length + checkBlocks.length;
+        byte[][] inputs = new byte[k][];
+        int[] blockNumbers = new int[k];
+        int missing = 0;
+        for(int i=0;i<k;i++) {
+            if(dataBlocks[i].length != blockLength) throw new IllegalArgumentException();
+            if(!dataBlocksPresent[i]) {
+                missing++;
+                continue;
+            }
+            inputs[i] = dataBlocks[i];
+            blockNumbers[i] = i;
+        }
+        if(missing == 0) return;
+        int[] missingBlocks = new int[missing];
+        int target = 0;
+        int found = 0;
+        // Fill in the gaps with the check blocks, in the same order as OnionFECCodec.
+        for(int i=0;i<checkBlocks.length;i++) {
+            if(!checkBlocksPresent[i]) continue;
+            if(checkBlocks[i].length != blockLength) throw new IllegalArgumentException();
+            while(target < k && inputs[target] != null) target++;
+            if(target >= k) continue;
+            inputs[target] = checkBlocks[i];
+            blockNumbers[target] = i + k;
+            missingBlocks[found++] = target;
+        }
+        if(found < missing) throw new IllegalArgumentException("Not enough blocks to decode");
+        // Each input is a row of the encode matrix times the original data, so invert that.
+        byte[] encMatrix = getEncodeMatrix(k, n);
+        byte[] matrix = new byte[k*k];
+        for(int i=0;i<k;i++) {
+            if(blockNumbers[i] < k)
+                matrix[i*k + blockNumbers[i]] = 1;
+            else
+                System.arraycopy(encMatrix, (blockNumbers[i] - k)*k, matrix, i*k, k);
+        }
+        invert(matrix, k);
+        // Move the rows we need to the front. missingBlocks is in order so we won't overwrite any.
+        byte[][] outputs = new byte[missing][];
+        for(int i=0;i<missing;i++) {
+            System.arraycopy(matrix, missingBlocks[i]*k, matrix, i*k, k);
+            outputs[i] = dataBlocks[missingBlocks[i]];
+        }
+        multiply(matrix, inputs, outputs, blockLength);
+    }
+
+    @Override
+    public void encode(byte[][] dataBlocks, byte[][] checkBlocks, boolean[] checkBlocksPresent, int blockLength) {
+        int k = dataBlocks.length;
+        int n = dataBlocks.length + checkBlocks.length;
+        for(int i=0;i<k;i++) {
+            if(dataBlocks[i] == null || dataBlocks[i].length != blockLength)
+                throw new IllegalArgumentException();
+        }
+        int mustEncode = 0;
+        for(int i=0;i<checkBlocks.length;i++) {
+            if(checkBlocks[i] == null || checkBlocks[i].length != blockLength)
+                throw new IllegalArgumentException();
+            if(!checkBlocksPresent[i]) mustEncode++;
+        }
+        if(mustEncode == 0) return; // Done already.
+        byte[] encMatrix = getEncodeMatrix(k, n);
+        byte[] rows = new byte[mustEncode*k];
+        byte[][] outputs = new byte[mustEncode][];
+        int x = 0;
+        for(int i=0;i<checkBlocks.length;i++) {
+            if(checkBlocksPresent[i]) continue;
+            System.arraycopy(encMatrix, i*k, rows, x*k, k);
+            outputs[x++] = checkBlocks[i];
+        }
+        multiply(rows, dataBlocks, outputs, blockLength);
+    }
+
+    @Override
+    public long maxMemoryOverheadDecode(int dataBlocks, int checkBlocks) {
+        int k = dataBlocks;
+        int m = checkBlocks;
+        // The cached encode matrix, the matrix and the workspace for inverting it, and the bit
+        // plane tables.
+        return m*k + k*k*3L + k*32*8L;
+    }
+
+    @Override
+    public long maxMemoryOverheadEncode(int dataBlocks, int checkBlocks) {
+        int k = dataBlocks;
+        int m = checkBlocks;
+        // Creating the encode matrix, or the rows we need and the bit plane tables.
+        return m*k + Math.max(k*k*3L + m*k, m*k + k*32*8L);
+    }
+
+    @Override
+    public int getCheckBlocks(int dataBlocks, CompatibilityMode compatibilityMode) {
+        return standardCheckBlocks(dataBlocks, compatibilityMode);
+    }
+
+    /** Compute outputs[i] = sum over j of rows[i*k + j] * inputs[j]. The outputs must not be
+     * inputs. */
+    static void multiply(byte[] rows, byte[][] inputs, byte[][] outputs, int length) {
+        if(outputs.length >= MIN_OUTPUTS_BIT_PLANES)
+            multiplyBitPlanes(rows, inputs, outputs, length);
+        else
+            multiplyBytes(rows, inputs, outputs, length);
+    }
+
+    static void multiplyBytes(byte[] rows, byte[][] inputs, byte[][] outputs, int length) {
+        int k = inputs.length;
+        for(byte[] out : outputs)
+            Arrays.fill(out, 0, length, (byte)0);
+        for(int start=0;start<length;start+=STRIP_SIZE) {
+            int end = Math.min(length, start + STRIP_SIZE);
+            int r = 0;
+            // Four outputs for each pass over the inputs.
+            for(;r+4<=outputs.length;r+=4) {
+                byte[] d0 = outputs[r], d1 = outputs[r+1], d2 = outputs[r+2], d3 = outputs[r+3];
+                for(int j=0;j<k;j++) {
+                    int t0 = (rows[r*k+j] & 0xff) << 8, t1 = (rows[(r+1)*k+j] & 0xff) << 8,
+                        t2 = (rows[(r+2)*k+j] & 0xff) << 8, t3 = (rows[(r+3)*k+j] & 0xff) << 8;
+                    byte[] s = inputs[j];
+                    for(int i=start;i<end;i++) {
+                        int x = s[i] & 0xff;
+                        d0[i] ^= MUL[t0 + x];
+                        d1[i] ^= MUL[t1 + x];
+                        d2[i] ^= MUL[t2 + x];
+                        d3[i] ^= MUL[t3 + x];
+                    }
+                }
+            }
+            for(;r<outputs.length;r++) {
+                byte[] d = outputs[r];
+                for(int j=0;j<k;j++) {
+                    int c = rows[r*k+j] & 0xff;
+                    if(c == 0) continue;
+                    int t = c << 8;
+                    byte[] s = inputs[j];
+                    for(int i=start;i<end;i++)
+                        d[i] ^= MUL[t + (s[i] & 0xff)];
+                }
+            }
+        }
+    }
+
+    static void multiplyBitPlanes(byte[] rows, byte[][] inputs, byte[][] outputs, int length) {
+        int k = inputs.length;
+        int m = outputs.length;
+        // For each input, the XORs of each subset of the low 4 planes, then of the high 4.
+        long[] tables = new long[k*32];
+        long[] planes = new long[8];
+        byte[] padded = null;
+        for(int start=0;start<length;start+=64) {
+            boolean partial = start + 64 > length;
+            if(partial && padded == null) padded = new byte[64];
+            for(int j=0;j<k;j++) {
+                if(partial) {
+                    Arrays.fill(padded, (byte)0);
+                    System.arraycopy(inputs[j], start, padded, 0, length - start);
+                    loadPlanes(padded, 0, planes);
+                } else
+                    loadPlanes(inputs[j], start, planes);
+                int t = j*32;
+                tables[t] = 0;
+                tables[t+16] = 0;
+                for(int x=1;x<16;x++) {
+                    int bit = Integer.numberOfTrailingZeros(x);
+                    tables[t+x] = tables[t+(x & (x-1))] ^ planes[bit];
+                    tables[t+16+x] = tables[t+16+(x & (x-1))] ^ planes[4+bit];
+                }
+            }
+            for(int r=0;r<m;r++) {
+                long a0 = 0, a1 = 0, a2 = 0, a3 = 0, a4 = 0, a5 = 0, a6 = 0, a7 = 0;
+                int row = r*k;
+                for(int j=0;j<k;j++) {
+                    long w = PLANE_MATRIX[rows[row+j] & 0xff];
+                    int t = j*32;
+                    a0 ^= tables[t+(int)(w & 15)] ^ tables[t+16+(int)((w >>> 4) & 15)];
+                    a1 ^= tables[t+(int)((w >>> 8) & 15)] ^ tables[t+16+(int)((w >>> 12) & 15)];
+                    a2 ^= tables[t+(int)((w >>> 16) & 15)] ^ tables[t+16+(int)((w >>> 20) & 15)];
+                    a3 ^= tables[t+(int)((w >>> 24) & 15)] ^ tables[t+16+(int)((w >>> 28) & 15)];
+                    a4 ^= tables[t+(int)((w >>> 32) & 15)] ^ tables[t+16+(int)((w >>> 36) & 15)];
+                    a5 ^= tables[t+(int)((w >>> 40) & 15)] ^ tables[t+16+(int)((w >>> 44) & 15)];
+                    a6 ^= tables[t+(int)((w >>> 48) & 15)] ^ tables[t+16+(int)((w >>> 52) & 15)];
+                    a7 ^= tables[t+(int)((w >>> 56) & 15)] ^ tables[t+16+(int)(w >>> 60)];
+                }
+                planes[0] = a0; planes[1] = a1; planes[2] = a2; planes[3] = a3;
+                planes[4] = a4; planes[5] = a5; planes[6] = a6; planes[7] = a7;
+                if(partial) {
+                    storePlanes(planes, padded, 0);
+                    System.arraycopy(padded, 0, outputs[r], start, length - start);
+                } else
+                    storePlanes(planes, outputs[r], start);
+            }
+        }
+    }
+
+    /** Split 64 bytes into 8 bit planes: bit i of planes[p] is bit p of byte i. */
+    static void loadPlanes(byte[] buf, int offset, long[] planes) {
+        for(int g=0;g<8;g++) {
+            int o = offset + g*8;
+            long x = (buf[o] & 0xffL) | (buf[o+1] & 0xffL) << 8 | (buf[o+2] & 0xffL) << 16 |
+                (buf[o+3] & 0xffL) << 24 | (buf[o+4] & 0xffL) << 32 | (buf[o+5] & 0xffL) << 40 |
+                (buf[o+6] & 0xffL) << 48 | (buf[o+7] & 0xffL) << 56;
+            planes[g] = transposeBits(x);
+        }
+        transposeBytes(planes);
+    }
+
+    /** The reverse of loadPlanes(). Overwrites planes. */
+    static void storePlanes(long[] planes, byte[] buf, int offset) {
+        transposeBytes(planes);
+        for(int g=0;g<8;g++) {
+            long x = transposeBits(planes[g]);
+            int o = offset + g*8;
+            for(int i=0;i<8;i++) {
+                buf[o+i] = (byte) x;
+                x >>>= 8;
+            }
+        }
+    }
+
+    /** Transpose a long as an 8x8 bit matrix: bit j of byte i becomes bit i of byte j. */
+    private static long transposeBits(long x) {
+        long t = (x ^ (x >>> 7)) & 0x00AA00AA00AA00AAL;
+        x ^= t ^ (t << 7);
+        t = (x ^ (x >>> 14)) & 0x0000CCCC0000CCCCL;
+        x ^= t ^ (t << 14);
+        t = (x ^ (x >>> 28)) & 0x00000000F0F0F0F0L;
+        x ^= t ^ (t << 28);
+        return x;
+    }
+
+    /** Transpose 8 longs as an 8x8 byte matrix: byte j of x[i] becomes byte i of x[j]. */
+    private static void transposeBytes(long[] x) {
+        for(int i=0;i<8;i+=2) {
+            long t = ((x[i] >>> 8) ^ x[i+1]) & 0x00FF00FF00FF00FFL;
+            x[i+1] ^= t;
+            x[i] ^= t << 8;
+        }
+        for(int i=0;i<8;i++) {
+            if((i & 2) != 0) continue;
+            long t = ((x[i] >>> 16) ^ x[i+2]) & 0x0000FFFF0000FFFFL;
+            x[i+2] ^= t;
+            x[i] ^= t << 16;
+        }
+        for(int i=0;i<4;i++) {
+            long t = ((x[i] >>> 32) ^ x[i+4]) & 0x00000000FFFFFFFFL;
+            x[i+4] ^= t;
+            x[i] ^= t << 32;
+        }
+    }
+
+    /** Encode matrices by (n << 16) + k. */
+    private static final LRUMap<Integer, byte[]> encodeMatrices = LRUMap.createSafeMap();
+
+    /** @return The rows of the encode matrix for the check blocks, (n-k) rows of k. */
+    private static byte[] getEncodeMatrix(int k, int n) {
+        Integer key = (n << 16) + k;
+        synchronized(encodeMatrices) {
+            byte[] matrix = encodeMatrices.get(key);
+            if(matrix != null) {
+                encodeMatrices.push(key, matrix);
+                return matrix;
+            }
+        }
+        byte[] matrix = createEncodeMatrix(k, n);
+        synchronized(encodeMatrices) {
+            encodeMatrices.push(key, matrix);
+            while(encodeMatrices.size() > MAX_CACHED_MATRICES)
+                encodeMatrices.popKey();
+        }
+        return matrix;
+    }
+
+    /** Create the check block rows of the systematic encode matrix, exactly as onion-fec does:
+     * Take the Vandermonde matrix whose first row is for 0 and the rest are for successive powers
+     * of the generator, and multiply the bottom rows by the inverse of the top k x k. */
+    static byte[] createEncodeMatrix(int k, int n) {
+        if(k < 1 || k > n || n > 256) throw new IllegalArgumentException();
+        byte[] top = new byte[k*k];
+        top[0] = 1;
+        for(int row=1;row<k;row++)
+            for(int col=0;col<k;col++)
+                top[row*k + col] = (byte) EXP[((row-1)*col) % 255];
+        invert(top, k);
+        byte[] matrix = new byte[(n-k)*k];
+        int[] vandermonde = new int[k];
+        for(int row=k;row<n;row++) {
+            for(int col=0;col<k;col++)
+                vandermonde[col] = EXP[((row-1)*col) % 255];
+            for(int col=0;col<k;col++) {
+                int x = 0;
+                for(int i=0;i<k;i++)
+                    x ^= mul(vandermonde[i], top[i*k + col] & 0xff);
+                matrix[(row-k)*k + col] = (byte) x;
+            }
+        }
+        return matrix;
+    }
+
+    /** Invert a k x k matrix in place by Gauss-Jordan elimination. */
+    static void invert(byte[] matrix, int k) {
+        byte[] work = new byte[k*2*k];
+        int w = 2*k;
+        for(int row=0;row<k;row++) {
+            System.arraycopy(matrix, row*k, work, row*w, k);
+            work[row*w + k + row] = 1;
+        }
+        for(int col=0;col<k;col++) {
+            int pivot = col;
+            while(pivot < k && work[pivot*w + col] == 0) pivot++;
+            if(pivot == k) throw new IllegalArgumentException("Singular matrix");
+            if(pivot != col) {
+                for(int i=0;i<w;i++) {
+                    byte t = work[pivot*w + i];
+                    work[pivot*w + i] = work[col*w + i];
+                    work[col*w + i] = t;
+                }
+            }
+            int inv = inverse(work[col*w + col] & 0xff);
+            if(inv != 1) {
+                for(int i=0;i<w;i++)
+                    work[col*w + i] = (byte) mul(work[col*w + i] & 0xff, inv);
+            }
+            for(int row=0;row<k;row++) {
+                if(row == col) continue;
+                int f = work[row*w + col] & 0xff;
+                if(f == 0) continue;
+                for(int i=0;i<w;i++)
+                    work[row*w + i] ^= mul(f, work[col*w + i] & 0xff);
+            }
+        }
+        for(int row=0;row<k;row++)
+            System.arraycopy(work, row*w + k, matrix, row*k, k);
+    }
+
+}
@@ -46,7 +46,7 @@ import freenet.support.Logger;
 import freenet.support.api.Bucket;
 import freenet.support.compress.CompressionOutputSizeException;
 import freenet.support.compress.Compressor;
-import freenet.support.compress.DecompressorThreadManager;
+import freenet.support.compress.DecompressorPipeline;
 import freenet.support.io.Closer;
 import freenet.support.io.FileBucket;
 import freenet.support.io.FileUtil;
@@ -303,7 +303,7 @@ implements WantsCooldownCallback, FileGetCompletionCallback, Serializable {
 		PipedInputStream dataInput = new PipedInputStream();
 		OutputStream output = null;
 
-		DecompressorThreadManager decompressorManager = null;
+		DecompressorPipeline decompressorManager = null;
 		ClientGetWorkerThread worker = null;
 		Bucket finalResult = null;
 		FetchResult result = null;
@@ -330,15 +330,16 @@ implements WantsCooldownCallback, FileGetCompletionCallback, Serializable {
 			result = new FetchResult(clientMetadata, finalResult);
 
 			// Decompress
+			InputStream decompressed = dataInput;
 			if(decompressors != null) {
 				if(logMINOR) Logger.minor(this, "Decompressing...");
-				decompressorManager =  new DecompressorThreadManager(dataInput, decompressors, maxLen);
-				dataInput = decompressorManager.execute();
+				decompressorManager = new DecompressorPipeline(dataInput, decompressors, maxLen, context.mainExecutor);
+				decompressed = decompressorManager.execute();
 			}
 
 			output = finalResult.getOutputStream();
 			if(ctx.overrideMIME != null) mimeType = ctx.overrideMIME;
-			worker = new ClientGetWorkerThread(new BufferedInputStream(dataInput), output, uri, mimeType, ctx.getSchemeHostAndPort(), hashes, ctx.filterData, ctx.charset, ctx.prefetchHook, ctx.tagReplacer, context.linkFilterExceptionProvider);
+			worker = new ClientGetWorkerThread(new BufferedInputStream(decompressed), output, uri, mimeType, ctx.getSchemeHostAndPort(), hashes, ctx.filterData, ctx.charset, ctx.prefetchHook, ctx.tagReplacer, context.linkFilterExceptionProvider);
 			worker.start();
 			try {
 				streamGenerator.writeTo(dataOutput, context);
@@ -439,7 +440,7 @@ implements WantsCooldownCallback, FileGetCompletionCallback, Serializable {
             InputStream is = new BufferedInputStream(new FileInputStream(raf.getFD()));
             // Check hashes...
 
-            DecompressorThreadManager decompressorManager = null;
+            DecompressorPipeline decompressorManager = null;
             ClientGetWorkerThread worker = null;
 
             worker = new ClientGetWorkerThread(is, new NullOutputStream(), uri, null, ctx.getSchemeHostAndPort(), hashes, false, null, ctx.prefetchHook, ctx.tagReplacer, context.linkFilterExceptionProvider);
@@ -1,16 +1,25 @@
 package freenet.client.async;
 
+import java.util.Map;
+
 import freenet.crypt.HashResult;
 import freenet.support.api.RandomAccessBucket;
 import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
 
 class CompressionOutput {
 	public CompressionOutput(RandomAccessBucket bestCompressedData, COMPRESSOR_TYPE bestCodec2, HashResult[] hashes) {
+		this(bestCompressedData, bestCodec2, hashes, null);
+	}
+	public CompressionOutput(RandomAccessBucket bestCompressedData, COMPRESSOR_TYPE bestCodec2, HashResult[] hashes,
+			Map<COMPRESSOR_TYPE, Long> compressionTimes) {
 		this.data = bestCompressedData;
 		this.bestCodec = bestCodec2;
 		this.hashes = hashes;
+		this.compressionTimes = compressionTimes;
 	}
 	final RandomAccessBucket data;
 	final COMPRESSOR_TYPE bestCodec;
 	final HashResult[] hashes;
-}
\ No newline at end of file
+	/** Milliseconds spent on each codec we tried, or null if we didn't try to compress */
+	final Map<COMPRESSOR_TYPE, Long> compressionTimes;
+}
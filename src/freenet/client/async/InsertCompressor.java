@@ -3,6 +3,9 @@ package freenet.client.async;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
 
 import freenet.client.InsertException;
 import freenet.client.InsertException.InsertExceptionMode;
@@ -20,6 +23,7 @@ import freenet.support.api.RandomAccessBucket;
 import freenet.support.compress.CompressJob;
 import freenet.support.compress.CompressionOutputSizeException;
 import freenet.support.compress.CompressionRatioException;
+import freenet.support.compress.CompressorChooser;
 import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
 import freenet.support.compress.InvalidCompressionCodecException;
 import freenet.support.io.Closer;
@@ -89,132 +93,23 @@ public class InsertCompressor implements CompressJob {
 
 	@Override
 	public void tryCompress(final ClientContext context) throws InsertException {
-		long origSize = origData.size();
-		long origNumberOfBlocks = origSize/CHKBlock.DATA_LENGTH;
-		COMPRESSOR_TYPE bestCodec = null;
-		RandomAccessBucket bestCompressedData = origData;
-		long bestCompressedDataSize = origSize;
-		long bestNumberOfBlocks = origNumberOfBlocks;
-
-		HashResult[] hashes = null;
+		CompressionOutput compressed = null;
 
 		if(logMINOR) Logger.minor(this, "Attempt to compress the data");
-		// Try to compress the data.
-		// Try each algorithm, starting with the fastest and weakest.
-		// Stop when run out of algorithms, or the compressed data fits in a single block.
 		try {
 			COMPRESSOR_TYPE[] comps = COMPRESSOR_TYPE.getCompressorsArray(compressorDescriptor);
-			boolean first = true;
 			long amountOfDataToCheckCompressionRatio = config.get("node").getLong("amountOfDataToCheckCompressionRatio");
 			int minimumCompressionPercentage = config.get("node").getInt("minimumCompressionPercentage");
 			int maxTimeForSingleCompressor = config.get("node").getInt("maxTimeForSingleCompressor");
-			for (final COMPRESSOR_TYPE comp : comps) {
-				long compressionStartTime = System.currentTimeMillis();
-				boolean shouldFreeOnFinally = true;
-				RandomAccessBucket result = null;
-				try {
-					if(logMINOR)
-						Logger.minor(this, "Attempt to compress using " + comp);
-					// Only produce if we are compressing *the original data*
-					if(persistent) {
-						context.jobRunner.queue(new PersistentJob() {
-
-							@Override
-							public boolean run(ClientContext context) {
-								inserter.onStartCompression(comp, context);
-								return false;
-							}
-
-						}, NativeThread.NORM_PRIORITY+1);
-					} else {
-						try {
-							inserter.onStartCompression(comp, context);
-						} catch (Throwable t) {
-							Logger.error(this, "Transient insert callback threw "+t, t);
-						}
-					}
+			boolean parallel = config.get("node").getBoolean("parallelCompression");
+			if(parallel && comps.length > 1 && origData.size() >= CompressorChooser.MIN_SIZE)
+				compressed = compressParallel(context, comps, amountOfDataToCheckCompressionRatio,
+						minimumCompressionPercentage, maxTimeForSingleCompressor);
+			else
+				compressed = compressSequential(context, comps, amountOfDataToCheckCompressionRatio,
+						minimumCompressionPercentage, maxTimeForSingleCompressor, parallel);
 
-					InputStream is = null;
-					OutputStream os = null;
-					MultiHashInputStream hasher = null;
-					try {
-						is = origData.getInputStream();
-						result = bucketFactory.makeBucket(-1);
-						os = result.getOutputStream();
-						if(first && generateHashes != 0) {
-							if(logMINOR) Logger.minor(this, "Generating hashes: "+generateHashes);
-							is = hasher = new MultiHashInputStream(is, generateHashes);
-						}
-						try {
-							comp.compress(is, os, origSize, bestCompressedDataSize,
-									amountOfDataToCheckCompressionRatio, minimumCompressionPercentage);
-						} catch (CompressionOutputSizeException | CompressionRatioException e) {
-							if(hasher != null) {
-								is.skip(Long.MAX_VALUE);
-								hashes = hasher.getResults();
-								first = false;
-							}
-							continue; // try next compressor type
-						} catch (RuntimeException e) {
-							// ArithmeticException has been seen in bzip2 codec.
-							Logger.error(this, "Compression failed with codec "+comp+" : "+e, e);
-							// Try the next one
-							// RuntimeException is iffy, so lets not try the hasher.
-							continue;
-						}
-						if(hasher != null) {
-							hashes = hasher.getResults();
-							first = false;
-						}
-					} finally {
-						Closer.close(is);
-						Closer.close(os);
-					}
-					long resultSize = result.size();
-					long resultNumberOfBlocks = resultSize/CHKBlock.DATA_LENGTH;
-					// minSize is {SSKBlock,CHKBlock}.MAX_COMPRESSED_DATA_LENGTH
-					if(resultSize <= minSize) {
-						if(logMINOR)
-							Logger.minor(this, "New size " + resultSize + " smaller then minSize " + minSize);
-
-						bestCodec = comp;
-						if(bestCompressedData != null && bestCompressedData != origData)
-							// Don't need to removeFrom() : we haven't stored it.
-							bestCompressedData.free();
-						bestCompressedData = result;
-						bestCompressedDataSize = resultSize;
-						bestNumberOfBlocks = resultNumberOfBlocks;
-						shouldFreeOnFinally = false;
-						break;
-					}
-					if(resultNumberOfBlocks < bestNumberOfBlocks) {
-						if(logMINOR)
-							Logger.minor(this, "New size "+resultSize+" ("+resultNumberOfBlocks+" blocks) better than old best "+bestCompressedDataSize+ " ("+bestNumberOfBlocks+" blocks)");
-						if(bestCompressedData != null && bestCompressedData != origData)
-							bestCompressedData.free();
-						bestCompressedData = result;
-						bestCompressedDataSize = resultSize;
-						bestNumberOfBlocks = resultNumberOfBlocks;
-						bestCodec = comp;
-						shouldFreeOnFinally = false;
-					}
-				} catch (PersistenceDisabledException e) {
-				    if(!context.jobRunner.shuttingDown())
-				        Logger.error(this, "Database disabled compressing data", new Exception("error"));
-					shouldFreeOnFinally = true;
-					if(bestCompressedData != null && bestCompressedData != origData && bestCompressedData != result)
-						bestCompressedData.free();
-				} finally {
-					if(shouldFreeOnFinally && (result != null) && result != origData)
-						result.free();
-				}
-
-				// if one iteration of compression took a lot of time, then we will not try other algorithms
-				if (System.currentTimeMillis() - compressionStartTime > maxTimeForSingleCompressor)
-					break;
-			}
-
-			final CompressionOutput output = new CompressionOutput(bestCompressedData, bestCodec, hashes);
+			final CompressionOutput output = compressed;
 
 			if(persistent) {
 
@@ -251,12 +146,159 @@ public class InsertCompressor implements CompressJob {
 			}
 		} catch (PersistenceDisabledException e) {
 			Logger.error(this, "Database disabled compressing data", new Exception("error"));
-			if(bestCompressedData != null && bestCompressedData != origData)
-				bestCompressedData.free();
+			if(compressed != null && compressed.data != origData)
+				compressed.data.free();
 		} catch (InvalidCompressionCodecException e) {
-			fail(new InsertException(InsertExceptionMode.INTERNAL_ERROR, e, null), context, bestCompressedData);
+			fail(new InsertException(InsertExceptionMode.INTERNAL_ERROR, e, null), context, null);
 		} catch (final IOException e) {
-			fail(new InsertException(InsertExceptionMode.BUCKET_ERROR, e, null), context, bestCompressedData);
+			fail(new InsertException(InsertExceptionMode.BUCKET_ERROR, e, null), context, null);
+		}
+	}
+
+	/** Try each algorithm, starting with the fastest and weakest. Stop when we run out of
+	 * algorithms, or the compressed data fits in a single block.
+	 * @param parallel If true, codecs that can split the data across several threads will. */
+	private CompressionOutput compressSequential(ClientContext context, COMPRESSOR_TYPE[] comps,
+			long amountOfDataToCheckCompressionRatio, int minimumCompressionPercentage,
+			int maxTimeForSingleCompressor, boolean parallel) throws IOException {
+		long origSize = origData.size();
+		long origNumberOfBlocks = origSize/CHKBlock.DATA_LENGTH;
+		COMPRESSOR_TYPE bestCodec = null;
+		RandomAccessBucket bestCompressedData = origData;
+		long bestCompressedDataSize = origSize;
+		long bestNumberOfBlocks = origNumberOfBlocks;
+		Map<COMPRESSOR_TYPE, Long> times = new EnumMap<COMPRESSOR_TYPE, Long>(COMPRESSOR_TYPE.class);
+
+		HashResult[] hashes = null;
+		boolean first = true;
+		for (final COMPRESSOR_TYPE comp : comps) {
+			long compressionStartTime = System.currentTimeMillis();
+			boolean shouldFreeOnFinally = true;
+			RandomAccessBucket result = null;
+			try {
+				if(logMINOR)
+					Logger.minor(this, "Attempt to compress using " + comp);
+				onStartCompression(comp, context);
+
+				InputStream is = null;
+				OutputStream os = null;
+				MultiHashInputStream hasher = null;
+				try {
+					is = origData.getInputStream();
+					result = bucketFactory.makeBucket(-1);
+					os = result.getOutputStream();
+					if(first && generateHashes != 0) {
+						if(logMINOR) Logger.minor(this, "Generating hashes: "+generateHashes);
+						is = hasher = new MultiHashInputStream(is, generateHashes);
+					}
+					try {
+						if(parallel)
+							context.rc.compress(comp, is, os, origSize, bestCompressedDataSize,
+									amountOfDataToCheckCompressionRatio, minimumCompressionPercentage);
+						else
+							comp.compress(is, os, origSize, bestCompressedDataSize,
+									amountOfDataToCheckCompressionRatio, minimumCompressionPercentage);
+					} catch (CompressionOutputSizeException | CompressionRatioException e) {
+						if(hasher != null) {
+							is.skip(Long.MAX_VALUE);
+							hashes = hasher.getResults();
+							first = false;
+						}
+						continue; // try next compressor type
+					} catch (RuntimeException e) {
+						// ArithmeticException has been seen in bzip2 codec.
+						Logger.error(this, "Compression failed with codec "+comp+" : "+e, e);
+						// Try the next one
+						// RuntimeException is iffy, so lets not try the hasher.
+						continue;
+					}
+					if(hasher != null) {
+						hashes = hasher.getResults();
+						first = false;
+					}
+				} finally {
+					Closer.close(is);
+					Closer.close(os);
+				}
+				long resultSize = result.size();
+				long resultNumberOfBlocks = resultSize/CHKBlock.DATA_LENGTH;
+				// minSize is {SSKBlock,CHKBlock}.MAX_COMPRESSED_DATA_LENGTH
+				if(resultSize <= minSize) {
+					if(logMINOR)
+						Logger.minor(this, "New size " + resultSize + " smaller then minSize " + minSize);
+
+					bestCodec = comp;
+					if(bestCompressedData != null && bestCompressedData != origData)
+						// Don't need to removeFrom() : we haven't stored it.
+						bestCompressedData.free();
+					bestCompressedData = result;
+					bestCompressedDataSize = resultSize;
+					bestNumberOfBlocks = resultNumberOfBlocks;
+					shouldFreeOnFinally = false;
+					break;
+				}
+				if(resultNumberOfBlocks < bestNumberOfBlocks) {
+					if(logMINOR)
+						Logger.minor(this, "New size "+resultSize+" ("+resultNumberOfBlocks+" blocks) better than old best "+bestCompressedDataSize+ " ("+bestNumberOfBlocks+" blocks)");
+					if(bestCompressedData != null && bestCompressedData != origData)
+						bestCompressedData.free();
+					bestCompressedData = result;
+					bestCompressedDataSize = resultSize;
+					bestNumberOfBlocks = resultNumberOfBlocks;
+					bestCodec = comp;
+					shouldFreeOnFinally = false;
+				}
+			} finally {
+				if(shouldFreeOnFinally && (result != null) && result != origData)
+					result.free();
+				times.put(comp, System.currentTimeMillis() - compressionStartTime);
+			}
+
+			// if one iteration of compression took a lot of time, then we will not try other algorithms
+			if (System.currentTimeMillis() - compressionStartTime > maxTimeForSingleCompressor)
+				break;
+		}
+		return new CompressionOutput(bestCompressedData, bestCodec, hashes, times);
+	}
+
+	/** Estimate how well each algorithm will do from a sample, then run the likely ones in
+	 * parallel, see CompressorChooser. */
+	private CompressionOutput compressParallel(ClientContext context, COMPRESSOR_TYPE[] comps,
+			long amountOfDataToCheckCompressionRatio, int minimumCompressionPercentage,
+			int maxTimeForSingleCompressor) throws IOException {
+		CompressorChooser chooser = new CompressorChooser(origData, bucketFactory, context.rc, generateHashes,
+				minSize, amountOfDataToCheckCompressionRatio, minimumCompressionPercentage, maxTimeForSingleCompressor);
+		COMPRESSOR_TYPE[] candidates = chooser.sample(comps);
+		if(logMINOR) Logger.minor(this, "Compressing "+this+" in parallel with "+Arrays.toString(candidates));
+		for(COMPRESSOR_TYPE comp : candidates)
+			onStartCompression(comp, context);
+		CompressorChooser.Result result = chooser.compress(candidates);
+		return new CompressionOutput(result.data, result.codec, result.hashes, result.times);
+	}
+
+	private void onStartCompression(final COMPRESSOR_TYPE comp, ClientContext context) {
+		// Only produce if we are compressing *the original data*
+		if(persistent) {
+			try {
+				context.jobRunner.queue(new PersistentJob() {
+
+					@Override
+					public boolean run(ClientContext context) {
+						inserter.onStartCompression(comp, context);
+						return false;
+					}
+
+				}, NativeThread.NORM_PRIORITY+1);
+			} catch (PersistenceDisabledException e) {
+			    if(!context.jobRunner.shuttingDown())
+			        Logger.error(this, "Database disabled compressing data", new Exception("error"));
+			}
+		} else {
+			try {
+				inserter.onStartCompression(comp, context);
+			} catch (Throwable t) {
+				Logger.error(this, "Transient insert callback threw "+t, t);
+			}
 		}
 	}
 
@@ -45,7 +45,7 @@ import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
 import freenet.support.api.Bucket;
 import freenet.support.compress.Compressor;
-import freenet.support.compress.DecompressorThreadManager;
+import freenet.support.compress.DecompressorPipeline;
 import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
 import freenet.support.io.BucketTools;
 import freenet.support.io.Closer;
@@ -910,9 +910,9 @@ public class SingleFileFetcher extends SimpleSingleFileFetcher {
 				if(decompressors != null) {
 					if(logMINOR) Logger.minor(this, "decompressing...");
 					pipeOut.connect(pipeIn);
-					DecompressorThreadManager decompressorManager =  new DecompressorThreadManager(pipeIn, decompressors, maxLen);
-					pipeIn = decompressorManager.execute();
-					ClientGetWorkerThread worker = new ClientGetWorkerThread(new BufferedInputStream(pipeIn), output, null, null , ctx.getSchemeHostAndPort(), null, false, null, null, null, context.linkFilterExceptionProvider);
+					DecompressorPipeline decompressorManager = new DecompressorPipeline(pipeIn, decompressors, maxLen, context.mainExecutor);
+					InputStream decompressed = decompressorManager.execute();
+					ClientGetWorkerThread worker = new ClientGetWorkerThread(new BufferedInputStream(decompressed), output, null, null , ctx.getSchemeHostAndPort(), null, false, null, null, null, context.linkFilterExceptionProvider);
 					worker.start();
 					streamGenerator.writeTo(pipeOut, context);
 					decompressorManager.waitFinished();
@@ -1060,9 +1060,9 @@ public class SingleFileFetcher extends SimpleSingleFileFetcher {
 				if(decompressors != null) {
 					if(logMINOR) Logger.minor(this, "decompressing...");
 					pipeIn.connect(pipeOut);
-					DecompressorThreadManager decompressorManager =  new DecompressorThreadManager(pipeIn, decompressors, maxLen);
-					pipeIn = decompressorManager.execute();
-					ClientGetWorkerThread worker = new ClientGetWorkerThread(new BufferedInputStream(pipeIn), output, null, null, ctx.getSchemeHostAndPort(), null, false, null, null, null, context.linkFilterExceptionProvider);
+					DecompressorPipeline decompressorManager = new DecompressorPipeline(pipeIn, decompressors, maxLen, context.mainExecutor);
+					InputStream decompressed = decompressorManager.execute();
+					ClientGetWorkerThread worker = new ClientGetWorkerThread(new BufferedInputStream(decompressed), output, null, null, ctx.getSchemeHostAndPort(), null, false, null, null, null, context.linkFilterExceptionProvider);
 					worker.start();
 					streamGenerator.writeTo(pipeOut, context);
 					decompressorManager.waitFinished();
@@ -239,7 +239,7 @@ class SingleFileInserter implements ClientPutState, Serializable {
 		
 		if(parent == cb) {
 			short codecID = bestCodec == null ? -1 : bestCodec.metadataID;
-			ctx.eventProducer.produceEvent(new FinishedCompressionEvent(codecID, origSize, bestCompressedDataSize), context);
+			ctx.eventProducer.produceEvent(new FinishedCompressionEvent(codecID, origSize, bestCompressedDataSize, output.compressionTimes), context);
 			if(logMINOR) Logger.minor(this, "Compressed "+origSize+" to "+data.size()+" on "+this+" data = "+data);
 		}
 		
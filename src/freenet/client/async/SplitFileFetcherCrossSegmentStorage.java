@@ -109,7 +109,8 @@ public class SplitFileFetcherCrossSegmentStorage {
         long limit = totalBlocks * CHKBlock.DATA_LENGTH + 
             Math.max(parent.fecCodec.maxMemoryOverheadDecode(dataBlockCount, crossCheckBlockCount),
                     parent.fecCodec.maxMemoryOverheadEncode(dataBlockCount, crossCheckBlockCount));
-        parent.memoryLimitedJobRunner.queueJob(new MemoryLimitedJob(limit) {
+        // Urgent because segments may be waiting for the blocks we decode.
+        parent.memoryLimitedJobRunner.queueJob(new MemoryLimitedJob(limit, true) {
             
             @Override
             public int getPriority() {
@@ -427,6 +428,17 @@ public class SplitFileFetcherCrossSegmentStorage {
         parent.finishedEncoding(this);
     }
     
+    /** @return True if we don't have enough blocks to decode yet, and the segment would give us 
+     * some of the ones we are missing if it decoded now. */
+    synchronized boolean needsBlocksFrom(SplitFileFetcherSegmentStorage segment) {
+        if(succeeded || cancelled || tryDecode) return false;
+        if(totalFound >= dataBlockCount) return false;
+        for(int i=0;i<segments.length;i++) {
+            if(segments[i] == segment && !blocksFound[i]) return true;
+        }
+        return false;
+    }
+    
     int[] getSegmentNumbers() {
         int[] ret = new int[totalBlocks];
         for(int i=0;i<totalBlocks;i++)
@@ -287,7 +287,8 @@ public class SplitFileFetcherSegmentStorage {
             Math.max(parent.fecCodec.maxMemoryOverheadDecode(blocksForDecode(), checkBlocks),
                     parent.fecCodec.maxMemoryOverheadEncode(blocksForDecode(), checkBlocks));
         final int prio = parent.getPriorityClass();
-        parent.memoryLimitedJobRunner.queueJob(new MemoryLimitedJob(limit) {
+        // Decode ahead of other segments if a cross-segment is waiting for our blocks.
+        parent.memoryLimitedJobRunner.queueJob(new MemoryLimitedJob(limit, feedsCrossSegments()) {
             
             @Override
             public int getPriority() {
@@ -636,6 +637,20 @@ public class SplitFileFetcherSegmentStorage {
         }
     }
 
+    /** @return True if decoding would give a cross-segment which is still waiting for blocks 
+     * some of the blocks it needs. */
+    private boolean feedsCrossSegments() {
+        SplitFileFetcherCrossSegmentStorage[] crossSegmentsByBlockCopy;
+        synchronized(this) {
+            if(crossSegmentsByBlock == null) return false;
+            crossSegmentsByBlockCopy = Arrays.copyOf(this.crossSegmentsByBlock, this.crossSegmentsByBlock.length);
+        }
+        for(SplitFileFetcherCrossSegmentStorage s : crossSegmentsByBlockCopy) {
+            if(s != null && s.needsBlocksFrom(this)) return true;
+        }
+        return false;
+    }
+
     private void triggerAllCrossSegmentCallbacks() {
         SplitFileFetcherCrossSegmentStorage[] crossSegmentsByBlockCopy;
         synchronized(this) {
@@ -3,6 +3,10 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.client.events;
 
+import java.util.Map;
+
+import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
+
 public class FinishedCompressionEvent implements ClientEvent {
 
 	static final int code = 0x09;
@@ -13,16 +17,24 @@ public class FinishedCompressionEvent implements ClientEvent {
 	public final long originalSize;
 	/** Compressed size */
 	public final long compressedSize;
+	/** Milliseconds spent on each codec tried, or null */
+	public final Map<COMPRESSOR_TYPE, Long> compressionTimes;
 
 	public FinishedCompressionEvent(int codec, long origSize, long compressedSize) {
+		this(codec, origSize, compressedSize, null);
+	}
+
+	public FinishedCompressionEvent(int codec, long origSize, long compressedSize, Map<COMPRESSOR_TYPE, Long> compressionTimes) {
 		this.codec = codec;
 		this.originalSize = origSize;
 		this.compressedSize = compressedSize;
+		this.compressionTimes = compressionTimes;
 	}
 
 	@Override
 	public String getDescription() {
-		return "Compressed data: codec="+codec+", origSize="+originalSize+", compressedSize="+compressedSize;
+		return "Compressed data: codec="+codec+", origSize="+originalSize+", compressedSize="+compressedSize+
+			(compressionTimes == null ? "" : ", times="+compressionTimes);
 	}
 
 	@Override
@@ -11,6 +11,7 @@ import java.io.UnsupportedEncodingException;
 import java.security.MessageDigest;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.Map;
 
 import freenet.client.ClientMetadata;
 import freenet.client.DefaultMIMETypes;
@@ -35,6 +36,7 @@ import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
 import freenet.support.api.Bucket;
 import freenet.support.api.RandomAccessBucket;
+import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
 import freenet.support.io.Closer;
 import freenet.support.io.ResumeFailedException;
 
@@ -57,6 +59,8 @@ public class ClientPut extends ClientPutBase {
 	private final boolean binaryBlob;
 	private transient boolean compressing;
 	private boolean compressed;
+	/** Milliseconds spent on each codec, if we compressed since restart */
+	private transient Map<COMPRESSOR_TYPE, Long> compressionTimes;
 
         private static volatile boolean logMINOR;
 	static {
@@ -476,6 +480,10 @@ public class ClientPut extends ClientPutBase {
 		}
 	}
 
+	private synchronized Map<COMPRESSOR_TYPE, Long> getCompressionTimes() {
+		return compressionTimes;
+	}
+
 	@Override
 	protected void onStartCompressing() {
 		synchronized(this) {
@@ -491,16 +499,17 @@ public class ClientPut extends ClientPutBase {
 	}
 
 	@Override
-	protected void onStopCompressing() {
+	protected void onStopCompressing(Map<COMPRESSOR_TYPE, Long> compressionTimes) {
 		synchronized(this) {
 		    if(compressed) return; // Race condition possible
 			compressing = false;
 			compressed = true;
+			this.compressionTimes = compressionTimes;
 		}
 		if(client != null) {
 			RequestStatusCache cache = client.getRequestStatusCache();
 			if(cache != null) {
-				cache.updateCompressionStatus(identifier, COMPRESS_STATE.WORKING);
+				cache.updateCompressionStatus(identifier, COMPRESS_STATE.WORKING, compressionTimes);
 			}
 		}
 	}
@@ -547,7 +556,7 @@ public class ClientPut extends ClientPutBase {
             identifier, persistence, started, finished, succeeded, total, min, fetched,
             latestSuccess, fatal, failed, latestFailure, totalFinalized, priorityClass, finalURI,
             uri, failureCode, failureReasonShort, failureReasonLong, getDataSize(), mimeType,
-            fnam, isCompressing());
+            fnam, isCompressing(), getCompressionTimes());
 	}
 	
 	@Override
@@ -23,6 +23,7 @@ import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
 import freenet.support.api.Bucket;
+import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
 
 /**
  * Base class for ClientPut and ClientPutDir.
@@ -313,7 +314,7 @@ public abstract class ClientPutBase extends ClientRequest implements ClientPutCa
 				FinishedCompressionMessage msg = 
 					new FinishedCompressionMessage(identifier, global, (FinishedCompressionEvent)ce);
 				trySendProgressMessage(msg, VERBOSITY_COMPRESSION_START_END, null, context);
-				onStopCompressing();
+				onStopCompressing(((FinishedCompressionEvent)ce).compressionTimes);
 			}
 		} else if(ce instanceof ExpectedHashesEvent) {
 			if((verbosity & VERBOSITY_EXPECTED_HASHES) == VERBOSITY_EXPECTED_HASHES) {
@@ -325,7 +326,8 @@ public abstract class ClientPutBase extends ClientRequest implements ClientPutCa
 		}
 	}
 
-	protected abstract void onStopCompressing();
+	/** @param compressionTimes Milliseconds spent on each codec, or null. */
+	protected abstract void onStopCompressing(Map<COMPRESSOR_TYPE, Long> compressionTimes);
 
 	protected abstract void onStartCompressing();
 
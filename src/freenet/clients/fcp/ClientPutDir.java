@@ -8,6 +8,7 @@ import java.io.FileNotFoundException;
 import java.net.MalformedURLException;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Map;
 
 import freenet.client.DefaultMIMETypes;
 import freenet.client.FetchException;
@@ -31,6 +32,7 @@ import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
 import freenet.support.api.ManifestElement;
+import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
 import freenet.support.io.FileBucket;
 import freenet.support.io.ResumeFailedException;
 
@@ -362,7 +364,7 @@ public class ClientPutDir extends ClientPutBase {
 	}
 
 	@Override
-	protected void onStopCompressing() {
+	protected void onStopCompressing(Map<COMPRESSOR_TYPE, Long> compressionTimes) {
 		// Ignore
 	}
 	
@@ -3,10 +3,13 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.clients.fcp;
 
+import java.util.Map;
+
 import freenet.client.events.FinishedCompressionEvent;
 import freenet.node.Node;
 import freenet.support.SimpleFieldSet;
 import freenet.support.compress.Compressor;
+import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
 
 public class FinishedCompressionMessage extends FCPMessage {
 
@@ -15,12 +18,14 @@ public class FinishedCompressionMessage extends FCPMessage {
 	final int codec;
 	final long origSize;
 	final long compressedSize;
+	final Map<COMPRESSOR_TYPE, Long> compressionTimes;
 
 	public FinishedCompressionMessage(String identifier, boolean global, FinishedCompressionEvent event) {
 		this.identifier = identifier;
 		this.codec = event.codec;
 		this.compressedSize = event.compressedSize;
 		this.origSize = event.originalSize;
+		this.compressionTimes = event.compressionTimes;
 		this.global = global;
 	}
 
@@ -35,6 +40,11 @@ public class FinishedCompressionMessage extends FCPMessage {
 			fs.putSingle("Codec.Name", "NONE");
 		fs.put("OriginalSize", origSize);
 		fs.put("CompressedSize", compressedSize);
+		if(compressionTimes != null) {
+			// Milliseconds spent on each codec.
+			for(Map.Entry<COMPRESSOR_TYPE, Long> e : compressionTimes.entrySet())
+				fs.put("CompressionTime."+e.getKey().name, e.getValue());
+		}
 		fs.put("Global", global);
 		return fs;
 	}
@@ -3,6 +3,7 @@ package freenet.clients.fcp;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import freenet.client.ClientMetadata;
 import freenet.client.FetchException.FetchExceptionMode;
@@ -15,6 +16,7 @@ import freenet.keys.FreenetURI;
 import freenet.support.Logger;
 import freenet.support.MultiValueTable;
 import freenet.support.api.Bucket;
+import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
 import freenet.support.io.NoFreeBucket;
 
 /** Per-PersistentRequestClient cache of status of requests. */
@@ -131,9 +133,14 @@ public class RequestStatusCache {
 
 	public void updateCompressionStatus(String identifier,
 			COMPRESS_STATE compressing) {
+		updateCompressionStatus(identifier, compressing, null);
+	}
+
+	public void updateCompressionStatus(String identifier,
+			COMPRESS_STATE compressing, Map<COMPRESSOR_TYPE, Long> compressionTimes) {
 		UploadFileRequestStatus status = (UploadFileRequestStatus) requestsByIdentifier.get(identifier);
 		if(status == null) return; // Can happen during cancel etc.
-		status.updateCompressionStatus(compressing);
+		status.updateCompressionStatus(compressing, compressionTimes);
 	}
 
 	public synchronized void addTo(List<RequestStatus> status) {
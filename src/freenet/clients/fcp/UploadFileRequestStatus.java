@@ -2,11 +2,13 @@ package freenet.clients.fcp;
 
 import java.io.File;
 import java.util.Date;
+import java.util.Map;
 
 import freenet.client.InsertException.InsertExceptionMode;
 import freenet.clients.fcp.ClientPut.COMPRESS_STATE;
 import freenet.clients.fcp.ClientRequest.Persistence;
 import freenet.keys.FreenetURI;
+import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
 
 /** Cached status of a file upload */
 public class UploadFileRequestStatus extends UploadRequestStatus {
@@ -16,6 +18,8 @@ public class UploadFileRequestStatus extends UploadRequestStatus {
 	/** Null = from temp space */
 	private final File origFilename;
 	private COMPRESS_STATE compressing;
+	/** Milliseconds spent on each codec, or null */
+	private Map<COMPRESSOR_TYPE, Long> compressionTimes;
 	
 	UploadFileRequestStatus(String identifier, Persistence persistence, boolean started,
 	        boolean finished, boolean success, int total, int min, int fetched, Date latestSuccess,
@@ -23,7 +27,8 @@ public class UploadFileRequestStatus extends UploadRequestStatus {
 	        FreenetURI finalURI, FreenetURI targetURI, InsertExceptionMode failureCode,
 	        String failureReasonShort, String failureReasonLong,
 			// all of the above are passed to parent
-			long dataSize, String mimeType, File origFilename, COMPRESS_STATE compressing) {
+			long dataSize, String mimeType, File origFilename, COMPRESS_STATE compressing,
+			Map<COMPRESSOR_TYPE, Long> compressionTimes) {
 		super(identifier, persistence, started, finished, success, total, min, fetched,
 		      latestSuccess, fatal, failed, latestFailure, totalFinalized, prio, finalURI,
 			  targetURI, failureCode, failureReasonShort, failureReasonLong);
@@ -31,6 +36,7 @@ public class UploadFileRequestStatus extends UploadRequestStatus {
 		this.mimeType = mimeType;
 		this.origFilename = origFilename;
 		this.compressing = compressing;
+		this.compressionTimes = compressionTimes;
 	}
 
 
@@ -51,8 +57,13 @@ public class UploadFileRequestStatus extends UploadRequestStatus {
 		return compressing;
 	}
 
-	synchronized void updateCompressionStatus(COMPRESS_STATE status) {
+	public synchronized Map<COMPRESSOR_TYPE, Long> getCompressionTimes() {
+		return compressionTimes;
+	}
+
+	synchronized void updateCompressionStatus(COMPRESS_STATE status, Map<COMPRESSOR_TYPE, Long> times) {
 		compressing = status;
+		if(times != null) compressionTimes = times;
 	}
 	
 	@Override
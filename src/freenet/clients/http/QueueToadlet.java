@@ -85,6 +85,7 @@ import freenet.support.TimeUtil;
 import freenet.support.api.HTTPRequest;
 import freenet.support.api.HTTPUploadedFile;
 import freenet.support.api.RandomAccessBucket;
+import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
 import freenet.support.io.BucketTools;
 import freenet.support.io.Closer;
 import freenet.support.io.FileBucket;
@@ -1796,6 +1797,15 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 		return reasonCell;
 	}
 
+	private static String formatCompressionTimes(Map<COMPRESSOR_TYPE, Long> compressionTimes) {
+		StringBuilder sb = new StringBuilder();
+		for(Map.Entry<COMPRESSOR_TYPE, Long> e : compressionTimes.entrySet()) {
+			if(sb.length() > 0) sb.append(", ");
+			sb.append(e.getKey().name).append(' ').append(TimeUtil.formatTime(e.getValue(), 2, true));
+		}
+		return l10n("compressionTimes", "times", sb.toString());
+	}
+
 	public static HTMLNode createProgressCell(boolean advancedMode, boolean started, COMPRESS_STATE compressing, int fetched, int failed, int fatallyFailed, int min, int total, boolean finalized, boolean upload) {
 		HTMLNode progressCell = new HTMLNode("td", "class", "request-progress");
 		if (!started) {
@@ -2223,15 +2233,18 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 						requestRow.addChild(createSizeCell(((UploadDirRequestStatus) clientRequest).getTotalDataSize(), true, advancedModeEnabled));
 						break;
 					case PROGRESS:
-						if(clientRequest instanceof UploadFileRequestStatus)
-							requestRow.addChild(createProgressCell(ctx.isAdvancedModeEnabled(),
+						if(clientRequest instanceof UploadFileRequestStatus) {
+							HTMLNode progressCell = requestRow.addChild(createProgressCell(ctx.isAdvancedModeEnabled(),
 									clientRequest.isStarted(), ((UploadFileRequestStatus)clientRequest).isCompressing(),
 									clientRequest.getFetchedBlocks(), clientRequest.getFailedBlocks(),
 									clientRequest.getFatalyFailedBlocks(), clientRequest.getMinBlocks(),
 									clientRequest.getTotalBlocks(),
 									clientRequest.isTotalFinalized() || clientRequest instanceof UploadFileRequestStatus,
 									queueType.isUpload));
-						else
+							Map<COMPRESSOR_TYPE, Long> compressionTimes = ((UploadFileRequestStatus)clientRequest).getCompressionTimes();
+							if(ctx.isAdvancedModeEnabled() && compressionTimes != null && !compressionTimes.isEmpty())
+								progressCell.addChild("div", "class", "compression-times", formatCompressionTimes(compressionTimes));
+						} else
 							requestRow.addChild(createProgressCell(ctx.isAdvancedModeEnabled(),
 									clientRequest.isStarted(), COMPRESS_STATE.WORKING,
 									clientRequest.getFetchedBlocks(), clientRequest.getFailedBlocks(),
@@ -44,6 +44,7 @@ import freenet.node.stats.StoreAccessStats;
 import freenet.support.BandwidthStatsContainer;
 import freenet.support.HTMLNode;
 import freenet.support.SizeUtil;
+import freenet.support.TickerLateness;
 import freenet.support.TimeUtil;
 import freenet.support.api.HTTPRequest;
 import freenet.support.io.NativeThread;
@@ -624,6 +625,15 @@ public class StatisticsToadlet extends Toadlet {
 				jvmStatsList.addChild("li", l10n("cryptoUsingBuiltin"));
 			else
 				jvmStatsList.addChild("li", l10n("cryptoUsingJCA", "provider", Rijndael.getProviderName()));
+			TickerLateness lateness = stats.getTickerLateness();
+			jvmStatsList.addChild("li", l10n("tickerLateness", new String[] { "mean", "p99", "max", "count" },
+					new String[] { fix1p1.format(lateness.meanMillis()), Long.toString(lateness.percentileMillis(0.99)),
+						Long.toString(lateness.maxMillis()), thousandPoint.format(lateness.count()) }));
+			jvmStatsList.addChild("li", l10n("blockVerify", new String[] { "queued", "mean", "max", "count" },
+					new String[] { Integer.toString(stats.getBlockVerifyQueueDepth()), fix1p1.format(stats.getBlockVerifyLatency()),
+						fix1p1.format(stats.getMaxBlockVerifyLatency()), thousandPoint.format(stats.getBlocksVerified()) }));
+			jvmStatsList.addChild("li", l10n("packetBatches", new String[] { "perBatch", "sends" },
+					new String[] { fix1p1.format(stats.getPacketsPerSendBatch()), fix1p1.format(stats.getPacketSendsPerSecond()) }));
 		}
 	}
 	
@@ -729,6 +739,7 @@ public class StatisticsToadlet extends Toadlet {
 		row.addChild("th", l10n("readRequests"));
 		row.addChild("th", l10n("successfulReads"));
 		row.addChild("th", l10n("successRate"));
+		row.addChild("th", l10n("hitLatency"));
 		row.addChild("th", l10n("writes"));
 		row.addChild("th", l10n("accessRate"));
 		row.addChild("th", l10n("writeRate"));
@@ -782,6 +793,11 @@ public class StatisticsToadlet extends Toadlet {
 			} catch (StatsNotAvailableException e) {
 				row.addChild("td", "N/A");
 			}
+			try {
+				row.addChild("td", fix1p4.format(sessionAccess.avgHitLatency() / 1000000) + " ms");
+			} catch (StatsNotAvailableException e) {
+				row.addChild("td", "N/A");
+			}
 			row.addChild("td", thousandPoint.format(sessionAccess.writes()) +
 					(totalAccess == null ? "" : (" ("+thousandPoint.format(totalAccess.writes())+")")));
 			String access = fix1p2.format(sessionAccess.accessRate(nodeUptimeSeconds)) + " /s";
@@ -74,7 +74,7 @@ public final class CryptByteBuffer implements Serializable{
         this.key = key;
         try{
             if(type.cipherName.equals("RIJNDAEL")){
-                blockCipher = new Rijndael(type.keyType.keySize, type.blockSize);
+                blockCipher = Rijndael.create(type.keyType.keySize, type.blockSize);
                 blockCipher.initialize(key.getEncoded());
                 if(type == CryptByteBufferType.RijndaelPCFB){
                     encryptPCFB = PCFBMode.create(blockCipher, this.iv.getIV());
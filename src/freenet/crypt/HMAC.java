@@ -3,6 +3,7 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.crypt;
 
+import java.nio.ByteBuffer;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -60,4 +61,37 @@ public enum HMAC {
   public static boolean verifyWithSHA256(byte[] K, byte[] text, byte[] mac) {
     return verify(HMAC.SHA2_256, K, text, mac);
   }
+
+  /** Looking up the algorithm and creating a Mac is expensive, so keep one per thread for MACing
+   * packets. */
+  private static final ThreadLocal<Mac> sha256Mac = new ThreadLocal<Mac>() {
+    @Override
+    protected Mac initialValue() {
+      try {
+        return Mac.getInstance(SHA2_256.algo);
+      } catch (NoSuchAlgorithmException e) {
+        Logger.error(HMAC.class, "No such AlgorithmException", e);
+        throw new Error(e);
+      }
+    }
+  };
+
+  /**
+   * MAC the bytes between the buffer's position and limit, without copying them out of the
+   * buffer. The buffer's position is moved to its limit.
+   */
+  public static byte[] macWithSHA256(byte[] K, ByteBuffer text) {
+    if(K.length != SHA2_256.digestSize)
+      throw new IllegalArgumentException("Wrong keysize! We're not doing key stretching "+
+                                         K.length+" expected "+SHA2_256.digestSize);
+    Mac mac = sha256Mac.get();
+    try {
+      mac.init(new SecretKeySpec(K, SHA2_256.algo));
+    } catch (InvalidKeyException e) {
+      Logger.error(HMAC.class, "Impossible InvalidKeyException", e);
+      throw new Error(e);
+    }
+    mac.update(text);
+    return mac.doFinal();
+  }
 }	
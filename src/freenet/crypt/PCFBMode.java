@@ -6,6 +6,8 @@ package freenet.crypt;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 /**
  * Control mechanism for the Periodic Cipher Feed Back mode.  This is
@@ -30,6 +32,8 @@ public class PCFBMode {
     /** When this reaches the end of the register, we refillBuffer() i.e. re-encrypt the
      * register. */
     protected int registerPointer;
+    /** feedback_register, for reading and writing it a word at a time. */
+    private final ByteBuffer registerBuffer;
     
     /** Create the PCFB with no IV. The caller must either:
      * a) Call reset() with a proper IV, or 
@@ -68,6 +72,7 @@ public class PCFBMode {
         this.c = c;
         feedback_register = new byte[c.getBlockSize() >> 3];
         registerPointer = feedback_register.length;
+        registerBuffer = ByteBuffer.wrap(feedback_register);
     }
 
     protected PCFBMode(BlockCipher c, byte[] iv, int offset) {
@@ -222,6 +227,53 @@ public class PCFBMode {
         return;
     }
         
+    /**
+     * Decipher the data in a buffer in place, from its position to its limit, and set its position
+     * to its limit. Works with direct buffers as well as heap buffers, and processes whole blocks a
+     * word at a time. Gives exactly the same results as the byte array version.
+     */
+    public void blockDecipher(ByteBuffer buf) {
+    	if(buf.hasArray()) {
+    		blockDecipher(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+    		buf.position(buf.limit());
+    		return;
+    	}
+    	ByteBuffer b = buf.duplicate().order(ByteOrder.BIG_ENDIAN);
+    	buf.position(buf.limit());
+    	final int feedback_length = feedback_register.length;
+    	int off = b.position();
+    	int len = b.remaining();
+    	if (registerPointer != 0) {
+    		int l = Math.min(feedback_length - registerPointer, len);
+    		decipherRun(b, off, l);
+    		off += l;
+    		len -= l;
+    		if (len == 0) return;
+    		refillBuffer();
+    	}
+    	while (len > feedback_length) {
+    		decipherRun(b, off, feedback_length);
+    		off += feedback_length;
+    		len -= feedback_length;
+    		refillBuffer();
+    	}
+    	decipherRun(b, off, len);
+    }
+
+    /** Decipher len bytes at off, which must fit in what is left of the feedback register. */
+    private void decipherRun(ByteBuffer b, int off, int len) {
+    	for(; len >= 8; len -= 8, off += 8, registerPointer += 8) {
+    		long in = b.getLong(off);
+    		b.putLong(off, in ^ registerBuffer.getLong(registerPointer));
+    		registerBuffer.putLong(registerPointer, in);
+    	}
+    	for(; len > 0; len--, off++) {
+    		byte in = b.get(off);
+    		b.put(off, (byte) (in ^ feedback_register[registerPointer]));
+    		feedback_register[registerPointer++] = in;
+    	}
+    }
+
     // Refills the encrypted buffer with data.
     //private synchronized void refillBuffer() {
     protected void refillBuffer() {
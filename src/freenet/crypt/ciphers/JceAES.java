@@ -0,0 +1,144 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.crypt.ciphers;
+
+import java.security.GeneralSecurityException;
+import java.security.Provider;
+import java.security.Security;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+import freenet.crypt.BlockCipher;
+import freenet.crypt.UnsupportedCipherException;
+import freenet.support.Logger;
+
+/**
+ * AES, i.e. Rijndael with a 128-bit block, implemented by the JCA rather than by
+ * {@link Rijndael_Algorithm}. On HotSpot the JCA uses the CPU's AES instructions where there are
+ * any, which is much faster than looking up tables in Java. Gives exactly the same results as
+ * {@link Rijndael} with a 128-bit block. Use {@link Rijndael#create(int, int)} rather than
+ * constructing this directly, it will fall back to {@link Rijndael} if the JCA can't be used.
+ */
+public class JceAES implements BlockCipher {
+
+	private static final String ALGORITHM = "AES/ECB/NoPadding";
+	/** The SunJCE provider is the one HotSpot has intrinsics for. */
+	private static final Provider provider = getProvider();
+	/** Whether we can use the JCA for 128, 192 and 256 bit keys. */
+	private static final boolean[] available = checkAvailable();
+
+	private final int keysize;
+	private Cipher encryptor;
+	private Cipher decryptor;
+
+	private static Provider getProvider() {
+		Provider p = Security.getProvider("SunJCE");
+		if(p != null) return p;
+		try {
+			return Cipher.getInstance(ALGORITHM).getProvider();
+		} catch (GeneralSecurityException e) {
+			return null;
+		}
+	}
+
+	/** Check the JCA against Rijndael_Algorithm for each key size. It may not allow 256-bit keys if
+	 * the JCA is crippled by export restrictions. */
+	private static boolean[] checkAvailable() {
+		boolean[] ok = new boolean[3];
+		if(provider == null) return ok;
+		byte[] key = new byte[32];
+		byte[] plaintext = new byte[16];
+		for(int i = 0; i < key.length; i++)
+			key[i] = (byte) i;
+		for(int i = 0; i < plaintext.length; i++)
+			plaintext[i] = (byte) (i * 17);
+		for(int i = 0; i < ok.length; i++) {
+			int keysize = 128 + i * 64;
+			try {
+				Rijndael reference = new Rijndael(keysize, 128);
+				reference.initialize(key);
+				byte[] expected = new byte[16];
+				reference.encipher(plaintext, expected);
+				Cipher c = Cipher.getInstance(ALGORITHM, provider);
+				c.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, 0, keysize >> 3, "AES"));
+				ok[i] = Arrays.equals(expected, c.doFinal(plaintext));
+				if(!ok[i])
+					Logger.error(JceAES.class, "JCA AES gives the wrong answer for "+keysize+" bit keys, not using it");
+			} catch (Throwable t) {
+				Logger.normal(JceAES.class, "Can't use JCA AES for "+keysize+" bit keys: "+t, t);
+			}
+		}
+		return ok;
+	}
+
+	/** @return True if we can use the JCA for AES with the given key size in bits. */
+	public static boolean isAvailable(int keysize) {
+		if(!((keysize == 128) || (keysize == 192) || (keysize == 256)))
+			return false;
+		return available[(keysize - 128) / 64];
+	}
+
+	/**
+	 * @param keysize The key size in bits.
+	 * @throws UnsupportedCipherException If the key size is invalid or the JCA can't do it.
+	 */
+	public JceAES(int keysize) throws UnsupportedCipherException {
+		if (! ((keysize == 128) ||
+				(keysize == 192) ||
+				(keysize == 256)))
+			throw new UnsupportedCipherException("Invalid keysize");
+		if(!isAvailable(keysize))
+			throw new UnsupportedCipherException("JCA AES not available for "+keysize+" bit keys");
+		this.keysize = keysize;
+	}
+
+	@Override
+	public final int getBlockSize() {
+		return 128;
+	}
+
+	@Override
+	public final int getKeySize() {
+		return keysize;
+	}
+
+	@Override
+	public synchronized final void initialize(byte[] key) {
+		SecretKeySpec k = new SecretKeySpec(key, 0, keysize >> 3, "AES");
+		try {
+			encryptor = Cipher.getInstance(ALGORITHM, provider);
+			encryptor.init(Cipher.ENCRYPT_MODE, k);
+			decryptor = Cipher.getInstance(ALGORITHM, provider);
+			decryptor.init(Cipher.DECRYPT_MODE, k);
+		} catch (GeneralSecurityException e) {
+			// We checked this works in checkAvailable().
+			throw new Error(e);
+		}
+	}
+
+	@Override
+	public synchronized final void encipher(byte[] block, byte[] result) {
+		if(block.length != 16)
+			throw new IllegalArgumentException();
+		try {
+			encryptor.update(block, 0, 16, result, 0);
+		} catch (GeneralSecurityException e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+
+	@Override
+	public synchronized final void decipher(byte[] block, byte[] result) {
+		if(block.length != 16)
+			throw new IllegalArgumentException();
+		try {
+			decryptor.update(block, 0, 16, result, 0);
+		} catch (GeneralSecurityException e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+
+}
@@ -136,6 +136,19 @@ public class Rijndael implements BlockCipher {
 		this.blocksize=blocksize;
 	}
 
+	/**
+	 * Create a Rijndael cipher, using the JCA if the block size is 128 bits (i.e. it is AES) and
+	 * the JCA supports the key size. The JCA is much faster on CPUs with AES instructions.
+	 * @param keysize The key size.
+	 * @param blocksize The block size.
+	 * @throws UnsupportedCipherException
+	 */
+	public static BlockCipher create(int keysize, int blocksize) throws UnsupportedCipherException {
+		if(blocksize == 128 && JceAES.isAvailable(keysize))
+			return new JceAES(keysize);
+		return new Rijndael(keysize, blocksize);
+	}
+
 	// for Util.getCipherByName..  and yes, screw you too, java
 	public Rijndael() {
 		this.keysize   = 128;
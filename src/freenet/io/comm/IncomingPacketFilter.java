@@ -3,6 +3,8 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.io.comm;
 
+import java.nio.ByteBuffer;
+
 /**
  * Filter interface used by Freenet to decrypt incoming UDP packets.
  * @see freenet.node.OutgoingPacketMangler
@@ -32,6 +34,14 @@ public interface IncomingPacketFilter {
      */
 	DECODED process(byte[] buf, int offset, int length, Peer peer, long now);
 
+	/**
+	 * Process an incoming packet from position to limit of the buffer, e.g. a direct buffer
+	 * read from a DatagramChannel. The buffer will be reused once this returns, and its
+	 * position and limit must not be changed.
+	 * @see #process(byte[], int, int, Peer, long)
+	 */
+	DECODED process(ByteBuffer buf, Peer peer, long now);
+
     // Outgoing packets are handled elsewhere...
     
     /**
@@ -3,6 +3,7 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.io.comm;
 
+import java.nio.ByteBuffer;
 import java.util.concurrent.atomic.AtomicLong;
 
 import freenet.crypt.EntropySource;
@@ -68,6 +69,34 @@ public class IncomingPacketFilterImpl implements IncomingPacketFilter {
 		} else {
 			Logger.normal(this, "Got packet from unknown address");
 		}
+		return processNotFromPeer(buf, offset, length, peer, opn, now);
+	}
+
+	@Override
+	public DECODED process(ByteBuffer buf, Peer peer, long now) {
+		if(logMINOR) Logger.minor(this, "Packet length "+buf.remaining()+" from "+peer);
+		node.random.acceptTimerEntropy(fnpTimingSource, 0.25);
+		PeerNode opn = node.peers.getByPeer(peer, mangler);
+
+		if(opn != null) {
+			if(opn.handleReceivedPacket(buf, now, peer)) {
+				if(logMINOR) successfullyDecodedPackets.incrementAndGet();
+				return DECODED.DECODED;
+			}
+		} else {
+			Logger.normal(this, "Got packet from unknown address");
+		}
+		// Handshakes and packets from peers whose address has changed are rare, so they can
+		// have a copy.
+		byte[] data = new byte[buf.remaining()];
+		buf.duplicate().get(data);
+		return processNotFromPeer(data, 0, data.length, peer, opn, now);
+	}
+
+	/** The packet isn't from the peer at its address, or that peer didn't recognise it. Handshakes
+	 * are rare, and the mangler expects them one at a time, even if there are several threads
+	 * receiving packets. */
+	private synchronized DECODED processNotFromPeer(byte[] buf, int offset, int length, Peer peer, PeerNode opn, long now) {
 		DECODED decoded = mangler.process(buf, offset, length, peer, opn, now);
 		if(decoded == DECODED.DECODED) {
 			if(logMINOR) successfullyDecodedPackets.incrementAndGet();
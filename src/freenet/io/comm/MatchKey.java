@@ -0,0 +1,77 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+/**
+ * (MessageType, source, UID) triple used to index filters and unclaimed messages in
+ * {@link MessageCore}. The source and the UID may be null, meaning "any".
+ */
+final class MatchKey {
+
+	final MessageType type;
+	final PeerContext source;
+	final Object uid;
+	private final int hashCode;
+
+	MatchKey(MessageType type, PeerContext source, Object uid) {
+		this.type = type;
+		this.source = source;
+		this.uid = uid;
+		int h = type.hashCode();
+		if(source != null) h = h * 31 + source.hashCode();
+		if(uid != null) h = h * 31 + uid.hashCode();
+		hashCode = h;
+	}
+
+	/** @return The UID of the message, or null if it doesn't have one. */
+	static Object uidOf(Message m) {
+		return m.getObject(DMT.UID);
+	}
+
+	/**
+	 * @return The keys under which a message must be found by every filter which could match it:
+	 * the exact key, and the keys with the source and/or the UID wildcarded.
+	 */
+	static MatchKey[] keysFor(Message m) {
+		MessageType type = m.getSpec();
+		PeerContext source = m.getSource();
+		Object uid = uidOf(m);
+		if(source == null && uid == null)
+			return new MatchKey[] { new MatchKey(type, null, null) };
+		if(source == null)
+			return new MatchKey[] { new MatchKey(type, null, uid), new MatchKey(type, null, null) };
+		if(uid == null)
+			return new MatchKey[] { new MatchKey(type, source, null), new MatchKey(type, null, null) };
+		return new MatchKey[] {
+				new MatchKey(type, source, uid),
+				new MatchKey(type, source, null),
+				new MatchKey(type, null, uid),
+				new MatchKey(type, null, null)
+		};
+	}
+
+	/** @return The key of a single filter in an or() chain, or null if it matches any type. */
+	static MatchKey keyFor(MessageFilter f) {
+		MessageType type = f.getType();
+		if(type == null) return null;
+		return new MatchKey(type, f.getSource(), f.getField(DMT.UID));
+	}
+
+	@Override
+	public int hashCode() {
+		return hashCode;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if(o == this) return true;
+		if(!(o instanceof MatchKey)) return false;
+		MatchKey k = (MatchKey) o;
+		if(hashCode != k.hashCode) return false;
+		if(!type.equals(k.type)) return false;
+		if(source == null ? k.source != null : !source.equals(k.source)) return false;
+		return uid == null ? k.uid == null : uid.equals(k.uid);
+	}
+
+}
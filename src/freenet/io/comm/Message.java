@@ -19,21 +19,17 @@
 
 package freenet.io.comm;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 
 import freenet.support.ByteBufferInputStream;
 import freenet.support.Fields;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
-import freenet.support.Serializer;
 import freenet.support.ShortBuffer;
 import freenet.support.Logger.LogLevel;
 
@@ -70,7 +66,13 @@ public class Message {
 	private final MessageType _spec;
 	private final WeakReference<? extends PeerContext> _sourceRef;
 	private final boolean _internal;
-	private final HashMap<String, Object> _payload = new HashMap<String, Object>(8);
+	private final MessageCodec _codec;
+	/** Primitive fields, unboxed, by slot. See MessageCodec. */
+	final long[] _primitives;
+	/** Bit mask of the slots in _primitives which have been set */
+	long _primitivesSet;
+	/** Other fields by slot, null if not set */
+	final Object[] _objects;
 	private List<Message> _subMessages;
 	public final long localInstantiationTime;
 	final int _receivedByteCount;
@@ -107,15 +109,7 @@ public class Message {
 		}
 		Message m = new Message(mspec, peer, recvByteCount);
 		try {
-			for (String name : mspec.getOrderedFields()) {
-				Class<?> type = mspec.getFields().get(name);
-				if (type.equals(LinkedList.class)) { // Special handling for LinkedList to deal with element type
-					m.set(name, Serializer
-					      .readListFromDataInputStream(mspec.getLinkedListTypes().get(name), bb));
-				} else {
-					m.set(name, Serializer.readFromDataInputStream(type, bb));
-				}
-			}
+			mspec.getCodec().decode(m, bb);
 			if (mayHaveSubMessages) {
 				while (bb.remaining() > 2) { // sizeof(unsigned short) == 2
 					ByteBufferInputStream bb2;
@@ -158,6 +152,9 @@ public class Message {
 	private Message(MessageType spec, PeerContext source, int recvByteCount) {
 		localInstantiationTime = System.currentTimeMillis();
 		_spec = spec;
+		_codec = spec.getCodec();
+		_primitives = new long[_codec.primitiveCount];
+		_objects = new Object[_codec.objectCount];
 		if (source == null) {
 			_internal = true;
 			_sourceRef = null;
@@ -174,7 +171,10 @@ public class Message {
 		_spec = m._spec;
 		_sourceRef = null;
 		_internal = m._internal;
-		_payload.putAll(m._payload);
+		_codec = m._codec;
+		_primitives = m._primitives.clone();
+		_primitivesSet = m._primitivesSet;
+		_objects = m._objects.clone();
 		_subMessages = null;
 		localInstantiationTime = System.currentTimeMillis();
 		_receivedByteCount = 0;
@@ -184,47 +184,67 @@ public class Message {
 	}
 
 	public boolean getBoolean(String key) {
-		return (Boolean) _payload.get(key);
+		return getRaw(key, MessageCodec.BOOLEAN) != 0;
 	}
 
 	public byte getByte(String key) {
-		return (Byte) _payload.get(key);
+		return (byte) getRaw(key, MessageCodec.BYTE);
 	}
 
 	public short getShort(String key) {
-		return (Short) _payload.get(key);
+		return (short) getRaw(key, MessageCodec.SHORT);
 	}
 
 	public int getInt(String key) {
-		return (Integer) _payload.get(key);
+		return (int) getRaw(key, MessageCodec.INT);
 	}
 
 	public long getLong(String key) {
-		return (Long) _payload.get(key);
+		return getRaw(key, MessageCodec.LONG);
 	}
 
 	public double getDouble(String key) {
-		return (Double) _payload.get(key);
+		return Double.longBitsToDouble(getRaw(key, MessageCodec.DOUBLE));
 	}
 
 	public float getFloat(String key) {
-		return (Float) _payload.get(key);
+		return Float.intBitsToFloat((int) getRaw(key, MessageCodec.FLOAT));
+	}
+
+	/** Get a primitive field without boxing it. Fails in the same way as unboxing getObject(key)
+	 * if the field is not of the given kind. */
+	private long getRaw(String key, int kind) {
+		int i = _codec.indexOf(key);
+		if (i < 0 || _codec.kind(i) != kind) {
+			return MessageCodec.unbox(kind, getObject(key));
+		}
+		int slot = _codec.slot(i);
+		if ((_primitivesSet & (1L << slot)) == 0) {
+			throw new FieldNotSetException(key+" not set");
+		}
+		return _primitives[slot];
 	}
 
 	public double[] getDoubleArray(String key) {
-		return ((double[]) _payload.get(key));
+		return ((double[]) getObject(key));
 	}
 
 	public float[] getFloatArray(String key) {
-		return (float[]) _payload.get(key);
+		return (float[]) getObject(key);
 	}
 
 	public String getString(String key) {
-		return (String)_payload.get(key);
+		return (String) getObject(key);
 	}
 
 	public Object getObject(String key) {
-		return _payload.get(key);
+		int i = _codec.indexOf(key);
+		if (i < 0) return null;
+		int slot = _codec.slot(i);
+		int kind = _codec.kind(i);
+		if (kind == MessageCodec.OBJECT) return _objects[slot];
+		if ((_primitivesSet & (1L << slot)) == 0) return null;
+		return MessageCodec.box(kind, _primitives[slot]);
 	}
 	
 	public byte[] getShortBufferBytes(String key) {
@@ -233,31 +253,49 @@ public class Message {
 	}
 
 	public void set(String key, boolean b) {
-		set(key, Boolean.valueOf(b));
+		if (!setRaw(key, MessageCodec.BOOLEAN, b ? 1 : 0))
+			set(key, Boolean.valueOf(b));
 	}
 
 	public void set(String key, byte b) {
-		set(key, Byte.valueOf(b));
+		if (!setRaw(key, MessageCodec.BYTE, b))
+			set(key, Byte.valueOf(b));
 	}
 
 	public void set(String key, short s) {
-		set(key, Short.valueOf(s));
+		if (!setRaw(key, MessageCodec.SHORT, s))
+			set(key, Short.valueOf(s));
 	}
 
 	public void set(String key, int i) {
-		set(key, Integer.valueOf(i));
+		if (!setRaw(key, MessageCodec.INT, i))
+			set(key, Integer.valueOf(i));
 	}
 
 	public void set(String key, long l) {
-		set(key, Long.valueOf(l));
+		if (!setRaw(key, MessageCodec.LONG, l))
+			set(key, Long.valueOf(l));
 	}
 
 	public void set(String key, double d) {
-		set(key, Double.valueOf(d));
+		if (!setRaw(key, MessageCodec.DOUBLE, Double.doubleToRawLongBits(d)))
+			set(key, Double.valueOf(d));
 	}
 
 	public void set(String key, float f) {
-		set(key, Float.valueOf(f));
+		if (!setRaw(key, MessageCodec.FLOAT, Float.floatToRawIntBits(f)))
+			set(key, Float.valueOf(f));
+	}
+
+	/** Set a primitive field without boxing it.
+	 * @return False if the field is not of the given kind, in which case nothing is set. */
+	private boolean setRaw(String key, int kind, long raw) {
+		int i = _codec.indexOf(key);
+		if (i < 0 || _codec.kind(i) != kind) return false;
+		int slot = _codec.slot(i);
+		_primitives[slot] = raw;
+		_primitivesSet |= 1L << slot;
+		return true;
 	}
 
 	public void set(String key, Object value) {
@@ -267,7 +305,15 @@ public class Message {
 			}
 			throw new IncorrectTypeException("Got " + value.getClass() + ", expected " + _spec.typeOf(key));
 		}
-		_payload.put(key, value);
+		int i = _codec.indexOf(key);
+		int slot = _codec.slot(i);
+		int kind = _codec.kind(i);
+		if (kind == MessageCodec.OBJECT) {
+			_objects[slot] = value;
+		} else {
+			_primitives[slot] = MessageCodec.unbox(kind, value);
+			_primitivesSet |= 1L << slot;
+		}
 	}
 
 	public byte[] encodeToPacket() {
@@ -277,33 +323,24 @@ public class Message {
 	private byte[] encodeToPacket(boolean includeSubMessages, boolean isSubMessage) {
 
 		if (logDEBUG) Logger.debug(this, "My spec code: "+_spec.getName().hashCode()+" for "+_spec.getName());
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		DataOutputStream dos = new DataOutputStream(baos);
-		try {
-			dos.writeInt(_spec.getName().hashCode());
-			for (String name : _spec.getOrderedFields()) {
-				Serializer.writeToDataOutputStream(_payload.get(name), dos);
+		byte[][] subMessages = null;
+		int subMessagesLength = 0;
+		if (_subMessages != null && includeSubMessages) {
+			subMessages = new byte[_subMessages.size()][];
+			for (int i = 0; i < subMessages.length; i++) {
+				subMessages[i] = _subMessages.get(i).encodeToPacket(false, true);
+				subMessagesLength += 2 + subMessages[i].length;
 			}
-			dos.flush();
-		} catch (IOException e) {
-			e.printStackTrace();
-			throw new IllegalStateException(e.getMessage());
 		}
-
-		if (_subMessages != null && includeSubMessages) {
-			for (Message _subMessage : _subMessages) {
-				byte[] temp = _subMessage.encodeToPacket(false, true);
-				try {
-					dos.writeShort(temp.length);
-					dos.write(temp);
-				} catch (IOException e) {
-					e.printStackTrace();
-					throw new IllegalStateException(e.getMessage());
-				}
+		ByteBuffer bb = _codec.encode(this, subMessagesLength);
+		if (subMessages != null) {
+			for (byte[] temp : subMessages) {
+				bb.putShort((short) temp.length);
+				bb.put(temp);
 			}
 		}
 
-		byte[] buf = baos.toByteArray();
+		byte[] buf = bb.array();
 		if (logDEBUG) Logger.debug(this, "Length: "+buf.length+", hash: "+Fields.hashCode(buf));
 		return buf;
 	}
@@ -315,7 +352,7 @@ public class Message {
 		ret.append(_spec.getName()).append(" {");
 		for (String name : _spec.getFields().keySet()) {
 			ret.append(comma);
-			ret.append(name).append('=').append(_payload.get(name));
+			ret.append(name).append('=').append(getObject(name));
 			comma = ", ";
 		}
 		ret.append('}');
@@ -335,11 +372,15 @@ public class Message {
 	}
 
 	public boolean isSet(String fieldName) {
-		return _payload.containsKey(fieldName);
+		int i = _codec.indexOf(fieldName);
+		if (i < 0) return false;
+		int slot = _codec.slot(i);
+		if (_codec.kind(i) == MessageCodec.OBJECT) return _objects[slot] != null;
+		return (_primitivesSet & (1L << slot)) != 0;
 	}
 
 	public Object getFromPayload(String fieldName) throws FieldNotSetException {
-		Object r =  _payload.get(fieldName);
+		Object r = getObject(fieldName);
 		if (r == null) {
 			throw new FieldNotSetException(fieldName+" not set");
 		}
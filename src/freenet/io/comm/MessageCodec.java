@@ -0,0 +1,312 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import freenet.support.Buffer;
+import freenet.support.ByteBufferInputStream;
+import freenet.support.Serializer;
+import freenet.support.ShortBuffer;
+
+/**
+ * Encoder and decoder for the fields of one {@link MessageType}, built from its field list the
+ * first time it is needed. Each field gets a slot in the {@link Message}: primitives are stored
+ * unboxed in a long[], everything else in an Object[]. Encoding writes straight into a
+ * ByteBuffer of the right size. The wire format is exactly that of {@link Serializer}, which is
+ * still used for the more complex field types.
+ */
+final class MessageCodec {
+
+	static final int BOOLEAN = 0;
+	static final int BYTE = 1;
+	static final int SHORT = 2;
+	static final int INT = 3;
+	static final int LONG = 4;
+	static final int FLOAT = 5;
+	static final int DOUBLE = 6;
+	static final int OBJECT = 7;
+
+	/** Encoded length of each primitive kind */
+	private static final int[] LENGTHS = { 1, 1, 2, 4, 8, 4, 8 };
+
+	private final MessageType spec;
+	private final String[] names;
+	private final int[] kinds;
+	private final Class<?>[] types;
+	private final Class<?>[] listTypes;
+	private final int[] slots;
+	private final HashMap<String, Integer> indexes;
+	final int primitiveCount;
+	final int objectCount;
+
+	MessageCodec(MessageType spec) {
+		this.spec = spec;
+		List<String> ordered = spec.getOrderedFields();
+		Map<String, Class<?>> fields = spec.getFields();
+		int count = ordered.size();
+		names = new String[count];
+		kinds = new int[count];
+		types = new Class<?>[count];
+		listTypes = new Class<?>[count];
+		slots = new int[count];
+		indexes = new HashMap<String, Integer>(count * 2);
+		int primitives = 0;
+		int objects = 0;
+		int i = 0;
+		for(String name : ordered) {
+			Class<?> type = fields.get(name);
+			int kind = kindOf(type);
+			names[i] = name;
+			kinds[i] = kind;
+			types[i] = type;
+			if(type == LinkedList.class)
+				listTypes[i] = spec.getLinkedListTypes().get(name);
+			slots[i] = kind == OBJECT ? objects++ : primitives++;
+			indexes.put(name, i);
+			i++;
+		}
+		if(primitives > 64)
+			throw new IllegalStateException("Too many primitive fields in "+spec.getName());
+		primitiveCount = primitives;
+		objectCount = objects;
+	}
+
+	private static int kindOf(Class<?> type) {
+		if(type == Boolean.class) return BOOLEAN;
+		if(type == Byte.class) return BYTE;
+		if(type == Short.class) return SHORT;
+		if(type == Integer.class) return INT;
+		if(type == Long.class) return LONG;
+		if(type == Float.class) return FLOAT;
+		if(type == Double.class) return DOUBLE;
+		return OBJECT;
+	}
+
+	/** @return The index of the field, or -1 if the message type doesn't have it. */
+	int indexOf(String name) {
+		Integer i = indexes.get(name);
+		return i == null ? -1 : i;
+	}
+
+	int kind(int index) {
+		return kinds[index];
+	}
+
+	int slot(int index) {
+		return slots[index];
+	}
+
+	Class<?> type(int index) {
+		return types[index];
+	}
+
+	/** Convert a raw primitive slot to its boxed value. */
+	static Object box(int kind, long raw) {
+		switch(kind) {
+		case BOOLEAN: return Boolean.valueOf(raw != 0);
+		case BYTE: return Byte.valueOf((byte) raw);
+		case SHORT: return Short.valueOf((short) raw);
+		case INT: return Integer.valueOf((int) raw);
+		case LONG: return Long.valueOf(raw);
+		case FLOAT: return Float.valueOf(Float.intBitsToFloat((int) raw));
+		case DOUBLE: return Double.valueOf(Double.longBitsToDouble(raw));
+		default: throw new IllegalArgumentException();
+		}
+	}
+
+	/** Convert a boxed primitive of the right class to its raw slot value. */
+	static long unbox(int kind, Object value) {
+		switch(kind) {
+		case BOOLEAN: return ((Boolean) value) ? 1 : 0;
+		case BYTE: return (Byte) value;
+		case SHORT: return (Short) value;
+		case INT: return (Integer) value;
+		case LONG: return (Long) value;
+		case FLOAT: return Float.floatToRawIntBits((Float) value);
+		case DOUBLE: return Double.doubleToRawLongBits((Double) value);
+		default: throw new IllegalArgumentException();
+		}
+	}
+
+	/** Read all the fields of the message, in order. */
+	void decode(Message m, ByteBufferInputStream bb) throws IOException {
+		long[] primitives = m._primitives;
+		Object[] objects = m._objects;
+		for(int i = 0; i < kinds.length; i++) {
+			int slot = slots[i];
+			switch(kinds[i]) {
+			case BOOLEAN:
+				// Only 0 and 1 are written, anything else indicates a problem.
+				byte b = bb.readByte();
+				if(b != 0 && b != 1) throw new IOException("Boolean is non boolean value: " + b);
+				primitives[slot] = b;
+				break;
+			case BYTE:
+				primitives[slot] = bb.readByte();
+				break;
+			case SHORT:
+				primitives[slot] = bb.readShort();
+				break;
+			case INT:
+				primitives[slot] = bb.readInt();
+				break;
+			case LONG:
+				primitives[slot] = bb.readLong();
+				break;
+			case FLOAT:
+				primitives[slot] = bb.readInt();
+				break;
+			case DOUBLE:
+				primitives[slot] = bb.readLong();
+				break;
+			default:
+				if(listTypes[i] != null)
+					objects[slot] = Serializer.readListFromDataInputStream(listTypes[i], bb);
+				else
+					objects[slot] = Serializer.readFromDataInputStream(types[i], bb);
+				continue;
+			}
+			m._primitivesSet |= 1L << slot;
+		}
+	}
+
+	/**
+	 * Encode the message type and all the fields of the message.
+	 * @param extra Number of bytes to leave free at the end of the returned buffer.
+	 * @return A buffer wrapping an array of exactly the encoded length plus extra, positioned
+	 * after the fields.
+	 */
+	ByteBuffer encode(Message m, int extra) {
+		long[] primitives = m._primitives;
+		Object[] objects = m._objects;
+		// Objects whose length we can't tell without serializing them.
+		byte[][] serialized = null;
+		int length = 4;
+		for(int i = 0; i < kinds.length; i++) {
+			int kind = kinds[i];
+			int slot = slots[i];
+			if(kind != OBJECT) {
+				if((m._primitivesSet & (1L << slot)) == 0)
+					throw new Message.FieldNotSetException(names[i]+" not set in "+spec.getName());
+				length += LENGTHS[kind];
+				continue;
+			}
+			Object o = objects[slot];
+			if(o == null)
+				throw new Message.FieldNotSetException(names[i]+" not set in "+spec.getName());
+			int l = encodedLength(o);
+			if(l < 0) {
+				if(serialized == null) serialized = new byte[objectCount][];
+				serialized[slot] = serialize(o);
+				l = serialized[slot].length;
+			}
+			length += l;
+		}
+		ByteBuffer bb = ByteBuffer.wrap(new byte[length + extra]);
+		bb.putInt(spec.getName().hashCode());
+		for(int i = 0; i < kinds.length; i++) {
+			int slot = slots[i];
+			int kind = kinds[i];
+			if(kind == OBJECT) {
+				if(serialized != null && serialized[slot] != null)
+					bb.put(serialized[slot]);
+				else
+					write(objects[slot], bb);
+				continue;
+			}
+			long raw = primitives[slot];
+			switch(kind) {
+			case BOOLEAN:
+			case BYTE:
+				bb.put((byte) raw);
+				break;
+			case SHORT:
+				bb.putShort((short) raw);
+				break;
+			case INT:
+			case FLOAT:
+				bb.putInt((int) raw);
+				break;
+			default:
+				bb.putLong(raw);
+			}
+		}
+		return bb;
+	}
+
+	/** @return The encoded length of an object field, or -1 if it has to be serialized to tell. */
+	private static int encodedLength(Object o) {
+		Class<?> type = o.getClass();
+		if(type == ShortBuffer.class) {
+			return 2 + ((ShortBuffer) o).getLength();
+		} else if(type == Buffer.class) {
+			return 4 + ((Buffer) o).getLength();
+		} else if(type == String.class) {
+			return 4 + 2 * ((String) o).length();
+		} else if(type == double[].class) {
+			int length = ((double[]) o).length;
+			if(length > 255) {
+				throw new IllegalArgumentException("Cannot serialize an array of more than 255 doubles; attempted to " +
+				                                   "serialize " + length + ".");
+			}
+			return 1 + 8 * length;
+		} else if(type == float[].class) {
+			return 2 + 4 * ((float[]) o).length;
+		}
+		return -1;
+	}
+
+	/** Write an object for which encodedLength() is known. Same format as Serializer. */
+	private static void write(Object o, ByteBuffer bb) {
+		Class<?> type = o.getClass();
+		if(type == ShortBuffer.class) {
+			ShortBuffer buf = (ShortBuffer) o;
+			bb.putShort((short) buf.getLength());
+			buf.copyTo(bb.array(), bb.position());
+			bb.position(bb.position() + buf.getLength());
+		} else if(type == Buffer.class) {
+			Buffer buf = (Buffer) o;
+			bb.putInt(buf.getLength());
+			buf.copyTo(bb.array(), bb.position());
+			bb.position(bb.position() + buf.getLength());
+		} else if(type == String.class) {
+			String s = (String) o;
+			bb.putInt(s.length());
+			for(int x = 0; x < s.length(); x++)
+				bb.putChar(s.charAt(x));
+		} else if(type == double[].class) {
+			double[] array = (double[]) o;
+			bb.put((byte) array.length);
+			for(double element : array) bb.putDouble(element);
+		} else if(type == float[].class) {
+			float[] array = (float[]) o;
+			bb.putShort((short) array.length);
+			for(float element : array) bb.putFloat(element);
+		} else {
+			throw new IllegalStateException("Unknown length for "+type);
+		}
+	}
+
+	private static byte[] serialize(Object o) {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(baos);
+		try {
+			Serializer.writeToDataOutputStream(o, dos);
+			dos.flush();
+		} catch (IOException e) {
+			// Impossible, we are writing to memory.
+			throw new IllegalStateException(e.getMessage());
+		}
+		return baos.toByteArray();
+	}
+
+}
@@ -24,8 +24,6 @@ import static java.util.concurrent.TimeUnit.SECONDS;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
-import java.util.ListIterator;
 import java.util.Map;
 
 import freenet.io.comm.MessageFilter.MATCHED;
@@ -34,7 +32,6 @@ import freenet.support.Executor;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.Ticker;
-import freenet.support.TimeUtil;
 import freenet.support.Logger.LogLevel;
 
 public class MessageCore {
@@ -56,14 +53,17 @@ public class MessageCore {
 	private Dispatcher _dispatcher;
 	private Executor _executor;
 	/** _filters serves as lock for both */
-	private final LinkedList<MessageFilter> _filters = new LinkedList<MessageFilter>();
-	private final LinkedList<Message> _unclaimed = new LinkedList<Message>();
+	private final MessageFilterIndex _filters = new MessageFilterIndex();
+	private final UnclaimedMessageIndex _unclaimed = new UnclaimedMessageIndex();
 	private static final int MAX_UNMATCHED_FIFO_SIZE = 50000;
 	private static final long MAX_UNCLAIMED_FIFO_ITEM_LIFETIME = MINUTES.toMillis(10);  // maybe this should be per message type??
 	// FIXME do we need MIN_FILTER_REMOVE_TIME? Can we make this more efficient?
 	// FIXME may not work well for newly added filters with timeouts close to the minimum, or filters with timeouts close to the minimum in general.
 	private static final long MAX_FILTER_REMOVE_TIME = SECONDS.toMillis(10);
 	private static final long MIN_FILTER_REMOVE_TIME = SECONDS.toMillis(1);
+	/** Time of the next check of all filters, for those whose callbacks want them timed out early.
+	 * Protected by _filters. */
+	private long nextFullTimeoutCheck;
 	private long startedTime;
 	
 	public synchronized long getStartedTime() {
@@ -124,37 +124,29 @@ public class MessageCore {
 			Logger.minor(this, "Removing timed out filters");
 		HashSet<MessageFilter> timedOutFilters = null;
 		synchronized (_filters) {
-			for (ListIterator<MessageFilter> i = _filters.listIterator(); i.hasNext();) {
-				MessageFilter f = i.next();
+			// Filters are indexed by the timeout they had when they were added, so we only need to
+			// look at the ones at the front.
+			while(_filters.firstTimeout() < tStart) {
+				MessageFilter f = _filters.first();
 				if (f.timedOut(tStart)) {
-					if(logMINOR)
-						Logger.minor(this, "Removing "+f);
-					i.remove();
-					if(timedOutFilters == null) 
-						timedOutFilters = new HashSet<MessageFilter>();
-					if(!timedOutFilters.add(f))
-						Logger.error(this, "Filter "+f+" is in filter list twice!");
-					if(logMINOR) {
-						for (ListIterator<Message> it = _unclaimed.listIterator(); it.hasNext();) {
-							Message m = it.next();
-							MATCHED status = f.match(m, true, tStart);
-							if (status == MATCHED.MATCHED) {
-								// Don't match it, we timed out; two-level timeouts etc may want it for the next filter.
-								Logger.error(this, "Timed out but should have matched in _unclaimed: "+m+" for "+f);
-								break;
-							}
-						}
-					}
+					timedOutFilters = removeTimedOut(f, timedOutFilters, tStart);
 				} else {
-					if(f.hasCallback() && nextTimeout > f.getTimeout())
-						nextTimeout = f.getTimeout();
+					// Timeout was moved later. Re-index it.
+					_filters.add(f);
+				}
+			}
+			// Some filters may be timed out because their client callbacks say they should be.
+			// These can be anywhere, so check all of them, but not every time.
+			if(tStart >= nextFullTimeoutCheck) {
+				nextFullTimeoutCheck = tStart + MAX_FILTER_REMOVE_TIME;
+				for (MessageFilter f : _filters.toList()) {
+					if (f.timedOut(tStart))
+						timedOutFilters = removeTimedOut(f, timedOutFilters, tStart);
 				}
-				// Do not break after finding a non-timed-out filter because some filters may 
-				// be timed out because their client callbacks say they should be.
-				// Also simplifies the logic significantly, we've had some major bugs here.
-				
-				// See also the end of waitFor() for another weird case.
 			}
+			if(nextTimeout > _filters.firstTimeout())
+				nextTimeout = _filters.firstTimeout();
+			// See also the end of waitFor() for another weird case.
 		}
 		
 		if(timedOutFilters != null) {
@@ -174,6 +166,31 @@ public class MessageCore {
 		return nextTimeout;
 	}
 
+	/** Remove a filter which has timed out from _filters. Caller must hold the _filters lock. */
+	private HashSet<MessageFilter> removeTimedOut(MessageFilter f, HashSet<MessageFilter> timedOutFilters, long now) {
+		if(logMINOR)
+			Logger.minor(this, "Removing "+f);
+		_filters.remove(f);
+		if(timedOutFilters == null) 
+			timedOutFilters = new HashSet<MessageFilter>();
+		timedOutFilters.add(f);
+		if(logMINOR) {
+			Message m = _unclaimed.peek(f, now);
+			if (m != null) {
+				// Don't match it, we timed out; two-level timeouts etc may want it for the next filter.
+				Logger.error(this, "Timed out but should have matched in _unclaimed: "+m+" for "+f);
+			}
+		}
+		return timedOutFilters;
+	}
+
+	/** Add a filter to _filters. Caller must hold the _filters lock. */
+	private void addFilter(MessageFilter filter) {
+		if(!_filters.add(filter))
+			Logger.error(this, "Filter "+filter+" is in filter list twice!");
+		if(logMINOR) Logger.minor(this, "Added "+filter+" timeout="+filter.getTimeout()+" filters="+_filters.size());
+	}
+
 	/**
 	 * Dispatch a message to a waiting filter, or feed it to the
 	 * Dispatcher if none are found.
@@ -196,11 +213,11 @@ public class MessageCore {
 		MessageFilter match = null;
 		ArrayList<MessageFilter> timedOut = null;
 		synchronized (_filters) {
-			for (ListIterator<MessageFilter> i = _filters.listIterator(); i.hasNext();) {
-				MessageFilter f = i.next();
+			// Only the filters which could match. Others may have timed out, removeTimedOutFilters() will deal with them.
+			for (MessageFilter f : _filters.candidates(m)) {
 				if (f.matched()) {
 					Logger.error(this, "removed pre-matched message filter found in _filters: "+f);
-					i.remove();
+					_filters.remove(f);
 					continue;
 				}
 				MATCHED status = f.match(m, tStart);
@@ -208,11 +225,11 @@ public class MessageCore {
 					if(timedOut == null)
 						timedOut = new ArrayList<MessageFilter>();
 					timedOut.add(f);
-					i.remove();
+					_filters.remove(f);
 					continue;
 				} else if(status == MATCHED.MATCHED) {
 					matched = true;
-					i.remove();
+					_filters.remove(f);
 					match = f;
 					// We must setMessage() inside the lock to ensure that waitFor() sees it even if it times out.
 					f.setMessage(m);
@@ -267,13 +284,12 @@ public class MessageCore {
 		     */
 			synchronized (_filters) {
 				if(logMINOR) Logger.minor(this, "Rechecking filters and adding message");
-				for (ListIterator<MessageFilter> i = _filters.listIterator(); i.hasNext();) {
-					MessageFilter f = i.next();
+				for (MessageFilter f : _filters.candidates(m)) {
 					MATCHED status = f.match(m, tStart);
 					if(status == MATCHED.MATCHED) {
 						matched = true;
 						match = f;
-						i.remove();
+						_filters.remove(f);
 						if(logMINOR) Logger.minor(this, "Matched (2): "+f);
 						match.setMessage(m);
 						break; // Only one match permitted per message
@@ -281,20 +297,12 @@ public class MessageCore {
 						if(timedOut == null)
 							timedOut = new ArrayList<MessageFilter>();
 						timedOut.add(f);
-						i.remove();
+						_filters.remove(f);
 						continue;
 					}
 				}
 				if(!matched) {
-				    while (_unclaimed.size() > MAX_UNMATCHED_FIFO_SIZE) {
-				        Message removed = _unclaimed.removeFirst();
-				        long messageLifeTime = System.currentTimeMillis() - removed.localInstantiationTime;
-				        if ((removed.getSource()) instanceof PeerNode) {
-				            Logger.normal(this, "Dropping unclaimed from "+removed.getSource().getPeer()+", lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" (quantity)"+": "+removed);
-				        } else {
-				            Logger.normal(this, "Dropping unclaimed, lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" (quantity)"+": "+removed);
-				        }
-				    }
+				    _unclaimed.trim(MAX_UNMATCHED_FIFO_SIZE);
 				    _unclaimed.addLast(m);
 				    if(logMINOR) Logger.minor(this, "Done");
 				}
@@ -323,14 +331,12 @@ public class MessageCore {
 	public void onDisconnect(PeerContext ctx) {
 		ArrayList<MessageFilter> droppedFilters = null; // rare operation, we can waste objects for better locking
 	    synchronized(_filters) {
-			ListIterator<MessageFilter> i = _filters.listIterator();
-			while (i.hasNext()) {
-			    MessageFilter f = i.next();
+			for (MessageFilter f : _filters.toList()) {
 			    if(f.matchesDroppedConnection(ctx)) {
 			    	if(droppedFilters == null)
 			    		droppedFilters = new ArrayList<MessageFilter>();
 			    	droppedFilters.add(f);
-			    	i.remove();
+			    	_filters.remove(f);
 			    }
 			}
 	    }
@@ -345,14 +351,12 @@ public class MessageCore {
 	public void onRestart(PeerContext ctx) {
 		ArrayList<MessageFilter> droppedFilters = null; // rare operation, we can waste objects for better locking
 	    synchronized(_filters) {
-			ListIterator<MessageFilter> i = _filters.listIterator();
-			while (i.hasNext()) {
-			    MessageFilter f = i.next();
+			for (MessageFilter f : _filters.toList()) {
 			    if(f.matchesRestartedConnection(ctx)) {
 			    	if(droppedFilters == null)
 			    		droppedFilters = new ArrayList<MessageFilter>();
 			    	droppedFilters.add(f);
-			    	i.remove();
+			    	_filters.remove(f);
 			    }
 			}
 	    }
@@ -380,7 +384,6 @@ public class MessageCore {
 		// Drop any _unclaimed messages that the filter doesn't match that are also older than MAX_UNCLAIMED_FIFO_ITEM_LIFETIME
 		long now = System.currentTimeMillis();
 		long messageDropTime = now - MAX_UNCLAIMED_FIFO_ITEM_LIFETIME;
-		long messageLifeTime = 0;
 		long timeout = filter.getTimeout();
 		synchronized (_filters) {
 			//Once in the list, it is up to the callback system to trigger the disconnection, however, we may
@@ -391,43 +394,14 @@ public class MessageCore {
 				//but we are holding the _filters lock!
 			}
 			if(logMINOR) Logger.minor(this, "Checking _unclaimed");
-			for (ListIterator<Message> i = _unclaimed.listIterator(); i.hasNext();) {
-				Message m = i.next();
-				// These messages have already arrived, so we can match against them even if we are timed out.
-				MATCHED status = filter.match(m, true, now);
-				if (status == MATCHED.MATCHED) {
-					i.remove();
-					ret = m;
-					if(logMINOR) Logger.minor(this, "Matching from _unclaimed");
-					break;
-				} else if (m.localInstantiationTime < messageDropTime) {
-					i.remove();
-					messageLifeTime = now - m.localInstantiationTime;
-					if ((m.getSource()) instanceof PeerNode) {
-						Logger.normal(this, "Dropping unclaimed from "+m.getSource().getPeer()+", lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" (age)"+": "+m);
-					} else {
-						Logger.normal(this, "Dropping unclaimed, lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" (age)"+": "+m);
-					}
-				}
-			}
-			if (ret == null && timeout >= System.currentTimeMillis()) {
+			// These messages have already arrived, so we can match against them even if we are timed out.
+			ret = _unclaimed.claim(filter, now, messageDropTime);
+			if (ret != null) {
+				if(logMINOR) Logger.minor(this, "Matching from _unclaimed");
+			} else if (timeout >= System.currentTimeMillis()) {
 				if(logMINOR) Logger.minor(this, "Not in _unclaimed");
-			    // Insert filter into filter list in order of timeout
-				ListIterator<MessageFilter> i = _filters.listIterator();
-				while (true) {
-					if (!i.hasNext()) {
-						i.add(filter);
-						if(logMINOR) Logger.minor(this, "Added at end");
-						return;
-					}
-					MessageFilter mf = i.next();
-					if (mf.getTimeout() > timeout) {
-						i.previous();
-						i.add(filter);
-						if(logMINOR) Logger.minor(this, "Added in middle - mf timeout="+mf.getTimeout()+" - my timeout="+filter.getTimeout());
-						return;
-					}
-				}
+				addFilter(filter);
+				return;
 			}
 		}
 		if(ret != null) {
@@ -472,45 +446,14 @@ public class MessageCore {
 		// Drop any _unclaimed messages that the filter doesn't match that are also older than MAX_UNCLAIMED_FIFO_ITEM_LIFETIME
 		long now = System.currentTimeMillis();
 		long messageDropTime = now - MAX_UNCLAIMED_FIFO_ITEM_LIFETIME;
-		long messageLifeTime = 0;
 		synchronized (_filters) {
 			if(logMINOR) Logger.minor(this, "Checking _unclaimed");
-			for (ListIterator<Message> i = _unclaimed.listIterator(); i.hasNext();) {
-				Message m = i.next();
-				MATCHED status = filter.match(m, true, startTime);
-				if(status == MATCHED.MATCHED) {
-					i.remove();
-					ret = m;
-					if(logMINOR) Logger.minor(this, "Matching from _unclaimed");
-					break;
-				} else if (m.localInstantiationTime < messageDropTime) {
-					i.remove();
-					messageLifeTime = now - m.localInstantiationTime;
-					if ((m.getSource()) instanceof PeerNode) {
-						Logger.normal(this, "Dropping unclaimed from "+m.getSource().getPeer()+", lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" (age)"+": "+m);
-					} else {
-						Logger.normal(this, "Dropping unclaimed, lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" (age)"+": "+m);
-					}
-				}
-			}
-			if (ret == null) {
+			ret = _unclaimed.claim(filter, startTime, messageDropTime);
+			if (ret != null) {
+				if(logMINOR) Logger.minor(this, "Matching from _unclaimed");
+			} else {
 				if(logMINOR) Logger.minor(this, "Not in _unclaimed");
-			    // Insert filter into filter list in order of timeout
-				ListIterator<MessageFilter> i = _filters.listIterator();
-				while (true) {
-					if (!i.hasNext()) {
-						i.add(filter);
-						if(logMINOR) Logger.minor(this, "Added at end "+filter);
-						break;
-					}
-					MessageFilter mf = i.next();
-					if (mf.getTimeout() > filter.getTimeout()) {
-						i.previous();
-						i.add(filter);
-						if(logMINOR) Logger.minor(this, "Added in middle - mf timeout="+mf.getTimeout()+" - my timeout="+filter.getTimeout()+" filter "+filter);
-						break;
-					}
-				}
+				addFilter(filter);
 			}
 		}
 		long tEnd = System.currentTimeMillis();
@@ -561,11 +504,8 @@ public class MessageCore {
 				}
 			}
 			filter.clearMatched();
-			// We must remove it from _filters before we return, or when it is re-added,
-			// it will be in the list twice, and potentially many more times than twice!
-			// Fortunately, it will be close to the beginning of the filters list, having
-			// just timed out. That is assuming it hasn't already been removed; in that
-			// case, this will be slower.
+			// We must remove it from _filters before we return, or it will still be
+			// there when it is re-added.
 			_filters.remove(filter);
 			// A filter being waitFor()'ed cannot have any callbacks, so we don't need to call onMatched().
 		}
@@ -611,8 +551,7 @@ public class MessageCore {
 	public Map<String, Integer> getUnclaimedFIFOMessageCounts() {
 		Map<String, Integer> messageCounts = new HashMap<String, Integer>();
 		synchronized(_filters) {
-			for (ListIterator<Message> i = _unclaimed.listIterator(); i.hasNext();) {
-				Message m = i.next();
+			for (Message m : _unclaimed.toList()) {
 				String messageName = m.getSpec().getName();
 				Integer messageCount = messageCounts.get(messageName);
 				if (messageCount == null) {
@@ -0,0 +1,155 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * The waiting filters of a {@link MessageCore}, indexed so that an incoming message only has to be
+ * tried against the filters which could possibly match it.
+ *
+ * Every filter in an or() chain is indexed under its own (type, source, UID) key, pointing back to
+ * the head of the chain; filters without a type are tried against every message. The filters are
+ * also kept in order of the timeout they had when they were added, which is the order in which
+ * they get priority when more than one matches, and the order in which they expire.
+ *
+ * Not thread-safe: the caller must synchronize.
+ */
+final class MessageFilterIndex {
+
+	private static final class Entry implements Comparable<Entry> {
+		final MessageFilter filter;
+		final long timeout;
+		final long seq;
+		final MatchKey[] keys;
+		final boolean wildcard;
+
+		Entry(MessageFilter filter, long seq) {
+			this.filter = filter;
+			this.timeout = filter.getTimeout();
+			this.seq = seq;
+			ArrayList<MatchKey> k = new ArrayList<MatchKey>(1);
+			boolean w = false;
+			for(MessageFilter f = filter; f != null; f = f.getOr()) {
+				MatchKey key = MatchKey.keyFor(f);
+				if(key == null)
+					w = true;
+				else if(!k.contains(key))
+					k.add(key);
+			}
+			keys = k.toArray(new MatchKey[k.size()]);
+			wildcard = w;
+		}
+
+		@Override
+		public int compareTo(Entry e) {
+			if(timeout != e.timeout) return timeout < e.timeout ? -1 : 1;
+			if(seq != e.seq) return seq < e.seq ? -1 : 1;
+			return 0;
+		}
+	}
+
+	private final HashMap<MessageFilter, Entry> entries = new HashMap<MessageFilter, Entry>();
+	private final HashMap<MatchKey, HashSet<Entry>> byKey = new HashMap<MatchKey, HashSet<Entry>>();
+	private final HashSet<Entry> wildcards = new HashSet<Entry>();
+	private final TreeSet<Entry> byTimeout = new TreeSet<Entry>();
+	private long nextSeq;
+
+	/**
+	 * Add a filter. Filters with equal timeouts keep the order in which they were added.
+	 * @return False if the filter was already present, in which case it is moved to its new
+	 * position.
+	 */
+	boolean add(MessageFilter filter) {
+		boolean wasPresent = remove(filter);
+		Entry e = new Entry(filter, nextSeq++);
+		entries.put(filter, e);
+		byTimeout.add(e);
+		for(MatchKey key : e.keys) {
+			HashSet<Entry> bucket = byKey.get(key);
+			if(bucket == null) {
+				bucket = new HashSet<Entry>();
+				byKey.put(key, bucket);
+			}
+			bucket.add(e);
+		}
+		if(e.wildcard) wildcards.add(e);
+		return !wasPresent;
+	}
+
+	/** @return True if the filter was present. */
+	boolean remove(MessageFilter filter) {
+		Entry e = entries.remove(filter);
+		if(e == null) return false;
+		byTimeout.remove(e);
+		for(MatchKey key : e.keys) {
+			HashSet<Entry> bucket = byKey.get(key);
+			bucket.remove(e);
+			if(bucket.isEmpty()) byKey.remove(key);
+		}
+		if(e.wildcard) wildcards.remove(e);
+		return true;
+	}
+
+	int size() {
+		return entries.size();
+	}
+
+	/**
+	 * @return The filters which could match the message, in priority order. Filters outside this
+	 * list are guaranteed not to match it, although they may have timed out.
+	 */
+	List<MessageFilter> candidates(Message m) {
+		ArrayList<Entry> found = null;
+		for(MatchKey key : MatchKey.keysFor(m)) {
+			HashSet<Entry> bucket = byKey.get(key);
+			if(bucket == null) continue;
+			if(found == null) found = new ArrayList<Entry>(bucket.size() + wildcards.size());
+			found.addAll(bucket);
+		}
+		if(!wildcards.isEmpty()) {
+			if(found == null) found = new ArrayList<Entry>(wildcards.size());
+			found.addAll(wildcards);
+		}
+		if(found == null) return Collections.emptyList();
+		ArrayList<MessageFilter> ret = new ArrayList<MessageFilter>(found.size());
+		if(found.size() == 1) {
+			ret.add(found.get(0).filter);
+			return ret;
+		}
+		Collections.sort(found);
+		Entry prev = null;
+		for(Entry e : found) {
+			// A filter may be found under more than one key. Duplicates are adjacent.
+			if(e != prev) ret.add(e.filter);
+			prev = e;
+		}
+		return ret;
+	}
+
+	/** @return The filter with the earliest timeout, or null if there are no filters. */
+	MessageFilter first() {
+		return byTimeout.isEmpty() ? null : byTimeout.first().filter;
+	}
+
+	/** @return The timeout the first filter had when it was added, or Long.MAX_VALUE if there are
+	 * no filters. The filter may have changed its own timeout since. */
+	long firstTimeout() {
+		return byTimeout.isEmpty() ? Long.MAX_VALUE : byTimeout.first().timeout;
+	}
+
+	/** @return A copy of all the filters, in priority order. */
+	List<MessageFilter> toList() {
+		ArrayList<MessageFilter> ret = new ArrayList<MessageFilter>(byTimeout.size());
+		for(Entry e : byTimeout)
+			ret.add(e.filter);
+		return ret;
+	}
+
+}
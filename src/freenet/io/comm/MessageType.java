@@ -40,6 +40,8 @@ public class MessageType {
 	private final boolean internalOnly;
 	private final short priority;
 	private final boolean isLossyPacketMessage;
+	/** Built on first use, after all the fields have been added */
+	private volatile MessageCodec codec;
 
 	public MessageType(String name, short priority) {
 	    this(name, priority, false, false);
@@ -70,6 +72,7 @@ public class MessageType {
 	public void addField(String name, Class<?> type) {
 		_fields.put(name, type);
 		_orderedFields.addLast(name);
+		codec = null;
 	}
 	
 	public void addRoutedToNodeMessageFields() {
@@ -130,6 +133,18 @@ public class MessageType {
 		return _fields;
 	}
 
+	MessageCodec getCodec() {
+		MessageCodec c = codec;
+		if(c == null) {
+			synchronized(this) {
+				c = codec;
+				if(c == null)
+					codec = c = new MessageCodec(this);
+			}
+		}
+		return c;
+	}
+
 	public LinkedList<String> getOrderedFields() {
 		return _orderedFields;
 	}
@@ -0,0 +1,182 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+
+import com.sun.jna.LastErrorException;
+import com.sun.jna.Memory;
+import com.sun.jna.Native;
+import com.sun.jna.Platform;
+import com.sun.jna.Pointer;
+
+import freenet.support.Logger;
+
+/**
+ * Sends several datagrams with a single sendmmsg() system call, on Linux. Java has no way to do
+ * this, so we build the struct mmsghdr array ourselves in native memory, which is allocated once
+ * and reused. Each instance may only be used by one thread at a time, e.g. the thread which owns
+ * a {@link SendBatch}.
+ */
+final class MultiSend {
+
+	private static final boolean AVAILABLE;
+
+	static {
+		boolean available = false;
+		if(Platform.isLinux()) {
+			try {
+				Native.register(Platform.C_LIBRARY_NAME);
+				available = true;
+			} catch (Throwable t) {
+				Logger.normal(MultiSend.class, "sendmmsg() not available, sending packets one at a time: "+t, t);
+			}
+		}
+		AVAILABLE = available;
+	}
+
+	private static native int sendmmsg(int fd, Pointer msgvec, int vlen, int flags) throws LastErrorException;
+	private static native int getsockname(int fd, Pointer addr, int[] addrlen) throws LastErrorException;
+
+	static final short AF_INET = 2;
+	static final short AF_INET6 = 10;
+	/** Packets bigger than this are sent on their own. */
+	static final int MAX_PACKET_SIZE = 2048;
+	/** Big enough for a struct sockaddr_in6. */
+	private static final int SOCKADDR_SIZE = 28;
+
+	// struct msghdr: pointer, socklen_t (padded), pointer, size_t, pointer, size_t, int (padded),
+	// followed in struct mmsghdr by unsigned int msg_len (padded).
+	private static final int P = Native.POINTER_SIZE;
+	private static final int MSG_NAME = 0;
+	private static final int MSG_NAMELEN = P;
+	private static final int MSG_IOV = 2 * P;
+	private static final int MSG_IOVLEN = 3 * P;
+	private static final int MSG_CONTROL = 4 * P;
+	private static final int MSG_CONTROLLEN = 5 * P;
+	private static final int MSG_FLAGS = 6 * P;
+	private static final int MMSGHDR_SIZE = 8 * P;
+	private static final int IOVEC_SIZE = 2 * P;
+
+	private final int capacity;
+	private final Memory memory;
+	private final long iovecs;
+	private final long sockaddrs;
+	private final long data;
+
+	/** @return True if we can use sendmmsg() on this platform. */
+	static boolean available() {
+		return AVAILABLE;
+	}
+
+	/**
+	 * @return The address family of the socket, {@link #AF_INET} or {@link #AF_INET6}, or -1 if
+	 * it is something else or we can't tell, in which case we can't use sendmmsg() on it.
+	 */
+	static int getFamily(int fd) {
+		if(!AVAILABLE || fd < 0) return -1;
+		Memory addr = new Memory(128);
+		addr.clear();
+		try {
+			getsockname(fd, addr, new int[] { 128 });
+		} catch (LastErrorException e) {
+			Logger.normal(MultiSend.class, "getsockname() failed on "+fd+": "+e, e);
+			return -1;
+		}
+		short family = addr.getShort(0);
+		return family == AF_INET || family == AF_INET6 ? family : -1;
+	}
+
+	/** @param capacity The maximum number of packets to send at once. */
+	MultiSend(int capacity) {
+		this.capacity = capacity;
+		iovecs = (long) capacity * MMSGHDR_SIZE;
+		sockaddrs = iovecs + (long) capacity * IOVEC_SIZE;
+		data = sockaddrs + (long) capacity * SOCKADDR_SIZE;
+		memory = new Memory(data + (long) capacity * MAX_PACKET_SIZE);
+		memory.clear();
+		for(int i = 0; i < capacity; i++) {
+			long hdr = (long) i * MMSGHDR_SIZE;
+			memory.setPointer(hdr + MSG_NAME, memory.share(sockaddrs + (long) i * SOCKADDR_SIZE));
+			memory.setPointer(hdr + MSG_IOV, memory.share(iovecs + (long) i * IOVEC_SIZE));
+			setSize(hdr + MSG_IOVLEN, 1);
+			memory.setPointer(hdr + MSG_CONTROL, null);
+			setSize(hdr + MSG_CONTROLLEN, 0);
+			memory.setInt(hdr + MSG_FLAGS, 0);
+			memory.setPointer(iovecs + (long) i * IOVEC_SIZE, memory.share(data + (long) i * MAX_PACKET_SIZE));
+		}
+	}
+
+	/**
+	 * Send packets from offset onwards, stopping at the first one which we can't send this way.
+	 * @param fd The socket.
+	 * @param family The address family of the socket, see {@link #getFamily(int)}.
+	 * @return The number of packets sent, which may be 0 if the first one can't be sent this way,
+	 * in which case the caller should send it on its own.
+	 * @throws LastErrorException If the first packet could not be sent.
+	 */
+	int send(int fd, int family, byte[][] packets, Peer[] destinations, InetAddress[] addresses, int offset, int count) throws LastErrorException {
+		int n = 0;
+		while(n < capacity && offset + n < count) {
+			int i = offset + n;
+			if(packets[i].length > MAX_PACKET_SIZE) break;
+			if(!setAddress(n, family, addresses[i], destinations[i].getPort())) break;
+			memory.write(data + (long) n * MAX_PACKET_SIZE, packets[i], 0, packets[i].length);
+			setSize(iovecs + (long) n * IOVEC_SIZE + P, packets[i].length);
+			n++;
+		}
+		if(n == 0) return 0;
+		return sendmmsg(fd, memory, n, 0);
+	}
+
+	private boolean setAddress(int slot, int family, InetAddress address, int port) {
+		long addr = sockaddrs + (long) slot * SOCKADDR_SIZE;
+		byte[] ip = address.getAddress();
+		int length;
+		if(family == AF_INET) {
+			// struct sockaddr_in
+			if(!(address instanceof Inet4Address)) return false;
+			memory.setShort(addr, AF_INET);
+			setPort(addr, port);
+			memory.write(addr + 4, ip, 0, 4);
+			memory.setLong(addr + 8, 0);
+			length = 16;
+		} else {
+			// struct sockaddr_in6, with IPv4 addresses mapped as Java does on a dual stack socket.
+			memory.setShort(addr, AF_INET6);
+			setPort(addr, port);
+			memory.setInt(addr + 4, 0);
+			int scope = 0;
+			if(address instanceof Inet6Address) {
+				memory.write(addr + 8, ip, 0, 16);
+				scope = ((Inet6Address) address).getScopeId();
+			} else {
+				memory.setLong(addr + 8, 0);
+				memory.setShort(addr + 16, (short) 0);
+				memory.setShort(addr + 18, (short) -1);
+				memory.write(addr + 20, ip, 0, 4);
+			}
+			memory.setInt(addr + 24, scope);
+			length = SOCKADDR_SIZE;
+		}
+		memory.setInt((long) slot * MMSGHDR_SIZE + MSG_NAMELEN, length);
+		return true;
+	}
+
+	/** Network byte order. */
+	private void setPort(long addr, int port) {
+		memory.setByte(addr + 2, (byte) (port >> 8));
+		memory.setByte(addr + 3, (byte) port);
+	}
+
+	private void setSize(long offset, long value) {
+		if(P == 8)
+			memory.setLong(offset, value);
+		else
+			memory.setInt(offset, (int) value);
+	}
+
+}
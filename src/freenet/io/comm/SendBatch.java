@@ -0,0 +1,115 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import java.net.InetAddress;
+
+/**
+ * Packets queued by a sending thread, to be written to the socket together rather than one at a
+ * time as each one is encrypted. A thread which calls {@link #start()} has every packet it sends
+ * through a {@link UdpSocketHandler} queued here, until the batch is full, the oldest packet has
+ * waited {@link #MAX_DELAY_NANOS}, or the thread calls {@link #flush()}, e.g. because it is about
+ * to sleep. Only the thread which started the batch may use it.
+ *
+ * On Linux the packets for each socket are written with one sendmmsg() system call, see
+ * {@link MultiSend}. Elsewhere, or if that fails, they are written one at a time.
+ */
+public class SendBatch {
+
+	/** Maximum number of packets in a batch. */
+	public static final int MAX_PACKETS = 32;
+	/** Maximum time a packet waits in the batch. Short enough not to matter for realtime
+	 * traffic. */
+	public static final long MAX_DELAY_NANOS = MILLISECONDS.toNanos(1);
+
+	private static final ThreadLocal<SendBatch> current = new ThreadLocal<SendBatch>();
+
+	private final UdpSocketHandler[] handlers = new UdpSocketHandler[MAX_PACKETS];
+	private final byte[][] packets = new byte[MAX_PACKETS][];
+	private final Peer[] destinations = new Peer[MAX_PACKETS];
+	private final InetAddress[] addresses = new InetAddress[MAX_PACKETS];
+	private int count;
+	private long firstQueued;
+	/** The packets for one socket, when flushing. */
+	private final byte[][] socketPackets = new byte[MAX_PACKETS][];
+	private final Peer[] socketDestinations = new Peer[MAX_PACKETS];
+	private final InetAddress[] socketAddresses = new InetAddress[MAX_PACKETS];
+	/** Null if sendmmsg() is not available. Created by the thread which starts the batch. */
+	private MultiSend multiSend;
+	private volatile long flushes;
+	private volatile long packetsFlushed;
+
+	/** Queue packets sent by this thread in this batch from now on. */
+	public void start() {
+		if(MultiSend.available() && multiSend == null)
+			multiSend = new MultiSend(MAX_PACKETS);
+		current.set(this);
+	}
+
+	/** @return The batch packets sent by this thread should be queued in, or null. */
+	static SendBatch current() {
+		return current.get();
+	}
+
+	void add(UdpSocketHandler handler, byte[] packet, Peer destination, InetAddress address) {
+		if(count == 0) firstQueued = System.nanoTime();
+		handlers[count] = handler;
+		packets[count] = packet;
+		destinations[count] = destination;
+		addresses[count] = address;
+		if(++count == MAX_PACKETS) flush();
+	}
+
+	/** Send everything in the batch. */
+	public void flush() {
+		if(count == 0) return;
+		int sent = count;
+		for(int i = 0; i < sent; i++) {
+			UdpSocketHandler handler = handlers[i];
+			if(handler == null) continue; // Already sent with an earlier packet for its socket.
+			// Everything for the same socket in one go, in the order it was queued.
+			int n = 0;
+			for(int j = i; j < sent; j++) {
+				if(handlers[j] != handler) continue;
+				socketPackets[n] = packets[j];
+				socketDestinations[n] = destinations[j];
+				socketAddresses[n] = addresses[j];
+				n++;
+				handlers[j] = null;
+				packets[j] = null;
+				destinations[j] = null;
+				addresses[j] = null;
+			}
+			handler.send(multiSend, socketPackets, socketDestinations, socketAddresses, n);
+			for(int j = 0; j < n; j++) {
+				socketPackets[j] = null;
+				socketDestinations[j] = null;
+				socketAddresses[j] = null;
+			}
+		}
+		count = 0;
+		// Only written by the thread which owns the batch.
+		flushes++;
+		packetsFlushed += sent;
+	}
+
+	/** Send everything in the batch if the oldest packet has waited long enough. */
+	public void flushIfDue() {
+		if(count != 0 && System.nanoTime() - firstQueued >= MAX_DELAY_NANOS)
+			flush();
+	}
+
+	/** @return The number of times the batch has been sent. */
+	public long getFlushes() {
+		return flushes;
+	}
+
+	/** @return The number of packets sent through the batch. */
+	public long getPacketsFlushed() {
+		return packetsFlushed;
+	}
+
+}
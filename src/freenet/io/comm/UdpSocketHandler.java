@@ -15,9 +15,13 @@ import java.net.DatagramSocket;
 import java.net.DatagramSocketImpl;
 import java.net.Inet6Address;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
 
 import freenet.io.AddressTracker;
 import freenet.io.comm.Peer.LocalAddressException;
@@ -30,6 +34,8 @@ import freenet.support.transport.ip.IPUtil;
 public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, PortForwardSensitiveSocketHandler {
 
 	private final DatagramSocket _sock;
+	/** If non-null, _sock is this channel's socket, and we receive into a direct buffer. */
+	private final DatagramChannel channel;
 	private final InetAddress _bindTo;
 	private final AddressTracker tracker;
 	private IncomingPacketFilter lowLevelFilter;
@@ -44,12 +50,23 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
         private static volatile boolean logMINOR;
 	private static volatile boolean logDEBUG;
 	private boolean _isDone;
+	/** Number of threads receiving packets on the socket. They share it, each with its own buffer,
+	 * and may process packets at the same time. */
+	private final int receiveThreads;
+	/** LOCKING: this */
+	private int running;
 	private volatile boolean _active = true;
 	private final int listenPort;
 	private final String title;
 	private boolean _started;
 	private long startTime;
 	private final IOStatisticCollector collector;
+	/** Number of successful system calls writing packets to the socket. */
+	private final AtomicLong sends = new AtomicLong();
+	/** The socket's file descriptor, or -1 if we don't know it. */
+	private final int fd;
+	/** The socket's address family for sendmmsg(), or -1 to send packets one at a time. */
+	private final int multiSendFamily;
 
         static {
             Logger.registerClass(UdpSocketHandler.class);
@@ -94,7 +111,8 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 			}
 		}
 
-		private static int getFd(DatagramSocket s) {
+		private static int getFd(DatagramSocket s, DatagramChannel channel) {
+			if(channel != null) return getFd(channel);
 			int ret = -1;
 			try {
 				Method m = s.getClass().getDeclaredMethod("getImpl");
@@ -112,10 +130,25 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 			return ret;
 		}
 
-		public static boolean setAddressPreference(DatagramSocket s, SOCKET_ADDR_PREFERENCE p) {
+		/** The socket of a DatagramChannel has no DatagramSocketImpl, the channel has the fd. */
+		private static int getFd(DatagramChannel channel) {
+			int ret = -1;
+			try {
+				Field f = channel.getClass().getDeclaredField("fd");
+				f.setAccessible(true);
+				FileDescriptor fdi = (FileDescriptor)f.get(channel);
+				f = FileDescriptor.class.getDeclaredField("fd");
+				f.setAccessible(true);
+				ret = f.getInt(fdi);
+			} catch (Exception e) {
+			   Logger.normal(UdpSocketHandler.class, "Unable to get the fd of "+channel+": "+e, e);
+			}
+			return ret;
+		}
+
+		public static boolean setAddressPreference(int fd, SOCKET_ADDR_PREFERENCE p) {
 			if(!Platform.isLinux())
 			    return false;
-			int fd = getFd(s);
 			if(fd <= 2)
 			    return false;
 			int ret = -1;
@@ -137,7 +170,24 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 //			_sock = (DatagramSocket) Updater.getResource();
 //		} else {
 		this.listenPort = listenPort;
-		_sock = new DatagramSocket(listenPort, bindto);
+		receiveThreads = node.getPacketThreads();
+		if(node.useNioUDP()) {
+			try {
+				channel = DatagramChannel.open();
+				channel.configureBlocking(true);
+				_sock = channel.socket();
+				_sock.bind(new InetSocketAddress(bindto, listenPort));
+			} catch (SocketException e) {
+				throw e;
+			} catch (IOException e) {
+				SocketException se = new SocketException("Unable to open channel: "+e);
+				se.initCause(e);
+				throw se;
+			}
+		} else {
+			channel = null;
+			_sock = new DatagramSocket(listenPort, bindto);
+		}
 		int sz = _sock.getReceiveBufferSize();
 		if(sz < 65536) {
 			_sock.setReceiveBufferSize(65536);
@@ -153,7 +203,9 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		} catch (SocketException e) {
 			Logger.error(this, "Failed to setTrafficClass with "+node.getTrafficClass().value,e);
 		}
-		boolean r = socketOptions.setAddressPreference(_sock, socketOptions.SOCKET_ADDR_PREFERENCE.IPV6_PREFER_SRC_PUBLIC);
+		fd = Platform.isLinux() ? socketOptions.getFd(_sock, channel) : -1;
+		multiSendFamily = fd > 2 ? MultiSend.getFamily(fd) : -1;
+		boolean r = socketOptions.setAddressPreference(fd, socketOptions.SOCKET_ADDR_PREFERENCE.IPV6_PREFER_SRC_PUBLIC);
 		if(logMINOR) Logger.minor(this, "Setting IPV6_PREFER_SRC_PUBLIC for port "+ listenPort + " is a "+(r ? "success" : "failure"));
 //		}
 		// Only used for debugging, no need to seed from Yarrow
@@ -212,13 +264,19 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 			System.err.println("run() exiting for UdpSocketHandler on port "+_sock.getLocalPort());
 			Logger.error(this, "run() exiting for UdpSocketHandler on port "+_sock.getLocalPort());
 			synchronized (this) {
-				_isDone = true;
-				notifyAll();
+				if(--running <= 0) {
+					_isDone = true;
+					notifyAll();
+				}
 			}
 		}
 	}
 
 	private void runLoop() {
+		if(channel != null) {
+			runChannelLoop();
+			return;
+		}
 		byte[] buf = new byte[MAX_RECEIVE_SIZE];
 		DatagramPacket packet = new DatagramPacket(buf, buf.length);
 		while (_active) {
@@ -233,7 +291,6 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 	}
 
 	private void realRun(DatagramPacket packet) {
-		// Single receiving thread
 		boolean gotPacket = getPacket(packet);
 		long now = System.currentTimeMillis();
 		if (gotPacket) {
@@ -276,6 +333,72 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 
 	private static final int MAX_RECEIVE_SIZE = 1500;
 
+	private void runChannelLoop() {
+		// The packet is decrypted in place and messages copied out of it, so one buffer per thread will do.
+		ByteBuffer buf = ByteBuffer.allocateDirect(MAX_RECEIVE_SIZE);
+		while (_active) {
+			try {
+				realRun(buf);
+			} catch (Throwable t) {
+				System.err.println("Caught "+t);
+				t.printStackTrace(System.err);
+				Logger.error(this, "Caught " + t, t);
+			}
+		}
+	}
+
+	private void realRun(ByteBuffer buf) {
+		buf.clear();
+		InetSocketAddress address = getPacket(buf);
+		if(address == null) {
+			if(logDEBUG) Logger.debug(this, "No packet received");
+			return;
+		}
+		buf.flip();
+		long now = System.currentTimeMillis();
+		Peer peer = new Peer(address.getAddress(), address.getPort());
+		tracker.receivedPacketFrom(peer);
+		int length = buf.remaining();
+		try {
+			if(logMINOR) Logger.minor(this, "Processing packet of length "+length+" from "+peer);
+			long startTime = System.currentTimeMillis();
+			lowLevelFilter.process(buf, peer, now);
+			long endTime = System.currentTimeMillis();
+			if(endTime - startTime > 50) {
+				if(endTime-startTime > 3000) {
+					Logger.error(this, "processing packet took "+(endTime-startTime)+"ms");
+				} else {
+					if(logMINOR) Logger.minor(this, "processing packet took "+(endTime-startTime)+"ms");
+				}
+			}
+			if(logMINOR) Logger.minor(this,
+					"Successfully handled packet length " + length);
+		} catch (Throwable t) {
+			Logger.error(this, "Caught " + t + " from "
+					+ lowLevelFilter, t);
+		}
+	}
+
+	/** @return The address the packet came from, or null if we didn't get one. */
+	private InetSocketAddress getPacket(ByteBuffer buf) {
+		InetSocketAddress address;
+		try {
+			address = (InetSocketAddress) channel.receive(buf);
+			if(address == null) return null;
+			boolean isLocal = !IPUtil.isValidAddress(address.getAddress(), false);
+			collector.addInfo(address.getAddress(), address.getPort(),
+					getHeadersLength(address.getAddress()) + buf.position(), 0, isLocal);
+		} catch (IOException e) {
+			if (!_active) { // closed, just return silently
+				return null;
+			} else {
+				throw new RuntimeException(e);
+			}
+		}
+		if(logMINOR) Logger.minor(this, "Received packet");
+		return address;
+	}
+
 	private boolean getPacket(DatagramPacket packet) {
 		try {
 			_sock.receive(packet);
@@ -327,6 +450,16 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		}
 		InetAddress address = destination.getAddress(false, allowLocalAddresses);
 		assert(address != null);
+		SendBatch batch = SendBatch.current();
+		if(batch != null)
+			batch.add(this, blockToSend, destination, address);
+		else
+			send(blockToSend, destination, address);
+	}
+
+	/** Write a packet to the socket on its own. */
+	void send(byte[] blockToSend, Peer destination, InetAddress address) {
+		if(!_active) return;
 		int port = destination.getPort();
 		DatagramPacket packet = new DatagramPacket(blockToSend, blockToSend.length);
 		packet.setAddress(address);
@@ -334,10 +467,8 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 
 		try {
 			_sock.send(packet);
-			tracker.sentPacketTo(destination);
-			boolean isLocal = (!IPUtil.isValidAddress(address, false)) && (IPUtil.isValidAddress(address, true));
-			collector.addInfo(address, port, 0, getHeadersLength(address) + blockToSend.length, isLocal);
-			if(logMINOR) Logger.minor(this, "Sent packet length "+blockToSend.length+" to "+address+':'+port);
+			sends.incrementAndGet();
+			sent(blockToSend, destination, address);
 		} catch (IOException e) {
 			if(packet.getAddress() instanceof Inet6Address) {
 				Logger.normal(this, "Error while sending packet to IPv6 address: "+destination+": "+e);
@@ -347,6 +478,44 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		}
 	}
 
+	/**
+	 * Write packets queued in a SendBatch to the socket, with one system call for as many of them
+	 * as possible.
+	 * @param multiSend Null if sendmmsg() is not available.
+	 */
+	void send(MultiSend multiSend, byte[][] packets, Peer[] destinations, InetAddress[] addresses, int count) {
+		if(!_active) return;
+		int i = 0;
+		while(i < count) {
+			int n = 0;
+			if(multiSend != null && multiSendFamily != -1) {
+				try {
+					n = multiSend.send(fd, multiSendFamily, packets, destinations, addresses, i, count);
+				} catch (LastErrorException e) {
+					// Send it on its own, which will report the error.
+					if(logMINOR) Logger.minor(this, "sendmmsg() failed: "+e);
+				}
+			}
+			if(n <= 0) {
+				send(packets[i], destinations[i], addresses[i]);
+				i++;
+				continue;
+			}
+			sends.incrementAndGet();
+			for(int j = i; j < i + n; j++)
+				sent(packets[j], destinations[j], addresses[j]);
+			i += n;
+		}
+	}
+
+	private void sent(byte[] blockToSend, Peer destination, InetAddress address) {
+		int port = destination.getPort();
+		tracker.sentPacketTo(destination);
+		boolean isLocal = (!IPUtil.isValidAddress(address, false)) && (IPUtil.isValidAddress(address, true));
+		collector.addInfo(address, port, 0, getHeadersLength(address) + blockToSend.length, isLocal);
+		if(logMINOR) Logger.minor(this, "Sent packet length "+blockToSend.length+" to "+address+':'+port);
+	}
+
 	// CompuServe use 1400 MTU; AOL claim 1450; DFN@home use 1448.
 	// http://info.aol.co.uk/broadband/faqHomeNetworking.adp
 	// http://www.compuserve.de/cso/hilfe/linux/hilfekategorien/installation/contentview.jsp?conid=385700
@@ -399,8 +568,11 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		synchronized(this) {
 			_started = true;
 			startTime = System.currentTimeMillis();
+			running = receiveThreads;
 		}
-		node.executor.execute(this, "UdpSocketHandler for port "+listenPort);
+		for(int i = 0; i < receiveThreads; i++)
+			node.executor.execute(this, "UdpSocketHandler for port "+listenPort +
+					(receiveThreads > 1 ? " ("+(i+1)+" of "+receiveThreads+")" : ""));
 	}
 
 	public void close() {
@@ -471,6 +643,12 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		return NativeThread.MAX_PRIORITY;
 	}
 
+	/** @return The number of successful system calls writing packets to the socket, each of
+	 * which may write several packets. */
+	public long getSends() {
+		return sends.get();
+	}
+
 	public long getStartTime() {
 		return startTime;
 	}
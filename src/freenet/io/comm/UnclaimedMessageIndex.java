@@ -0,0 +1,147 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+import freenet.io.comm.MessageFilter.MATCHED;
+import freenet.node.PeerNode;
+import freenet.support.Logger;
+import freenet.support.TimeUtil;
+
+/**
+ * FIFO of the messages which {@link MessageCore} could not match to a filter or dispatch, in case
+ * the intended receiver isn't waiting yet. Each message is indexed under its exact (type, source,
+ * UID) key and under the same key with the source and/or UID wildcarded, so a new filter only has
+ * to try the messages it could match rather than the whole FIFO.
+ *
+ * Not thread-safe: the caller must synchronize.
+ */
+final class UnclaimedMessageIndex {
+
+	private static final class Node {
+		final Message message;
+		final long seq;
+		final MatchKey[] keys;
+
+		Node(Message message, long seq) {
+			this.message = message;
+			this.seq = seq;
+			this.keys = MatchKey.keysFor(message);
+		}
+	}
+
+	/** All the messages, oldest first */
+	private final LinkedHashSet<Node> fifo = new LinkedHashSet<Node>();
+	/** Messages by key, oldest first */
+	private final HashMap<MatchKey, LinkedHashSet<Node>> byKey = new HashMap<MatchKey, LinkedHashSet<Node>>();
+	private long nextSeq;
+
+	void addLast(Message m) {
+		Node n = new Node(m, nextSeq++);
+		fifo.add(n);
+		for(MatchKey key : n.keys) {
+			LinkedHashSet<Node> bucket = byKey.get(key);
+			if(bucket == null) {
+				bucket = new LinkedHashSet<Node>();
+				byKey.put(key, bucket);
+			}
+			bucket.add(n);
+		}
+	}
+
+	int size() {
+		return fifo.size();
+	}
+
+	/** Drop the oldest messages until there are no more than maxSize left. */
+	void trim(int maxSize) {
+		while(fifo.size() > maxSize) {
+			Node n = fifo.iterator().next();
+			remove(n);
+			logDropped(n.message, "quantity");
+		}
+	}
+
+	/**
+	 * Find the oldest message matching the filter (or any filter in its or() chain), and remove it.
+	 * Timeouts are ignored because these messages have already arrived. Messages which have been
+	 * waiting since before dropTime and are not matched are dropped on the way.
+	 * @return The message, or null if none matches.
+	 */
+	Message claim(MessageFilter filter, long now, long dropTime) {
+		// Expire old messages from the head of the queue, unless this filter wants them.
+		while(!fifo.isEmpty()) {
+			Node n = fifo.iterator().next();
+			if(n.message.localInstantiationTime >= dropTime) break;
+			remove(n);
+			if(filter.match(n.message, true, now) == MATCHED.MATCHED)
+				return n.message;
+			logDropped(n.message, "age");
+		}
+		Node n = find(filter, now);
+		if(n == null) return null;
+		remove(n);
+		return n.message;
+	}
+
+	/** @return The oldest message the filter matches, ignoring timeouts, or null. Does not remove
+	 * it. */
+	Message peek(MessageFilter filter, long now) {
+		Node n = find(filter, now);
+		return n == null ? null : n.message;
+	}
+
+	/** @return A copy of all the messages, oldest first. */
+	List<Message> toList() {
+		ArrayList<Message> ret = new ArrayList<Message>(fifo.size());
+		for(Node n : fifo)
+			ret.add(n.message);
+		return ret;
+	}
+
+	private Node find(MessageFilter filter, long now) {
+		Node best = null;
+		for(MessageFilter f = filter; f != null; f = f.getOr()) {
+			MatchKey key = MatchKey.keyFor(f);
+			Iterable<Node> candidates;
+			if(key == null) {
+				candidates = fifo;
+			} else {
+				candidates = byKey.get(key);
+				if(candidates == null) continue;
+			}
+			for(Node n : candidates) {
+				if(best != null && n.seq > best.seq) break;
+				if(filter.match(n.message, true, now) == MATCHED.MATCHED) {
+					best = n;
+					break;
+				}
+			}
+		}
+		return best;
+	}
+
+	private void remove(Node n) {
+		fifo.remove(n);
+		for(MatchKey key : n.keys) {
+			LinkedHashSet<Node> bucket = byKey.get(key);
+			bucket.remove(n);
+			if(bucket.isEmpty()) byKey.remove(key);
+		}
+	}
+
+	private void logDropped(Message m, String reason) {
+		long messageLifeTime = System.currentTimeMillis() - m.localInstantiationTime;
+		if ((m.getSource()) instanceof PeerNode) {
+			Logger.normal(this, "Dropping unclaimed from "+m.getSource().getPeer()+", lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" ("+reason+")"+": "+m);
+		} else {
+			Logger.normal(this, "Dropping unclaimed, lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" ("+reason+")"+": "+m);
+		}
+	}
+
+}
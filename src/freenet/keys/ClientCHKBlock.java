@@ -121,7 +121,7 @@ public class ClientCHKBlock implements ClientKeyBlock {
             throw new UnsupportedOperationException();
         BlockCipher cipher;
         try {
-            cipher = new Rijndael(256, 256);
+            cipher = Rijndael.create(256, 256);
         } catch (UnsupportedCipherException e) {
             // FIXME - log this properly
             throw new Error(e);
@@ -608,7 +608,7 @@ public class ClientCHKBlock implements ClientKeyBlock {
         // Now encrypt the header, then the data, using the same PCFB instance
         BlockCipher cipher;
         try {
-            cipher = new Rijndael(256, 256);
+            cipher = Rijndael.create(256, 256);
         } catch (UnsupportedCipherException e) {
         	Logger.error(ClientCHKBlock.class, "Impossible: "+e, e);
             throw new Error(e);
@@ -8,6 +8,7 @@ import java.net.MalformedURLException;
 import java.security.MessageDigest;
 import java.util.Arrays;
 
+import freenet.crypt.BlockCipher;
 import freenet.crypt.DSAPublicKey;
 import freenet.crypt.SHA256;
 import freenet.crypt.UnsupportedCipherException;
@@ -90,7 +91,7 @@ public class ClientSSK extends ClientKey {
 			}
 			byte[] buf = md.digest();
 			try {
-				Rijndael aes = new Rijndael(256, 256);
+				BlockCipher aes = Rijndael.create(256, 256);
 				aes.initialize(cryptoKey);
 				aes.encipher(buf, buf);
 				ehDocname = buf;
@@ -6,6 +6,7 @@ package freenet.keys;
 import java.io.IOException;
 import java.util.Arrays;
 
+import freenet.crypt.BlockCipher;
 import freenet.crypt.PCFBMode;
 import freenet.crypt.UnsupportedCipherException;
 import freenet.crypt.ciphers.Rijndael;
@@ -55,10 +56,10 @@ public class ClientSSKBlock implements ClientKeyBlock {
 		/* We also know e(h(docname)) is valid */
 		byte[] decryptedHeaders = new byte[SSKBlock.ENCRYPTED_HEADERS_LENGTH];
 		System.arraycopy(block.headers, block.headersOffset, decryptedHeaders, 0, SSKBlock.ENCRYPTED_HEADERS_LENGTH);
-		Rijndael aes;
+		BlockCipher aes;
 		try {
 			Logger.minor(this, "cryptoAlgorithm="+key.cryptoAlgorithm+" for "+getClientKey().getURI());
-			aes = new Rijndael(256,256);
+			aes = Rijndael.create(256,256);
 		} catch (UnsupportedCipherException e) {
 			throw new Error(e);
 		}
@@ -14,6 +14,7 @@ import java.net.MalformedURLException;
 import java.security.MessageDigest;
 import java.util.Arrays;
 
+import freenet.crypt.BlockCipher;
 import freenet.crypt.DSAGroup;
 import freenet.crypt.DSAPrivateKey;
 import freenet.crypt.DSAPublicKey;
@@ -142,9 +143,9 @@ public class InsertableClientSSK extends ClientSSK {
 			// Implicit hash of data
 			byte[] origDataHash = md256.digest(data);
 
-			Rijndael aes;
+			BlockCipher aes;
 			try {
-				aes = new Rijndael(256, 256);
+				aes = Rijndael.create(256, 256);
 			} catch (UnsupportedCipherException e) {
 				throw new Error("256/256 Rijndael not supported!");
 			}
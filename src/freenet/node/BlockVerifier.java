@@ -0,0 +1,311 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import freenet.keys.KeyVerifyException;
+import freenet.support.Executor;
+import freenet.support.LogThresholdCallback;
+import freenet.support.Logger;
+import freenet.support.Logger.LogLevel;
+import freenet.support.io.NativeThread;
+import freenet.support.math.BootstrappingDecayingRunningAverage;
+import freenet.support.math.RunningAverage;
+
+/**
+ * Verifies blocks (hashing CHKs, checking the signatures on SSKs) on a pool of worker threads, so
+ * that the thread which received a block can get back to handling the network. Workers take
+ * blocks off a bounded queue in batches. If the queue is full, the block is verified on the
+ * caller's thread as it was before.
+ *
+ * Completions are called on the executor rather than on the workers, because they may block,
+ * e.g. waiting for an opennet noderef after a successful request. Completions submitted with the
+ * same ordering key are called in the order they were submitted, one at a time, even though the
+ * blocks themselves may be verified in parallel and out of order. Completions with different
+ * keys, or with no key, may be called in parallel.
+ */
+public class BlockVerifier {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerLogThresholdCallback(new LogThresholdCallback() {
+			@Override
+			public void shouldUpdate() {
+				logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
+			}
+		});
+	}
+
+	/** The expensive part: construct and verify the block. Called on a worker thread. */
+	public interface Verification<T> {
+		T verify() throws KeyVerifyException;
+	}
+
+	/** What to do with the block once it has been verified. Called on the executor. */
+	public interface Completion<T> {
+		void onVerified(T block);
+		void onVerifyFailed(KeyVerifyException e);
+	}
+
+	/** Maximum number of blocks waiting to be verified. */
+	static final int MAX_QUEUED = 256;
+	/** Maximum number of blocks a worker takes off the queue at once. */
+	static final int BATCH_SIZE = 16;
+	/** The maximum latency is over the last one to two periods. */
+	static final long MAX_LATENCY_PERIOD = TimeUnit.MINUTES.toNanos(1);
+
+	private static final class Job<T> implements PrioRunnable {
+		final Object order;
+		final Verification<T> verification;
+		final Completion<T> completion;
+		final long submitted;
+		private T block;
+		private KeyVerifyException failure;
+		/** LOCKING: BlockVerifier.this */
+		boolean verified;
+
+		Job(Object order, Verification<T> verification, Completion<T> completion) {
+			this.order = order;
+			this.verification = verification;
+			this.completion = completion;
+			this.submitted = System.nanoTime();
+		}
+
+		void verify() {
+			try {
+				block = verification.verify();
+			} catch (KeyVerifyException e) {
+				failure = e;
+			} catch (Throwable t) {
+				Logger.error(this, "Caught "+t+" verifying block", t);
+				failure = new KeyVerifyException("Internal error: "+t, t);
+			}
+		}
+
+		void complete() {
+			try {
+				if(failure == null)
+					completion.onVerified(block);
+				else
+					completion.onVerifyFailed(failure);
+			} catch (Throwable t) {
+				Logger.error(this, "Caught "+t+" completing "+completion, t);
+			}
+		}
+
+		@Override
+		public void run() {
+			complete();
+		}
+
+		@Override
+		public int getPriority() {
+			return NativeThread.NORM_PRIORITY;
+		}
+	}
+
+	/** Jobs with the same ordering key which haven't been completed yet. */
+	private static final class Sequence {
+		final ArrayDeque<Job<?>> jobs = new ArrayDeque<Job<?>>();
+		/** True if a Completer is calling completions for this sequence. */
+		boolean completing;
+	}
+
+	private final Executor executor;
+	private final int maxWorkers;
+	private final ArrayBlockingQueue<Job<?>> queue = new ArrayBlockingQueue<Job<?>>(MAX_QUEUED);
+	/** LOCKING: this */
+	private int workers;
+	/** LOCKING: this */
+	private final Map<Object, Sequence> sequences = new IdentityHashMap<Object, Sequence>();
+	/** Blocks submitted but not yet verified. */
+	private final AtomicInteger waiting = new AtomicInteger();
+	private final AtomicLong verifiedCount = new AtomicLong();
+	private final AtomicLong verifiedInline = new AtomicLong();
+	/** Milliseconds from submitting a block to it being verified. */
+	private final RunningAverage latency = new BootstrappingDecayingRunningAverage(0.0, 0.0, 60 * 1000.0, 1000, null);
+	private final AtomicLong maxLatencyNanos = new AtomicLong();
+	/** The maximum latency in the previous period. */
+	private volatile long lastMaxLatencyNanos;
+	private volatile long maxLatencyPeriodStart = System.nanoTime();
+
+	/**
+	 * @param executor Runs the workers.
+	 * @param maxWorkers The maximum number of blocks to verify at once, normally the number of
+	 * cores.
+	 */
+	public BlockVerifier(Executor executor, int maxWorkers) {
+		this.executor = executor;
+		this.maxWorkers = Math.max(1, maxWorkers);
+	}
+
+	/**
+	 * Verify a block, and then call the completion.
+	 * @param order Completions with the same key (compared by identity) are called in the order
+	 * the blocks were submitted, and never at the same time. Null if the order doesn't matter.
+	 */
+	public <T> void submit(Object order, Verification<T> verification, Completion<T> completion) {
+		Job<T> job = new Job<T>(order, verification, completion);
+		if(order != null) {
+			synchronized(this) {
+				Sequence s = sequences.get(order);
+				if(s == null) {
+					s = new Sequence();
+					sequences.put(order, s);
+				}
+				s.jobs.addLast(job);
+			}
+		}
+		waiting.incrementAndGet();
+		if(!queue.offer(job)) {
+			// Too far behind, verify it ourselves.
+			verifiedInline.incrementAndGet();
+			job.verify();
+			verified(job);
+			return;
+		}
+		synchronized(this) {
+			if(workers >= maxWorkers) return;
+			workers++;
+		}
+		executor.execute(new Worker(), "Block verifier");
+	}
+
+	private class Worker implements PrioRunnable {
+
+		@Override
+		public void run() {
+			ArrayList<Job<?>> batch = new ArrayList<Job<?>>(BATCH_SIZE);
+			while(true) {
+				queue.drainTo(batch, BATCH_SIZE);
+				if(batch.isEmpty()) {
+					synchronized(BlockVerifier.this) {
+						// submit() checks the number of workers after queueing, with the lock held.
+						if(queue.isEmpty()) {
+							workers--;
+							return;
+						}
+					}
+					continue;
+				}
+				if(logMINOR) Logger.minor(this, "Verifying "+batch.size()+" blocks");
+				for(Job<?> job : batch) {
+					job.verify();
+					verified(job);
+				}
+				batch.clear();
+			}
+		}
+
+		@Override
+		public int getPriority() {
+			return NativeThread.HIGH_PRIORITY;
+		}
+
+	}
+
+	/** Record the stats for a verified block and start any completions which are now due. */
+	private void verified(Job<?> job) {
+		long now = System.nanoTime();
+		long time = now - job.submitted;
+		waiting.decrementAndGet();
+		verifiedCount.incrementAndGet();
+		latency.report(time / (1000.0 * 1000.0));
+		if(now - maxLatencyPeriodStart > MAX_LATENCY_PERIOD) startMaxLatencyPeriod(now);
+		maxLatencyNanos.accumulateAndGet(time, Math::max);
+		if(job.order == null) {
+			executor.execute(job, "Block verifier completion");
+			return;
+		}
+		Sequence s;
+		synchronized(this) {
+			job.verified = true;
+			s = sequences.get(job.order);
+			// Whoever is completing the sequence will get to our job.
+			if(s.completing) return;
+			// Or whoever verifies the first one.
+			if(!s.jobs.peekFirst().verified) return;
+			s.completing = true;
+		}
+		executor.execute(new Completer(job.order, s), "Block verifier completion");
+	}
+
+	private synchronized void startMaxLatencyPeriod(long now) {
+		if(now - maxLatencyPeriodStart <= MAX_LATENCY_PERIOD) return;
+		lastMaxLatencyNanos = maxLatencyNanos.getAndSet(0);
+		maxLatencyPeriodStart = now;
+	}
+
+	/** Calls the completions for a sequence, in order, until it gets to one which isn't verified. */
+	private class Completer implements PrioRunnable {
+
+		private final Object order;
+		private final Sequence s;
+
+		Completer(Object order, Sequence s) {
+			this.order = order;
+			this.s = s;
+		}
+
+		@Override
+		public void run() {
+			while(true) {
+				Job<?> next;
+				synchronized(BlockVerifier.this) {
+					next = s.jobs.peekFirst();
+					if(next == null || !next.verified) {
+						s.completing = false;
+						if(next == null)
+							sequences.remove(order);
+						return;
+					}
+					s.jobs.removeFirst();
+				}
+				next.complete();
+			}
+		}
+
+		@Override
+		public int getPriority() {
+			return NativeThread.NORM_PRIORITY;
+		}
+
+	}
+
+	/** @return The number of blocks waiting to be verified, or being verified. */
+	public int getQueueDepth() {
+		return waiting.get();
+	}
+
+	/** @return The average time in milliseconds between a block being submitted and verified. */
+	public double getAverageLatency() {
+		return latency.currentValue();
+	}
+
+	/** @return The longest time in milliseconds between a block being submitted and verified,
+	 * in the last one to two minutes. */
+	public double getMaxLatency() {
+		return Math.max(lastMaxLatencyNanos, maxLatencyNanos.get()) / (1000.0 * 1000.0);
+	}
+
+	/** @return The number of blocks verified since startup. */
+	public long getVerifiedCount() {
+		return verifiedCount.get();
+	}
+
+	/** @return The number of blocks verified on the caller's thread because the queue was full. */
+	public long getVerifiedInlineCount() {
+		return verifiedInline.get();
+	}
+
+}
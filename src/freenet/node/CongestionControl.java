@@ -0,0 +1,53 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import freenet.io.xfer.PacketThrottle;
+
+/**
+ * Packet level congestion control for a single connection: how many packets containing
+ * messages may be in flight, and how soon the next one may be sent. NewPacketFormat tells it
+ * about round trip times, acks and losses. Which algorithm is used is set by the node's
+ * congestionControl option, and only affects the packets we send.
+ */
+public interface CongestionControl {
+
+	enum Type {
+		/** The peer's PacketThrottle decides the window. No pacing. */
+		THROTTLE,
+		/** CUBIC window growth, with packets paced out over the round trip time. */
+		CUBIC;
+
+		/** @param throttle The peer's throttle, or null. */
+		CongestionControl create(PacketThrottle throttle) {
+			switch(this) {
+			case CUBIC:
+				return new CubicCongestionControl();
+			default:
+				return new ThrottleCongestionControl(throttle);
+			}
+		}
+	}
+
+	/** A packet was acknowledged, or acknowledged after we had decided it was lost. */
+	void onRoundTripTime(long rtt);
+
+	/** A packet containing messages was acknowledged.
+	 * @param maxWindow The window must not grow beyond this, because we aren't using it. */
+	void onAcked(double maxWindow, long now);
+
+	/** Packets containing messages have been lost. */
+	void onLost(int count, long now);
+
+	/** A packet containing messages was sent. */
+	void onSent(long now);
+
+	/** @return The number of packets containing messages which may be in flight. */
+	double getWindowSize();
+
+	/** @return The earliest time at which the next packet containing messages may be sent. Not
+	 * after now if it can be sent now. */
+	long nextSendTime(long now);
+
+}
@@ -0,0 +1,117 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+/**
+ * CUBIC (RFC 8312) with pacing. After a loss the window is cut to BETA of what it was, and then
+ * grows along a cubic curve back to where the loss happened, slowly near it and quickly away
+ * from it. It grows at least as fast as the old AIMD throttle would. Packets are spaced out
+ * evenly over the smoothed round trip time, rather than sent in a burst whenever the window
+ * opens, e.g. after being idle.
+ *
+ * Times are in milliseconds, windows in packets. Losses are only detected by timeout, so we cut
+ * the window at most once per round trip.
+ */
+class CubicCongestionControl implements CongestionControl {
+
+	static final double C = 0.4;
+	static final double BETA = 0.7;
+	static final double INITIAL_WINDOW = 10;
+	static final double MIN_WINDOW = 2;
+	/** Send faster than the window would suggest, so we don't limit ourselves. */
+	static final double SLOW_START_PACING_GAIN = 2.0;
+	static final double PACING_GAIN = 1.25;
+	/** Allow this many milliseconds worth of packets to go at once, because the PacketSender
+	 * only wakes up once a millisecond at best. */
+	static final double PACING_QUANTUM = 1.0;
+
+	private double window = INITIAL_WINDOW;
+	private double slowStartThreshold = Double.MAX_VALUE;
+	/** The window when we last lost a packet. */
+	private double lastMaxWindow;
+	/** When the current cubic growth started, or -1 if it hasn't yet. */
+	private long epochStart = -1;
+	/** Time after epochStart at which the window will be back to lastMaxWindow. */
+	private double k;
+	private long lastReduction = -1;
+	/** Smoothed round trip time, 0 until we have one. */
+	private double srtt;
+	/** When the next packet may be sent. */
+	private double nextSend;
+
+	@Override
+	public synchronized void onRoundTripTime(long rtt) {
+		rtt = Math.max(rtt, 1);
+		if(srtt == 0)
+			srtt = rtt;
+		else
+			srtt = srtt * 7 / 8 + rtt / 8.0;
+	}
+
+	@Override
+	public synchronized void onAcked(double maxWindow, long now) {
+		if(window < slowStartThreshold) {
+			window += 1;
+		} else {
+			if(epochStart < 0) {
+				epochStart = now;
+				if(window < lastMaxWindow) {
+					k = Math.cbrt((lastMaxWindow - window) / C);
+				} else {
+					k = 0;
+					lastMaxWindow = window;
+				}
+			}
+			double rtt = Math.max(srtt, 1);
+			// Where the curve will be in one round trip.
+			double t = (now - epochStart + rtt) / 1000.0;
+			double target = lastMaxWindow + C * (t - k) * (t - k) * (t - k);
+			// At least as fast as AIMD with the same BETA.
+			double aimd = lastMaxWindow * BETA + (3 * (1 - BETA) / (1 + BETA)) * (now - epochStart) / rtt;
+			target = Math.min(Math.max(target, aimd), window * 1.5);
+			if(target > window)
+				window += (target - window) / window;
+			else
+				window += 0.01 / window;
+		}
+		window = Math.max(MIN_WINDOW, Math.min(window, maxWindow));
+	}
+
+	@Override
+	public synchronized void onLost(int count, long now) {
+		if(lastReduction >= 0 && now - lastReduction < srtt) return;
+		lastReduction = now;
+		epochStart = -1;
+		if(window < lastMaxWindow)
+			// Still below the last loss, so leave room for other connections.
+			lastMaxWindow = window * (1 + BETA) / 2;
+		else
+			lastMaxWindow = window;
+		window = Math.max(MIN_WINDOW, window * BETA);
+		slowStartThreshold = window;
+	}
+
+	@Override
+	public synchronized void onSent(long now) {
+		if(srtt == 0) return;
+		double gain = window < slowStartThreshold ? SLOW_START_PACING_GAIN : PACING_GAIN;
+		nextSend = Math.max(nextSend, now) + srtt / (window * gain);
+	}
+
+	@Override
+	public synchronized double getWindowSize() {
+		return window;
+	}
+
+	@Override
+	public synchronized long nextSendTime(long now) {
+		return (long) Math.ceil(nextSend - PACING_QUANTUM);
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "cubic: window "+window+" ssthresh "+slowStartThreshold+" srtt "+srtt;
+	}
+
+}
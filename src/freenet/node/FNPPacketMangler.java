@@ -1080,7 +1080,7 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 		if(logMINOR) Logger.minor(this, "Got a JFK(3) message, processing it - "+pn);
 
 		BlockCipher c = null;
-		try { c = new Rijndael(256, 256); } catch (UnsupportedCipherException e) { throw new RuntimeException(e); }
+		try { c = Rijndael.create(256, 256); } catch (UnsupportedCipherException e) { throw new RuntimeException(e); }
 
 		final int expectedLength =
 			nonceSize*2 + // Ni, Nr
@@ -1272,9 +1272,9 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 		BlockCipher incommingCipher = null;
 		BlockCipher ivCipher = null;
 		try {
-			outgoingCipher = new Rijndael(256, 256);
-			incommingCipher = new Rijndael(256, 256);
-			ivCipher = new Rijndael(256, 256);
+			outgoingCipher = Rijndael.create(256, 256);
+			incommingCipher = Rijndael.create(256, 256);
+			ivCipher = Rijndael.create(256, 256);
 		} catch (UnsupportedCipherException e) {
 			throw new RuntimeException(e);
 		}
@@ -1410,7 +1410,7 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 			}
 		}
 		BlockCipher c = null;
-		try { c = new Rijndael(256, 256); } catch (UnsupportedCipherException e) { throw new RuntimeException(e); }
+		try { c = Rijndael.create(256, 256); } catch (UnsupportedCipherException e) { throw new RuntimeException(e); }
 
 		final int expectedLength =
 			HASH_LENGTH + // HMAC of the cyphertext
@@ -1539,9 +1539,9 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 		BlockCipher outgoingCipher = null;
 		BlockCipher incommingCipher = null;
 		try {
-			ivCipher = new Rijndael(256, 256);
-			outgoingCipher = new Rijndael(256, 256);
-			incommingCipher = new Rijndael(256, 256);
+			ivCipher = Rijndael.create(256, 256);
+			outgoingCipher = Rijndael.create(256, 256);
+			incommingCipher = Rijndael.create(256, 256);
 		} catch (UnsupportedCipherException e) {
 			throw new RuntimeException(e);
 		}
@@ -1616,7 +1616,7 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
         
 		long t1=System.currentTimeMillis();
 		BlockCipher c = null;
-		try { c = new Rijndael(256, 256); } catch (UnsupportedCipherException e) { throw new RuntimeException(e); }
+		try { c = Rijndael.create(256, 256); } catch (UnsupportedCipherException e) { throw new RuntimeException(e); }
 		KeyAgreementSchemeContext ctx = pn.getKeyAgreementSchemeContext();
 		if(ctx == null) return;
 		byte[] ourExponential = ctx.getPublicKeyNetworkFormat();
@@ -118,7 +118,7 @@ public class MasterKeys {
 				}
 				BlockCipher cipher;
 				try {
-					cipher = new Rijndael(256, 256);
+					cipher = Rijndael.create(256, 256);
 				} catch (UnsupportedCipherException e) {
 					// Impossible
 					throw new Error(e);
@@ -204,7 +204,7 @@ public class MasterKeys {
         byte[] outerKey = md.digest();
         BlockCipher cipher;
         try {
-            cipher = new Rijndael(256, 256);
+            cipher = Rijndael.create(256, 256);
         } catch (UnsupportedCipherException e) {
             // Impossible
             throw new Error(e);
@@ -319,7 +319,7 @@ public class MasterKeys {
 
 		BlockCipher cipher;
 		try {
-			cipher = new Rijndael(256, 256);
+			cipher = Rijndael.create(256, 256);
 		} catch (UnsupportedCipherException e) {
 			// Impossible
 			throw new Error(e);
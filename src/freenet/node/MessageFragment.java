@@ -3,6 +3,8 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.node;
 
+import java.nio.ByteBuffer;
+
 class MessageFragment {
 	final boolean shortMessage;
 	final boolean isFragmented;
@@ -12,6 +14,10 @@ class MessageFragment {
 	final int messageLength;
 	final int fragmentOffset;
 	final byte[] fragmentData;
+	/** For a received fragment which hasn't been copied out of the packet: its bytes, from
+	 * position to limit. Only valid while the packet is being processed. Null if fragmentData
+	 * is set. */
+	final ByteBuffer fragmentBuffer;
 	final MessageWrapper wrapper;
 
 	public MessageFragment(boolean shortMessage, boolean isFragmented, boolean firstFragment, int messageID,
@@ -25,19 +31,34 @@ class MessageFragment {
 		this.messageLength = messageLength;
 		this.fragmentOffset = fragmentOffset;
 		this.fragmentData = fragmentData;
+		this.fragmentBuffer = null;
 		this.wrapper = wrapper;
 	}
 
+	MessageFragment(boolean shortMessage, boolean isFragmented, boolean firstFragment, int messageID,
+	                int fragmentLength, int messageLength, int fragmentOffset, ByteBuffer fragmentBuffer) {
+		this.shortMessage = shortMessage;
+		this.isFragmented = isFragmented;
+		this.firstFragment = firstFragment;
+		this.messageID = messageID;
+		this.fragmentLength = fragmentLength;
+		this.messageLength = messageLength;
+		this.fragmentOffset = fragmentOffset;
+		this.fragmentData = null;
+		this.fragmentBuffer = fragmentBuffer;
+		this.wrapper = null;
+	}
+
 	public int length() {
 		return 2 //Message id + flags
 		                + (shortMessage ? 1 : 2) //Fragment length
 		                + (isFragmented ? (shortMessage ? 1 : 2) : 0) //Fragment offset or message length
-		                + fragmentData.length;
+		                + fragmentLength;
 
         }
 
 	@Override
 	public String toString() {
-		return "Fragment from message " + messageID + ": offset " + fragmentOffset + ", data length " + fragmentData.length;
+		return "Fragment from message " + messageID + ": offset " + fragmentOffset + ", data length " + fragmentLength;
 	}
 }
@@ -0,0 +1,140 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Map from message ID to what NewPacketFormat keeps for the message. The IDs in use at any one
+ * time are all within the message window of each other, so they can be looked up by their low
+ * bits in an array, without boxing them or allocating an entry for each one. The array starts
+ * small, and doubles whenever two IDs want the same slot, up to the size of the window. It
+ * shrinks back when the map is emptied. Iterates in slot order. Not thread safe.
+ */
+final class MessageIDMap<T> implements Iterable<T> {
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	private final int maxCapacity;
+	private int[] ids;
+	private Object[] values;
+	private int size;
+
+	/** @param maxCapacity The size of the message window. Must be a power of 2. */
+	MessageIDMap(int maxCapacity) {
+		if(Integer.bitCount(maxCapacity) != 1) throw new IllegalArgumentException();
+		this.maxCapacity = maxCapacity;
+		ids = new int[Math.min(INITIAL_CAPACITY, maxCapacity)];
+		values = new Object[ids.length];
+	}
+
+	@SuppressWarnings("unchecked")
+	T get(int id) {
+		int slot = id & (ids.length - 1);
+		if(ids[slot] != id) return null;
+		return (T) values[slot];
+	}
+
+	/** @return The value previously stored for the ID, or null. */
+	@SuppressWarnings("unchecked")
+	T put(int id, T value) {
+		if(value == null) throw new NullPointerException();
+		while(true) {
+			int slot = id & (ids.length - 1);
+			Object old = values[slot];
+			if(old == null) {
+				ids[slot] = id;
+				values[slot] = value;
+				size++;
+				return null;
+			}
+			if(ids[slot] == id) {
+				values[slot] = value;
+				return (T) old;
+			}
+			grow();
+		}
+	}
+
+	/** @return The value that was stored for the ID, or null. */
+	@SuppressWarnings("unchecked")
+	T remove(int id) {
+		int slot = id & (ids.length - 1);
+		Object old = values[slot];
+		if(old == null || ids[slot] != id) return null;
+		values[slot] = null;
+		if(--size == 0 && ids.length > INITIAL_CAPACITY) {
+			// Don't keep a big array for a burst that is over.
+			ids = new int[INITIAL_CAPACITY];
+			values = new Object[INITIAL_CAPACITY];
+		}
+		return (T) old;
+	}
+
+	int size() {
+		return size;
+	}
+
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	void clear() {
+		if(ids.length > INITIAL_CAPACITY) {
+			ids = new int[INITIAL_CAPACITY];
+			values = new Object[INITIAL_CAPACITY];
+		} else {
+			for(int i = 0; i < values.length; i++)
+				values[i] = null;
+		}
+		size = 0;
+	}
+
+	private void grow() {
+		if(ids.length == maxCapacity)
+			throw new IllegalStateException("Message IDs more than "+maxCapacity+" apart");
+		int[] oldIDs = ids;
+		Object[] oldValues = values;
+		ids = new int[oldIDs.length * 2];
+		values = new Object[oldIDs.length * 2];
+		int mask = ids.length - 1;
+		for(int i = 0; i < oldValues.length; i++) {
+			if(oldValues[i] == null) continue;
+			int slot = oldIDs[i] & mask;
+			ids[slot] = oldIDs[i];
+			values[slot] = oldValues[i];
+		}
+	}
+
+	@Override
+	public Iterator<T> iterator() {
+		return new Iterator<T>() {
+
+			private int slot;
+			private int seen;
+
+			@Override
+			public boolean hasNext() {
+				return seen < size;
+			}
+
+			@Override
+			@SuppressWarnings("unchecked")
+			public T next() {
+				if(seen >= size) throw new NoSuchElementException();
+				while(values[slot] == null) slot++;
+				seen++;
+				return (T) values[slot++];
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+
+		};
+	}
+
+}
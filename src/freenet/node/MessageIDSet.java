@@ -0,0 +1,38 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+/**
+ * Set of message IDs within the message window, as a ring of bits indexed by the low bits of
+ * the ID. IDs which are more than the window size apart share a bit, so the caller must remove
+ * an ID before the window moves past it. Not thread safe.
+ */
+final class MessageIDSet {
+
+	private final long[] bits;
+	private final int mask;
+
+	/** @param windowSize Must be a power of 2, at least 64. */
+	MessageIDSet(int windowSize) {
+		if(Integer.bitCount(windowSize) != 1 || windowSize < 64) throw new IllegalArgumentException();
+		bits = new long[windowSize >>> 6];
+		mask = windowSize - 1;
+	}
+
+	boolean contains(int id) {
+		int bit = id & mask;
+		return (bits[bit >>> 6] & (1L << bit)) != 0;
+	}
+
+	void add(int id) {
+		int bit = id & mask;
+		bits[bit >>> 6] |= 1L << bit;
+	}
+
+	void remove(int id) {
+		int bit = id & mask;
+		bits[bit >>> 6] &= ~(1L << bit);
+	}
+
+}
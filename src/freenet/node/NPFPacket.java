@@ -3,6 +3,7 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.node;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.ArrayList;
 import java.util.Comparator;
@@ -43,57 +44,72 @@ class NPFPacket {
 	private int ackBlockByteSize = 0;
 	
 	public static NPFPacket create(byte[] plaintext, BasePeerNode pn) {
+		return create(ByteBuffer.wrap(plaintext), pn, true);
+	}
+
+	/**
+	 * Parse a decrypted packet, from the buffer's position to its limit, without copying the
+	 * message fragments out of it: each fragment's fragmentBuffer is a slice of the buffer, so the
+	 * buffer must not be reused until the fragments have been added to their messages.
+	 */
+	static NPFPacket create(ByteBuffer plaintext, BasePeerNode pn) {
+		return create(plaintext.slice(), pn, false);
+	}
+
+	/** @param plaintext The packet, starting at index 0.
+	 * @param copy If true, copy each fragment into fragmentData. */
+	private static NPFPacket create(ByteBuffer plaintext, BasePeerNode pn, boolean copy) {
 		NPFPacket packet = new NPFPacket();
 		if (pn == null) throw new IllegalArgumentException("Can't estimate an ack type of received packet");
 		int offset = 0;
 
-		if(plaintext.length < (offset + 5)) { //Sequence number + the number of acks
+		if(plaintext.limit() < (offset + 5)) { //Sequence number + the number of acks
 			packet.error = true;
 			return packet;
 		}
 
-		packet.sequenceNumber = ((plaintext[offset] & 0xFF) << 24)
-		                | ((plaintext[offset + 1] & 0xFF) << 16)
-		                | ((plaintext[offset + 2] & 0xFF) << 8)
-		                | (plaintext[offset + 3] & 0xFF);
+		packet.sequenceNumber = ((plaintext.get(offset) & 0xFF) << 24)
+		                | ((plaintext.get(offset + 1) & 0xFF) << 16)
+		                | ((plaintext.get(offset + 2) & 0xFF) << 8)
+		                | (plaintext.get(offset + 3) & 0xFF);
 		offset += 4;
 
 		//Process received acks
 
-			int numAckRanges = plaintext[offset++] & 0xFF;
+			int numAckRanges = plaintext.get(offset++) & 0xFF;
 			if (numAckRanges > 0) {
 				try {
 					int ack, prevAck = 0;
 					
 					for(int i = 0; i < numAckRanges; i++) {
 						if (i == 0) {
-							ack = ((plaintext[offset] & 0xFF) << 24)
-						               | ((plaintext[offset + 1] & 0xFF) << 16)
-						               | ((plaintext[offset + 2] & 0xFF) << 8)
-						               | (plaintext[offset + 3] & 0xFF);
+							ack = ((plaintext.get(offset) & 0xFF) << 24)
+						               | ((plaintext.get(offset + 1) & 0xFF) << 16)
+						               | ((plaintext.get(offset + 2) & 0xFF) << 8)
+						               | (plaintext.get(offset + 3) & 0xFF);
 							offset += 4;
 						} else {
-							int distanceFromPrevious = (plaintext[offset++] & 0xFF);
+							int distanceFromPrevious = (plaintext.get(offset++) & 0xFF);
 							if (distanceFromPrevious != 0) {
 								ack = prevAck + distanceFromPrevious;
 							} else {
 								// Far offset
-								ack = ((plaintext[offset] & 0xFF) << 24)
-							               | ((plaintext[offset + 1] & 0xFF) << 16)
-							               | ((plaintext[offset + 2] & 0xFF) << 8)
-							               | (plaintext[offset + 3] & 0xFF);
+								ack = ((plaintext.get(offset) & 0xFF) << 24)
+							               | ((plaintext.get(offset + 1) & 0xFF) << 16)
+							               | ((plaintext.get(offset + 2) & 0xFF) << 8)
+							               | (plaintext.get(offset + 3) & 0xFF);
 								offset += 4;
 							}
 						}
 						
-						int rangeSize = (plaintext[offset++] & 0xFF);
+						int rangeSize = (plaintext.get(offset++) & 0xFF);
 						for (int j = 1; j <= rangeSize; j++) {
 							packet.acks.add(ack++);
 						}
 						
 						prevAck = ack-1;
 					}
-				} catch (ArrayIndexOutOfBoundsException e) {
+				} catch (IndexOutOfBoundsException e) {
 					// The packet's length is not big enough
 					packet.error = true;
 					return packet;
@@ -102,10 +118,10 @@ class NPFPacket {
 
 		//Handle received message fragments
 		int prevFragmentID = -1;
-		while(offset < plaintext.length) {
-			boolean shortMessage = (plaintext[offset] & 0x80) != 0;
-			boolean isFragmented = (plaintext[offset] & 0x40) != 0;
-			boolean firstFragment = (plaintext[offset] & 0x20) != 0;
+		while(offset < plaintext.limit()) {
+			boolean shortMessage = (plaintext.get(offset) & 0x80) != 0;
+			boolean isFragmented = (plaintext.get(offset) & 0x40) != 0;
+			boolean firstFragment = (plaintext.get(offset) & 0x20) != 0;
 
 			if(!isFragmented && !firstFragment) {
 				// Padding or lossy messages.
@@ -114,19 +130,19 @@ class NPFPacket {
 			}
 
 			int messageID = -1;
-			if((plaintext[offset] & 0x10) != 0) {
-				if(plaintext.length < (offset + 4)) {
+			if((plaintext.get(offset) & 0x10) != 0) {
+				if(plaintext.limit() < (offset + 4)) {
 					packet.error = true;
 					return packet;
 				}
 
-				messageID = ((plaintext[offset] & 0x0F) << 24)
-				                | ((plaintext[offset + 1] & 0xFF) << 16)
-				                | ((plaintext[offset + 2] & 0xFF) << 8)
-				                | (plaintext[offset + 3] & 0xFF);
+				messageID = ((plaintext.get(offset) & 0x0F) << 24)
+				                | ((plaintext.get(offset + 1) & 0xFF) << 16)
+				                | ((plaintext.get(offset + 2) & 0xFF) << 8)
+				                | (plaintext.get(offset + 3) & 0xFF);
 				offset += 4;
 			} else {
-				if(plaintext.length < (offset + 2)) {
+				if(plaintext.limit() < (offset + 2)) {
 					packet.error = true;
 					return packet;
 				}
@@ -136,8 +152,8 @@ class NPFPacket {
 					packet.error = true;
 					return packet;
 				}
-				messageID = prevFragmentID + (((plaintext[offset] & 0x0F) << 8)
-				                | (plaintext[offset + 1] & 0xFF));
+				messageID = prevFragmentID + (((plaintext.get(offset) & 0x0F) << 8)
+				                | (plaintext.get(offset + 1) & 0xFF));
 				offset += 2;
 			}
 			prevFragmentID = messageID;
@@ -145,17 +161,17 @@ class NPFPacket {
 			int requiredLength = offset
 			                + (shortMessage ? 1 : 2)
 			                + (isFragmented ? (shortMessage ? 1 : 3) : 0);
-			if(plaintext.length < requiredLength) {
+			if(plaintext.limit() < requiredLength) {
 				packet.error = true;
 				return packet;
 			}
 
 			int fragmentLength;
 			if(shortMessage) {
-				fragmentLength = plaintext[offset++] & 0xFF;
+				fragmentLength = plaintext.get(offset++) & 0xFF;
 			} else {
-				fragmentLength = ((plaintext[offset] & 0xFF) << 8)
-				                | (plaintext[offset + 1] & 0xFF);
+				fragmentLength = ((plaintext.get(offset) & 0xFF) << 8)
+				                | (plaintext.get(offset + 1) & 0xFF);
 				offset += 2;
 			}
 
@@ -164,10 +180,10 @@ class NPFPacket {
 			if(isFragmented) {
 				int value;
 				if(shortMessage) {
-					value = plaintext[offset++] & 0xFF;
+					value = plaintext.get(offset++) & 0xFF;
 				} else {
-					value = ((plaintext[offset] & 0xFF) << 8)
-							| (plaintext[offset + 1] & 0xFF);
+					value = ((plaintext.get(offset) & 0xFF) << 8)
+							| (plaintext.get(offset + 1) & 0xFF);
 					offset += 2;
 				}
 
@@ -182,16 +198,24 @@ class NPFPacket {
 			} else {
 				messageLength = fragmentLength;
 			}
-			if((offset + fragmentLength) > plaintext.length) {
-				Logger.error(NPFPacket.class, "Fragment doesn't fit in the received packet: offset is "+offset+" fragment length is "+fragmentLength+" plaintext length is "+plaintext.length+" message length "+messageLength+" message ID "+messageID+(pn == null ? "" : (" from "+pn.shortToString())));
+			if((offset + fragmentLength) > plaintext.limit()) {
+				Logger.error(NPFPacket.class, "Fragment doesn't fit in the received packet: offset is "+offset+" fragment length is "+fragmentLength+" plaintext length is "+plaintext.limit()+" message length "+messageLength+" message ID "+messageID+(pn == null ? "" : (" from "+pn.shortToString())));
 				packet.error = true;
 				break;
 			}
-			byte[] fragmentData = Arrays.copyOfRange(plaintext, offset, offset + fragmentLength);
+			ByteBuffer fragmentBuffer = plaintext.duplicate();
+			fragmentBuffer.limit(offset + fragmentLength).position(offset);
 			offset += fragmentLength;
 
-			packet.fragments.add(new MessageFragment(shortMessage, isFragmented, firstFragment,
-			                messageID, fragmentLength, messageLength, fragmentOffset, fragmentData, null));
+			if(copy) {
+				byte[] fragmentData = new byte[fragmentLength];
+				fragmentBuffer.get(fragmentData);
+				packet.fragments.add(new MessageFragment(shortMessage, isFragmented, firstFragment,
+				                messageID, fragmentLength, messageLength, fragmentOffset, fragmentData, null));
+			} else {
+				packet.fragments.add(new MessageFragment(shortMessage, isFragmented, firstFragment,
+				                messageID, fragmentLength, messageLength, fragmentOffset, fragmentBuffer));
+			}
 		}
 		
 		packet.length = offset;
@@ -200,27 +224,30 @@ class NPFPacket {
 	}
 
 	private static int tryParseLossyMessages(NPFPacket packet,
-			byte[] plaintext, int offset) {
+			ByteBuffer plaintext, int offset) {
 		int origOffset = offset;
 		while(true) {
-			if(plaintext[offset] != 0x1F)
+			if(plaintext.get(offset) != 0x1F)
 				return offset; // Padding
 			// Else it might be some per-packet lossy messages
 			offset++;
-			if(offset >= plaintext.length) {
+			if(offset >= plaintext.limit()) {
 				packet.lossyMessages.clear();
 				return origOffset;
 			}
-			int len = plaintext[offset] & 0xFF;
+			int len = plaintext.get(offset) & 0xFF;
 			offset++;
-			if(len > plaintext.length - offset) {
+			if(len > plaintext.limit() - offset) {
 				packet.lossyMessages.clear();
 				return origOffset;
 			}
-			byte[] fragment = Arrays.copyOfRange(plaintext, offset, offset + len);
+			byte[] fragment = new byte[len];
+			ByteBuffer lossy = plaintext.duplicate();
+			lossy.position(offset);
+			lossy.get(fragment);
 			packet.lossyMessages.add(fragment);
 			offset += len;
-			if(offset == plaintext.length) return offset;
+			if(offset == plaintext.limit()) return offset;
 		}
 	}
 
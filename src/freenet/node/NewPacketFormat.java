@@ -4,13 +4,12 @@
 package freenet.node;
 
 import java.security.MessageDigest;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
 
 import freenet.crypt.BlockCipher;
 import freenet.crypt.HMAC;
@@ -19,19 +18,16 @@ import freenet.io.comm.DMT;
 import freenet.io.comm.Message;
 import freenet.io.comm.Peer;
 import freenet.io.comm.Peer.LocalAddressException;
-import freenet.io.xfer.PacketThrottle;
 import freenet.node.NewPacketFormatKeyContext.AddedAcks;
-import freenet.support.Fields;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
-import freenet.support.SparseBitmap;
 
 import static java.util.concurrent.TimeUnit.MINUTES;
 
 public class NewPacketFormat implements PacketFormat {
 
-	private static final int HMAC_LENGTH = 10;
+	static final int HMAC_LENGTH = 10;
 	// FIXME Use a more efficient structure - int[] or maybe just a big byte[].
 	// FIXME increase this significantly to let it ride over network interruptions.
 	private static final int NUM_SEQNUMS_TO_WATCH_FOR = 1024;
@@ -61,7 +57,7 @@ public class NewPacketFormat implements PacketFormat {
 
 	/** The actual buffer of outgoing messages that have not yet been acked.
 	 * LOCKING: Protected by sendBufferLock. */
-	private final List<Map<Integer, MessageWrapper>> startedByPrio;
+	private final List<MessageIDMap<MessageWrapper>> startedByPrio;
 	/** The next message ID for outgoing messages.
 	 * LOCKING: Protected by (this). */
 	private int nextMessageID;
@@ -71,13 +67,14 @@ public class NewPacketFormat implements PacketFormat {
 	/** All messages that have been acked (we remove those which are out of window to
 	 * limit space usage).
 	 * LOCKING: Protected by (this). */
-	private final SparseBitmap ackedMessages = new SparseBitmap();
+	private final MessageIDSet ackedMessages = new MessageIDSet(MSG_WINDOW_SIZE);
 
-	private final HashMap<Integer, PartiallyReceivedBuffer> receiveBuffers = new HashMap<>();
-	private final HashMap<Integer, SparseBitmap> receiveMaps = new HashMap<>();
+	/** Messages we have received some of. LOCKING: Protected by receiveLock. */
+	private final MessageIDMap<PartiallyReceivedBuffer> receiveBuffers = new MessageIDMap<>(MSG_WINDOW_SIZE);
 	/** The first message id that hasn't been fully received */
 	private int messageWindowPtrReceived;
-	private final SparseBitmap receivedMessages= new SparseBitmap();
+	/** Messages we have received completely, from messageWindowPtrReceived on. */
+	private final MessageIDSet receivedMessages = new MessageIDSet(MSG_WINDOW_SIZE);
 
 	/** How much of our receive buffer have we used? Equal to how much is used of the
 	 * sender's send buffer. The receive buffer is actually implemented in receiveBuffers.
@@ -97,16 +94,26 @@ public class NewPacketFormat implements PacketFormat {
 	private final Object sendBufferLock = new Object();
 	/** Lock protecting the size of the receive buffer. */
 	private final Object receiveBufferSizeLock = new Object();
+	/** Held while deciphering a packet and while adding its fragments to the receive buffers. The
+	 * same peer's packets may be received by more than one thread at once. */
+	private final Object receiveLock = new Object();
 	
 	private long timeLastSentPacket;
 	private long timeLastSentPayload;
+	/** Decides how many packets may be in flight, and paces them. */
+	private final CongestionControl congestion;
 
 	NewPacketFormat(BasePeerNode pn, int ourInitialMsgID, int theirInitialMsgID) {
+		this(pn, ourInitialMsgID, theirInitialMsgID, CongestionControl.Type.THROTTLE.create(pn == null ? null : pn.getThrottle()));
+	}
+
+	NewPacketFormat(BasePeerNode pn, int ourInitialMsgID, int theirInitialMsgID, CongestionControl congestion) {
 		this.pn = pn;
+		this.congestion = congestion;
 
 		startedByPrio = new ArrayList<>(DMT.NUM_PRIORITIES);
 		for(int i = 0; i < DMT.NUM_PRIORITIES; i++) {
-			startedByPrio.add(new HashMap<Integer, MessageWrapper>());
+			startedByPrio.add(new MessageIDMap<MessageWrapper>(MSG_WINDOW_SIZE));
 		}
 
 		// Make sure the numbers are within the ranges we want
@@ -120,21 +127,33 @@ public class NewPacketFormat implements PacketFormat {
 
 	@Override
 	public boolean handleReceivedPacket(byte[] buf, int offset, int length, long now, Peer replyTo) {
+		return handleReceivedPacket(ByteBuffer.wrap(buf, offset, length), now, replyTo);
+	}
+
+	/**
+	 * If the packet is ours, it is decrypted in place, and messages are assembled straight from
+	 * the decrypted packet, so each message is copied once. Otherwise it is left as it was. The
+	 * buffer's position and limit are not changed either way.
+	 */
+	@Override
+	public boolean handleReceivedPacket(ByteBuffer buf, long now, Peer replyTo) {
 		NPFPacket packet = null;
 		SessionKey s = null;
-		for(int i = 0; i < 3; i++) {
-			if(i == 0) {
-				s = pn.getCurrentKeyTracker();
-			} else if (i == 1) {
-				s = pn.getPreviousKeyTracker();
-			} else {
-				s = pn.getUnverifiedKeyTracker();
-			}
-			if(s == null) continue;
-			packet = tryDecipherPacket(buf, offset, length, s);
-			if(packet != null) {
-				if(logDEBUG) Logger.debug(this, "Decrypted packet with tracker " + i);
-				break;
+		synchronized(receiveLock) {
+			for(int i = 0; i < 3; i++) {
+				if(i == 0) {
+					s = pn.getCurrentKeyTracker();
+				} else if (i == 1) {
+					s = pn.getPreviousKeyTracker();
+				} else {
+					s = pn.getUnverifiedKeyTracker();
+				}
+				if(s == null) continue;
+				packet = tryDecipherPacket(buf, s);
+				if(packet != null) {
+					if(logDEBUG) Logger.debug(this, "Decrypted packet with tracker " + i);
+					break;
+				}
 			}
 		}
 		if(packet == null) {
@@ -145,9 +164,12 @@ public class NewPacketFormat implements PacketFormat {
 		pn.receivedPacket(false, true);
 		pn.verified(s);
 		pn.maybeRekey();
-		pn.reportIncomingBytes(length);
+		pn.reportIncomingBytes(buf.remaining());
 
-		List<byte[]> finished = handleDecryptedPacket(packet, s);
+		List<byte[]> finished;
+		synchronized(receiveLock) {
+			finished = handleDecryptedPacket(packet, s);
+		}
 		if(logMINOR && !finished.isEmpty()) 
 			Logger.minor(this, "Decoded messages: "+finished.size());
 		DecodingMessageGroup group = pn.startProcessingDecryptedMessages(finished.size());
@@ -164,7 +186,7 @@ public class NewPacketFormat implements PacketFormat {
 
 		NewPacketFormatKeyContext keyContext = sessionKey.packetContext;
 		for(int ack : packet.getAcks()) {
-			keyContext.ack(ack, pn, sessionKey);
+			keyContext.ack(ack, pn, sessionKey, congestion);
 		}
 		
 		boolean dontAck = false;
@@ -199,7 +221,7 @@ public class NewPacketFormat implements PacketFormat {
 		for(MessageFragment fragment : packet.getFragments()) {
 			if(messageWindowPtrReceived + MSG_WINDOW_SIZE > NUM_MESSAGE_IDS) {
 				int upperBound = (messageWindowPtrReceived + MSG_WINDOW_SIZE) % NUM_MESSAGE_IDS;
-				if((fragment.messageID > upperBound) && (fragment.messageID < messageWindowPtrReceived)) {
+				if((fragment.messageID >= upperBound) && (fragment.messageID < messageWindowPtrReceived)) {
 					if(logMINOR) Logger.minor(this, "Received message "+fragment.messageID+" outside window, acking");
 					continue;
 				}
@@ -211,11 +233,10 @@ public class NewPacketFormat implements PacketFormat {
 				}
 			}
 			synchronized(receivedMessages) {
-				if(receivedMessages.contains(fragment.messageID, fragment.messageID)) continue;
+				if(receivedMessages.contains(fragment.messageID)) continue;
 			}
 
 			PartiallyReceivedBuffer recvBuffer = receiveBuffers.get(fragment.messageID);
-			SparseBitmap recvMap = receiveMaps.get(fragment.messageID);
 			if(recvBuffer == null) {
 				if(logMINOR) Logger.minor(this, "Message id " + fragment.messageID + ": Creating buffer");
 
@@ -235,9 +256,7 @@ public class NewPacketFormat implements PacketFormat {
 					}
 				}
 
-				recvMap = new SparseBitmap();
 				receiveBuffers.put(fragment.messageID, recvBuffer);
-				receiveMaps.put(fragment.messageID, recvMap);
 			} else {
 				if(fragment.firstFragment) {
 					if(!recvBuffer.setMessageLength(fragment.messageLength)) {
@@ -247,7 +266,7 @@ public class NewPacketFormat implements PacketFormat {
 				}
 			}
 
-			if(!recvBuffer.add(fragment.fragmentData, fragment.fragmentOffset)) {
+			if(!recvBuffer.add(fragment)) {
 				dontAck = true;
 				continue;
 			}
@@ -255,27 +274,19 @@ public class NewPacketFormat implements PacketFormat {
 				Logger.warning(this, "Received fragment of length 0");
 				continue;
 			}
-			recvMap.add(fragment.fragmentOffset, fragment.fragmentOffset + fragment.fragmentLength - 1);
-			if((recvBuffer.messageLength != -1) && recvMap.contains(0, recvBuffer.messageLength - 1)) {
+			if(recvBuffer.isComplete()) {
 				receiveBuffers.remove(fragment.messageID);
-				receiveMaps.remove(fragment.messageID);
 
 				synchronized(receivedMessages) {
-					if(receivedMessages.contains(fragment.messageID, fragment.messageID)) continue;
-					receivedMessages.add(fragment.messageID, fragment.messageID);
+					if(receivedMessages.contains(fragment.messageID)) continue;
+					receivedMessages.add(fragment.messageID);
 
-					int oldWindow = messageWindowPtrReceived;
-					while(receivedMessages.contains(messageWindowPtrReceived, messageWindowPtrReceived)) {
+					// Messages before the window are no longer in the set.
+					while(receivedMessages.contains(messageWindowPtrReceived)) {
+						receivedMessages.remove(messageWindowPtrReceived);
 						messageWindowPtrReceived++;
 						if(messageWindowPtrReceived == NUM_MESSAGE_IDS) messageWindowPtrReceived = 0;
 					}
-
-					if(messageWindowPtrReceived < oldWindow) {
-						receivedMessages.remove(oldWindow, NUM_MESSAGE_IDS - 1);
-						receivedMessages.remove(0, messageWindowPtrReceived);
-					} else {
-						receivedMessages.remove(oldWindow, messageWindowPtrReceived);
-					}
 				}
 
 				synchronized(sendBufferLock) {
@@ -287,7 +298,7 @@ public class NewPacketFormat implements PacketFormat {
 				
 				if(logMINOR) Logger.minor(this, "Message id " + fragment.messageID + ": Completed");
 			} else {
-				if(logDEBUG) Logger.debug(this, "Message id " + fragment.messageID + ": " + recvMap);
+				if(logDEBUG) Logger.debug(this, "Message id " + fragment.messageID + ": " + recvBuffer.receivedBytes + " of " + recvBuffer.messageLength + " bytes");
 			}
 		}
 
@@ -313,7 +324,7 @@ public class NewPacketFormat implements PacketFormat {
 		return fullyReceived;
 	}
 
-	private NPFPacket tryDecipherPacket(byte[] buf, int offset, int length, SessionKey sessionKey) {
+	private NPFPacket tryDecipherPacket(ByteBuffer buf, SessionKey sessionKey) {
 		NewPacketFormatKeyContext keyContext = sessionKey.packetContext;
 		// Create the watchlist if the key has changed
 		if(keyContext.seqNumWatchList == null) {
@@ -362,17 +373,18 @@ public class NewPacketFormat implements PacketFormat {
 			keyContext.watchListOffset = (int) ((0l + keyContext.watchListOffset + moveBy) % NUM_SEQNUMS);
 		}
 
+		if(buf.remaining() < HMAC_LENGTH + 4) return null;
+		int seqNumIndex = buf.position() + HMAC_LENGTH;
 		for(int i = 0; i < keyContext.seqNumWatchList.length; i++) {
 			int index = (keyContext.watchListPointer + i) % keyContext.seqNumWatchList.length;
-			if (!Fields.byteArrayEqual(
-						buf, keyContext.seqNumWatchList[index],
-						offset + HMAC_LENGTH, 0,
-						keyContext.seqNumWatchList[index].length))
+			byte[] encryptedSeqNum = keyContext.seqNumWatchList[index];
+			if(buf.get(seqNumIndex) != encryptedSeqNum[0] || buf.get(seqNumIndex + 1) != encryptedSeqNum[1] ||
+					buf.get(seqNumIndex + 2) != encryptedSeqNum[2] || buf.get(seqNumIndex + 3) != encryptedSeqNum[3])
 				continue;
 			
 			int sequenceNumber = (int) ((0l + keyContext.watchListOffset + i) % NUM_SEQNUMS);
 			if(logDEBUG) Logger.debug(this, "Received packet matches sequence number " + sequenceNumber);
-			NPFPacket p = decipherFromSeqnum(buf, offset, length, sessionKey, sequenceNumber);
+			NPFPacket p = decipherFromSeqnum(buf, sessionKey, sequenceNumber);
 			if(p != null) {
 				if(logMINOR) Logger.minor(this, "Received packet " + p.getSequenceNumber()+" on "+sessionKey);
 				return p;
@@ -382,8 +394,9 @@ public class NewPacketFormat implements PacketFormat {
 		return null;
 	}
 
-	/** Must NOT modify buf contents. */
-	private NPFPacket decipherFromSeqnum(byte[] buf, int offset, int length, SessionKey sessionKey, int sequenceNumber) {
+	/** Must NOT modify buf contents unless the packet is ours, in which case it is decrypted in
+	 * place and the fragments of the returned packet refer to it. */
+	private NPFPacket decipherFromSeqnum(ByteBuffer buf, SessionKey sessionKey, int sequenceNumber) {
 		BlockCipher ivCipher = sessionKey.ivCipher;
 
 		byte[] IV = new byte[ivCipher.getBlockSize() / 8];
@@ -395,9 +408,11 @@ public class NewPacketFormat implements PacketFormat {
 
 		ivCipher.encipher(IV, IV);
 
-		byte[] payload = Arrays.copyOfRange(buf, offset + HMAC_LENGTH, offset + length);
-		byte[] hash = Arrays.copyOfRange(buf, offset, offset + HMAC_LENGTH);
-		byte[] localHash = Arrays.copyOf(HMAC.macWithSHA256(sessionKey.hmacKey, payload), HMAC_LENGTH);
+		ByteBuffer payload = buf.duplicate();
+		payload.position(buf.position() + HMAC_LENGTH);
+		byte[] hash = new byte[HMAC_LENGTH];
+		buf.duplicate().get(hash);
+		byte[] localHash = Arrays.copyOf(HMAC.macWithSHA256(sessionKey.hmacKey, payload.duplicate()), HMAC_LENGTH);
 		if (!MessageDigest.isEqual(hash, localHash)) {
 			if (logMINOR) {
 				Logger.minor(this, "Failed to validate the HMAC using TrackerID="+sessionKey.trackerID);
@@ -407,7 +422,7 @@ public class NewPacketFormat implements PacketFormat {
 		}
 
 		PCFBMode payloadCipher = PCFBMode.create(sessionKey.incommingCipher, IV);
-		payloadCipher.blockDecipher(payload, 0, payload.length);
+		payloadCipher.blockDecipher(payload.duplicate());
 
 		NPFPacket p = NPFPacket.create(payload, pn);
 
@@ -538,11 +553,12 @@ public class NewPacketFormat implements PacketFormat {
 		
 		packet.onSent(data.length, pn);
 
+		long now = System.currentTimeMillis();
 		if(packet.getFragments().size() > 0) {
 			keyContext.sent(packet.getSequenceNumber(), packet.getLength());
+			congestion.onSent(now);
 		}
 
-		long now = System.currentTimeMillis();
 		pn.sentPacket();
 		pn.reportOutgoingBytes(data.length);
 		if(pn.shouldThrottle()) {
@@ -593,7 +609,9 @@ public class NewPacketFormat implements PacketFormat {
 		byte[] haveAddedStatsBulk = null;
 		byte[] haveAddedStatsRT = null;
 		
-		if(!ackOnly) {
+		// Resends and the rest of messages we have started are paced too, but they don't have to
+		// wait for the window.
+		if(!ackOnly && congestion.nextSendTime(now) <= now) {
 			
 			boolean addedFragments = false;
 			
@@ -605,9 +623,10 @@ public class NewPacketFormat implements PacketFormat {
 				synchronized(sendBufferLock) {
 					// Always finish what we have started before considering sending more packets.
 					// Anything beyond this is beyond the scope of NPF and is PeerMessageQueue's job.
-addOldLoop:			for(Map<Integer, MessageWrapper> started : startedByPrio) {
+addOldLoop:			for(MessageIDMap<MessageWrapper> started : startedByPrio) {
+						if(started.isEmpty()) continue;
 						//Try to finish messages that have been started
-						Iterator<MessageWrapper> it = started.values().iterator();
+						Iterator<MessageWrapper> it = started.iterator();
 						while(it.hasNext() && packet.getLength() < maxPacketSize) {
 							MessageWrapper wrapper = it.next();
 							while(packet.getLength() < maxPacketSize) {
@@ -809,8 +828,8 @@ addOldLoop:			for(Map<Integer, MessageWrapper> started : startedByPrio) {
 							int messageID = getMessageID();
 							if(messageID == -1) {
 								// CONCURRENCY: This will fail sometimes if we send messages to the same peer from different threads.
-								// This doesn't happen at the moment because we use a single PacketSender for all ports and all peers.
-								// We might in future split it across multiple threads but it'd be best to keep the same peer on the same thread.
+								// This doesn't happen at the moment because each peer is only sent to by one PacketSender,
+								// even when there are several (see Node.getPacketSender()).
 								Logger.error(this, "No availiable message ID, requeuing and sending packet (we already checked didn't we???)");
 								if(!wasGeneratedPing) {
 									messageQueue.pushfrontPrioritizedMessageItem(item);
@@ -833,7 +852,7 @@ addOldLoop:			for(Map<Integer, MessageWrapper> started : startedByPrio) {
 							sentPacket.addFragment(frag);
 							
 							//Priority of the one we grabbed might be higher than i
-							Map<Integer, MessageWrapper> queue = startedByPrio.get(item.getPriority());
+							MessageIDMap<MessageWrapper> queue = startedByPrio.get(item.getPriority());
 							synchronized(sendBufferLock) {
 								// CONCURRENCY: This could go over the limit if we allow createPacket() for the same node on two threads in parallel. That's probably a bad idea anyway.
 								sendBufferUsed += item.buf.length;
@@ -949,13 +968,13 @@ addOldLoop:			for(Map<Integer, MessageWrapper> started : startedByPrio) {
 		long curTime = System.currentTimeMillis();
 		SessionKey key = pn.getCurrentKeyTracker();
 		if(key != null)
-			((key.packetContext)).checkForLostPackets(averageRTT, curTime, pn);
+			((key.packetContext)).checkForLostPackets(averageRTT, curTime, pn, congestion);
 		key = pn.getPreviousKeyTracker();
 		if(key != null)
-			((key.packetContext)).checkForLostPackets(averageRTT, curTime, pn);
+			((key.packetContext)).checkForLostPackets(averageRTT, curTime, pn, congestion);
 		key = pn.getUnverifiedKeyTracker();
 		if(key != null)
-			((key.packetContext)).checkForLostPackets(averageRTT, curTime, pn);
+			((key.packetContext)).checkForLostPackets(averageRTT, curTime, pn, congestion);
 	}
 
 	@Override
@@ -965,8 +984,8 @@ addOldLoop:			for(Map<Integer, MessageWrapper> started : startedByPrio) {
 		// LOCKING: No packet may be sent while connected = false.
 		// So we guarantee that no more packets are sent by setting this here.
 		synchronized(sendBufferLock) {
-			for(Map<Integer, MessageWrapper> queue : startedByPrio) {
-				for(MessageWrapper wrapper : queue.values()) {
+			for(MessageIDMap<MessageWrapper> queue : startedByPrio) {
+				for(MessageWrapper wrapper : queue) {
 					items.add(wrapper.getItem());
 					messageSize += wrapper.getLength();
 				}
@@ -993,8 +1012,9 @@ addOldLoop:			for(Map<Integer, MessageWrapper> started : startedByPrio) {
 			// Is there anything in flight?
 			// Packets in flight limit applies even if there is stuff to resend.
 			synchronized(sendBufferLock) {
-				for(Map<Integer, MessageWrapper> started : startedByPrio) {
-					for(MessageWrapper wrapper : started.values()) {
+				for(MessageIDMap<MessageWrapper> started : startedByPrio) {
+					if(started.isEmpty()) continue;
+					for(MessageWrapper wrapper : started) {
 						if(wrapper.allSent()) continue;
 						// We do not reset the deadline when we resend.
 						// The RTO computation logic should ensure that we don't use horrible amounts of bandwidth for retransmission.
@@ -1009,6 +1029,11 @@ addOldLoop:			for(Map<Integer, MessageWrapper> started : startedByPrio) {
 		}
 		// Check for acks.
 		ret = Math.min(ret, timeCheckForAcks());
+		if(!canSend) {
+			// Wake up when we are allowed to send the next packet, if pacing is what stopped us.
+			long paced = congestion.nextSendTime(now);
+			if(paced > now) ret = Math.min(ret, paced);
+		}
 		
 		if(ret > now) {
 		    // Always wake up after half an RTT, check whether stuff is lost or needs ack'ing.
@@ -1066,37 +1091,38 @@ addOldLoop:			for(Map<Integer, MessageWrapper> started : startedByPrio) {
 		}
 		
 		if(tracker != null && pn != null) {
-			PacketThrottle throttle = pn.getThrottle();
-			if(throttle == null) {
-				// Ignore
-			} else {
-				int maxPackets = (int)Math.min(Integer.MAX_VALUE, pn.getThrottle().getWindowSize());
-				// Impose a minimum so that we don't lose the ability to send anything.
-				if(maxPackets < 1) maxPackets = 1;
-				NewPacketFormatKeyContext packets = tracker.packetContext;
-				if(maxPackets <= packets.countSentPackets()) {
-					// FIXME some packets will be visible from the outside yet only contain acks.
-					// SECURITY/INVISIBILITY: They won't count here, this is bad.
-					// However, counting packets in flight, rather than bytes of messages, is the right solution:
-					// 1. It's closer to what TCP does.
-					// 2. It avoids needing to have an excessively high minimum window size.
-					// 3. It allows us to start work on any message even if it's big, while still having reasonably accurate congestion control.
-					// This prevents us from getting into a situation where we never use up the full window but can never send big messages either.
-					// 4. It's closer to what we used to do (only limit big packets), which seemed to work mostly.
-					// 5. It avoids some complicated headaches with PeerMessageQueue. E.g. we need to avoid requeueing.
-					// 6. In spite of the issue with acks, it's probably more "invisible" on the whole, in that the number of packets is visible,
-					// whereas messages are supposed to not be visible.
-					// Arguably we should count bytes rather than packets.
-					if(logDEBUG) Logger.debug(this, "Cannot send because "+packets.countSentPackets()+" in flight of limit "+maxPackets+" on "+this);
-					return false;
-				}
+			long now = System.currentTimeMillis();
+			if(congestion.nextSendTime(now) > now) {
+				if(logDEBUG) Logger.debug(this, "Cannot send yet because of pacing on "+this);
+				return false;
+			}
+			int maxPackets = (int)Math.min(Integer.MAX_VALUE, congestion.getWindowSize());
+			// Impose a minimum so that we don't lose the ability to send anything.
+			if(maxPackets < 1) maxPackets = 1;
+			NewPacketFormatKeyContext packets = tracker.packetContext;
+			if(maxPackets <= packets.countSentPackets()) {
+				// FIXME some packets will be visible from the outside yet only contain acks.
+				// SECURITY/INVISIBILITY: They won't count here, this is bad.
+				// However, counting packets in flight, rather than bytes of messages, is the right solution:
+				// 1. It's closer to what TCP does.
+				// 2. It avoids needing to have an excessively high minimum window size.
+				// 3. It allows us to start work on any message even if it's big, while still having reasonably accurate congestion control.
+				// This prevents us from getting into a situation where we never use up the full window but can never send big messages either.
+				// 4. It's closer to what we used to do (only limit big packets), which seemed to work mostly.
+				// 5. It avoids some complicated headaches with PeerMessageQueue. E.g. we need to avoid requeueing.
+				// 6. In spite of the issue with acks, it's probably more "invisible" on the whole, in that the number of packets is visible,
+				// whereas messages are supposed to not be visible.
+				// Arguably we should count bytes rather than packets.
+				if(logDEBUG) Logger.debug(this, "Cannot send because "+packets.countSentPackets()+" in flight of limit "+maxPackets+" on "+this);
+				return false;
 			}
 		}
 		
 		if(!canAllocateID) {
 			synchronized(sendBufferLock) {
-				for(Map<Integer, MessageWrapper> started : startedByPrio) {
-					for(MessageWrapper wrapper : started.values()) {
+				for(MessageIDMap<MessageWrapper> started : startedByPrio) {
+					if(started.isEmpty()) continue;
+					for(MessageWrapper wrapper : started) {
 						if(!wrapper.allSent()) return true;
 					}
 				}
@@ -1160,7 +1186,7 @@ addOldLoop:			for(Map<Integer, MessageWrapper> started : startedByPrio) {
 					Logger.debug(this, "Acknowledging "+range[0]+" to "+range[1]+" on "+wrapper.getMessageID());
 
 				if(wrapper.ack(range[0], range[1], npf.pn)) {
-					Map<Integer, MessageWrapper> started = npf.startedByPrio.get(wrapper.getPriority());
+					MessageIDMap<MessageWrapper> started = npf.startedByPrio.get(wrapper.getPriority());
 					MessageWrapper removed = null;
 					synchronized(npf.sendBufferLock) {
 						removed = started.remove(wrapper.getMessageID());
@@ -1181,20 +1207,13 @@ addOldLoop:			for(Map<Integer, MessageWrapper> started : startedByPrio) {
 						boolean couldSend = npf.canSend(key);
 						int id = wrapper.getMessageID();
 						synchronized(npf) {
-							npf.ackedMessages.add(id, id);
+							npf.ackedMessages.add(id);
 
-							int oldWindow = npf.messageWindowPtrAcked;
-							while(npf.ackedMessages.contains(npf.messageWindowPtrAcked, npf.messageWindowPtrAcked)) {
+							while(npf.ackedMessages.contains(npf.messageWindowPtrAcked)) {
+								npf.ackedMessages.remove(npf.messageWindowPtrAcked);
 								npf.messageWindowPtrAcked++;
 								if(npf.messageWindowPtrAcked == NUM_MESSAGE_IDS) npf.messageWindowPtrAcked = 0;
 							}
-
-							if(npf.messageWindowPtrAcked < oldWindow) {
-								npf.ackedMessages.remove(oldWindow, NUM_MESSAGE_IDS - 1);
-								npf.ackedMessages.remove(0, npf.messageWindowPtrAcked);
-							} else {
-								npf.ackedMessages.remove(oldWindow, npf.messageWindowPtrAcked);
-							}
 						}
 						if(!couldSend && npf.canSend(key)) {
 							//We aren't blocked anymore, notify packet sender
@@ -1231,23 +1250,60 @@ addOldLoop:			for(Map<Integer, MessageWrapper> started : startedByPrio) {
 	private static class PartiallyReceivedBuffer {
 		private int messageLength;
 		private byte[] buffer;
+		/** One bit for each byte of the buffer which we have received. */
+		private long[] received;
+		/** The number of bits set in received. */
+		private int receivedBytes;
 		private final NewPacketFormat npf;
 
 		private PartiallyReceivedBuffer(NewPacketFormat npf) {
 			messageLength = -1;
 			buffer = new byte[0];
+			received = new long[0];
 			this.npf = npf;
 		}
 
-		private boolean add(byte[] data, int dataOffset) {
-			if(buffer.length < (dataOffset + data.length)) {
-				if(!resize(dataOffset + data.length)) return false;
+		private boolean add(MessageFragment fragment) {
+			int dataOffset = fragment.fragmentOffset;
+			int length = fragment.fragmentLength;
+			if(buffer.length < (dataOffset + length)) {
+				if(!resize(dataOffset + length)) return false;
 			}
 
-			System.arraycopy(data, 0, buffer, dataOffset, data.length);
+			if(fragment.fragmentData != null)
+				System.arraycopy(fragment.fragmentData, 0, buffer, dataOffset, length);
+			else
+				fragment.fragmentBuffer.duplicate().get(buffer, dataOffset, length);
+			if(length > 0) markReceived(dataOffset, dataOffset + length - 1);
 			return true;
 		}
 
+		/** Set the bits for bytes start to end inclusive, counting the ones that weren't set. */
+		private void markReceived(int start, int end) {
+			int first = start >>> 6;
+			int last = end >>> 6;
+			for(int word = first; word <= last; word++) {
+				long mask = -1L;
+				if(word == first) mask &= -1L << (start & 63);
+				if(word == last) mask &= -1L >>> (63 - (end & 63));
+				receivedBytes += Long.bitCount(mask & ~received[word]);
+				received[word] |= mask;
+			}
+		}
+
+		/** @return True if we know the length of the message and have received all of it. */
+		private boolean isComplete() {
+			// The buffer can be longer than the message, so check the bits if it looks likely.
+			if(messageLength == -1 || receivedBytes < messageLength) return false;
+			int words = messageLength >>> 6;
+			for(int i = 0; i < words; i++)
+				if(received[i] != -1L) return false;
+			int rest = messageLength & 63;
+			if(rest == 0) return true;
+			long mask = -1L >>> (64 - rest);
+			return (received[words] & mask) == mask;
+		}
+
 		private boolean setMessageLength(int messageLength) {
 			if(this.messageLength != -1 && this.messageLength != messageLength) {
 				Logger.warning(this, "Message length has already been set to a different length");
@@ -1276,6 +1332,7 @@ addOldLoop:			for(Map<Integer, MessageWrapper> started : startedByPrio) {
 			}
 
 			buffer = Arrays.copyOf(buffer, length);
+			received = Arrays.copyOf(received, (length + 63) >>> 6);
 
 			return true;
 		}
@@ -104,7 +104,7 @@ public class NewPacketFormatKeyContext {
 	}
 
 	/** One of our outgoing packets has been acknowledged. */
-	public void ack(int ack, BasePeerNode pn, SessionKey key) {
+	public void ack(int ack, BasePeerNode pn, SessionKey key, CongestionControl congestion) {
 		long rtt;
 		int maxSize;
 		boolean validAck = false;
@@ -128,6 +128,9 @@ public class NewPacketFormatKeyContext {
 			rtt = ackReceived - packetSent;
 		}
 
+		congestion.onRoundTripTime(rtt);
+		if(validAck)
+			congestion.onAcked(maxSize, ackReceived);
 		if(pn == null)
 			return;
 		int rt = (int) Math.min(rtt, Integer.MAX_VALUE);
@@ -250,7 +253,7 @@ public class NewPacketFormatKeyContext {
 		return timeCheck;
 	}
 
-	public void checkForLostPackets(double averageRTT, long curTime, BasePeerNode pn) {
+	public void checkForLostPackets(double averageRTT, long curTime, BasePeerNode pn, CongestionControl congestion) {
 		//Mark packets as lost
 		int bigLostCount = 0;
 		int count = 0;
@@ -288,6 +291,8 @@ public class NewPacketFormatKeyContext {
 		}
 		if(count > 0 && logMINOR)
 			Logger.minor(this, "" + count + " packets in flight with threshold " + maxDelay + "ms");
+		if(bigLostCount != 0)
+			congestion.onLost(bigLostCount, curTime);
 		if(bigLostCount != 0 && pn != null) {
 			PacketThrottle throttle = pn.getThrottle();
 			if(throttle != null) {
@@ -128,6 +128,8 @@ import freenet.support.PrioritizedTicker;
 import freenet.support.ShortBuffer;
 import freenet.support.SimpleFieldSet;
 import freenet.support.Ticker;
+import freenet.support.TickerLateness;
+import freenet.support.TimingWheelTicker;
 import freenet.support.TokenBucket;
 import freenet.support.api.BooleanCallback;
 import freenet.support.api.IntCallback;
@@ -488,6 +490,7 @@ public class Node implements TimeSkewDetectorCallback {
 	private String storeType;
 	private boolean storeUseSlotFilters;
 	private boolean storeSaltHashResizeOnStart;
+	private boolean storeSaltHashMemoryMapped;
 	private int storeSaltHashSlotFilterPersistenceTime;
 
 	/** Minimum total datastore size */
@@ -644,7 +647,11 @@ public class Node implements TimeSkewDetectorCallback {
 	// General stuff
 
 	public final Executor executor;
+	/** Verifies blocks received from the network off the thread which received them. */
+	public final BlockVerifier blockVerifier;
 	public final PacketSender ps;
+	/** Each peer is sent to by one of these. The first is ps. */
+	private final PacketSender[] packetSenders;
 	public final PrioritizedTicker ticker;
 	final DNSRequester dnsr;
 	final NodeDispatcher dispatcher;
@@ -656,6 +663,7 @@ public class Node implements TimeSkewDetectorCallback {
 	private long amountOfDataToCheckCompressionRatio;
 	private int minimumCompressionPercentage;
 	private int maxTimeForSingleCompressor;
+	private boolean parallelCompression;
 	private boolean connectionSpeedDetection;
 	boolean inputLimitDefault;
 	final boolean enableARKs;
@@ -666,6 +674,10 @@ public class Node implements TimeSkewDetectorCallback {
 	private volatile boolean routeAccordingToOurPeersLocation;
 	boolean enableSwapQueueing;
 	boolean enablePacketCoalescing;
+	private boolean timingWheelTicker;
+	private boolean nioUDP;
+	private int packetThreads;
+	private CongestionControl.Type congestionControl;
 	public static final short DEFAULT_MAX_HTL = (short)18;
 	private short maxHTL;
 	private boolean skipWrapperWarning;
@@ -960,6 +972,7 @@ public class Node implements TimeSkewDetectorCallback {
 		System.out.println(tmp);
 		collector = new IOStatisticCollector();
 		this.executor = executor;
+		blockVerifier = new BlockVerifier(executor, Runtime.getRuntime().availableProcessors());
 		nodeStarter=ns;
 		if(logConfigHandler != lc)
 			logConfigHandler=lc;
@@ -1473,6 +1486,90 @@ public class Node implements TimeSkewDetectorCallback {
 		});
 		enablePacketCoalescing = nodeConfig.getBoolean("enablePacketCoalescing");
 
+		nodeConfig.register("timingWheelTicker", false, sortOrder++, true, false, "Node.timingWheelTicker", "Node.timingWheelTickerLong", new BooleanCallback() {
+			@Override
+			public Boolean get() {
+				return timingWheelTicker;
+			}
+
+			@Override
+			public void set(Boolean val) throws InvalidConfigValueException, NodeNeedRestartException {
+				if(get().equals(val)) return;
+				timingWheelTicker = val;
+				throw new NodeNeedRestartException("Ticker type cannot be changed on the fly");
+			}
+
+		});
+		timingWheelTicker = nodeConfig.getBoolean("timingWheelTicker");
+
+		nodeConfig.register("nioUDP", false, sortOrder++, true, false, "Node.nioUDP", "Node.nioUDPLong", new BooleanCallback() {
+			@Override
+			public Boolean get() {
+				return nioUDP;
+			}
+
+			@Override
+			public void set(Boolean val) throws InvalidConfigValueException, NodeNeedRestartException {
+				if(get().equals(val)) return;
+				nioUDP = val;
+				throw new NodeNeedRestartException("UDP sockets cannot be changed on the fly");
+			}
+
+		});
+		nioUDP = nodeConfig.getBoolean("nioUDP");
+
+		nodeConfig.register("packetThreads", "1", sortOrder++, true, false, "Node.packetThreads", "Node.packetThreadsLong", new IntCallback() {
+			@Override
+			public Integer get() {
+				return packetThreads;
+			}
+
+			@Override
+			public void set(Integer val) throws InvalidConfigValueException, NodeNeedRestartException {
+				if(get().equals(val)) return;
+				if(val < 1)
+					throw new InvalidConfigValueException(l10n("mustBePositive"));
+				packetThreads = val;
+				throw new NodeNeedRestartException("Packet threads cannot be changed on the fly");
+			}
+
+		}, Dimension.NOT);
+		packetThreads = Math.max(1, nodeConfig.getInt("packetThreads"));
+
+		class CongestionControlCallback extends StringCallback implements EnumerableOptionCallback {
+			@Override
+			public String get() {
+				return congestionControl.name();
+			}
+
+			@Override
+			public void set(String val) throws InvalidConfigValueException, NodeNeedRestartException {
+				if(get().equals(val)) return;
+				try {
+					congestionControl = CongestionControl.Type.valueOf(val);
+				} catch (IllegalArgumentException e) {
+					throw new InvalidConfigValueException(e.getMessage());
+				}
+				throw new NodeNeedRestartException("Congestion control cannot change on the fly");
+			}
+
+			@Override
+			public String[] getPossibleValues() {
+				ArrayList<String> array = new ArrayList<String>();
+				for(CongestionControl.Type type : CongestionControl.Type.values())
+					array.add(type.name());
+				return array.toArray(new String[0]);
+			}
+		}
+		nodeConfig.register("congestionControl", CongestionControl.Type.THROTTLE.name(), sortOrder++, true, false,
+				"Node.congestionControl", "Node.congestionControlLong", new CongestionControlCallback());
+		try {
+			congestionControl = CongestionControl.Type.valueOf(nodeConfig.getString("congestionControl"));
+		} catch (IllegalArgumentException e) {
+			Logger.error(this, "Invalid congestionControl, using the default", e);
+			congestionControl = CongestionControl.Type.THROTTLE;
+		}
+
 		// Determine the port number
 		// @see #191
 		if(oldConfig != null && "-1".equals(oldConfig.get("node.listenPort")))
@@ -1484,8 +1581,14 @@ public class Node implements TimeSkewDetectorCallback {
 
 		// Must be created after darknetCrypto
 		dnsr = new DNSRequester(this);
-		ps = new PacketSender(this);
-		ticker = new PrioritizedTicker(executor, getDarknetPortNumber());
+		packetSenders = new PacketSender[packetThreads];
+		for(int i = 0; i < packetSenders.length; i++)
+			packetSenders[i] = new PacketSender(this, i, packetSenders.length);
+		ps = packetSenders[0];
+		if(timingWheelTicker)
+			ticker = new TimingWheelTicker(executor, getDarknetPortNumber());
+		else
+			ticker = new PrioritizedTicker(executor, getDarknetPortNumber());
 		if(executor instanceof PooledExecutor)
 			((PooledExecutor)executor).setTicker(ticker);
 
@@ -1650,6 +1753,23 @@ public class Node implements TimeSkewDetectorCallback {
 
 		maxTimeForSingleCompressor = nodeConfig.getInt("maxTimeForSingleCompressor");
 
+		nodeConfig.register("parallelCompression", true, sortOrder++,
+				true, false, "Node.parallelCompression",
+				"Node.parallelCompressionLong", new BooleanCallback() {
+			@Override
+			public Boolean get() {
+				return parallelCompression;
+			}
+			@Override
+			public void set(Boolean parallelCompression) {
+				synchronized(Node.this) {
+					Node.this.parallelCompression = parallelCompression;
+				}
+			}
+		});
+
+		parallelCompression = nodeConfig.getBoolean("parallelCompression");
+
 		nodeConfig.register("connectionSpeedDetection", true, sortOrder++,
 			true, true, "Node.connectionSpeedDetection",
 			"Node.connectionSpeedDetectionLong", new BooleanCallback() {
@@ -2075,6 +2195,25 @@ public class Node implements TimeSkewDetectorCallback {
 		});
 		storeSaltHashResizeOnStart = nodeConfig.getBoolean("storeSaltHashResizeOnStart");
 
+		nodeConfig.register("storeSaltHashMemoryMapped", false, sortOrder++, true, false,
+				"Node.storeSaltHashMemoryMapped", "Node.storeSaltHashMemoryMappedLong", new BooleanCallback() {
+			@Override
+			public Boolean get() {
+				synchronized(Node.this) {
+					return storeSaltHashMemoryMapped;
+				}
+			}
+
+			@Override
+			public void set(Boolean val) throws InvalidConfigValueException, NodeNeedRestartException {
+				synchronized(Node.this) {
+					storeSaltHashMemoryMapped = val;
+				}
+				throw new NodeNeedRestartException("Need to restart to change storeSaltHashMemoryMapped");
+			}
+		});
+		storeSaltHashMemoryMapped = nodeConfig.getBoolean("storeSaltHashMemoryMapped");
+
 		this.storeDir = setupProgramDir(installConfig, "storeDir", userDir().file("datastore").getPath(), "Node.storeDirectory", "Node.storeDirectoryLong", nodeConfig);
 		installConfig.finishedInitialization();
 
@@ -3126,7 +3265,8 @@ public class Node implements TimeSkewDetectorCallback {
 		System.out.println("Initializing "+type+" Data"+store+" (" + maxStoreKeys + " keys)");
 
 		SaltedHashFreenetStore<T> fs = SaltedHashFreenetStore.<T>construct(getStoreDir(), type+"-"+store, cb,
-		        random, maxKeys, storeUseSlotFilters, shutdownHook, storePreallocate, storeSaltHashResizeOnStart && !lateStart, lateStart ? ticker : null, clientCacheMasterKey);
+		        random, maxKeys, storeUseSlotFilters, shutdownHook, storePreallocate, storeSaltHashResizeOnStart && !lateStart, lateStart ? ticker : null, clientCacheMasterKey,
+		        storeSaltHashMemoryMapped);
 		cb.setStore(fs);
 		if(cachingFreenetStoreMaxSize > 0)
 			return new CachingFreenetStore<T>(cb, fs, cachingFreenetStoreTracker);
@@ -3151,7 +3291,8 @@ public class Node implements TimeSkewDetectorCallback {
 		darknetCrypto.start();
 		if(opennet != null)
 			opennet.start();
-		ps.start(nodeStats);
+		for(PacketSender sender : packetSenders)
+			sender.start(nodeStats);
 		ticker.start();
 		scheduleVersionTransition();
 		usm.start(ticker);
@@ -4363,6 +4504,47 @@ public class Node implements TimeSkewDetectorCallback {
 		return ticker;
 	}
 
+	/** @return How late the ticker has been in starting jobs. */
+	public TickerLateness getTickerLateness() {
+		return ticker.getLateness();
+	}
+
+	/** @return The number of threads sending to peers, and receiving on each UDP socket. */
+	public int getPacketThreads() {
+		return packetThreads;
+	}
+
+	/** @return The PacketSender which sends packets to the peer. Every PacketSender looks after
+	 * its own peers, so they don't need to lock against each other. */
+	PacketSender getPacketSender(PeerNode pn) {
+		if(packetSenders.length == 1) return ps;
+		// The hash of the peer's public key, so the same peer always uses the same sender.
+		return packetSenders[(pn.hashCode() & Integer.MAX_VALUE) % packetSenders.length];
+	}
+
+	/** @return The number of send batches flushed, the number of packets sent in them, and the
+	 * number of system calls writing packets to the UDP sockets, since startup. */
+	public long[] getPacketSendStats() {
+		long[] result = new long[3];
+		for(PacketSender sender : packetSenders) {
+			result[0] += sender.batch.getFlushes();
+			result[1] += sender.batch.getPacketsFlushed();
+		}
+		for(UdpSocketHandler handler : getPacketSocketHandlers())
+			result[2] += handler.getSends();
+		return result;
+	}
+
+	/** @return Congestion control for a new connection to the peer. */
+	CongestionControl createCongestionControl(PeerNode pn) {
+		return congestionControl.create(pn.getThrottle());
+	}
+
+	/** @return True if UDP sockets should receive into direct buffers through a DatagramChannel. */
+	public boolean useNioUDP() {
+		return nioUDP;
+	}
+
 	public int getUnclaimedFIFOSize() {
 		return usm.getUnclaimedFIFOSize();
 	}
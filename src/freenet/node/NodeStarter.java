@@ -14,6 +14,7 @@ import java.util.UUID;
 
 import freenet.config.FreenetFilePersistentConfig;
 import freenet.config.InvalidConfigValueException;
+import freenet.config.NodeNeedRestartException;
 import freenet.config.PersistentConfig;
 import freenet.config.SubConfig;
 import freenet.crypt.JceLoader;
@@ -28,6 +29,9 @@ import freenet.support.LoggerHook.InvalidThresholdException;
 import freenet.support.PooledExecutor;
 import freenet.support.ProcessPriority;
 import freenet.support.SimpleFieldSet;
+import freenet.support.WorkStealingExecutor;
+import freenet.support.api.BooleanCallback;
+import freenet.support.api.IntCallback;
 import freenet.support.io.NativeThread;
 
 import static java.util.concurrent.TimeUnit.MINUTES;
@@ -56,6 +60,9 @@ public class NodeStarter implements WrapperListener {
 	}
 
 	private FreenetFilePersistentConfig cfg;
+	private boolean executorWorkStealing;
+	private int executorThreadsPerPriority;
+	private boolean executorVirtualThreads;
 
 	// experimental osgi support
 	private static NodeStarter nodestarter_osgi = null;
@@ -137,7 +144,8 @@ public class NodeStarter implements WrapperListener {
 		// First, set up logging. It is global, and may be shared between several nodes.
 		SubConfig loggingConfig = cfg.createSubConfig("logger");
 
-		PooledExecutor executor = new PooledExecutor();
+		SubConfig executorConfig = cfg.createSubConfig("executor");
+		Executor executor = createExecutor(executorConfig);
 
 		try {
 			System.out.println("Creating logger...");
@@ -149,7 +157,10 @@ public class NodeStarter implements WrapperListener {
 		}
 
 		System.out.println("Starting executor...");
-		executor.start();
+		if(executor instanceof WorkStealingExecutor)
+			((WorkStealingExecutor)executor).start();
+		else
+			((PooledExecutor)executor).start();
 
 		// Prevent timeouts for a while. The DiffieHellman init for example could take some time on a very slow system.
 		WrapperManager.signalStarting(500000);
@@ -203,6 +214,71 @@ public class NodeStarter implements WrapperListener {
 		return null;
 	}
 
+	private Executor createExecutor(SubConfig config) {
+		int sortOrder = 0;
+		config.register("workStealing", false, sortOrder++, true, false, "NodeStarter.executorWorkStealing",
+				"NodeStarter.executorWorkStealingLong", new BooleanCallback() {
+
+			@Override
+			public Boolean get() {
+				return executorWorkStealing;
+			}
+
+			@Override
+			public void set(Boolean val) throws InvalidConfigValueException, NodeNeedRestartException {
+				if(get().equals(val)) return;
+				executorWorkStealing = val;
+				throw new NodeNeedRestartException("Executor type cannot be changed on the fly");
+			}
+
+		});
+		executorWorkStealing = config.getBoolean("workStealing");
+		config.register("threadsPerPriority", 0, sortOrder++, true, false, "NodeStarter.executorThreadsPerPriority",
+				"NodeStarter.executorThreadsPerPriorityLong", new IntCallback() {
+
+			@Override
+			public Integer get() {
+				return executorThreadsPerPriority;
+			}
+
+			@Override
+			public void set(Integer val) throws InvalidConfigValueException, NodeNeedRestartException {
+				if(get().equals(val)) return;
+				if(val < 0) throw new InvalidConfigValueException("Must not be negative");
+				executorThreadsPerPriority = val;
+				throw new NodeNeedRestartException("Executor threads cannot be changed on the fly");
+			}
+
+		}, false);
+		executorThreadsPerPriority = config.getInt("threadsPerPriority");
+		config.register("virtualThreads", false, sortOrder++, true, false, "NodeStarter.executorVirtualThreads",
+				"NodeStarter.executorVirtualThreadsLong", new BooleanCallback() {
+
+			@Override
+			public Boolean get() {
+				return executorVirtualThreads;
+			}
+
+			@Override
+			public void set(Boolean val) throws InvalidConfigValueException, NodeNeedRestartException {
+				if(get().equals(val)) return;
+				executorVirtualThreads = val;
+				throw new NodeNeedRestartException("Executor type cannot be changed on the fly");
+			}
+
+		});
+		executorVirtualThreads = config.getBoolean("virtualThreads");
+		config.finishedInitialization();
+
+		if(!executorWorkStealing)
+			return new PooledExecutor();
+		int threads = executorThreadsPerPriority;
+		if(threads <= 0)
+			threads = WorkStealingExecutor.defaultMaxThreadsPerPriority();
+		System.out.println("Using work stealing executor with "+threads+" threads per priority");
+		return new WorkStealingExecutor(threads, executorVirtualThreads);
+	}
+
 	/**
 	 * Called when the application is shutting down.  The Wrapper assumes that
 	 *  this method will return fairly quickly.  If the shutdown code code
@@ -433,6 +509,12 @@ public class NodeStarter implements WrapperListener {
         public String ipAddressOverride;
         public boolean enableFCP;
         public boolean enablePlugins;
+        /** Number of threads sending packets, and receiving packets on each port. */
+        public int packetThreads = 1;
+        /** Receive packets through a DatagramChannel into direct buffers. */
+        public boolean nioUDP;
+        /** Congestion control for packets sent to each peer. */
+        public CongestionControl.Type congestionControl = CongestionControl.Type.THROTTLE;
     }
 
     /**
@@ -573,6 +655,9 @@ public class NodeStarter implements WrapperListener {
 		configFS.put("node.respondLocation", true);
 		configFS.put("node.respondStoreSize", true);
 		configFS.put("node.respondUptime", true);
+        configFS.put("node.packetThreads", params.packetThreads);
+        configFS.put("node.nioUDP", params.nioUDP);
+        configFS.putSingle("node.congestionControl", params.congestionControl.name());
 
 		PersistentConfig config = new PersistentConfig(configFS);
 
@@ -30,6 +30,7 @@ import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
 import freenet.support.SimpleFieldSet;
 import freenet.support.StringCounter;
+import freenet.support.TickerLateness;
 import freenet.support.TimeUtil;
 import freenet.support.api.BooleanCallback;
 import freenet.support.api.IntCallback;
@@ -243,6 +244,12 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 	private long last_output_stat;
 	private long last_io_stat_time;
 	private final Object ioStatSync = new Object();
+	private long[] last_packet_send_stats = new long[3];
+	/** System calls writing packets to the UDP sockets per second, over the last update
+	 * interval. LOCKING: ioStatSync */
+	private double packetSendsPerSecond;
+	/** Mean number of packets in each send batch over the last update interval. LOCKING: ioStatSync */
+	private double packetsPerSendBatch;
 	/** Next time to update the node I/O stats */
 	private long nextNodeIOStatsUpdateTime = -1;
 	/** Node I/O stats update interval (milliseconds) */
@@ -1878,6 +1885,7 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 	public void maybeUpdateNodeIOStats(long now) {
 		if(now > nextNodeIOStatsUpdateTime) {
 			long[] io_stats = node.collector.getTotalIO();
+			long[] send_stats = node.getPacketSendStats();
 			long outdiff;
 			long indiff;
 			synchronized(ioStatSync) {
@@ -1889,6 +1897,14 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 				last_io_stat_time = now;
 				outdiff = last_output_stat - previous_output_stat;
 				indiff = last_input_stat - previous_input_stat;
+				long flushes = send_stats[0] - last_packet_send_stats[0];
+				long batched = send_stats[1] - last_packet_send_stats[1];
+				long sends = send_stats[2] - last_packet_send_stats[2];
+				if(previous_io_stat_time > 0 && now > previous_io_stat_time)
+					packetSendsPerSecond = sends * 1000.0 / (now - previous_io_stat_time);
+				if(flushes > 0)
+					packetsPerSendBatch = (double) batched / flushes;
+				last_packet_send_stats = send_stats;
 			}
 			if(logMINOR)
 				Logger.minor(this, "Last 2 seconds: input: "+indiff+" output: "+outdiff);
@@ -1929,6 +1945,42 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 		return node.executor.waitingThreads();
 	}
 
+	public TickerLateness getTickerLateness() {
+		return node.getTickerLateness();
+	}
+
+	/** @return The number of received blocks waiting to be verified. */
+	public int getBlockVerifyQueueDepth() {
+		return node.blockVerifier.getQueueDepth();
+	}
+
+	/** @return The average time in milliseconds from a block being received to it being verified. */
+	public double getBlockVerifyLatency() {
+		return node.blockVerifier.getAverageLatency();
+	}
+
+	public double getMaxBlockVerifyLatency() {
+		return node.blockVerifier.getMaxLatency();
+	}
+
+	public long getBlocksVerified() {
+		return node.blockVerifier.getVerifiedCount();
+	}
+
+	/** @return The number of system calls writing packets to the UDP sockets per second. */
+	public double getPacketSendsPerSecond() {
+		synchronized(ioStatSync) {
+			return packetSendsPerSecond;
+		}
+	}
+
+	/** @return The mean number of packets the PacketSenders write to the socket at once. */
+	public double getPacketsPerSendBatch() {
+		synchronized(ioStatSync) {
+			return packetsPerSendBatch;
+		}
+	}
+
 	public int getThreadLimit() {
 		return threadLimit;
 	}
@@ -1985,6 +2037,11 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 		fs.put("backedOffPercent", backedOffPercent.currentValue());
 		fs.put("pInstantReject", pRejectIncomingInstantly());
 		fs.put("unclaimedFIFOSize", node.usm.getUnclaimedFIFOSize());
+		fs.put("blockVerifyQueueDepth", getBlockVerifyQueueDepth());
+		fs.put("blockVerifyLatency", getBlockVerifyLatency());
+		fs.put("blocksVerified", getBlocksVerified());
+		fs.put("packetSendsPerSecond", getPacketSendsPerSecond());
+		fs.put("packetsPerSendBatch", getPacketsPerSendBatch());
 		fs.put("RAMBucketPoolSize", node.clientCore.tempBucketFactory.getRamUsed());
 
 		/* gather connection statistics */
@@ -1,13 +1,22 @@
 package freenet.node;
 
+import java.nio.ByteBuffer;
 import java.util.List;
 
 import freenet.io.comm.Peer;
 
 public interface PacketFormat {
 
+	/** Handle a packet. If the packet is ours it may be decrypted in place, so the caller must not
+	 * use the buffer afterwards if this returns true. */
 	boolean handleReceivedPacket(byte[] buf, int offset, int length, long now, Peer replyTo);
 
+	/**
+	 * Handle a packet from position to limit of the buffer, which may be reused once this returns.
+	 * The position and limit are not changed, but the contents may be if the packet is ours.
+	 */
+	boolean handleReceivedPacket(ByteBuffer buf, long now, Peer replyTo);
+
 	/**
 	 * Maybe send something. A SINGLE PACKET. Don't send everything at once, for two reasons:
 	 * <ol>
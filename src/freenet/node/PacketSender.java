@@ -10,6 +10,7 @@ import static java.util.concurrent.TimeUnit.SECONDS;
 
 import java.util.ArrayList;
 
+import freenet.io.comm.SendBatch;
 import freenet.l10n.NodeL10n;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
@@ -61,22 +62,29 @@ public class PacketSender implements Runnable {
 	static final long MIN_OLD_OPENNET_CONNECT_DELAY = SECONDS.toMillis(60);
 	final NativeThread myThread;
 	final Node node;
+	/** Which of the node's PacketSenders this is. Each peer is sent to by exactly one of them,
+	 * see Node.getPacketSender(). The first also does the node-wide periodic jobs. */
+	final int shard;
 	NodeStats stats;
 	long lastReportedNoPackets;
 	long lastReceivedPacketFromAnyNode;
 	private MersenneTwister localRandom;
+	/** Packets sent by this thread are queued here and written to the socket together. */
+	final SendBatch batch = new SendBatch();
 
-	PacketSender(Node node) {
+	PacketSender(Node node, int shard, int shards) {
 		this.node = node;
-		myThread = new NativeThread(this, "PacketSender thread for " + node.getDarknetPortNumber(), NativeThread.MAX_PRIORITY, false);
+		this.shard = shard;
+		myThread = new NativeThread(this, "PacketSender thread for " + node.getDarknetPortNumber() +
+				(shards > 1 ? " (" + (shard + 1) + " of " + shards + ")" : ""), NativeThread.MAX_PRIORITY, false);
 		myThread.setDaemon(true);
 		localRandom = node.createRandom();
 	}
 
 	void start(NodeStats stats) {
 		this.stats = stats;
-		Logger.normal(this, "Starting PacketSender");
-		System.out.println("Starting PacketSender");
+		Logger.normal(this, "Starting PacketSender "+shard);
+		if(shard == 0) System.out.println("Starting PacketSender");
 		myThread.start();
 	}
 
@@ -114,7 +122,9 @@ public class PacketSender implements Runnable {
 		if(logMINOR) Logger.minor(this, "In PacketSender.run()");
 		freenet.support.Logger.OSThread.logPID(this);
 
-                schedulePeriodicJob();
+		if(shard == 0)
+			schedulePeriodicJob();
+		batch.start();
 		/*
 		 * Index of the point in the nodes list at which we sent a packet and then
 		 * ran out of bandwidth. We start the loop from here next time.
@@ -193,15 +203,20 @@ public class PacketSender implements Runnable {
 		ArrayList<PeerNode> handshakePeers = null;
 
 		for(PeerNode pn: nodes) {
+			// For purposes of detecting not having received anything, which indicates a 
+			// serious connectivity problem, we want to look for *any* packets received, 
+			// including auth packets.
+			if(shard == 0)
+				lastReceivedPacketFromAnyNode =
+					Math.max(pn.lastReceivedPacketTime(), lastReceivedPacketFromAnyNode);
+
+			// Another PacketSender looks after this peer.
+			if(node.getPacketSender(pn) != this) continue;
+
 			now = System.currentTimeMillis();
 			
 			// Basic peer maintenance.
 			
-			// For purposes of detecting not having received anything, which indicates a 
-			// serious connectivity problem, we want to look for *any* packets received, 
-			// including auth packets.
-			lastReceivedPacketFromAnyNode =
-				Math.max(pn.lastReceivedPacketTime(), lastReceivedPacketFromAnyNode);
 			pn.maybeOnConnect();
 			if(pn.shouldDisconnectAndRemoveNow() && !pn.isDisconnecting()) {
 				// Might as well do it properly.
@@ -410,7 +425,7 @@ public class PacketSender implements Runnable {
 		 * Well worth it to allow us to reconnect more quickly. */
 
 		OpennetManager om = node.getOpennet();
-		if(om != null && node.getUptime() > SECONDS.toMillis(30)) {
+		if(shard == 0 && om != null && node.getUptime() > SECONDS.toMillis(30)) {
 			OpennetPeerNode[] peers = om.getOldPeers();
 
 			for(OpennetPeerNode pn : peers) {
@@ -453,13 +468,15 @@ public class PacketSender implements Runnable {
 		// MAX_COALESCING_DELAYms maximum sleep time - same as the maximum coalescing delay
 		sleepTime = Math.min(sleepTime, MAX_COALESCING_DELAY);
 
-		if(now - node.startupTime > MINUTES.toMillis(5))
+		if(shard == 0 && now - node.startupTime > MINUTES.toMillis(5))
 			if(now - lastReceivedPacketFromAnyNode > Node.ALARM_TIME) {
 				Logger.error(this, "Have not received any packets from any node in last " + SECONDS.convert(Node.ALARM_TIME, MILLISECONDS) + " seconds");
 				lastReportedNoPackets = now;
 			}
 
 		if(sleepTime > 0) {
+			// Don't hold anything back while we sleep.
+			batch.flush();
 			// Update logging only when have time to do so
 			try {
 				if(logMINOR)
@@ -474,6 +491,7 @@ public class PacketSender implements Runnable {
 		} else {
 			if(logDEBUG)
 				Logger.debug(this, "Next urgent time is "+(now - nextActionTime)+"ms in the past");
+			batch.flushIfDue();
 		}
 	}
 
@@ -66,6 +66,8 @@ public class PeerManager {
 	private PeerNode[] myPeers;
 	/** All the peers we are actually connected to */
 	private PeerNode[] connectedPeers;
+	/** connectedPeers sorted by location, for routing */
+	private final RoutingIndex routingIndex = new RoutingIndex();
 	private String darkFilename;
         private String openFilename;
         private String oldOpennetPeersFilename;
@@ -871,6 +873,39 @@ public class PeerManager {
 		}
 	}
 
+	/** The sum of the selection rates of a connected peers array at some time. */
+	private static final class SelectionRateTotal {
+		final PeerNode[] peers;
+		final long time;
+		final double total;
+
+		SelectionRateTotal(PeerNode[] peers, long time, double total) {
+			this.peers = peers;
+			this.time = time;
+			this.total = total;
+		}
+	}
+
+	private volatile SelectionRateTotal selectionRateTotal;
+	/** Selection rates change slowly, so closerPeer() needn't look at every peer every time. */
+	private static final long SELECTION_RATE_TOTAL_CACHE_TIME = SECONDS.toMillis(1);
+
+	private double totalSelectionRate(PeerNode[] peers, long now) {
+		SelectionRateTotal cached = selectionRateTotal;
+		if(cached != null && cached.peers == peers && now >= cached.time && now - cached.time < SELECTION_RATE_TOTAL_CACHE_TIME)
+			return cached.total;
+		double total = 0.0;
+		for(PeerNode p : peers)
+			total += p.selectionRate();
+		selectionRateTotal = new SelectionRateTotal(peers, now, total);
+		return total;
+	}
+
+	/** Called when a peer's location, or the locations of its peers, have changed. */
+	void peerLocationChanged(PeerNode pn) {
+		routingIndex.locationChanged(pn);
+	}
+
 	public PeerNode getRandomPeer() {
 		return getRandomPeer(null);
 	}
@@ -910,6 +945,7 @@ public class PeerManager {
 		long soonestTimeoutWakeup = Long.MAX_VALUE;
 		
 		PeerNode[] peers = connectedPeers();
+		RoutingIndex.Snapshot index = routingIndex.get(peers);
 		if(!node.enablePerNodeFailureTables)
 			key = null;
 		if(logMINOR)
@@ -958,12 +994,7 @@ public class PeerManager {
 		if(key != null)
 			entry = node.failureTable.getTimedOutNodesList(key);
 		
-		double[] selectionRates = new double[peers.length];
-		double totalSelectionRate = 0.0;
-		for(int i=0;i<peers.length;i++) {
-			selectionRates[i] = peers[i].selectionRate();
-			totalSelectionRate += selectionRates[i];
-		}
+		double totalSelectionRate = totalSelectionRate(peers, now);
 		boolean enableFOAFMitigationHack = (peers.length >= PeerNode.SELECTION_MIN_PEERS) && (totalSelectionRate > 0.0);
 
 		// Locations not to consider for routing: our own location, and locations already routed to
@@ -974,8 +1005,22 @@ public class PeerManager {
 			excludeLocations.add(routedToNode.getLocation());
 		}
 
-		for(int i = 0; i < peers.length; i++) {
+		// Visit peers in order of the closest they could be to the target, so we can stop once
+		// nothing further away can change the result. We can't stop early if we need to count the
+		// peers waiting for a RecentlyFailed timeout, or to record every location we didn't pick.
+		boolean visitAll = recentlyFailed != null && entry != null && !ignoreTimeout;
+		double stopBeyond = Math.min(maxDistance, maxDiff);
+		RoutingIndex.Cursor cursor = index.byDistanceFrom(target);
+		int i;
+		while((i = cursor.next()) >= 0) {
 			PeerNode p = peers[i];
+			if(!visitAll) {
+				double minDiff = cursor.distance();
+				if(minDiff > stopBeyond)
+					break;
+				if(addUnpickedLocsTo == null && closestNotBackedOff != null && minDiff > closestNotBackedOffDistance)
+					break;
+			}
 			if(routedTo.contains(p)) {
 				if(logMINOR)
 					Logger.minor(this, "Skipping (already routed to): " + p.getPeer());
@@ -1007,7 +1052,7 @@ public class PeerManager {
 				continue;
 			}
 			if(enableFOAFMitigationHack) {
-				double selectionPercentage = 100.0 * selectionRates[i] / totalSelectionRate;
+				double selectionPercentage = 100.0 * p.selectionRate() / totalSelectionRate;
 				if(selectionPercentage > PeerNode.SELECTION_PERCENTAGE_WARNING) {
 					if(logMINOR)
 						Logger.minor(this, "Skipping over-selected peer(" + selectionPercentage + "%): " + p.getPeer());
@@ -1154,7 +1199,8 @@ public class PeerManager {
 		
 		if(recentlyFailed != null && logMINOR)
 			Logger.minor(this, "Count waiting: "+countWaiting);
-		int maxCountWaiting = maxCountWaiting(peers);
+		// Counting connected peers means looking at all of them, so don't unless we might need it.
+		int maxCountWaiting = (recentlyFailed == null || countWaiting == 0) ? Integer.MAX_VALUE : maxCountWaiting(peers);
 		if(recentlyFailed != null && countWaiting >= maxCountWaiting && 
 				node.enableULPRDataPropagation /* dangerous to do RecentlyFailed if we won't track/propagate offers */) {
 			// Recently failed is possible.
@@ -1,10 +1,13 @@
 package freenet.node;
 
+import java.util.ArrayDeque;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.ListIterator;
 import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 import freenet.io.comm.DMT;
 import freenet.support.DoublyLinkedList;
@@ -17,6 +20,10 @@ import freenet.support.MutableBoolean;
 /**
  * Queue of messages to send to a node. Ordered first by priority then by time.
  * Will soon be round-robin between different transfers/UIDs/clients too.
+ * 
+ * Threads queueing messages don't take the lock: they add to a lock-free queue for each
+ * priority, which is drained in a batch by whoever next takes the lock to send messages (the
+ * PacketSender), so request threads never wait for the sender and vice versa.
  * @author Matthew Toseland <toad@amphibian.dyndns.org> (0xE43DA450)
  */
 public class PeerMessageQueue {
@@ -35,6 +42,11 @@ public class PeerMessageQueue {
 	}
 
 	private final PrioQueue[] queuesByPriority;
+	/** Messages queued but not yet added to queuesByPriority, by priority. Any thread may add to
+	 * these, they are only drained with the lock held. */
+	private final ConcurrentLinkedQueue<MessageItem>[] incoming;
+	/** Total length of all queued messages, including those in incoming, plus 2 bytes each. */
+	private final AtomicLong queuedBytes = new AtomicLong();
 	
 	private boolean mustSendLoadRT;
 	private boolean mustSendLoadBulk;
@@ -55,11 +67,11 @@ public class PeerMessageQueue {
 		
 		private class Items extends DoublyLinkedListImpl.Item<Items> {
 			/** List of messages to send. Stuff to send first is at the beginning. */
-			final LinkedList<MessageItem> items;
+			final ArrayDeque<MessageItem> items;
 			final long id;
 			long timeLastSent;
 			Items(long id, long initialTimeLastSent) {
-				items = new LinkedList<MessageItem>();
+				items = new ArrayDeque<MessageItem>();
 				this.id = id;
 				timeLastSent = initialTimeLastSent;
 			}
@@ -97,6 +109,9 @@ public class PeerMessageQueue {
 		/** Non-urgent messages. Same order as in Items, so stuff to send first is at
 		 * the beginning. */
 		LinkedList<MessageItem> itemsNonUrgent;
+		/** moveToUrgent() won't move anything before this time. Only moves earlier when a
+		 * message is added. */
+		long nextMoveToUrgent = Long.MAX_VALUE;
 		// Construct structures lazily, we're protected by the overall synchronized.
 
 		/** Add a new message. For a normal priority level, we just add it to the end of the list.
@@ -129,6 +144,8 @@ public class PeerMessageQueue {
 		private void addToNonUrgent(MessageItem item) {
 			if(itemsNonUrgent == null)
 				itemsNonUrgent = new LinkedList<MessageItem>();
+			if(roundRobinBetweenUIDs)
+				nextMoveToUrgent = Math.min(nextMoveToUrgent, moveToUrgentTime(item));
 			ListIterator<MessageItem> it = itemsNonUrgent.listIterator(itemsNonUrgent.size());
 			// MessageItem's can be created out of order, so the timestamps may not be consistent.
 			// CONCURRENCY: This is not a problem in addNonUrgentMessages() because it is always called from one thread.
@@ -148,9 +165,24 @@ public class PeerMessageQueue {
 			}
 		}
 
+		/** @return The time at which moveToUrgent() will move a non-urgent message. */
+		private long moveToUrgentTime(MessageItem item) {
+			long t = item.submitted + timeout;
+			if(itemsByID != null) {
+				Items list = itemsByID.get(item.getID());
+				if(list != null)
+					t = Math.min(t, list.timeLastSent + timeout);
+			}
+			return t;
+		}
+
 		private void moveToUrgent(long now) {
 			if(logMINOR) checkOrder();
 			if(itemsNonUrgent == null) return;
+			// Sending only ever makes timeLastSent later, so we only need to look at the
+			// non-urgent messages again when one of them may have become urgent.
+			if(now < nextMoveToUrgent) return;
+			long next = Long.MAX_VALUE;
 			ListIterator<MessageItem> it = itemsNonUrgent.listIterator();
 			int moved = 0;
 			while(it.hasNext()) {
@@ -178,6 +210,8 @@ public class PeerMessageQueue {
 						list = new Items(id, item.submitted);
 						addToNonEmptyForward(list);
 						itemsByID.put(id, list);
+						// Messages we have already passed with the same ID may now be urgent.
+						next = now;
 						if(logMINOR) checkOrder();
 					} else {
 						if(list == null) {
@@ -186,6 +220,7 @@ public class PeerMessageQueue {
 								nonEmptyItemsWithID = new DoublyLinkedListImpl<Items>();
 							addToNonEmptyForward(list);
 							itemsByID.put(id, list);
+							next = now;
 							if(logMINOR) checkOrder();
 						} else {
 							if(list.items.isEmpty()) {
@@ -210,7 +245,10 @@ public class PeerMessageQueue {
 					if(logMINOR) checkOrder();
 				} else if(!roundRobinBetweenUIDs)
 					break;
+				else
+					next = Math.min(next, moveToUrgentTime(item));
 			}
+			nextMoveToUrgent = next;
 			if(logDEBUG && moved > 0)
 				Logger.debug(this, "Moved "+moved+" items to urgent round-robin");
 			if(logMINOR) checkOrder();
@@ -287,6 +325,8 @@ public class PeerMessageQueue {
 				return;
 			}
 			if(logMINOR) checkOrder();
+			// May create a tracker with no send time, making non-urgent messages urgent.
+			nextMoveToUrgent = Long.MIN_VALUE;
 			long id = item.getID();
 			Items list;
 			if(itemsByID == null) {
@@ -652,6 +692,7 @@ public class PeerMessageQueue {
 			nonEmptyItemsWithID = null;
 			itemsByID = null;
 			itemsNonUrgent = null;
+			nextMoveToUrgent = Long.MAX_VALUE;
 			if(logMINOR) checkOrder();
 		}
 
@@ -711,6 +752,12 @@ public class PeerMessageQueue {
 	}
 
 	PeerMessageQueue() {
+		@SuppressWarnings("unchecked")
+		ConcurrentLinkedQueue<MessageItem>[] queues =
+			(ConcurrentLinkedQueue<MessageItem>[]) new ConcurrentLinkedQueue<?>[DMT.NUM_PRIORITIES];
+		incoming = queues;
+		for(int i=0;i<incoming.length;i++)
+			incoming[i] = new ConcurrentLinkedQueue<MessageItem>();
 		queuesByPriority = new PrioQueue[DMT.NUM_PRIORITIES];
 		for(int i=0;i<queuesByPriority.length;i++) {
 			if(i == DMT.PRIORITY_BULK_DATA)
@@ -728,46 +775,35 @@ public class PeerMessageQueue {
 	/**
 	 * Queue a <code>MessageItem</code> and return an estimate of the size of
 	 * this queue. The value returned is the estimated number of bytes
-	 * needed for sending the all messages in this queue. Note that if the
-	 * returned estimate is higher than 1024, it might not cover all messages.
+	 * needed for sending the all messages in this queue. Does not block: the
+	 * message will be added to the queue proper by the next thread to send.
 	 * @param item the <code>MessageItem</code> to queue
 	 * @return an estimate of the size of this queue
 	 */
-	public synchronized int queueAndEstimateSize(MessageItem item, int maxSize) {
-		enqueuePrioritizedMessageItem(item);
-		int x = 0;
-		for(PrioQueue pq : queuesByPriority) {
-			if(pq.itemsNonUrgent != null) {
-				for(MessageItem it : pq.itemsNonUrgent) {
-					x += it.getLength() + 2;
-					if(x > maxSize)
-						break;
-				}
-			}
-			if(pq.nonEmptyItemsWithID != null) {
-				for(PrioQueue.Items q : pq.nonEmptyItemsWithID)
-					for(MessageItem it : q.items) {
-						x += it.getLength() + 2;
-						if(x > maxSize)
-							break;
-					}
-			}
-		}
-		return x;
+	public int queueAndEstimateSize(MessageItem item, int maxSize) {
+		// Count it first so the total doesn't go negative if it is sent straight away.
+		long x = queuedBytes.addAndGet(item.getLength() + 2);
+		incoming[item.getPriority()].add(item);
+		return (int) Math.min(x, Integer.MAX_VALUE);
 	}
 
-	public synchronized long getMessageQueueLengthBytes() {
-		long x = 0;
-		for(PrioQueue pq : queuesByPriority) {
-			if(pq.nonEmptyItemsWithID != null)
-				for(PrioQueue.Items q : pq.nonEmptyItemsWithID)
-					for(MessageItem it : q.items)
-						x += it.getLength() + 2;
+	/** Add the messages queued since we last looked to the priority queues.
+	 * LOCKING: Caller must synchronize on this. */
+	private void drainIncoming() {
+		for(ConcurrentLinkedQueue<MessageItem> queue : incoming) {
+			MessageItem item;
+			while((item = queue.poll()) != null)
+				enqueuePrioritizedMessageItem(item);
 		}
-		return x;
 	}
 
-	private synchronized void enqueuePrioritizedMessageItem(MessageItem addMe) {
+	/** @return The total length of the queued messages, including any not yet drained from
+	 * incoming, plus 2 bytes each. */
+	public long getMessageQueueLengthBytes() {
+		return queuedBytes.get();
+	}
+
+	private void enqueuePrioritizedMessageItem(MessageItem addMe) {
 		//Assume it goes on the end, both the common case
 		short prio = addMe.getPriority();
 		queuesByPriority[prio].addLast(addMe);
@@ -785,6 +821,7 @@ public class PeerMessageQueue {
 	 */
 	synchronized void pushfrontPrioritizedMessageItem(MessageItem addMe) {
 		//Assume it goes on the front
+		queuedBytes.addAndGet(addMe.getLength() + 2);
 		short prio = addMe.getPriority();
 		queuesByPriority[prio].addFirst(addMe);
 		if(addMe.sendLoadRT)
@@ -794,6 +831,7 @@ public class PeerMessageQueue {
 	}
 
 	public synchronized MessageItem[] grabQueuedMessageItems() {
+		drainIncoming();
 		int size = 0;
 		for(PrioQueue queue : queuesByPriority)
 			size += queue.size();
@@ -803,6 +841,8 @@ public class PeerMessageQueue {
 			ptr = queue.addTo(output, ptr);
 			queue.clear();
 		}
+		for(MessageItem item : output)
+			queuedBytes.addAndGet(-(item.getLength() + 2));
 		return output;
 	}
 
@@ -818,6 +858,7 @@ public class PeerMessageQueue {
 	 * @return The next urgent time, but can be too high if it is less than now.
 	 */
 	public synchronized long getNextUrgentTime(long t, long returnIfBefore) {
+		drainIncoming();
 		for(PrioQueue queue: queuesByPriority) {
 			t = Math.min(t, queue.getNextUrgentTime(t, returnIfBefore));
 			if(t <= returnIfBefore) return t; // How much in the past doesn't matter, as long as it's in the past.
@@ -845,6 +886,7 @@ public class PeerMessageQueue {
 	 * messages in this queue is greater than <code>maxSize</code>
 	 */
 	public synchronized boolean mustSendSize(int minSize, int maxSize) {
+		drainIncoming();
 		int length = minSize;
 		for(PrioQueue items : queuesByPriority) {
 			length = items.addSize(length, maxSize);
@@ -858,6 +900,14 @@ public class PeerMessageQueue {
 	 * not to call this function if you are not going to be able to send the message: 
 	 * check in advance if possible. */
 	public synchronized MessageItem grabQueuedMessageItem(int minPriority) {
+		drainIncoming();
+		MessageItem item = grabPrioritizedMessageItem(minPriority);
+		if(item != null)
+			queuedBytes.addAndGet(-(item.getLength() + 2));
+		return item;
+	}
+
+	private MessageItem grabPrioritizedMessageItem(int minPriority) {
 		long now = System.currentTimeMillis();
 		
 		MutableBoolean addPeerLoadStatsRT = new MutableBoolean();
@@ -922,8 +972,10 @@ public class PeerMessageQueue {
 	public boolean removeMessage(MessageItem message) {
 		synchronized(this) {
 			short prio = message.getPriority();
-			if(!queuesByPriority[prio].removeMessage(message)) return false;
+			// Nobody else drains incoming, so it must be in one or the other if it is queued.
+			if(!incoming[prio].remove(message) && !queuesByPriority[prio].removeMessage(message)) return false;
 		}
+		queuedBytes.addAndGet(-(message.getLength() + 2));
 		message.onFailed();
 		return true;
 	}
@@ -10,6 +10,7 @@ import java.lang.ref.WeakReference;
 import java.net.InetAddress;
 import java.net.MalformedURLException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.security.interfaces.ECPublicKey;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -553,11 +554,11 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 				"\nFor:       " + getPeer());
 
 		try {
-			incomingSetupCipher = new Rijndael(256, 256);
+			incomingSetupCipher = Rijndael.create(256, 256);
 			incomingSetupCipher.initialize(incomingSetupKey);
-			outgoingSetupCipher = new Rijndael(256, 256);
+			outgoingSetupCipher = Rijndael.create(256, 256);
 			outgoingSetupCipher.initialize(outgoingSetupKey);
-			anonymousInitiatorSetupCipher = new Rijndael(256, 256);
+			anonymousInitiatorSetupCipher = Rijndael.create(256, 256);
 			anonymousInitiatorSetupCipher.initialize(identityHash);
 		} catch(UnsupportedCipherException e1) {
 			Logger.error(this, "Caught: " + e1);
@@ -1103,7 +1104,7 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 	@Override
 	public void wakeUpSender() {
 		if(logMINOR) Logger.minor(this, "Waking up PacketSender");
-		node.ps.wakeUp();
+		node.getPacketSender(this).wakeUp();
 	}
 
 	@Override
@@ -1745,8 +1746,10 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 	public void updateLocation(double newLoc, double[] newLocs) {
 		boolean anythingChanged = location.updateLocation(newLoc, newLocs);
 		node.peers.updatePMUserAlert();
-		if(anythingChanged)
+		if(anythingChanged) {
+		    node.peers.peerLocationChanged(this);
 		    writePeers();
+		}
 		setPeerNodeStatus(System.currentTimeMillis());
 	}
 
@@ -2127,7 +2130,7 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 				Logger.error(this, "previousTracker key equals unverifiedTracker key: prev "+previousTracker+" unv "+unverifiedTracker);
 			timeLastSentPacket = now;
 			if(packetFormat == null) {
-				packetFormat = new NewPacketFormat(this, ourInitialMsgID, theirInitialMsgID);
+				packetFormat = new NewPacketFormat(this, ourInitialMsgID, theirInitialMsgID, node.createCongestionControl(this));
 			}
 			// Completed setup counts as received data packet, for purposes of avoiding spurious disconnections.
 			timeLastReceivedPacket = now;
@@ -2526,6 +2529,7 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 					if(!Location.isValid(oldLoc))
 						shouldUpdatePeerCounts = true;
 					changedAnything = true;
+					node.peers.peerLocationChanged(this);
 				}
 			}
 		}
@@ -5367,6 +5371,15 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 		return pf.handleReceivedPacket(buf, offset, length, now, replyTo);
 	}
 
+	public boolean handleReceivedPacket(ByteBuffer buf, long now, Peer replyTo) {
+		PacketFormat pf;
+		synchronized(this) {
+			pf = packetFormat;
+			if(pf == null) return false;
+		}
+		return pf.handleReceivedPacket(buf, now, replyTo);
+	}
+
 	public void checkForLostPackets() {
 		PacketFormat pf;
 		synchronized(this) {
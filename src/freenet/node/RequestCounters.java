@@ -0,0 +1,239 @@
+package freenet.node;
+
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import freenet.node.RequestTracker.CountedRequests;
+
+/**
+ * Running totals for one of the {@link RequestTracker}'s maps of running requests, so that
+ * deciding whether to accept a request doesn't mean going through every running request, once
+ * for every kind of request and every peer it needs to know about.
+ *
+ * The totals depend on parameters which change over time (ignoreLocalVsRemote and the average
+ * number of transfers per insert), so we keep the transfers for both values of
+ * ignoreLocalVsRemote, and separate the part of the outgoing transfers which is per insert. This
+ * relies on expectedTransfersIn() not depending on the number of transfers per insert, and
+ * expectedTransfersOut() being linear in it.
+ *
+ * A tag tells us when its state changes by calling {@link #changed(UIDTag)}, which doesn't
+ * lock anything so can be called with the tag locked. We recompute the changed tags' contributions
+ * the next time the totals are needed.
+ *
+ * LOCKING: Everything except changed() must be called with the (overall) map locked.
+ */
+final class RequestCounters {
+
+	/** If false, there is no separate map for local requests, so counting "local" requests
+	 * counts everything in the overall map. This is the case for offer replies. */
+	private final boolean separateLocalMap;
+
+	/** Totals for a set of tags. Transfers are indexed by ignoreLocalVsRemote ? 1 : 0. */
+	static final class Sums {
+		int count;
+		final int[] in = new int[2];
+		final int[] outFixed = new int[2];
+		final int[] outPerInsert = new int[2];
+
+		void add(Transfers t, int sign) {
+			count += sign;
+			for(int i = 0; i < 2; i++) {
+				in[i] += sign * t.in[i];
+				outFixed[i] += sign * t.outFixed[i];
+				outPerInsert[i] += sign * t.outPerInsert[i];
+			}
+		}
+
+		void addTo(CountedRequests counter, boolean ignoreLocalVsRemote, int transfersPerInsert) {
+			int i = ignoreLocalVsRemote ? 1 : 0;
+			counter.add(count, in[i], outFixed[i] + outPerInsert[i] * transfersPerInsert);
+		}
+	}
+
+	/** Expected transfers for one tag. */
+	static final class Transfers {
+		final int[] in = new int[2];
+		final int[] outFixed = new int[2];
+		final int[] outPerInsert = new int[2];
+
+		Transfers(UIDTag tag, boolean forAccept) {
+			for(int i = 0; i < 2; i++) {
+				boolean ignoreLocalVsRemote = i == 1;
+				in[i] = tag.expectedTransfersIn(ignoreLocalVsRemote, 0, forAccept);
+				outFixed[i] = tag.expectedTransfersOut(ignoreLocalVsRemote, 0, forAccept);
+				outPerInsert[i] = tag.expectedTransfersOut(ignoreLocalVsRemote, 1, forAccept) - outFixed[i];
+			}
+		}
+	}
+
+	/** What a tag added to the totals, the last time we looked at it. */
+	static final class Contribution {
+		final boolean local;
+		/** PeerNode.myRef for the source, so we don't keep the PeerNode alive. */
+		final WeakReference<PeerNode> source;
+		final boolean sourceRestarted;
+		/** Transfers if we are deciding whether to accept a request */
+		final Transfers accept;
+		/** Peers we are routing to or fetching an offered key from */
+		final PeerNode[] routingTo;
+		/** Transfers if we are deciding whether to send a request */
+		final Transfers send;
+
+		Contribution(UIDTag tag) {
+			local = tag.wasLocal();
+			source = tag.getSourceRef();
+			sourceRestarted = tag.countAsSourceRestarted();
+			accept = new Transfers(tag, true);
+			routingTo = tag.currentlyRoutingOrFetchingFrom();
+			send = routingTo.length == 0 ? null : new Transfers(tag, false);
+		}
+	}
+
+	/** Totals for all tags, and those whose source restarted, indexed by local ? 1 : 0. */
+	private final Sums[] all = new Sums[] { new Sums(), new Sums() };
+	private final Sums[] sourceRestarted = new Sums[] { new Sums(), new Sums() };
+	/** Totals for remote tags by source: all, and source restarted. Reassigned tags are under
+	 * null. */
+	private final Map<WeakReference<PeerNode>, Sums[]> bySource = new HashMap<WeakReference<PeerNode>, Sums[]>();
+	/** Totals for tags by the peers they are routing to, indexed by local ? 1 : 0. */
+	private final Map<PeerNode, Sums>[] byRoutingTo;
+	private final ConcurrentLinkedQueue<UIDTag> changed = new ConcurrentLinkedQueue<UIDTag>();
+
+	RequestCounters(boolean separateLocalMap) {
+		this.separateLocalMap = separateLocalMap;
+		@SuppressWarnings("unchecked")
+		Map<PeerNode, Sums>[] maps = (Map<PeerNode, Sums>[]) new Map<?, ?>[] {
+				new HashMap<PeerNode, Sums>(), new HashMap<PeerNode, Sums>() };
+		byRoutingTo = maps;
+	}
+
+	/** A tag has been added to the map. */
+	void add(UIDTag tag) {
+		if(tag.counted != null) return;
+		tag.clearCountersChanged();
+		tag.counted = new Contribution(tag);
+		apply(tag.counted, 1);
+	}
+
+	/** A tag has been removed from the map. */
+	void remove(UIDTag tag) {
+		if(tag.counted == null) return;
+		apply(tag.counted, -1);
+		tag.counted = null;
+	}
+
+	/** The state of a tag has changed. Need not be called with the map locked. */
+	void changed(UIDTag tag) {
+		changed.add(tag);
+	}
+
+	/** Recompute the contributions of tags whose state has changed. */
+	private void update() {
+		UIDTag tag;
+		while((tag = changed.poll()) != null) {
+			// Clear first, so we don't miss a change made while we are looking.
+			tag.clearCountersChanged();
+			if(tag.counted == null) continue; // Not running.
+			apply(tag.counted, -1);
+			tag.counted = new Contribution(tag);
+			apply(tag.counted, 1);
+		}
+	}
+
+	private void apply(Contribution c, int sign) {
+		int l = c.local ? 1 : 0;
+		all[l].add(c.accept, sign);
+		if(c.sourceRestarted)
+			sourceRestarted[l].add(c.accept, sign);
+		if(!c.local) {
+			Sums[] s = bySource.get(c.source);
+			if(s == null) {
+				s = new Sums[] { new Sums(), new Sums() };
+				bySource.put(c.source, s);
+			}
+			s[0].add(c.accept, sign);
+			if(c.sourceRestarted)
+				s[1].add(c.accept, sign);
+			if(s[0].count == 0)
+				bySource.remove(c.source);
+		}
+		for(PeerNode pn : c.routingTo) {
+			Sums s = byRoutingTo[l].get(pn);
+			if(s == null) {
+				s = new Sums();
+				byRoutingTo[l].put(pn, s);
+			}
+			s.add(c.send, sign);
+			if(s.count == 0)
+				byRoutingTo[l].remove(pn);
+		}
+	}
+
+	/** @see RequestTracker#countRequests(boolean, boolean, boolean, boolean, boolean, int, boolean, CountedRequests, CountedRequests) */
+	void count(boolean local, boolean ignoreLocalVsRemote, int transfersPerInsert, CountedRequests counter, CountedRequests counterSR) {
+		update();
+		if(local && !separateLocalMap) {
+			count(false, ignoreLocalVsRemote, transfersPerInsert, counter, counterSR);
+		}
+		int l = local ? 1 : 0;
+		all[l].addTo(counter, ignoreLocalVsRemote, transfersPerInsert);
+		if(counterSR != null)
+			sourceRestarted[l].addTo(counterSR, ignoreLocalVsRemote, transfersPerInsert);
+	}
+
+	/** Count requests from a peer. */
+	void countFrom(PeerNode source, boolean local, boolean ignoreLocalVsRemote, int transfersPerInsert, CountedRequests counter, CountedRequests counterSR) {
+		update();
+		if(local) {
+			if(source != null) return;
+			// Local requests never have a source.
+			all[1].addTo(counter, ignoreLocalVsRemote, transfersPerInsert);
+			if(counterSR != null)
+				sourceRestarted[1].addTo(counterSR, ignoreLocalVsRemote, transfersPerInsert);
+			if(separateLocalMap) return;
+			// Also count remote requests which have been reassigned to us.
+		}
+		Sums[] s = bySource.get(source == null ? null : source.myRef);
+		if(s == null) return;
+		s[0].addTo(counter, ignoreLocalVsRemote, transfersPerInsert);
+		if(counterSR != null)
+			s[1].addTo(counterSR, ignoreLocalVsRemote, transfersPerInsert);
+	}
+
+	/** Count requests routed to a peer. */
+	void countTo(PeerNode peer, boolean local, boolean ignoreLocalVsRemote, int transfersPerInsert, CountedRequests counter) {
+		update();
+		if(local && !separateLocalMap)
+			countTo(peer, false, ignoreLocalVsRemote, transfersPerInsert, counter);
+		Sums s = byRoutingTo[local ? 1 : 0].get(peer);
+		if(s != null)
+			s.addTo(counter, ignoreLocalVsRemote, transfersPerInsert);
+	}
+
+	/** Count requests by the peer they came from, which is null for local requests. */
+	void countAllBySource(boolean local, boolean ignoreLocalVsRemote, int transfersPerInsert, Map<PeerNode, CountedRequests> counterMap) {
+		update();
+		if(local) {
+			if(all[1].count > 0)
+				all[1].addTo(counter(counterMap, null), ignoreLocalVsRemote, transfersPerInsert);
+			if(separateLocalMap) return;
+		}
+		for(Map.Entry<WeakReference<PeerNode>, Sums[]> entry : bySource.entrySet()) {
+			WeakReference<PeerNode> ref = entry.getKey();
+			PeerNode pn = ref == null ? null : ref.get();
+			entry.getValue()[0].addTo(counter(counterMap, pn), ignoreLocalVsRemote, transfersPerInsert);
+		}
+	}
+
+	private static CountedRequests counter(Map<PeerNode, CountedRequests> counterMap, PeerNode pn) {
+		CountedRequests counter = counterMap.get(pn);
+		if(counter == null) {
+			counter = new CountedRequests();
+			counterMap.put(pn, counter);
+		}
+		return counter;
+	}
+
+}
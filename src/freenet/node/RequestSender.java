@@ -27,6 +27,7 @@ import freenet.io.xfer.BlockReceiver.BlockReceiverTimeoutHandler;
 import freenet.io.xfer.PartiallyReceivedBlock;
 import freenet.keys.CHKBlock;
 import freenet.keys.Key;
+import freenet.keys.KeyBlock;
 import freenet.keys.KeyVerifyException;
 import freenet.keys.NodeCHK;
 import freenet.keys.NodeSSK;
@@ -854,28 +855,52 @@ public final class RequestSender extends BaseSender implements PrioRunnable {
         					transferringFrom = null;
         				}
         				origTag.senderTransferEnds((NodeCHK)key, RequestSender.this);
-                		try {
-	                		// Received data
-	               			pn.transferSuccess(realTimeFlag);
-	                		if(logMINOR) Logger.minor(this, "Received data from offer reply");
-                			verifyAndCommit(finalHeaders, data);
-	                		finish(SUCCESS, pn, true);
-	                		node.nodeStats.successfulBlockReceive(realTimeFlag, source == null);
-                		} catch (KeyVerifyException e1) {
-                			Logger.normal(this, "Got data but verify failed: "+e1, e1);
-                			if(offers != null) {
-                				finish(GET_OFFER_VERIFY_FAILURE, pn, true);
-                				offers.deleteLastOffer();
-                			}
-                		} catch (Throwable t) {
-                			Logger.error(this, "Failed on "+this, t);
-                			if(offers != null) {
-                				finish(INTERNAL_ERROR, pn, true);
-                			}
-                		} finally {
-                			// This is only necessary here because we don't always call finish().
-                			pn.noLongerRoutingTo(origTag, true);
-                		}
+        				try {
+        					// Received data
+        					pn.transferSuccess(realTimeFlag);
+        					if(logMINOR) Logger.minor(this, "Received data from offer reply");
+        				} catch (Throwable t) {
+        					Logger.error(this, "Failed on "+this, t);
+        					if(offers != null) {
+        						finish(INTERNAL_ERROR, pn, true);
+        					}
+        					pn.noLongerRoutingTo(origTag, true);
+        					return;
+        				}
+        				verifyBlock(finalHeaders, data, new BlockVerifier.Completion<KeyBlock>() {
+
+        					@Override
+        					public void onVerified(KeyBlock block) {
+        						try {
+        							commit(block);
+        							finish(SUCCESS, pn, true);
+        							node.nodeStats.successfulBlockReceive(realTimeFlag, source == null);
+        						} catch (Throwable t) {
+        							Logger.error(this, "Failed on "+RequestSender.this, t);
+        							if(offers != null) {
+        								finish(INTERNAL_ERROR, pn, true);
+        							}
+        						} finally {
+        							// This is only necessary here because we don't always call finish().
+        							pn.noLongerRoutingTo(origTag, true);
+        						}
+        					}
+
+        					@Override
+        					public void onVerifyFailed(KeyVerifyException e1) {
+        						try {
+        							Logger.normal(this, "Got data but verify failed: "+e1, e1);
+        							if(offers != null) {
+        								finish(GET_OFFER_VERIFY_FAILURE, pn, true);
+        								offers.deleteLastOffer();
+        							}
+        						} finally {
+        							// This is only necessary here because we don't always call finish().
+        							pn.noLongerRoutingTo(origTag, true);
+        						}
+        					}
+
+        				});
 					}
 
 					@Override
@@ -1135,15 +1160,15 @@ public final class RequestSender extends BaseSender implements PrioRunnable {
     		
     		@Override
     		public void blockReceived(byte[] data) {
+    			boolean setPRB = false;
     			try {
     				long tEnd = System.currentTimeMillis();
     				transferTime = tEnd - tStart;
-    				boolean haveSetPRB = false;
     				synchronized(RequestSender.this) {
     					transferringFrom = null;
     					if(RequestSender.this.prb == null || !RequestSender.this.prb.allReceivedAndNotAborted()) {
     						RequestSender.this.prb = prb;
-    						haveSetPRB = true;
+    						setPRB = true;
     					}
     				}
     				if(!wasFork)
@@ -1152,30 +1177,47 @@ public final class RequestSender extends BaseSender implements PrioRunnable {
     				next.successNotOverload(realTimeFlag);
    					node.nodeStats.successfulBlockReceive(realTimeFlag, source == null);
     				if(logMINOR) Logger.minor(this, "Received data");
-    				// Received data
-    				try {
-    					verifyAndCommit(waiter.headers, data);
-    					if(logMINOR) Logger.minor(this, "Written to store");
-    				} catch (KeyVerifyException e1) {
+    			} catch (Throwable t) {
+        			Logger.error(this, "Failed on "+this, t);
+        			if(!wasFork)
+        				finish(INTERNAL_ERROR, next, true);
+        			else
+        				next.noLongerRoutingTo(origTag, false);
+        			return;
+    			}
+    			// Received data
+    			final boolean haveSetPRB = setPRB;
+    			verifyBlock(waiter.headers, data, new BlockVerifier.Completion<KeyBlock>() {
+
+    				@Override
+    				public void onVerified(KeyBlock block) {
+    					try {
+    						commit(block);
+    						if(logMINOR) Logger.minor(this, "Written to store");
+    						if(haveSetPRB) // It was a fork, so we didn't immediately send the data.
+    							fireCHKTransferBegins();
+    						finish(SUCCESS, next, false);
+    					} catch (Throwable t) {
+    						Logger.error(this, "Failed on "+RequestSender.this, t);
+    						if(!wasFork)
+    							finish(INTERNAL_ERROR, next, true);
+    					} finally {
+    						if(wasFork)
+    							next.noLongerRoutingTo(origTag, false);
+    					}
+    				}
+
+    				@Override
+    				public void onVerifyFailed(KeyVerifyException e1) {
     					Logger.normal(this, "Got data but verify failed: "+e1, e1);
     					node.failureTable.onFinalFailure(key, next, htl, origHTL, FailureTable.RECENTLY_FAILED_TIME, FailureTable.REJECT_TIME, source);
     					if(!wasFork)
     						finish(VERIFY_FAILURE, next, false);
     					else
     						next.noLongerRoutingTo(origTag, false);
-    					return;
     				}
-    				if(haveSetPRB) // It was a fork, so we didn't immediately send the data.
-    					fireCHKTransferBegins();
-    				finish(SUCCESS, next, false);
-    			} catch (Throwable t) {
-        			Logger.error(this, "Failed on "+this, t);
-        			if(!wasFork)
-        				finish(INTERNAL_ERROR, next, true);
-    			} finally {
-    				if(wasFork)
-    					next.noLongerRoutingTo(origTag, false);
-    			}
+
+    			});
     		}
     		
     		@Override
@@ -1362,24 +1404,45 @@ public final class RequestSender extends BaseSender implements PrioRunnable {
      * @param next The node we received the data from.
 	 * @param wasFork 
      */
-	private void finishSSK(PeerNode next, boolean wasFork, byte[] headers, byte[] sskData) {
+	private void finishSSK(final PeerNode next, final boolean wasFork, final byte[] headers, final byte[] sskData) {
+		// Checking the signature is expensive, do it off-thread.
+		node.blockVerifier.submit(this, new BlockVerifier.Verification<SSKBlock>() {
+
+			@Override
+			public SSKBlock verify() throws SSKVerifyException {
+				return new SSKBlock(sskData, headers, (NodeSSK)key, false);
+			}
+
+		}, new BlockVerifier.Completion<SSKBlock>() {
+
+			@Override
+			public void onVerified(SSKBlock block) {
+				finishSSK(next, block, headers, sskData);
+			}
+
+			@Override
+			public void onVerifyFailed(KeyVerifyException e) {
+				Logger.error(this, "Failed to verify: "+e+" from "+next, e);
+				if(!wasFork)
+					finish(VERIFY_FAILURE, next, false);
+				else
+					next.noLongerRoutingTo(origTag, false);
+			}
+
+		});
+	}
+
+	private void finishSSK(PeerNode next, SSKBlock verified, byte[] headers, byte[] sskData) {
     	try {
-			block = new SSKBlock(sskData, headers, (NodeSSK)key, false);
-			node.storeShallow(block, canWriteClientCache, canWriteDatastore, false);
+			block = verified;
+			node.storeShallow(verified, canWriteClientCache, canWriteDatastore, false);
 			if(node.random.nextInt(RANDOM_REINSERT_INTERVAL) == 0)
-				node.queueRandomReinsert(block);
+				node.queueRandomReinsert(verified);
 			synchronized(this) {
 				finalHeaders = headers;
 				finalSskData = sskData;
 			}
 			finish(SUCCESS, next, false);
-		} catch (SSKVerifyException e) {
-			Logger.error(this, "Failed to verify: "+e+" from "+next, e);
-			if(!wasFork)
-				finish(VERIFY_FAILURE, next, false);
-			else
-				next.noLongerRoutingTo(origTag, false);
-			return;
 		} catch (KeyCollisionException e) {
 			Logger.normal(this, "Collision on "+this);
 			block = node.fetch((NodeSSK)key, false, canWriteClientCache, canWriteClientCache, canWriteDatastore, false, null);
@@ -1434,29 +1497,49 @@ public final class RequestSender extends BaseSender implements PrioRunnable {
     	return req;
 	}
 
-	private void verifyAndCommit(byte[] headers, byte[] data) throws KeyVerifyException {
+	/**
+	 * Verify a block on the node's {@link BlockVerifier}, so we don't hold up the thread which
+	 * received it. The completion is called on the node executor, after those for any blocks
+	 * this request received earlier.
+	 */
+	private void verifyBlock(final byte[] headers, final byte[] data, BlockVerifier.Completion<KeyBlock> completion) {
+		if(isSSK) {
+			synchronized(this) {
+				finalHeaders = headers;
+				finalSskData = data;
+			}
+		}
+		node.blockVerifier.submit(this, new BlockVerifier.Verification<KeyBlock>() {
+
+			@Override
+			public KeyBlock verify() throws KeyVerifyException {
+				if(!isSSK)
+					return new CHKBlock(data, headers, (NodeCHK)key);
+				else
+					return new SSKBlock(data, headers, (NodeSSK)key, false);
+			}
+
+		}, completion);
+	}
+
+	/** Store a block which has been verified by verifyBlock(). */
+	private void commit(KeyBlock block) {
     	if(!isSSK) {
-    		CHKBlock block = new CHKBlock(data, headers, (NodeCHK)key);
     		synchronized(this) {
-    			finalHeaders = headers;
+    			finalHeaders = block.getRawHeaders();
     		}
     		if(logMINOR) Logger.minor(this, "Verified");
     		// Cache only in the cache, not the store. The reason for this is that
     		// requests don't go to the full distance, and therefore pollute the 
     		// store; simulations it is best to only include data from requests
     		// which go all the way i.e. inserts.
-    		node.storeShallow(block, canWriteClientCache, canWriteDatastore, tryOffersOnly);
+    		node.storeShallow((CHKBlock)block, canWriteClientCache, canWriteDatastore, tryOffersOnly);
 			if(node.random.nextInt(RANDOM_REINSERT_INTERVAL) == 0)
 				node.queueRandomReinsert(block);
     	} else /*if (key instanceof NodeSSK)*/ {
-    		synchronized(this) {
-    			finalHeaders = headers;
-    			finalSskData = data;
-    		}
     		try {
-    			SSKBlock block = new SSKBlock(data, headers, (NodeSSK)key, false);
         		if(logMINOR) Logger.minor(this, "Verified SSK");
-				node.storeShallow(block, canWriteClientCache, canWriteDatastore, tryOffersOnly);
+				node.storeShallow((SSKBlock)block, canWriteClientCache, canWriteDatastore, tryOffersOnly);
 			} catch (KeyCollisionException e) {
 				Logger.normal(this, "Collision on "+this);
 			}
@@ -1,6 +1,7 @@
 package freenet.node;
 
 import java.lang.ref.WeakReference;
+import java.util.Arrays;
 
 import freenet.keys.NodeCHK;
 import freenet.support.Logger;
@@ -179,6 +180,7 @@ public class RequestTag extends UIDTag {
 
 	public synchronized void completedDownstreamTransfers() {
 		this.completedDownstreamTransfers = true;
+		countersChanged();
 	}
 
 	@Override
@@ -200,6 +202,7 @@ public class RequestTag extends UIDTag {
 		if(waitingForOpennet != null)
 			Logger.error(this, "Have already waited for opennet: "+waitingForOpennet.get()+" on "+this, new Exception("error"));
 		this.waitingForOpennet = next.myRef;
+		countersChanged();
 	}
 
 	public void finishedWaitingForOpennet(PeerNode next) {
@@ -214,6 +217,7 @@ public class RequestTag extends UIDTag {
 				Logger.error(this, "Finished waiting for opennet on "+next+" but was waiting for "+got);
 			}
 			waitingForOpennet = null;
+			countersChanged();
 			if(!mustUnlock()) return;
 			noRecordUnlock = this.noRecordUnlock;
 		}
@@ -227,6 +231,18 @@ public class RequestTag extends UIDTag {
 		return super.currentlyRoutingTo(peer);
 	}
 
+	@Override
+	synchronized PeerNode[] currentlyRoutingOrFetchingFrom() {
+		PeerNode[] peers = super.currentlyRoutingOrFetchingFrom();
+		PeerNode waiting = waitingForOpennet == null ? null : waitingForOpennet.get();
+		if(waiting == null) return peers;
+		for(PeerNode pn : peers)
+			if(pn == waiting) return peers;
+		PeerNode[] ret = Arrays.copyOf(peers, peers.length+1);
+		ret[peers.length] = waiting;
+		return ret;
+	}
+
 	public void handlerTransferBegins() {
 		synchronized(this) {
 			if(handlerTransferring) return;
@@ -48,6 +48,9 @@ public class RequestTracker {
 	private final HashMap<Long,OfferReplyTag> runningCHKOfferReplyUIDsRT;
 	private final HashMap<Long,OfferReplyTag> runningSSKOfferReplyUIDsRT;
 	
+	/** Running totals for each of the overall maps, see getCounters() */
+	private final RequestCounters[] counters;
+
 	private final PeerManager peers;
 	private final Ticker ticker;
 
@@ -85,6 +88,9 @@ public class RequestTracker {
 		transferringRequestSendersRT = new HashMap<NodeCHK, RequestSender>();
 		transferringRequestSendersBulk = new HashMap<NodeCHK, RequestSender>();
 		transferringRequestHandlers = new HashSet<Long>();
+		counters = new RequestCounters[12];
+		for(int i = 0; i < counters.length; i++)
+			counters[i] = new RequestCounters(i < 8); // Offer replies don't have a local map.
 	}
 
 	public boolean lockUID(UIDTag tag) {
@@ -96,19 +102,19 @@ public class RequestTracker {
 		if(offerReply) {
 			// local irrelevant for OfferReplyTag's.
 			HashMap<Long,OfferReplyTag> map = getOfferTracker(ssk, realTimeFlag);
-			return innerLock(map, null, (OfferReplyTag)tag, uid, ssk, insert, offerReply, false);
+			return innerLock(map, null, getCounters(ssk, insert, offerReply, realTimeFlag), (OfferReplyTag)tag, uid, ssk, insert, offerReply, false);
 		} else if(insert) {
 			HashMap<Long,InsertTag> overallMap = getInsertTracker(ssk, false, realTimeFlag);
 			HashMap<Long,InsertTag> localMap = local ? getInsertTracker(ssk, local, realTimeFlag) : null;
-			return innerLock(overallMap, localMap, (InsertTag)tag, uid, ssk, insert, offerReply, local);
+			return innerLock(overallMap, localMap, getCounters(ssk, insert, offerReply, realTimeFlag), (InsertTag)tag, uid, ssk, insert, offerReply, local);
 		} else {
 			HashMap<Long,RequestTag> overallMap = getRequestTracker(ssk,false, realTimeFlag);
 			HashMap<Long,RequestTag> localMap = local ? getRequestTracker(ssk,local, realTimeFlag) : null;
-			return innerLock(overallMap, localMap, (RequestTag)tag, uid, ssk, insert, offerReply, local);
+			return innerLock(overallMap, localMap, getCounters(ssk, insert, offerReply, realTimeFlag), (RequestTag)tag, uid, ssk, insert, offerReply, local);
 		}
 	}
 
-	private<T extends UIDTag> boolean innerLock(HashMap<Long, T> overallMap, HashMap<Long, T> localMap, T tag, Long uid, boolean ssk, boolean insert, boolean offerReply, boolean local) {
+	private<T extends UIDTag> boolean innerLock(HashMap<Long, T> overallMap, HashMap<Long, T> localMap, RequestCounters counters, T tag, Long uid, boolean ssk, boolean insert, boolean offerReply, boolean local) {
 		synchronized(overallMap) {
 			if(logMINOR) Logger.minor(this, "Locking "+uid+" ssk="+ssk+" insert="+insert+" offerReply="+offerReply+" local="+local+" size="+overallMap.size(), new Exception("debug"));
 			T oldTag = overallMap.get(uid);
@@ -120,6 +126,7 @@ public class RequestTracker {
 				}
 			}
 			overallMap.put(uid, tag);
+			counters.add(tag);
 			if(logMINOR) Logger.minor(this, "Locked "+uid+" ssk="+ssk+" insert="+insert+" offerReply="+offerReply+" local="+local+" size="+overallMap.size());
 			if(local) {
 				if(logMINOR) Logger.minor(this, "Locking (local) "+uid+" ssk="+ssk+" insert="+insert+" offerReply="+offerReply+" local="+local+" size="+localMap.size(), new Exception("debug"));
@@ -131,6 +138,7 @@ public class RequestTracker {
 						// Violates the invariant that local requests are always registered on the main (non-local) map too.
 						Logger.error(this, "Different tag already registered (local) EVEN THOUGH NOT ON MAIN MAP: "+tag, new Exception("debug"));
 						overallMap.remove(uid);
+						counters.remove(tag);
 						return false;
 					}
 				}
@@ -152,15 +160,15 @@ public class RequestTracker {
 
 		if(offerReply) {
 			HashMap<Long,OfferReplyTag> map = getOfferTracker(ssk, realTimeFlag);
-			innerUnlock(map, null, (OfferReplyTag)tag, uid, ssk, insert, offerReply, false, canFail);
+			innerUnlock(map, null, getCounters(ssk, insert, offerReply, realTimeFlag), (OfferReplyTag)tag, uid, ssk, insert, offerReply, false, canFail);
 		} else if(insert) {
 			HashMap<Long,InsertTag> overallMap = getInsertTracker(ssk, false, realTimeFlag);
 			HashMap<Long,InsertTag> localMap = local ? getInsertTracker(ssk,local, realTimeFlag) : null;
-			innerUnlock(overallMap, localMap, (InsertTag)tag, uid, ssk, insert, offerReply, local, canFail);
+			innerUnlock(overallMap, localMap, getCounters(ssk, insert, offerReply, realTimeFlag), (InsertTag)tag, uid, ssk, insert, offerReply, local, canFail);
 		} else {
 			HashMap<Long,RequestTag> overallMap = getRequestTracker(ssk, false, realTimeFlag);
 			HashMap<Long,RequestTag> localMap = local ? getRequestTracker(ssk,local, realTimeFlag) : null;
-			innerUnlock(overallMap, localMap, (RequestTag)tag, uid, ssk, insert, offerReply, local, canFail);
+			innerUnlock(overallMap, localMap, getCounters(ssk, insert, offerReply, realTimeFlag), (RequestTag)tag, uid, ssk, insert, offerReply, local, canFail);
 		}
 	}
 
@@ -171,6 +179,7 @@ public class RequestTracker {
 	 * We use the overallMap as lock for both.
 	 * @param localMap The local map if any. We check on overallMap and then
 	 * remove from both.
+	 * @param counters The running totals for overallMap.
 	 * @param tag The tag to remove.
 	 * @param uid The UID of the tag.
 	 * @param ssk Whether it is an SSK.
@@ -180,7 +189,7 @@ public class RequestTracker {
 	 * it is not we expect the latter to be null.
 	 * @param canFail
 	 */
-	private<T extends UIDTag> void innerUnlock(HashMap<Long, T> overallMap, HashMap<Long, T> localMap, T tag, Long uid, boolean ssk, boolean insert, boolean offerReply, boolean local, boolean canFail) {
+	private<T extends UIDTag> void innerUnlock(HashMap<Long, T> overallMap, HashMap<Long, T> localMap, RequestCounters counters, T tag, Long uid, boolean ssk, boolean insert, boolean offerReply, boolean local, boolean canFail) {
 		synchronized(overallMap) {
 			if(logMINOR) Logger.minor(this, "Unlocking "+uid+" ssk="+ssk+" insert="+insert+" offerReply="+offerReply+" local="+local+" size="+overallMap.size(), new Exception("debug"));
 			if(overallMap.get(uid) != tag) {
@@ -189,8 +198,10 @@ public class RequestTracker {
 				} else {
 					Logger.error(this, "Removing "+tag+" for "+uid+" returned "+overallMap.get(uid));
 				}
-			} else
+			} else {
 				overallMap.remove(uid);
+				counters.remove(tag);
+			}
 			if(logMINOR) Logger.minor(this, "Unlocked "+uid+" ssk="+ssk+" insert="+insert+" offerReply="+offerReply+" local="+local+" size="+overallMap.size());
 			if(local) {
 				if(localMap.get(uid) != tag) {
@@ -222,6 +233,45 @@ public class RequestTracker {
 		public int expectedTransfersIn() {
 			return expectedTransfersIn;
 		}
+		void add(int count, int transfersIn, int transfersOut) {
+			total += count;
+			expectedTransfersIn += transfersIn;
+			expectedTransfersOut += transfersOut;
+		}
+		void add(CountedRequests counter) {
+			add(counter.total, counter.expectedTransfersIn, counter.expectedTransfersOut);
+		}
+		boolean sameAs(CountedRequests counter) {
+			return total == counter.total && expectedTransfersIn == counter.expectedTransfersIn &&
+				expectedTransfersOut == counter.expectedTransfersOut;
+		}
+		@Override
+		public String toString() {
+			return total+" requests, "+expectedTransfersIn+" in, "+expectedTransfersOut+" out";
+		}
+	}
+
+	/** If true, check the running totals against a count of all the running requests whenever we
+	 * use them. Slow, for tests. */
+	private volatile boolean checkCounters;
+
+	void setCheckCounters(boolean check) {
+		checkCounters = check;
+	}
+
+	/** Called by a tag when something has changed which affects the request counts. */
+	void tagChanged(UIDTag tag) {
+		getCounters(tag.isSSK(), tag.isInsert(), tag.isOfferReply(), tag.realTimeFlag).changed(tag);
+	}
+
+	private void checkCounted(String what, CountedRequests expected, CountedRequests counted) {
+		if(expected == null || expected.sameAs(counted)) return;
+		countersOutOfStep("Running totals out of step for "+what+": counted "+counted+" but should be "+expected);
+	}
+
+	private void countersOutOfStep(String msg) {
+		Logger.error(this, msg);
+		throw new IllegalStateException(msg);
 	}
 
 	/** Count all requests running globally which match particular parameters.
@@ -243,47 +293,58 @@ public class RequestTracker {
 		HashMap<Long, ? extends UIDTag> mapLock = map;
 		if(local)
 			mapLock = getTracker(false, ssk, insert, offer, realTimeFlag);
+		RequestCounters counters = getCounters(ssk, insert, offer, realTimeFlag);
 		synchronized(mapLock) {
-			int count = 0;
-			int transfersOut = 0;
-			int transfersIn = 0;
-			int countSR = 0;
-			int transfersOutSR = 0;
-			int transfersInSR = 0;
-			for(Map.Entry<Long, ? extends UIDTag> entry : map.entrySet()) {
-				UIDTag tag = entry.getValue();
-				// The overall running* map can include local. But the local map can't include non-local.
-				if((!local) && tag.wasLocal) continue;
-				int out = tag.expectedTransfersOut(ignoreLocalVsRemote, transfersPerInsert, true);
-				int in = tag.expectedTransfersIn(ignoreLocalVsRemote, transfersPerInsert, true);
-				count++;
-				transfersOut += out;
-				transfersIn += in;
-				if(counterSourceRestarted != null && tag.countAsSourceRestarted()) {
-					countSR++;
-					transfersOutSR += out;
-					transfersInSR += in;
-				}
-				if(logDEBUG) Logger.debug(this, "UID "+entry.getKey()+" : out "+transfersOut+" in "+transfersIn);
+			if(!checkCounters) {
+				counters.count(local, ignoreLocalVsRemote, transfersPerInsert, counter, counterSourceRestarted);
+				return;
 			}
-			counter.total += count;
-			counter.expectedTransfersIn += transfersIn;
-			counter.expectedTransfersOut += transfersOut;
-			if(counterSourceRestarted != null) {
-				counterSourceRestarted.total += countSR;
-				counterSourceRestarted.expectedTransfersIn += transfersInSR;
-				counterSourceRestarted.expectedTransfersOut += transfersOutSR;
+			CountedRequests counted = new CountedRequests();
+			CountedRequests countedSR = counterSourceRestarted == null ? null : new CountedRequests();
+			counters.count(local, ignoreLocalVsRemote, transfersPerInsert, counted, countedSR);
+			CountedRequests expected = new CountedRequests();
+			CountedRequests expectedSR = counterSourceRestarted == null ? null : new CountedRequests();
+			countRequestsByIteration(map, local, transfersPerInsert, ignoreLocalVsRemote, expected, expectedSR);
+			checkCounted("all requests", expected, counted);
+			checkCounted("all requests (source restarted)", expectedSR, countedSR);
+			counter.add(counted);
+			if(counterSourceRestarted != null)
+				counterSourceRestarted.add(countedSR);
+		}
+	}
+
+	private void countRequestsByIteration(HashMap<Long, ? extends UIDTag> map, boolean local, int transfersPerInsert, boolean ignoreLocalVsRemote, CountedRequests counter, CountedRequests counterSourceRestarted) {
+		int count = 0;
+		int transfersOut = 0;
+		int transfersIn = 0;
+		int countSR = 0;
+		int transfersOutSR = 0;
+		int transfersInSR = 0;
+		for(Map.Entry<Long, ? extends UIDTag> entry : map.entrySet()) {
+			UIDTag tag = entry.getValue();
+			// The overall running* map can include local. But the local map can't include non-local.
+			if((!local) && tag.wasLocal) continue;
+			int out = tag.expectedTransfersOut(ignoreLocalVsRemote, transfersPerInsert, true);
+			int in = tag.expectedTransfersIn(ignoreLocalVsRemote, transfersPerInsert, true);
+			count++;
+			transfersOut += out;
+			transfersIn += in;
+			if(counterSourceRestarted != null && tag.countAsSourceRestarted()) {
+				countSR++;
+				transfersOutSR += out;
+				transfersInSR += in;
 			}
+			if(logDEBUG) Logger.debug(this, "UID "+entry.getKey()+" : out "+transfersOut+" in "+transfersIn);
 		}
+		counter.add(count, transfersIn, transfersOut);
+		if(counterSourceRestarted != null)
+			counterSourceRestarted.add(countSR, transfersInSR, transfersOutSR);
 	}
 
 	/**
 	 * Count requests routed to a peer, or accepted from a peer, that match the specified criteria.
-	 * PERFORMANCE: There is a map for all requests of a given type (local, ssk, etc). However this
-	 * is not divided up by node. FIXME ideally we would countRequests for all PeerNode's
-	 * simultaneously when we need data on more than one. FIXME it would be even better if we could
-	 * just store the status on the PeerNode's, but the memory usage might be an issue and 
-	 * synchronization would likely be problematic.
+	 * PERFORMANCE: The counts are kept up to date as requests start, change state and finish,
+	 * both overall and for each peer, so this doesn't need to look at the running requests.
 	 * @param source The peer the requests were accepted from or routed to.
 	 * @param requestsToNode If true, count requests sent to the node and currently 
 	 * running. If false, count requests originated by the node.
@@ -305,71 +366,77 @@ public class RequestTracker {
 		HashMap<Long, ? extends UIDTag> mapLock = map;
 		if(local)
 			mapLock = getTracker(false, ssk, insert, offer, realTimeFlag);
+		RequestCounters counters = getCounters(ssk, insert, offer, realTimeFlag);
 		synchronized(mapLock) {
-			int count = 0;
-			int transfersOut = 0;
-			int transfersIn = 0;
-			int countSR = 0;
-			int transfersOutSR = 0;
-			int transfersInSR = 0;
+			CountedRequests counted = checkCounters ? new CountedRequests() : counter;
+			CountedRequests countedSR = (checkCounters && counterSR != null) ? new CountedRequests() : counterSR;
 			if(!requestsToNode) {
 				// If a request is adopted by us as a result of a timeout, it can be in the
 				// remote map despite having source == null. However, if a request is in the
 				// local map it will always have source == null.
-				if(source != null && local) return;
-				for(Map.Entry<Long, ? extends UIDTag> entry : map.entrySet()) {
-					UIDTag tag = entry.getValue();
-					// The overall running* map can include local. But the local map can't include non-local.
-					if((!local) && tag.wasLocal) continue;
-					if(tag.getSource() == source) {
-						int out = tag.expectedTransfersOut(ignoreLocalVsRemote, transfersPerInsert, true);
-						int in = tag.expectedTransfersIn(ignoreLocalVsRemote, transfersPerInsert, true);
-						count++;
-						transfersOut += out;
-						transfersIn += in;
-						if(counterSR != null && tag.countAsSourceRestarted()) {
-							countSR++;
-							transfersOutSR += out;
-							transfersInSR += in;
-						}
-						if(logMINOR) Logger.minor(this, "Counting "+tag+" from "+entry.getKey()+" from "+source+" count now "+count+" out now "+transfersOut+" in now "+transfersIn);
-					} else if(logDEBUG) Logger.debug(this, "Not counting "+entry.getKey());
-				}
-				if(logMINOR) Logger.minor(this, "Returning count: "+count+" in: "+transfersIn+" out: "+transfersOut);
-				counter.total += count;
-				counter.expectedTransfersIn += transfersIn;
-				counter.expectedTransfersOut += transfersOut;
-				if(counterSR != null) {
-					counterSR.total += countSR;
-					counterSR.expectedTransfersIn += transfersInSR;
-					counterSR.expectedTransfersOut += transfersOutSR;
-				}
+				counters.countFrom(source, local, ignoreLocalVsRemote, transfersPerInsert, counted, countedSR);
 			} else {
 				// hasSourceRestarted is irrelevant for requests *to* a node.
-				// FIXME improve efficiency!
-				for(Map.Entry<Long, ? extends UIDTag> entry : map.entrySet()) {
-					UIDTag tag = entry.getValue();
-					// The overall running* map can include local. But the local map can't include non-local.
-					if((!local) && tag.wasLocal) continue;
-					// Ordinary requests can be routed to an offered key.
-					// So we *DO NOT* care whether it's an ordinary routed relayed request or a GetOfferedKey, if we are counting outgoing requests.
-					if(tag.currentlyFetchingOfferedKeyFrom(source)) {
-						if(logMINOR) Logger.minor(this, "Counting "+tag+" to "+entry.getKey());
-						transfersOut += tag.expectedTransfersOut(ignoreLocalVsRemote, transfersPerInsert, false);
-						transfersIn += tag.expectedTransfersIn(ignoreLocalVsRemote, transfersPerInsert, false);
-						count++;
-					} else if(tag.currentlyRoutingTo(source)) {
-						if(logMINOR) Logger.minor(this, "Counting "+tag+" to "+entry.getKey());
-						transfersOut += tag.expectedTransfersOut(ignoreLocalVsRemote, transfersPerInsert, false);
-						transfersIn += tag.expectedTransfersIn(ignoreLocalVsRemote, transfersPerInsert, false);
-						count++;
-					} else if(logDEBUG) Logger.debug(this, "Not counting "+entry.getKey());
+				counters.countTo(source, local, ignoreLocalVsRemote, transfersPerInsert, counted);
+			}
+			if(logMINOR) Logger.minor(this, "Counted for "+(local?"local":"remote")+" "+(ssk?"ssk":"chk")+" "+(insert?"insert":"request")+" "+(offer?"offer":"")+" "+(requestsToNode?"to":"from")+" "+source+" : "+counted);
+			if(!checkCounters) return;
+			CountedRequests expected = new CountedRequests();
+			CountedRequests expectedSR = counterSR == null ? null : new CountedRequests();
+			countRequestsByIteration(map, source, requestsToNode, local, transfersPerInsert, ignoreLocalVsRemote, expected, expectedSR);
+			String what = "requests "+(requestsToNode ? "to " : "from ")+source;
+			checkCounted(what, expected, counted);
+			if(!requestsToNode)
+				checkCounted(what+" (source restarted)", expectedSR, countedSR);
+			counter.add(counted);
+			if(counterSR != null)
+				counterSR.add(countedSR);
+		}
+	}
+
+	private void countRequestsByIteration(HashMap<Long, ? extends UIDTag> map, PeerNode source, boolean requestsToNode, boolean local, int transfersPerInsert, boolean ignoreLocalVsRemote, CountedRequests counter, CountedRequests counterSR) {
+		int count = 0;
+		int transfersOut = 0;
+		int transfersIn = 0;
+		int countSR = 0;
+		int transfersOutSR = 0;
+		int transfersInSR = 0;
+		if(!requestsToNode) {
+			if(source != null && local) return;
+			for(Map.Entry<Long, ? extends UIDTag> entry : map.entrySet()) {
+				UIDTag tag = entry.getValue();
+				// The overall running* map can include local. But the local map can't include non-local.
+				if((!local) && tag.wasLocal) continue;
+				if(tag.getSource() == source) {
+					int out = tag.expectedTransfersOut(ignoreLocalVsRemote, transfersPerInsert, true);
+					int in = tag.expectedTransfersIn(ignoreLocalVsRemote, transfersPerInsert, true);
+					count++;
+					transfersOut += out;
+					transfersIn += in;
+					if(counterSR != null && tag.countAsSourceRestarted()) {
+						countSR++;
+						transfersOutSR += out;
+						transfersInSR += in;
+					}
 				}
-				if(logMINOR) Logger.minor(this, "Counted for "+(local?"local":"remote")+" "+(ssk?"ssk":"chk")+" "+(insert?"insert":"request")+" "+(offer?"offer":"")+" : "+count+" of "+map.size()+" for "+source);
-				counter.total += count;
-				counter.expectedTransfersIn += transfersIn;
-				counter.expectedTransfersOut += transfersOut;
 			}
+			counter.add(count, transfersIn, transfersOut);
+			if(counterSR != null)
+				counterSR.add(countSR, transfersInSR, transfersOutSR);
+		} else {
+			for(Map.Entry<Long, ? extends UIDTag> entry : map.entrySet()) {
+				UIDTag tag = entry.getValue();
+				// The overall running* map can include local. But the local map can't include non-local.
+				if((!local) && tag.wasLocal) continue;
+				// Ordinary requests can be routed to an offered key.
+				// So we *DO NOT* care whether it's an ordinary routed relayed request or a GetOfferedKey, if we are counting outgoing requests.
+				if(tag.currentlyFetchingOfferedKeyFrom(source) || tag.currentlyRoutingTo(source)) {
+					transfersOut += tag.expectedTransfersOut(ignoreLocalVsRemote, transfersPerInsert, false);
+					transfersIn += tag.expectedTransfersIn(ignoreLocalVsRemote, transfersPerInsert, false);
+					count++;
+				}
+			}
+			counter.add(count, transfersIn, transfersOut);
 		}
 	}
 	
@@ -390,32 +457,43 @@ public class RequestTracker {
 	 * restarted, requests where the originator PeerNode has been removed from the routing table
 	 * etc. */
 	public void countAllRequestsByIncomingPeer(boolean requestsToNode, boolean local, boolean ssk, boolean insert, boolean offer, boolean realTimeFlag, int transfersPerInsert, boolean ignoreLocalVsRemote, Map<PeerNode, CountedRequests> counterMap) {
+		if(requestsToNode) return;
 		HashMap<Long, ? extends UIDTag> map = getTracker(local, ssk, insert, offer, realTimeFlag);
 		// Map is locked by the non-local version, although we're counting from the local version.
 		HashMap<Long, ? extends UIDTag> mapLock = map;
 		if(local)
 			mapLock = getTracker(false, ssk, insert, offer, realTimeFlag);
+		RequestCounters counters = getCounters(ssk, insert, offer, realTimeFlag);
 		synchronized(mapLock) {
-			if(!requestsToNode) {
-				// If a request is adopted by us as a result of a timeout, it can be in the
-				// remote map despite having source == null. However, if a request is in the
-				// local map it will always have source == null.
-				for(Map.Entry<Long, ? extends UIDTag> entry : map.entrySet()) {
-					UIDTag tag = entry.getValue();
-					// The overall running* map can include local. But the local map can't include non-local.
-					if((!local) && tag.wasLocal) continue;
-					PeerNode source = tag.getSource(); // Can be null in various cases
-					CountedRequests counter = counterMap.get(source);
-					if(counter == null) {
-						counter = new CountedRequests();
-						counterMap.put(source, counter);
-					}
-					int out = tag.expectedTransfersOut(ignoreLocalVsRemote, transfersPerInsert, true);
-					int in = tag.expectedTransfersIn(ignoreLocalVsRemote, transfersPerInsert, true);
-					counter.total++;
-					counter.expectedTransfersIn += in;
-					counter.expectedTransfersOut += out;
+			if(!checkCounters) {
+				counters.countAllBySource(local, ignoreLocalVsRemote, transfersPerInsert, counterMap);
+				return;
+			}
+			Map<PeerNode, CountedRequests> counted = new HashMap<PeerNode, CountedRequests>();
+			counters.countAllBySource(local, ignoreLocalVsRemote, transfersPerInsert, counted);
+			Map<PeerNode, CountedRequests> expected = new HashMap<PeerNode, CountedRequests>();
+			for(UIDTag tag : map.values()) {
+				// The overall running* map can include local. But the local map can't include non-local.
+				if((!local) && tag.wasLocal) continue;
+				PeerNode source = tag.getSource(); // Can be null in various cases
+				CountedRequests counter = expected.get(source);
+				if(counter == null) {
+					counter = new CountedRequests();
+					expected.put(source, counter);
+				}
+				counter.add(1, tag.expectedTransfersIn(ignoreLocalVsRemote, transfersPerInsert, true),
+						tag.expectedTransfersOut(ignoreLocalVsRemote, transfersPerInsert, true));
+			}
+			if(!expected.keySet().equals(counted.keySet()))
+				countersOutOfStep("Running totals out of step: counted requests from "+counted.keySet()+" but should be "+expected.keySet());
+			for(Map.Entry<PeerNode, CountedRequests> entry : counted.entrySet()) {
+				checkCounted("requests from "+entry.getKey(), expected.get(entry.getKey()), entry.getValue());
+				CountedRequests counter = counterMap.get(entry.getKey());
+				if(counter == null) {
+					counter = new CountedRequests();
+					counterMap.put(entry.getKey(), counter);
 				}
+				counter.add(entry.getValue());
 			}
 		}
 	}
@@ -506,6 +584,13 @@ public class RequestTracker {
 		}
 	}
 
+	/** @return The running totals for the overall (not local-only) map for the given kind of
+	 * request. */
+	private RequestCounters getCounters(boolean ssk, boolean insert, boolean offer, boolean realTimeFlag) {
+		int kind = offer ? 2 : (insert ? 1 : 0);
+		return counters[kind * 4 + (ssk ? 2 : 0) + (realTimeFlag ? 1 : 0)];
+	}
+
 	private HashMap<Long, OfferReplyTag> getOfferTracker(boolean ssk, boolean realTimeFlag) {
 		if(realTimeFlag)
 			return ssk ? runningSSKOfferReplyUIDsRT : runningCHKOfferReplyUIDsRT;
@@ -0,0 +1,226 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The locations of our connected peers, and the locations of their peers which they have told us
+ * about, sorted around the keyspace. Lets {@link PeerManager#closerPeer} look at peers in order of
+ * how close they could possibly be to the target, and stop once no remaining peer could beat the
+ * best one it has found, rather than scoring every peer on every routing decision.
+ *
+ * The index is updated lazily: connects and disconnects are picked up by comparing the connected
+ * peers array with the one the index was built for, location changes are reported via
+ * {@link #locationChanged(PeerNode)}. Only the entries for peers which have changed are
+ * recomputed, the rest are merged in as they were.
+ */
+final class RoutingIndex {
+
+	/** An immutable view of the index for one connected peers array. */
+	static final class Snapshot {
+		/** The connected peers array the snapshot was built for. */
+		final PeerNode[] peers;
+		/** Sorted locations: each peer's own location and those of its peers. */
+		final double[] locs;
+		/** For each location, the index of the peer it belongs to in peers. */
+		final int[] owners;
+		/** Peers with no valid location, which must always be looked at. */
+		final int[] unlocated;
+
+		Snapshot(PeerNode[] peers, double[] locs, int[] owners, int[] unlocated) {
+			this.peers = peers;
+			this.locs = locs;
+			this.owners = owners;
+			this.unlocated = unlocated;
+		}
+
+		/** @return A cursor which visits every peer once, in order of the distance from target to
+		 * the closest location indexed for that peer. */
+		Cursor byDistanceFrom(double target) {
+			return new Cursor(this, target);
+		}
+	}
+
+	/** Walks outwards from the target in both directions around the keyspace. Not thread-safe. */
+	static final class Cursor {
+		private final Snapshot snapshot;
+		private final double target;
+		private final boolean[] visited;
+		private int unlocatedVisited;
+		private int left;
+		private int right;
+		private int remaining;
+		private double distance;
+
+		Cursor(Snapshot snapshot, double target) {
+			this.snapshot = snapshot;
+			this.target = target;
+			visited = new boolean[snapshot.peers.length];
+			double[] locs = snapshot.locs;
+			remaining = locs.length;
+			if(remaining > 0) {
+				int x = Arrays.binarySearch(locs, target);
+				if(x < 0) x = -x - 1;
+				right = x == locs.length ? 0 : x;
+				left = right == 0 ? locs.length - 1 : right - 1;
+			}
+		}
+
+		/** @return The index of the next peer in Snapshot.peers, or -1 if all have been visited. */
+		int next() {
+			int[] unlocated = snapshot.unlocated;
+			while(unlocatedVisited < unlocated.length) {
+				int i = unlocated[unlocatedVisited++];
+				if(visited[i]) continue;
+				visited[i] = true;
+				distance = 0.0;
+				return i;
+			}
+			double[] locs = snapshot.locs;
+			while(remaining > 0) {
+				double leftDistance = Location.distance(locs[left], target);
+				double rightDistance = Location.distance(locs[right], target);
+				int x;
+				if(remaining == 1 || rightDistance <= leftDistance) {
+					x = right;
+					distance = rightDistance;
+					right = right == locs.length - 1 ? 0 : right + 1;
+				} else {
+					x = left;
+					distance = leftDistance;
+					left = left == 0 ? locs.length - 1 : left - 1;
+				}
+				remaining--;
+				int owner = snapshot.owners[x];
+				if(visited[owner]) continue;
+				visited[owner] = true;
+				return owner;
+			}
+			return -1;
+		}
+
+		/** @return A lower bound on the distance from the target to the peer last returned by
+		 * next(), whether directly or via one of its peers. */
+		double distance() {
+			return distance;
+		}
+	}
+
+	private static final Snapshot EMPTY = new Snapshot(new PeerNode[0], new double[0], new int[0], new int[0]);
+
+	private volatile Snapshot snapshot = EMPTY;
+	/** Set when a peer's location changes, cleared when the snapshot is brought up to date. */
+	private volatile boolean dirty;
+	/** Peers whose locations have changed since the snapshot was built. LOCKING: this */
+	private final Set<PeerNode> changed = Collections.newSetFromMap(new IdentityHashMap<PeerNode, Boolean>());
+
+	/** A peer's location, or the locations of its peers, have changed. */
+	void locationChanged(PeerNode pn) {
+		synchronized(this) {
+			changed.add(pn);
+			dirty = true;
+		}
+	}
+
+	/** @return An up to date snapshot of the index for the given connected peers array. */
+	Snapshot get(PeerNode[] peers) {
+		Snapshot s = snapshot;
+		if(s.peers == peers && !dirty) return s;
+		synchronized(this) {
+			s = snapshot;
+			if(s.peers == peers && !dirty) return s;
+			dirty = false;
+			s = rebuild(s, peers);
+			changed.clear();
+			snapshot = s;
+			return s;
+		}
+	}
+
+	private Snapshot rebuild(Snapshot old, PeerNode[] peers) {
+		IdentityHashMap<PeerNode, Integer> positions = new IdentityHashMap<PeerNode, Integer>(peers.length * 2);
+		for(int i = 0; i < peers.length; i++)
+			positions.put(peers[i], i);
+		// Keep the entries of peers which are still connected and haven't changed.
+		int[] remap = new int[old.peers.length];
+		boolean[] kept = new boolean[peers.length];
+		for(int i = 0; i < old.peers.length; i++) {
+			Integer x = positions.get(old.peers[i]);
+			if(x == null || changed.contains(old.peers[i])) {
+				remap[i] = -1;
+			} else {
+				remap[i] = x;
+				kept[x] = true;
+			}
+		}
+		int keptCount = 0;
+		for(int owner : old.owners)
+			if(remap[owner] >= 0) keptCount++;
+		double[] keptLocs = new double[keptCount];
+		int[] keptOwners = new int[keptCount];
+		int k = 0;
+		for(int i = 0; i < old.owners.length; i++) {
+			int owner = remap[old.owners[i]];
+			if(owner < 0) continue;
+			keptLocs[k] = old.locs[i];
+			keptOwners[k++] = owner;
+		}
+		List<Integer> unlocated = new ArrayList<Integer>();
+		for(int x : old.unlocated)
+			if(remap[x] >= 0) unlocated.add(remap[x]);
+		// Fetch the locations of new and changed peers.
+		final List<double[]> added = new ArrayList<double[]>();
+		for(int i = 0; i < peers.length; i++) {
+			if(kept[i]) continue;
+			PeerNode pn = peers[i];
+			double loc = pn.getLocation();
+			boolean valid = Location.isValid(loc);
+			if(valid)
+				added.add(new double[] { loc, i });
+			double[] peersLocs = pn.getPeersLocationArray();
+			if(peersLocs != null) {
+				for(double l : peersLocs)
+					if(Location.isValid(l))
+						added.add(new double[] { l, i });
+			}
+			if(!valid)
+				unlocated.add(i);
+		}
+		Collections.sort(added, new Comparator<double[]>() {
+
+			@Override
+			public int compare(double[] a, double[] b) {
+				return Double.compare(a[0], b[0]);
+			}
+
+		});
+		// Merge.
+		double[] locs = new double[keptCount + added.size()];
+		int[] owners = new int[locs.length];
+		int a = 0;
+		k = 0;
+		for(int i = 0; i < locs.length; i++) {
+			if(a == added.size() || (k < keptCount && keptLocs[k] <= added.get(a)[0])) {
+				locs[i] = keptLocs[k];
+				owners[i] = keptOwners[k++];
+			} else {
+				double[] entry = added.get(a++);
+				locs[i] = entry[0];
+				owners[i] = (int) entry[1];
+			}
+		}
+		int[] unlocatedArray = new int[unlocated.size()];
+		for(int i = 0; i < unlocatedArray.length; i++)
+			unlocatedArray[i] = unlocated.get(i);
+		return new Snapshot(peers, locs, owners, unlocatedArray);
+	}
+
+}
@@ -0,0 +1,57 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import freenet.io.xfer.PacketThrottle;
+
+/**
+ * The window is the peer's PacketThrottle, which NewPacketFormatKeyContext keeps up to date
+ * whichever algorithm is used, because load management uses its bandwidth estimate. Packets
+ * are sent as soon as the window allows.
+ */
+class ThrottleCongestionControl implements CongestionControl {
+
+	private final PacketThrottle throttle;
+
+	ThrottleCongestionControl(PacketThrottle throttle) {
+		this.throttle = throttle;
+	}
+
+	@Override
+	public void onRoundTripTime(long rtt) {
+		// PacketThrottle is told directly.
+	}
+
+	@Override
+	public void onAcked(double maxWindow, long now) {
+		// PacketThrottle is told directly.
+	}
+
+	@Override
+	public void onLost(int count, long now) {
+		// PacketThrottle is told directly.
+	}
+
+	@Override
+	public void onSent(long now) {
+		// No pacing.
+	}
+
+	@Override
+	public double getWindowSize() {
+		if(throttle == null) return Integer.MAX_VALUE;
+		return throttle.getWindowSize();
+	}
+
+	@Override
+	public long nextSendTime(long now) {
+		return now;
+	}
+
+	@Override
+	public String toString() {
+		return "throttle: "+throttle;
+	}
+
+}
@@ -57,6 +57,12 @@ public abstract class UIDTag {
 	
 	private boolean waitingForSlot;
 	
+	/** What we last added to the tracker's request counts. LOCKING: Protected by the lock on the
+	 * tracker's map. */
+	RequestCounters.Contribution counted;
+	/** Set if the tracker has been told about a change and hasn't looked at it yet. */
+	private boolean countersChanged;
+	
 	UIDTag(PeerNode source, boolean realTimeFlag, long uid, Node node) {
 		createdTime = System.currentTimeMillis();
 		this.sourceRef = source == null ? null : source.myRef;
@@ -91,6 +97,7 @@ public abstract class UIDTag {
 			Logger.minor(this, "Routing to "+peer+" on "+this+(offeredKey ? " (offered)" : ""), new Exception("debug"));
 		if(routedTo == null) routedTo = new HashSet<PeerNode>();
 		routedTo.add(peer);
+		countersChanged();
 		if(offeredKey) {
 			if(fetchingOfferedKeyFrom == null) fetchingOfferedKeyFrom = new HashSet<PeerNode>();
 			return fetchingOfferedKeyFrom.add(peer);
@@ -100,6 +107,17 @@ public abstract class UIDTag {
 		}
 	}
 
+	/** @return The peers we are currently routing to or fetching an offered key from. */
+	synchronized PeerNode[] currentlyRoutingOrFetchingFrom() {
+		if(fetchingOfferedKeyFrom == null || fetchingOfferedKeyFrom.isEmpty()) {
+			if(currentlyRoutingTo == null) return new PeerNode[0];
+			return currentlyRoutingTo.toArray(new PeerNode[currentlyRoutingTo.size()]);
+		}
+		HashSet<PeerNode> peers = new HashSet<PeerNode>(fetchingOfferedKeyFrom);
+		if(currentlyRoutingTo != null) peers.addAll(currentlyRoutingTo);
+		return peers.toArray(new PeerNode[peers.size()]);
+	}
+
 	public synchronized boolean hasRoutedTo(PeerNode peer) {
 		if(routedTo == null) return false;
 		return routedTo.contains(peer);
@@ -133,6 +151,7 @@ public abstract class UIDTag {
 		synchronized(this) {
 			if(fetchingOfferedKeyFrom == null) return;
 			fetchingOfferedKeyFrom.remove(next);
+			countersChanged();
 			if(handlingTimeouts != null) {
 				handlingTimeouts.remove(next);
 			}
@@ -171,6 +190,7 @@ public abstract class UIDTag {
 					Logger.minor(this, "Removing wrong node or removing twice? on "+this+" : "+next, new Exception("debug"));
 				}
 			}
+			countersChanged();
 			if(handlingTimeouts != null) {
 				handlingTimeouts.remove(next);
 			}
@@ -222,6 +242,7 @@ public abstract class UIDTag {
 	
 	public synchronized void setNotRoutedOnwards() {
 		this.notRoutedOnwards = true;
+		countersChanged();
 	}
 
 	private boolean reassigned;
@@ -234,10 +255,18 @@ public abstract class UIDTag {
 		return sourceRef.get();
 	}
 
+	/** @return PeerNode.myRef for the effective source, or null, as for getSource(). */
+	synchronized WeakReference<PeerNode> getSourceRef() {
+		if(reassigned) return null;
+		if(wasLocal) return null;
+		return sourceRef;
+	}
+
 	/** Reassign the tag to us rather than its original sender. */
 	public synchronized void reassignToSelf() {
 		if(wasLocal) return;
 		reassigned = true;
+		countersChanged();
 	}
 	
 	/** Was the request originated locally? This returns the original answer: It is not
@@ -330,6 +359,7 @@ public abstract class UIDTag {
 			if(unlockedHandler) return;
 			noRecordUnlock = noRecord;
 			unlockedHandler = true;
+			countersChanged();
 			canUnlock = mustUnlock();
 		}
 		if(canUnlock)
@@ -402,6 +432,7 @@ public abstract class UIDTag {
 
 	public synchronized void setAccepted() {
 		accepted = true;
+		countersChanged();
 	}
 	
 	private boolean timedOutButContinued;
@@ -412,11 +443,13 @@ public abstract class UIDTag {
 	 * messages to the request source. */
 	public synchronized void timedOutToHandlerButContinued() {
 		timedOutButContinued = true;
+		countersChanged();
 	}
 	
 	/** The handler disconnected or restarted. */
 	public synchronized void onRestartOrDisconnectSource() {
 		sourceRestarted = true;
+		countersChanged();
 	}
 	
 	// The third option is reassignToSelf(). We only use that when we actually
@@ -475,6 +508,21 @@ public abstract class UIDTag {
 		slowDown = true;
 	}
 
+	/** Tell the tracker that something which affects its request counts has changed. Does not
+	 * take any locks other than on the tag, so can be called with the tag locked. */
+	protected void countersChanged() {
+		synchronized(this) {
+			if(countersChanged) return;
+			countersChanged = true;
+		}
+		if(tracker != null)
+			tracker.tagChanged(this);
+	}
+
+	synchronized void clearCountersChanged() {
+		countersChanged = false;
+	}
+
 	/** Query the slow-down flag. Should be checked after shouldRejectRequest. */
 	synchronized boolean shouldSlowDown() {
 		return slowDown;
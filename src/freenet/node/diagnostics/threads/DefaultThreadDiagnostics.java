@@ -127,7 +127,8 @@ public class DefaultThreadDiagnostics implements Runnable, ThreadDiagnostics {
     }
 
     /**
-     * Gets the job's ID from the thread (PooledExecutor.MyThread) or
+     * Gets the job's ID from the thread (PooledExecutor.MyThread or
+     * WorkStealingExecutor.Worker) or
      * defaults to the thread's ID.
      * @param thread
      * @return Job ID or Thread ID.
@@ -136,6 +137,8 @@ public class DefaultThreadDiagnostics implements Runnable, ThreadDiagnostics {
         long jobId = thread.getId();
         if ((thread instanceof PooledExecutor.MyThread)) {
             jobId = ((PooledExecutor.MyThread) thread).getJobId();
+        } else if (thread instanceof WorkStealingExecutor.Worker) {
+            jobId = ((WorkStealingExecutor.Worker) thread).getJobId();
         }
 
         return jobId;
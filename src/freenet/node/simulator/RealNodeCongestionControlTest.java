@@ -0,0 +1,97 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node.simulator;
+
+import java.io.File;
+
+import freenet.crypt.DummyRandomSource;
+import freenet.node.CongestionControl;
+import freenet.node.Node;
+import freenet.node.NodeStarter;
+import freenet.node.NodeStarter.TestNodeParameters;
+import freenet.node.PeerNode;
+import freenet.node.simulator.RealNodePacketThroughputTest.Counter;
+import freenet.support.Executor;
+import freenet.support.Logger.LogLevel;
+import freenet.support.PooledExecutor;
+import freenet.support.io.FileUtil;
+
+/**
+ * Connect two nodes over loopback, have the first flood the second with messages over a lossy
+ * link, and report the throughput and how much of what was sent had to be resent. Run it once
+ * with each congestion control algorithm to compare them.
+ *
+ * Usage: RealNodeCongestionControlTest [THROTTLE|CUBIC] [drop one packet in] [output limit in bytes/s]
+ */
+public class RealNodeCongestionControlTest extends RealNodeTest {
+
+	static final int MEASURE_SECONDS = 30;
+
+	public static final int DARKNET_PORT_BASE = RealNodePacketThroughputTest.DARKNET_PORT_END;
+	public static final int DARKNET_PORT_END = DARKNET_PORT_BASE + 2;
+
+	public static void main(String[] args) throws Exception {
+		CongestionControl.Type type = args.length > 0 ? CongestionControl.Type.valueOf(args[0]) : CongestionControl.Type.THROTTLE;
+		int dropProb = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+		int outputLimit = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+		String dir = "realNodeCongestionControlTest";
+		File wd = new File(dir);
+		if(!FileUtil.removeAll(wd)) {
+			System.err.println("Mass delete failed, test may not be accurate.");
+			System.exit(EXIT_CANNOT_DELETE_OLD_DATA);
+		}
+		wd.mkdir();
+		NodeStarter.globalTestInit(dir, false, LogLevel.ERROR, "", true);
+		DummyRandomSource random = new DummyRandomSource(3142);
+		Executor executor = new PooledExecutor();
+		Node[] nodes = new Node[2];
+		for(int i = 0; i < nodes.length; i++) {
+			TestNodeParameters params = new TestNodeParameters();
+			params.port = DARKNET_PORT_BASE + i;
+			params.baseDirectory = wd;
+			params.disableProbabilisticHTLs = true;
+			params.maxHTL = Node.DEFAULT_MAX_HTL;
+			params.dropProb = dropProb;
+			params.random = random;
+			params.executor = executor;
+			params.threadLimit = 1000;
+			params.storeSize = 65536;
+			params.ramStore = true;
+			params.enablePacketCoalescing = true;
+			params.longPingTimes = true;
+			params.outputBandwidthLimit = outputLimit;
+			params.congestionControl = type;
+			nodes[i] = NodeStarter.createTestNode(params);
+		}
+		connect(nodes[0], nodes[1]);
+		Counter counter = new Counter();
+		for(Node node : nodes)
+			node.start(true);
+		nodes[1].registerNodeToNodeMessageListener(RealNodePacketThroughputTest.N2N_MESSAGE_TYPE_FLOOD, counter);
+		waitForAllConnected(nodes);
+		System.out.println("All connected, flooding with "+type+" congestion control, dropping one packet in "+
+				dropProb+(outputLimit > 0 ? ", output limit "+outputLimit+" bytes/s" : ""));
+
+		PeerNode pn = nodes[0].getPeerNodes()[0];
+		RealNodePacketThroughputTest.flood(pn);
+		Thread.sleep(RealNodePacketThroughputTest.WARMUP_SECONDS * 1000);
+		long received = counter.received.get();
+		long sent = pn.getTotalOutputBytes();
+		long resent = pn.getResendBytesSent();
+		long start = System.currentTimeMillis();
+		Thread.sleep(MEASURE_SECONDS * 1000);
+		long time = System.currentTimeMillis() - start;
+		received = counter.received.get() - received;
+		sent = pn.getTotalOutputBytes() - sent;
+		resent = pn.getResendBytesSent() - resent;
+		System.out.println("Throughput: "+(received * 1000 / time)+" messages/s, "+
+				(received * RealNodePacketThroughputTest.MESSAGE_SIZE * 1000 / time / 1024)+" KiB/s of payload");
+		System.out.println("Retransmitted: "+(resent / 1024)+" KiB of "+(sent / 1024)+" KiB sent ("+
+				String.format("%.2f", sent == 0 ? 0.0 : resent * 100.0 / sent)+"%)");
+		System.out.println("Window: "+pn.getThrottle()+", round trip time "+(long)pn.averagePingTime()+"ms");
+		RealNodePacketThroughputTest.stop = true;
+		System.exit(0);
+	}
+
+}
@@ -0,0 +1,199 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node.simulator;
+
+import java.io.File;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import freenet.crypt.DummyRandomSource;
+import freenet.io.comm.AsyncMessageCallback;
+import freenet.io.comm.ByteCounter;
+import freenet.io.comm.DMT;
+import freenet.io.comm.NotConnectedException;
+import freenet.node.Node;
+import freenet.node.NodeStarter;
+import freenet.node.NodeStarter.TestNodeParameters;
+import freenet.node.NodeToNodeMessageListener;
+import freenet.node.PeerNode;
+import freenet.support.Executor;
+import freenet.support.Logger;
+import freenet.support.Logger.LogLevel;
+import freenet.support.PooledExecutor;
+import freenet.support.io.FileUtil;
+
+/**
+ * Connect a few nodes to each other over loopback, have every node flood every peer with
+ * messages, and report how many bytes each node gets through per second. Compare runs with
+ * different numbers of packet threads to see whether it scales with cores.
+ *
+ * Usage: RealNodePacketThroughputTest [packet threads] [nio]
+ */
+public class RealNodePacketThroughputTest extends RealNodeTest {
+
+	static final int NUMBER_OF_NODES = 4;
+	static final int MESSAGE_SIZE = 1024;
+	/** Stop queueing to a peer when this many messages haven't been acknowledged yet. */
+	static final int MAX_IN_FLIGHT = 256;
+	static final int WARMUP_SECONDS = 10;
+	static final int MEASURE_SECONDS = 30;
+
+	public static final int DARKNET_PORT_BASE = RealNodeProbeTest.DARKNET_PORT_END;
+	public static final int DARKNET_PORT_END = DARKNET_PORT_BASE + NUMBER_OF_NODES;
+
+	static volatile boolean stop;
+
+	/** Node to node message type for the flood, which nothing else uses. */
+	static final int N2N_MESSAGE_TYPE_FLOOD = 1000;
+
+	/** Counts the flood messages a node receives. Local traffic doesn't show up in the node's
+	 * IOStatisticCollector, so we count them ourselves. */
+	static class Counter implements NodeToNodeMessageListener {
+		final AtomicLong received = new AtomicLong();
+
+		@Override
+		public void handleMessage(byte[] data, boolean fromDarknet, PeerNode source, int type) {
+			received.incrementAndGet();
+		}
+	}
+
+	private static final ByteCounter ctr = new ByteCounter() {
+
+		@Override
+		public void sentBytes(int x) {
+			// Ignore
+		}
+
+		@Override
+		public void receivedBytes(int x) {
+			// Ignore
+		}
+
+		@Override
+		public void sentPayload(int x) {
+			// Ignore
+		}
+
+	};
+
+	public static void main(String[] args) throws Exception {
+		int packetThreads = args.length > 0 ? Integer.parseInt(args[0]) : 1;
+		boolean nio = args.length > 1 && args[1].equals("nio");
+		String dir = "realNodePacketThroughputTest";
+		File wd = new File(dir);
+		if(!FileUtil.removeAll(wd)) {
+			System.err.println("Mass delete failed, test may not be accurate.");
+			System.exit(EXIT_CANNOT_DELETE_OLD_DATA);
+		}
+		wd.mkdir();
+		NodeStarter.globalTestInit(dir, false, LogLevel.ERROR, "", true);
+		DummyRandomSource random = new DummyRandomSource(3142);
+		Executor executor = new PooledExecutor();
+		Node[] nodes = new Node[NUMBER_OF_NODES];
+		for(int i = 0; i < NUMBER_OF_NODES; i++) {
+			TestNodeParameters params = new TestNodeParameters();
+			params.port = DARKNET_PORT_BASE + i;
+			params.baseDirectory = wd;
+			params.disableProbabilisticHTLs = true;
+			params.maxHTL = Node.DEFAULT_MAX_HTL;
+			params.random = random;
+			params.executor = executor;
+			params.threadLimit = 1000;
+			params.storeSize = 65536;
+			params.ramStore = true;
+			params.enablePacketCoalescing = true;
+			params.longPingTimes = true;
+			params.packetThreads = packetThreads;
+			params.nioUDP = nio;
+			nodes[i] = NodeStarter.createTestNode(params);
+		}
+		for(int i = 0; i < NUMBER_OF_NODES; i++)
+			for(int j = i + 1; j < NUMBER_OF_NODES; j++)
+				connect(nodes[i], nodes[j]);
+		Counter[] counters = new Counter[NUMBER_OF_NODES];
+		for(int i = 0; i < NUMBER_OF_NODES; i++) {
+			nodes[i].start(true);
+			counters[i] = new Counter();
+			nodes[i].registerNodeToNodeMessageListener(N2N_MESSAGE_TYPE_FLOOD, counters[i]);
+		}
+		waitForAllConnected(nodes);
+		System.out.println("All connected, flooding with "+packetThreads+" packet threads"+(nio ? " using NIO" : ""));
+
+		for(Node node : nodes)
+			for(PeerNode pn : node.getPeerNodes())
+				flood(pn);
+		Thread.sleep(WARMUP_SECONDS * 1000);
+		long[] before = new long[NUMBER_OF_NODES];
+		for(int i = 0; i < NUMBER_OF_NODES; i++)
+			before[i] = counters[i].received.get();
+		long start = System.currentTimeMillis();
+		Thread.sleep(MEASURE_SECONDS * 1000);
+		long time = System.currentTimeMillis() - start;
+		long total = 0;
+		for(int i = 0; i < NUMBER_OF_NODES; i++) {
+			long received = counters[i].received.get() - before[i];
+			total += received;
+			System.out.println("Node "+i+": "+(received * 1000 / time)+" messages/s received");
+		}
+		System.out.println("Total: "+(total * 1000 / time)+" messages/s, "+
+				(total * MESSAGE_SIZE * 1000 / time / 1024)+" KiB/s of payload");
+		stop = true;
+		System.exit(0);
+	}
+
+	/** Keep the peer's queue topped up with messages. */
+	static void flood(final PeerNode pn) {
+		final Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+		final AsyncMessageCallback cb = new AsyncMessageCallback() {
+
+			@Override
+			public void sent() {
+				// Ignore
+			}
+
+			@Override
+			public void acknowledged() {
+				inFlight.release();
+			}
+
+			@Override
+			public void disconnected() {
+				inFlight.release();
+			}
+
+			@Override
+			public void fatalError() {
+				inFlight.release();
+			}
+
+		};
+		Thread t = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				byte[] data = new byte[MESSAGE_SIZE];
+				while(!stop) {
+					try {
+						inFlight.acquire();
+						pn.sendAsync(DMT.createNodeToNodeMessage(N2N_MESSAGE_TYPE_FLOOD, data), cb, ctr);
+					} catch (NotConnectedException e) {
+						inFlight.release();
+						Logger.error(RealNodePacketThroughputTest.class, "Not connected to "+pn);
+						try {
+							Thread.sleep(100);
+						} catch (InterruptedException e1) {
+							// Ignore
+						}
+					} catch (InterruptedException e) {
+						// Ignore
+					}
+				}
+			}
+
+		}, "Flooding "+pn);
+		t.setDaemon(true);
+		t.start();
+	}
+
+}
@@ -36,6 +36,12 @@ public abstract class StoreAccessStats {
 		return (1.0 * writes() / nodeUptimeSeconds);
 	}
 
+	/** Average time taken by a fetch which found the key, in nanoseconds. Only stores which
+	 * time their fetches support this. */
+	public double avgHitLatency() throws StatsNotAvailableException {
+		throw new StatsNotAvailableException();
+	}
+
 
 
 
@@ -1,6 +1,9 @@
 package freenet.store.caching;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -13,6 +16,8 @@ import freenet.store.KeyCollisionException;
 import freenet.store.ProxyFreenetStore;
 import freenet.store.StorableBlock;
 import freenet.store.StoreCallback;
+import freenet.store.saltedhash.SaltedHashFreenetStore;
+import freenet.store.saltedhash.SaltedHashFreenetStore.QueuedPut;
 import freenet.support.ByteArrayWrapper;
 import freenet.support.LRUMap;
 import freenet.support.Logger;
@@ -175,48 +180,72 @@ public class CachingFreenetStore<T extends StorableBlock> extends ProxyFreenetSt
 		}
 	}
 	
-	/** Try to write one block to disk.
-	 * @return The number of bytes written to disk if we successfully wrote a block, 0 if we wrote 
-	 * a block but can't remove it because it changed while we were writing it, and -1 if there 
-	 * were no blocks to write because the cache is empty.
+	/** Try to write up to maxBlocks of the least recently used blocks to disk in one go. If the 
+	 * underlying store is a SaltedHashFreenetStore, they are written as a single group, sorted by
+	 * slot, rather than one seek per block.
+	 * @return The number of bytes removed from the cache, 0 if we wrote some blocks but couldn't
+	 * remove any of them because they changed while we were writing them, and -1 if there were no
+	 * blocks to write because the cache is empty.
 	 */
-	long pushLeastRecentlyBlock() {
-		Block<T> block = null;
-		ByteArrayWrapper key = null;
+	long pushLeastRecentlyBlocks(int maxBlocks) {
+		ArrayList<ByteArrayWrapper> keys = new ArrayList<ByteArrayWrapper>(maxBlocks);
+		ArrayList<Block<T>> blocks = new ArrayList<Block<T>>(maxBlocks);
 		
 		configLock.writeLock().lock();
 		try {
-			block = blocksByRoutingKey.peekValue();
-			if(block == null) return -1;
-			key = blocksByRoutingKey.peekKey();
+			// Both enumerate from the least recently used end.
+			Enumeration<ByteArrayWrapper> keyEnum = blocksByRoutingKey.keys();
+			Enumeration<Block<T>> blockEnum = blocksByRoutingKey.values();
+			while(keys.size() < maxBlocks && keyEnum.hasMoreElements()) {
+				keys.add(keyEnum.nextElement());
+				blocks.add(blockEnum.nextElement());
+			}
 		} finally {
 			configLock.writeLock().unlock();
 		}
-			
-		try {
-			backDatastore.put(block.block, block.data, block.header, block.overwrite, block.isOldBlock);
-		} catch (IOException e) {
-			Logger.error(this, "Error in pushAll for CachingFreenetStore: "+e, e);
-		} catch (KeyCollisionException e) {
-			if(logMINOR) Logger.minor(this, "KeyCollisionException in pushAll for CachingFreenetStore: "+e, e);
+		if(keys.isEmpty()) return -1;
+		
+		long startTime = System.nanoTime();
+		if(backDatastore instanceof SaltedHashFreenetStore) {
+			List<QueuedPut<T>> puts = new ArrayList<QueuedPut<T>>(blocks.size());
+			for(Block<T> block : blocks)
+				puts.add(new QueuedPut<T>(block.block, block.data, block.header, block.overwrite, block.isOldBlock));
+			try {
+				((SaltedHashFreenetStore<T>) backDatastore).putAll(puts);
+			} catch (IOException e) {
+				Logger.error(this, "Error in pushAll for CachingFreenetStore: "+e, e);
+			}
+		} else {
+			for(Block<T> block : blocks) {
+				try {
+					backDatastore.put(block.block, block.data, block.header, block.overwrite, block.isOldBlock);
+				} catch (IOException e) {
+					Logger.error(this, "Error in pushAll for CachingFreenetStore: "+e, e);
+				} catch (KeyCollisionException e) {
+					if(logMINOR) Logger.minor(this, "KeyCollisionException in pushAll for CachingFreenetStore: "+e, e);
+				}
+			}
 		}
+		tracker.onFlush(blocks.size(), System.nanoTime() - startTime);
 		
+		long removed = 0;
 		configLock.writeLock().lock();
 		try {
-			Block<T> currentVersionOfBlock = blocksByRoutingKey.get(key);
-			
-			/** it might have changed if there was a put() with overwrite=true. 
-			 *  If it has changed, return 0 , i.e. don't remove it*/
-			if(currentVersionOfBlock != null && currentVersionOfBlock.block.equals(block.block)) {
-				if(blocksByRoutingKey.removeKey(key))
-					return sizeBlock;
+			for(int i = 0; i < keys.size(); i++) {
+				ByteArrayWrapper key = keys.get(i);
+				Block<T> currentVersionOfBlock = blocksByRoutingKey.get(key);
+				// It might have changed if there was a put() with overwrite=true. If so, don't remove it.
+				if(currentVersionOfBlock != null && currentVersionOfBlock.block.equals(blocks.get(i).block)) {
+					if(blocksByRoutingKey.removeKey(key))
+						removed += sizeBlock;
+				}
 			}
 		} finally {
 			configLock.writeLock().unlock();
 		}
-		return 0;
+		return removed;
 	}
-
+	
 	@Override
 	public boolean start(Ticker ticker, boolean longStart) throws IOException {
 		tracker.registerCachingFS(this);
@@ -36,6 +36,11 @@ public class CachingFreenetStoreTracker {
 	 * straight away. */
 	private boolean runningJob;
 	private long size;
+	/** Number of batches written by pushLeastRecentlyBlocks(), and the blocks and time they took. */
+	private long flushes;
+	private long flushedBlocks;
+	private long flushTime;
+	private int lastFlushBatchSize;
 	
     static { Logger.registerClass(CachingFreenetStore.class); }
     
@@ -60,7 +65,7 @@ public class CachingFreenetStoreTracker {
 	public void unregisterCachingFS(CachingFreenetStore<?> fs) {
 		long sizeBlock = 0;
 		while(true) {
-			sizeBlock = fs.pushLeastRecentlyBlock();
+			sizeBlock = fs.pushLeastRecentlyBlocks(numberOfKeysToWrite);
 			synchronized(this) {
 				if(sizeBlock == -1)
 					break;
@@ -148,25 +153,51 @@ public class CachingFreenetStoreTracker {
 	            cachingStoresSnapshot = this.cachingStores.toArray(new CachingFreenetStore<?>[cachingStores.size()]);
 	        }
 			for(CachingFreenetStore<?> cfs : cachingStoresSnapshot) {
-				int k=0;
-				while(k < numberOfKeysToWrite) {
-					long sizeBlock = cfs.pushLeastRecentlyBlock();
-					if(sizeBlock == -1) break;
-					synchronized(this) {
-						size -= sizeBlock;
-						assert(size >= 0); // Break immediately if in unit testing.
-						if(size < 0) {
-							Logger.error(this, "Cache broken: Size = "+size);
-							size = 0;
-						}
-						if(size == 0) return;
+				long sizeBlock = cfs.pushLeastRecentlyBlocks(numberOfKeysToWrite);
+				if(sizeBlock == -1) continue;
+				synchronized(this) {
+					size -= sizeBlock;
+					assert(size >= 0); // Break immediately if in unit testing.
+					if(size < 0) {
+						Logger.error(this, "Cache broken: Size = "+size);
+						size = 0;
 					}
-					k++;
+					if(size == 0) return;
 				}
 			}
 		}
 	}
 	
+	/** Called by CachingFreenetStore after writing a batch of blocks to the underlying store. */
+	synchronized void onFlush(int blocks, long timeNanos) {
+		flushes++;
+		flushedBlocks += blocks;
+		flushTime += timeNanos;
+		lastFlushBatchSize = blocks;
+	}
+	
+	/** @return The average number of blocks written to the underlying store per flush. */
+	public synchronized double getAverageFlushBatchSize() {
+		if(flushes == 0) return 0;
+		return (double) flushedBlocks / flushes;
+	}
+	
+	/** @return The number of blocks written by the most recent flush. */
+	public synchronized int getLastFlushBatchSize() {
+		return lastFlushBatchSize;
+	}
+	
+	/** @return The average time taken to write one batch to the underlying store, in milliseconds. */
+	public synchronized double getAverageFlushLatency() {
+		if(flushes == 0) return 0;
+		return flushTime / (flushes * 1000000.0);
+	}
+	
+	/** @return The total number of batches written to the underlying stores. */
+	public synchronized long getFlushCount() {
+		return flushes;
+	}
+	
 	public long getSizeOfCache() {
 		long sizeReturned;
 		synchronized(this) {
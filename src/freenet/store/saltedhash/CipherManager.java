@@ -162,7 +162,7 @@ public class CipherManager {
 		System.arraycopy(iv, 0, iv2, 0x10, 0x10);
 
 		try {
-			BlockCipher aes = new Rijndael(256, 256);
+			BlockCipher aes = Rijndael.create(256, 256);
 			aes.initialize(key);
 
 			return PCFBMode.create(aes, iv2);
@@ -3,11 +3,8 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.store.saltedhash;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 import freenet.support.Logger;
@@ -15,75 +12,97 @@ import freenet.support.Logger.LogLevel;
 
 /**
  * Lock Manager
- * 
- * Handle locking/unlocking of individual offsets.
- * 
+ *
+ * Handle locking/unlocking of offsets.
+ *
+ * Each offset is covered by one of a fixed array of locks, chosen by the offset, so locking needs
+ * no map and no allocation, and threads working on unrelated slots rarely share a lock. Several
+ * offsets are always locked together, in the order of their locks, so callers cannot deadlock.
+ *
  * @author sdiz
  */
 public class LockManager {
 	private static boolean logDEBUG;
+	/** Number of locks. Must be a power of 2, and well above the number of slots the cleaner
+	 * locks at once. */
+	static final int STRIPES = 512;
 	private volatile boolean shutdown;
-	private Lock entryLock = new ReentrantLock();
-	private Map<Long, Condition> lockMap = new HashMap<Long, Condition>();
+	private final ReentrantLock[] locks;
 
 	LockManager() {
 		logDEBUG = Logger.shouldLog(LogLevel.DEBUG, this);
+		locks = new ReentrantLock[STRIPES];
+		for (int i = 0; i < STRIPES; i++)
+			locks[i] = new ReentrantLock();
+	}
+
+	/** Neighbouring slots go to different locks, which is what the cleaner wants. */
+	static int stripe(long offset) {
+		return (int) offset & (STRIPES - 1);
 	}
 
 	/**
-	 * Lock the entry
-	 * 
-	 * This lock is <strong>not</strong> re-entrance. No threads except Cleaner should hold more
-	 * then one lock at a time (or deadlock may occur).
+	 * Lock the entries
+	 *
+	 * No thread should lock more entries while it holds any (or deadlock may occur), it must lock
+	 * them all at once.
+	 *
+	 * @return The locks taken, to pass to {@link #unlockEntries(int[])}, or null if shutting down.
 	 */
-	Condition lockEntry(long offset) {
+	int[] lockEntries(long... offsets) {
 		if (logDEBUG)
-			Logger.debug(this, "try locking " + offset, new Exception());
+			Logger.debug(this, "try locking " + Arrays.toString(offsets), new Exception());
 
-		Condition condition;
-		try {
-			entryLock.lock();
-			try {
-				do {
-					if (shutdown)
-						return null;
+		int[] stripes = new int[offsets.length];
+		for (int i = 0; i < offsets.length; i++)
+			stripes[i] = stripe(offsets[i]);
+		Arrays.sort(stripes);
+		int count = 0;
+		for (int i = 0; i < stripes.length; i++)
+			if (i == 0 || stripes[i] != stripes[i - 1])
+				stripes[count++] = stripes[i];
+		stripes = Arrays.copyOf(stripes, count);
 
-					Condition lockCond = lockMap.get(offset);
-					if (lockCond != null)
-						lockCond.await(10, TimeUnit.SECONDS); // 10s for checking shutdown
-					else
-						break;
-				} while (true);
-				condition = entryLock.newCondition();
-				lockMap.put(offset, condition);
-			} finally {
-				entryLock.unlock();
+		for (int i = 0; i < count; i++) {
+			if (!lock(locks[stripes[i]])) {
+				// failed, remove the locks
+				for (int j = 0; j < i; j++)
+					locks[stripes[j]].unlock();
+				return null;
 			}
-		} catch (InterruptedException e) {
-			Logger.error(this, "lock interrupted", e);
-			return null;
 		}
 
 		if (logDEBUG)
-			Logger.debug(this, "locked " + offset, new Exception());
-		return condition;
+			Logger.debug(this, "locked " + Arrays.toString(offsets), new Exception());
+		return stripes;
+	}
+
+	private boolean lock(ReentrantLock lock) {
+		try {
+			while (!lock.tryLock(10, TimeUnit.SECONDS)) { // 10s for checking shutdown
+				if (shutdown)
+					return false;
+			}
+		} catch (InterruptedException e) {
+			Logger.error(this, "lock interrupted", e);
+			return false;
+		}
+		if (shutdown) {
+			lock.unlock();
+			return false;
+		}
+		return true;
 	}
 
 	/**
-	 * Unlock the entry
+	 * Unlock the entries
 	 */
-	void unlockEntry(long offset, Condition condition) {
+	void unlockEntries(int[] stripes) {
 		if (logDEBUG)
-			Logger.debug(this, "unlocking " + offset, new Exception("debug"));
+			Logger.debug(this, "unlocking " + Arrays.toString(stripes), new Exception("debug"));
 
-		entryLock.lock();
-		try {
-			Condition cond = lockMap.remove(offset);
-			assert cond == condition;
-			cond.signal();
-		} finally {
-			entryLock.unlock();
-		}
+		for (int stripe : stripes)
+			locks[stripe].unlock();
 	}
 
 	/**
@@ -91,14 +110,9 @@ public class LockManager {
 	 */
 	void shutdown() {
 		shutdown = true;
-		entryLock.lock();
-		try {
-			while (!lockMap.isEmpty()) {
-				Condition cond = lockMap.values().iterator().next();
-				cond.awaitUninterruptibly();
-			}
-		} finally {
-			entryLock.unlock();
+		for (ReentrantLock lock : locks) {
+			lock.lock();
+			lock.unlock();
 		}
 	}
 }
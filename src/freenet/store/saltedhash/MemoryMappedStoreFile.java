@@ -0,0 +1,113 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store.saltedhash;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import freenet.support.Logger;
+
+/**
+ * Memory-mapped view of one of the salted hash store files.
+ *
+ * The file is mapped lazily in windows holding a whole number of slots, so a slot never straddles
+ * two mappings and can be read or written in place instead of through a positional
+ * {@link FileChannel} read or write. The last window only covers the slots which exist in the file
+ * when it is mapped; the caller must fall back to the channel for anything beyond that.
+ *
+ * The caller must {@link #invalidate()} the mappings before changing the length of the file, and
+ * must not use any buffer returned by {@link #slot(long)} after that.
+ */
+class MemoryMappedStoreFile {
+
+	/** Default size of a single window. Small enough that a 32-bit JVM can map a few of them. */
+	static final int DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+
+	private final FileChannel channel;
+	private final String name;
+	private final int slotLength;
+	private final int slotsPerWindow;
+	private final long windowLength;
+	/** Mapped windows by index. Copy-on-write, so readers don't need to lock. */
+	private volatile MappedByteBuffer[] windows = new MappedByteBuffer[0];
+	/** Set if mapping failed, e.g. out of address space. We then stay on the channel path. */
+	private volatile boolean disabled;
+
+	MemoryMappedStoreFile(FileChannel channel, String name, int slotLength, int windowSize) {
+		if(slotLength <= 0) throw new IllegalArgumentException();
+		this.channel = channel;
+		this.name = name;
+		this.slotLength = slotLength;
+		this.slotsPerWindow = Math.max(1, windowSize / slotLength);
+		this.windowLength = (long)slotsPerWindow * slotLength;
+	}
+
+	/**
+	 * Get a buffer covering exactly one slot of the file. Position 0 of the returned buffer is the
+	 * start of the slot, and the limit is the slot length. The buffer shares its content with the
+	 * file, so writes to it go straight to the page cache.
+	 * @return The slot, or null if the slot is not mapped and the caller must use the channel.
+	 */
+	ByteBuffer slot(long offset) {
+		if(disabled) return null;
+		long windowNo = offset / slotsPerWindow;
+		if(windowNo >= Integer.MAX_VALUE) return null;
+		MappedByteBuffer[] w = windows;
+		MappedByteBuffer window = windowNo < w.length ? w[(int)windowNo] : null;
+		if(window == null) {
+			window = map((int)windowNo);
+			if(window == null) return null;
+		}
+		ByteBuffer buf = window.duplicate();
+		int pos = (int)(offset % slotsPerWindow) * slotLength;
+		if(pos + slotLength > buf.capacity()) return null;
+		buf.limit(pos + slotLength);
+		buf.position(pos);
+		return buf.slice();
+	}
+
+	private synchronized MappedByteBuffer map(int windowNo) {
+		MappedByteBuffer[] w = windows;
+		if(windowNo < w.length && w[windowNo] != null) return w[windowNo];
+		if(disabled) return null;
+		long start = windowNo * windowLength;
+		try {
+			long length = Math.min(windowLength, channel.size() - start);
+			length -= length % slotLength;
+			if(length <= 0) return null;
+			MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_WRITE, start, length);
+			if(windowNo >= w.length)
+				w = Arrays.copyOf(w, windowNo + 1);
+			else
+				w = w.clone();
+			w[windowNo] = window;
+			windows = w;
+			return window;
+		} catch (IOException e) {
+			// Most likely out of address space. Not fatal, the channel still works.
+			Logger.error(this, "Unable to map "+name+" at "+start+", falling back to FileChannel: "+e, e);
+			disabled = true;
+			windows = new MappedByteBuffer[0];
+			return null;
+		}
+	}
+
+	/** Drop all the mappings, e.g. because the file is about to be resized. They will be
+	 * recreated on demand. */
+	synchronized void invalidate() {
+		windows = new MappedByteBuffer[0];
+	}
+
+	/** Write any dirty pages back to disk. */
+	synchronized void force() {
+		for(MappedByteBuffer window : windows) {
+			if(window != null)
+				window.force();
+		}
+	}
+
+}
@@ -29,8 +29,9 @@ public class ResizablePersistentIntBuffer {
 	private final FileChannel channel;
 	private final boolean isNew;
 	private int size;
-	/** The buffer. When we resize we write-lock and replace this. */
-	private int[] buffer;
+	/** The buffer. When we resize we write-lock and replace this. Volatile so that get() can
+	 * read it without taking the lock. */
+	private volatile int[] buffer;
 	private final ReadWriteLock lock;
 	// 5 minutes by default. Disk I/O kills disks, and annoys users, so it's a fair tradeoff.
 	// Anything other than -1 risks data loss if the node is shut down uncleanly.
@@ -49,7 +50,7 @@ public class ResizablePersistentIntBuffer {
 	/** Is the writer job running? So we can wait for it to complete on shutdown e.g. 
 	 * Protected by (this). */
 	private boolean writing;
-	private boolean closed;
+	private volatile boolean closed;
 	
 	public static synchronized void setPersistenceTime(int val) {
 		globalPersistenceTime = val;
@@ -114,14 +115,11 @@ public class ResizablePersistentIntBuffer {
 		}
 	}
 
+	/** Lock-free: an int read is atomic, and a resize only ever swaps in a complete copy of the 
+	 * buffer, so at worst we see the value from just before a concurrent put() or resize(). */
 	public int get(int offset) {
-		lock.readLock().lock();
 		if(closed) throw new IllegalStateException("Already shut down");
-		try {
-			return buffer[offset];
-		} finally {
-			lock.readLock().unlock();
-		}
+		return buffer[offset];
 	}
 	
 	public void put(int offset, int value) throws IOException {
@@ -12,15 +12,20 @@ import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Deque;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
-import java.util.SortedSet;
 import java.util.TreeMap;
-import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
@@ -41,6 +46,7 @@ import freenet.keys.SSKBlock;
 import freenet.l10n.NodeL10n;
 import freenet.node.FastRunnable;
 import freenet.node.SemiOrderedShutdownHook;
+import freenet.node.stats.StatsNotAvailableException;
 import freenet.node.stats.StoreAccessStats;
 import freenet.node.useralerts.AbstractUserAlert;
 import freenet.node.useralerts.UserAlert;
@@ -122,12 +128,18 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	private final Random random;
 	private final File bloomFile;
 
-	private long storeSize;
+	/** Volatile so fetch() can check the slot filter without locking. setMaxKeys() sets 
+	 * prevStoreSize before storeSize, so a reader which reads storeSize first and sees the new
+	 * size will also see that a resize is in progress. */
+	private volatile long storeSize;
 	private int generation;
 	private int flags;
 
 	private boolean preallocate = true;
 	public static boolean NO_CLEANER_SLEEP = false;
+	/** How many batches of slots the slot filter rebuild does between checkpoints. Not final so
+	 * the tests can use small stores. */
+	static int REBUILD_BATCHES_PER_CHECKPOINT = 1024;
 
 	/**
 	 * true if close() hase been called
@@ -151,12 +163,25 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	public static <T extends StorableBlock> SaltedHashFreenetStore<T> construct(File baseDir, String name, StoreCallback<T> callback, Random random,
 	        long maxKeys, boolean useSlotFilter, SemiOrderedShutdownHook shutdownHook, boolean preallocate, boolean resizeOnStart, Ticker exec, byte[] masterKey)
 	        throws IOException {
+		return construct(baseDir, name, callback, random, maxKeys, useSlotFilter, shutdownHook, preallocate,
+		        resizeOnStart, exec, masterKey, false);
+	}
+
+	/**
+	 * @param memoryMapped If true, access the metadata and header+data files through
+	 * memory-mapped windows rather than positional FileChannel reads and writes. See
+	 * {@link MemoryMappedStoreFile}.
+	 */
+	public static <T extends StorableBlock> SaltedHashFreenetStore<T> construct(File baseDir, String name, StoreCallback<T> callback, Random random,
+	        long maxKeys, boolean useSlotFilter, SemiOrderedShutdownHook shutdownHook, boolean preallocate, boolean resizeOnStart, Ticker exec, byte[] masterKey,
+	        boolean memoryMapped) throws IOException {
 		return new SaltedHashFreenetStore<T>(baseDir, name, callback, random, maxKeys, useSlotFilter,
-		        shutdownHook, preallocate, resizeOnStart, masterKey);
+		        shutdownHook, preallocate, resizeOnStart, masterKey, memoryMapped);
 	}
 
 	private SaltedHashFreenetStore(File baseDir, String name, StoreCallback<T> callback, Random random, long maxKeys,
-	        boolean enableSlotFilters, SemiOrderedShutdownHook shutdownHook, boolean preallocate, boolean resizeOnStart, byte[] masterKey) throws IOException {
+	        boolean enableSlotFilters, SemiOrderedShutdownHook shutdownHook, boolean preallocate, boolean resizeOnStart, byte[] masterKey,
+	        boolean memoryMapped) throws IOException {
 		logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
 		logDEBUG = Logger.shouldLog(LogLevel.DEBUG, this);
 
@@ -176,6 +201,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		this.random = random;
 		storeSize = maxKeys;
 		this.preallocate = preallocate;
+		this.memoryMapped = memoryMapped;
 
 		lockManager = new LockManager();
 
@@ -189,6 +215,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		boolean newStore = loadConfigFile(masterKey);
 		if(storeSize != 0 && storeSize != maxKeys && prevStoreSize == 0) {
 			// If not already resizing, start resizing to the new store size.
+			resizeCursor = storeSize;
 			prevStoreSize = storeSize;
 			storeSize = maxKeys;
 			writeConfigFile();
@@ -238,7 +265,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		if (resizeOnStart && prevStoreSize != 0 && cleanerGlobalLock.tryLock()) {
 			System.out.println("Resizing datastore (" + name + ")");
 			try {
-				cleanerThread.resizeStore(prevStoreSize, false);
+				cleanerThread.resizeStore(prevStoreSize, false, Long.MAX_VALUE);
 			} finally {
 				cleanerGlobalLock.unlock();
 			}
@@ -247,6 +274,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		
 		if(((!slotFilterDisabled) && slotFilter.isNew()) && !newStore) {
 			flags |= FLAG_REBUILD_BLOOM;
+			rebuildCursor = 0;
 			System.out.println("Rebuilding slot filter because new");
 		} else if((flags & FLAG_REBUILD_BLOOM) != 0)
 			System.out.println("Slot filter still needs rebuilding");
@@ -315,6 +343,12 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		if (logMINOR)
 			Logger.minor(this, "Fetch " + HexUtil.bytesToHex(routingKey) + " for " + callback);
 
+		long startTime = System.nanoTime();
+		byte[] digestedKey = cipherManager.getDigestedKey(routingKey);
+		if (definitelyNotInStore(digestedKey)) {
+			misses.incrementAndGet();
+			return null;
+		}
 		try {
 			int retry = 0;
 			while (!configLock.readLock().tryLock(2, TimeUnit.SECONDS)) {
@@ -326,9 +360,8 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		} catch(InterruptedException e) {
 			throw new IOException("interrupted: " +e);
 		}
-		byte[] digestedKey = cipherManager.getDigestedKey(routingKey);
 		try {
-			Map<Long, Condition> lockMap = lockDigestedKey(digestedKey, true);
+			int[] lockMap = lockDigestedKey(digestedKey, true);
 			if (lockMap == null) {
 				if (logDEBUG)
 					Logger.debug(this, "cannot lock key: " + HexUtil.bytesToHex(routingKey) + ", shutting down?");
@@ -357,6 +390,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 						return null;
 					}
 					hits.incrementAndGet();
+					hitTime.addAndGet(System.nanoTime() - startTime);
 					return block;
 				} catch (KeyVerifyException e) {
 					Logger.minor(this, "key verification exception", e);
@@ -371,6 +405,35 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		}
 	}
 
+	/**
+	 * Check the slot filter for a key without taking any locks. Most fetches are misses, and if
+	 * every slot the key could be in has been checked and none of them is a likely match, we can
+	 * return without touching the config lock or the slot locks. Gives up while a resize is in
+	 * progress, because the slot filter is being resized too.
+	 *
+	 * @return True if the key is certainly not in the store. False means we don't know.
+	 */
+	private boolean definitelyNotInStore(byte[] digestedKey) {
+		if (slotFilterDisabled || !USE_SLOT_FILTER || shutdown)
+			return false;
+		long size = storeSize; // Must be read before prevStoreSize, see setMaxKeys().
+		if (prevStoreSize != 0)
+			return false;
+		try {
+			for (long offset : getOffsetFromDigestedKey(digestedKey, size)) {
+				if (offset >= Integer.MAX_VALUE)
+					return false;
+				int cache = slotFilter.get((int) offset);
+				if ((cache & SLOT_CHECKED) == 0 || slotCacheLikelyMatch(cache, digestedKey))
+					return false;
+			}
+		} catch (IllegalStateException e) {
+			// Slot filter closed, we are shutting down. Let the normal path deal with it.
+			return false;
+		}
+		return true;
+	}
+
 	/**
 	 * Find and lock an entry with a specific routing key. This function would <strong>not</strong>
 	 * lock the entries.
@@ -382,19 +445,26 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	 */
 	private Entry probeEntry(byte[] digestedKey, byte[] routingKey, boolean withData) throws IOException {
 		
-		Entry entry = probeEntry0(digestedKey, routingKey, storeSize, withData);
+		Entry entry = probeEntry0(digestedKey, routingKey, storeSize, Long.MAX_VALUE, withData);
 
 		if (entry == null && prevStoreSize != 0)
-			entry = probeEntry0(digestedKey, routingKey, prevStoreSize, withData);
+			entry = probeEntry0(digestedKey, routingKey, prevStoreSize, resizeCursor, withData);
 
 		return entry;
 	}
 
-	private Entry probeEntry0(byte[] digestedKey, byte[] routingKey, long probeStoreSize, boolean withData) throws IOException {
+	/**
+	 * @param probeLimit
+	 *            Don't probe offsets at or above this. Used to skip old slots which have already
+	 *            been migrated by a resize.
+	 */
+	private Entry probeEntry0(byte[] digestedKey, byte[] routingKey, long probeStoreSize, long probeLimit, boolean withData) throws IOException {
 		Entry entry = null;
 		long[] offset = getOffsetFromDigestedKey(digestedKey, probeStoreSize);
 
 		for (int i = 0; i < offset.length; i++) {
+			if (offset[i] >= probeLimit)
+				continue;
 			if (logDEBUG)
 				Logger.debug(this, "probing for i=" + i + ", offset=" + offset[i]);
 
@@ -420,7 +490,6 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 	public boolean put(T block, byte[] data, byte[] header, boolean overwrite, boolean isOldBlock, boolean wrongStore) throws IOException, KeyCollisionException {
 		byte[] routingKey = block.getRoutingKey();
-		byte[] fullKey = block.getFullKey();
 
 		if (logMINOR)
 			Logger.minor(this, "Putting " + HexUtil.bytesToHex(routingKey) + " (" + name + ")");
@@ -438,128 +507,226 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		}
 		byte[] digestedKey = cipherManager.getDigestedKey(routingKey);
 		try {
-			Map<Long, Condition> lockMap = lockDigestedKey(digestedKey, false);
+			int[] lockMap = lockDigestedKey(digestedKey, false);
 			if (lockMap == null) {
 				if (logDEBUG)
 					Logger.debug(this, "cannot lock key: " + HexUtil.bytesToHex(routingKey) + ", shutting down?");
 				return false;
 			}
 			try {
-				/*
-				 * Use lazy loading here. This may lost data if digestedRoutingKey collide but
-				 * collisionPossible is false. Should be very rare as digestedRoutingKey is a
-				 * SHA-256 hash.
-				 */
-				Entry oldEntry = probeEntry(digestedKey, routingKey, false);
-				if (oldEntry != null && !oldEntry.isFree()) {
-					long oldOffset = oldEntry.curOffset;
-					try {
-						if (!collisionPossible) {
-							if((oldEntry.flag & Entry.ENTRY_NEW_BLOCK) == 0 && !isOldBlock) {
-								oldEntry = readEntry(oldEntry.curOffset, digestedKey, routingKey, true);
-								// Currently flagged as an old block
-								oldEntry.flag |= Entry.ENTRY_NEW_BLOCK;
-								if(logMINOR) Logger.minor(this, "Setting old block to new block");
-								oldEntry.storeSize = storeSize;
-								writeEntry(oldEntry, digestedKey, oldOffset);
-							}
-							return true;
-						}
-						oldEntry.setHD(readHD(oldOffset)); // read from disk
-						T oldBlock = oldEntry.getStorableBlock(routingKey, fullKey, false, false, null, (block instanceof SSKBlock) ? ((SSKBlock)block).getPubKey() : null);
-						if (block.equals(oldBlock)) {
-							if(logDEBUG) Logger.debug(this, "Block already stored");
-							if((oldEntry.flag & Entry.ENTRY_NEW_BLOCK) == 0 && !isOldBlock) {
-								// Currently flagged as an old block
-								oldEntry.flag |= Entry.ENTRY_NEW_BLOCK;
-								if(logMINOR) Logger.minor(this, "Setting old block to new block");
-								oldEntry.storeSize = storeSize;
-								writeEntry(oldEntry, digestedKey, oldOffset);
-							}
-							return false; // already in store
-						} else if (!overwrite) {
-							throw new KeyCollisionException();
-						}
-					} catch (KeyVerifyException e) {
-						// ignore
-					}
-
-					// Overwrite old offset with same key
-					Entry entry = new Entry(routingKey, header, data, !isOldBlock, wrongStore);
-					writeEntry(entry, digestedKey, oldOffset);
-					if (oldEntry.generation != generation)
-						keyCount.incrementAndGet();
-					return true;
-				}
+				return putLocked(block, data, header, overwrite, isOldBlock, wrongStore, digestedKey, null);
+			} finally {
+				unlockDigestedKey(digestedKey, false, lockMap);
+			}
+		} finally {
+			configLock.readLock().unlock();
+		}
+	}
 
-				Entry entry = new Entry(routingKey, header, data, !isOldBlock, wrongStore);
-				long[] offset = entry.getOffset();
+	/** A block waiting to be written by putAll(). */
+	public static class QueuedPut<T extends StorableBlock> {
+		final T block;
+		final byte[] data;
+		final byte[] header;
+		final boolean overwrite;
+		final boolean isOldBlock;
+
+		public QueuedPut(T block, byte[] data, byte[] header, boolean overwrite, boolean isOldBlock) {
+			this.block = block;
+			this.data = data;
+			this.header = header;
+			this.overwrite = overwrite;
+			this.isOldBlock = isOldBlock;
+		}
+	}
 
-				int firstWrongStoreIndex = -1;
-				int wrongStoreCount = 0;
+	/**
+	 * Store several blocks at once. The slots for all of them are locked up front, and the writes
+	 * are sorted by slot and merged into gathering writes where the slots are adjacent, which is
+	 * much cheaper than calling put() for each block when flushing a write cache.
+	 *
+	 * Key collisions are logged and the colliding block is skipped; they are not fatal to the
+	 * rest of the batch.
+	 */
+	public void putAll(List<QueuedPut<T>> puts) throws IOException {
+		if (puts.isEmpty())
+			return;
+		if (logMINOR)
+			Logger.minor(this, "Putting " + puts.size() + " blocks (" + name + ")");
 
-				for (int i = 0; i < offset.length; i++) {
-					if(offset[i] < storeFileOffsetReady) {
-						long flag = getFlag(offset[i], false);
-						if((flag & Entry.ENTRY_FLAG_OCCUPIED) == 0) {
-							// write to free block
-							if (logDEBUG)
-								Logger.debug(this, "probing, write to i=" + i + ", offset=" + offset[i]);
-							writeEntry(entry, digestedKey, offset[i]);
-							keyCount.incrementAndGet();
-							onWrite();
-							return true;
-						} else if(((flag & Entry.ENTRY_WRONG_STORE) == Entry.ENTRY_WRONG_STORE)) {
-							if (wrongStoreCount == 0)
-								firstWrongStoreIndex = i;
-							wrongStoreCount++;
+		try {
+			int retry = 0;
+			while (!configLock.readLock().tryLock(2, TimeUnit.SECONDS)) {
+				if (shutdown)
+					return;
+				if (retry++ > 10)
+					throw new IOException("lock timeout (20s)");
+			}
+		} catch(InterruptedException e) {
+			throw new IOException("interrupted: " +e);
+		}
+		try {
+			byte[][] digestedKeys = new byte[puts.size()][];
+			long[] offsets = new long[0];
+			for (int i = 0; i < digestedKeys.length; i++) {
+				digestedKeys[i] = cipherManager.getDigestedKey(puts.get(i).block.getRoutingKey());
+				long[] keyOffsets = getOffsetFromDigestedKey(digestedKeys[i], storeSize);
+				offsets = Arrays.copyOf(offsets, offsets.length + keyOffsets.length);
+				System.arraycopy(keyOffsets, 0, offsets, offsets.length - keyOffsets.length, keyOffsets.length);
+			}
+			int[] lockMap = lockManager.lockEntries(offsets);
+			if (lockMap == null) {
+				if (logDEBUG)
+					Logger.debug(this, "cannot lock " + offsets.length + " slots, shutting down?");
+				return;
+			}
+			try {
+				GroupWrite group = new GroupWrite();
+				for (int i = 0; i < digestedKeys.length; i++) {
+					QueuedPut<T> put = puts.get(i);
+					// putLocked() reads the slots it may overwrite, so they must be on disk.
+					for (long offset : getOffsetFromDigestedKey(digestedKeys[i], storeSize)) {
+						if (group.contains(offset)) {
+							group.flush();
+							break;
 						}
 					}
-				}
-
-				if((!wrongStore) && altStore != null) {
-					if(altStore.put(block, data, header, overwrite, isOldBlock, true)) {
-						if(logMINOR) Logger.minor(this, "Successfully wrote block to wrong store "+altStore+" on "+this);
-						return true;
-					} else {
-						if(logMINOR) Logger.minor(this, "Writing to wrong store "+altStore+" on "+this+" failed");
+					try {
+						putLocked(put.block, put.data, put.header, put.overwrite, put.isOldBlock, false, digestedKeys[i], group);
+					} catch (KeyCollisionException e) {
+						if (logMINOR)
+							Logger.minor(this, "Collision putting " + HexUtil.bytesToHex(put.block.getRoutingKey()) + " (" + name + ")");
 					}
 				}
+				group.flush();
+			} finally {
+				lockManager.unlockEntries(lockMap);
+			}
+		} finally {
+			configLock.readLock().unlock();
+		}
+	}
 
-				// There are no free slots for this Entry, so some slot will have to get overwritten.
-				int indexToOverwrite = -1;
-
-				if(wrongStore) {
-					// Distribute overwrites evenly between the right store and the wrong store.
-					int a = OPTION_MAX_PROBE;
-					int b = wrongStoreCount;
-					if(random.nextInt(a+b) < b)
-						// Allow the overwrite to happen in the wrong store.
-						indexToOverwrite = firstWrongStoreIndex;
-					else
-						// Force the overwrite to happen in the right store.
-						return false;
+	/**
+	 * The body of put(). The caller must hold the config read lock and the locks on all the
+	 * offsets of the digested key.
+	 *
+	 * @param group
+	 *            If not null, queue the writes here rather than writing them immediately.
+	 */
+	private boolean putLocked(T block, byte[] data, byte[] header, boolean overwrite, boolean isOldBlock,
+	        boolean wrongStore, byte[] digestedKey, GroupWrite group) throws IOException, KeyCollisionException {
+		byte[] routingKey = block.getRoutingKey();
+		byte[] fullKey = block.getFullKey();
+		/*
+		 * Use lazy loading here. This may lost data if digestedRoutingKey collide but
+		 * collisionPossible is false. Should be very rare as digestedRoutingKey is a
+		 * SHA-256 hash.
+		 */
+		Entry oldEntry = probeEntry(digestedKey, routingKey, false);
+		if (oldEntry != null && !oldEntry.isFree()) {
+			long oldOffset = oldEntry.curOffset;
+			try {
+				if (!collisionPossible) {
+					if((oldEntry.flag & Entry.ENTRY_NEW_BLOCK) == 0 && !isOldBlock) {
+						oldEntry = readEntry(oldEntry.curOffset, digestedKey, routingKey, true);
+						// Currently flagged as an old block
+						oldEntry.flag |= Entry.ENTRY_NEW_BLOCK;
+						if(logMINOR) Logger.minor(this, "Setting old block to new block");
+						oldEntry.storeSize = storeSize;
+						writeEntry(oldEntry, digestedKey, oldOffset, group);
+					}
+					return true;
 				}
-				else {
-					// By default, overwrite offset[0] when not writing to wrong store.
-					indexToOverwrite = 0;
+				oldEntry.setHD(readHD(oldOffset)); // read from disk
+				T oldBlock = oldEntry.getStorableBlock(routingKey, fullKey, false, false, null, (block instanceof SSKBlock) ? ((SSKBlock)block).getPubKey() : null);
+				if (block.equals(oldBlock)) {
+					if(logDEBUG) Logger.debug(this, "Block already stored");
+					if((oldEntry.flag & Entry.ENTRY_NEW_BLOCK) == 0 && !isOldBlock) {
+						// Currently flagged as an old block
+						oldEntry.flag |= Entry.ENTRY_NEW_BLOCK;
+						if(logMINOR) Logger.minor(this, "Setting old block to new block");
+						oldEntry.storeSize = storeSize;
+						writeEntry(oldEntry, digestedKey, oldOffset, group);
+					}
+					return false; // already in store
+				} else if (!overwrite) {
+					throw new KeyCollisionException();
 				}
+			} catch (KeyVerifyException e) {
+				// ignore
+			}
 
-				// Do the overwriting.
-				if (logDEBUG)
-					Logger.debug(this, "collision, write to i=" + indexToOverwrite + ", offset=" + offset[indexToOverwrite]);
-				oldEntry = readEntry(offset[indexToOverwrite], null, null, false);
-				writeEntry(entry, digestedKey, offset[indexToOverwrite]);
-				if (oldEntry.generation != generation)
+			// Overwrite old offset with same key
+			Entry entry = new Entry(routingKey, header, data, !isOldBlock, wrongStore);
+			writeEntry(entry, digestedKey, oldOffset, group);
+			if (oldEntry.generation != generation)
+				keyCount.incrementAndGet();
+			return true;
+		}
+
+		Entry entry = new Entry(routingKey, header, data, !isOldBlock, wrongStore);
+		long[] offset = entry.getOffset();
+
+		int firstWrongStoreIndex = -1;
+		int wrongStoreCount = 0;
+
+		for (int i = 0; i < offset.length; i++) {
+			if(offset[i] < storeFileOffsetReady) {
+				long flag = getFlag(offset[i], false);
+				if((flag & Entry.ENTRY_FLAG_OCCUPIED) == 0) {
+					// write to free block
+					if (logDEBUG)
+						Logger.debug(this, "probing, write to i=" + i + ", offset=" + offset[i]);
+					writeEntry(entry, digestedKey, offset[i], group);
 					keyCount.incrementAndGet();
-				onWrite();
+					onWrite();
+					return true;
+				} else if(((flag & Entry.ENTRY_WRONG_STORE) == Entry.ENTRY_WRONG_STORE)) {
+					if (wrongStoreCount == 0)
+						firstWrongStoreIndex = i;
+					wrongStoreCount++;
+				}
+			}
+		}
+
+		if((!wrongStore) && altStore != null) {
+			if(altStore.put(block, data, header, overwrite, isOldBlock, true)) {
+				if(logMINOR) Logger.minor(this, "Successfully wrote block to wrong store "+altStore+" on "+this);
 				return true;
-			} finally {
-				unlockDigestedKey(digestedKey, false, lockMap);
+			} else {
+				if(logMINOR) Logger.minor(this, "Writing to wrong store "+altStore+" on "+this+" failed");
 			}
-		} finally {
-			configLock.readLock().unlock();
 		}
+
+		// There are no free slots for this Entry, so some slot will have to get overwritten.
+		int indexToOverwrite = -1;
+
+		if(wrongStore) {
+			// Distribute overwrites evenly between the right store and the wrong store.
+			int a = OPTION_MAX_PROBE;
+			int b = wrongStoreCount;
+			if(random.nextInt(a+b) < b)
+				// Allow the overwrite to happen in the wrong store.
+				indexToOverwrite = firstWrongStoreIndex;
+			else
+				// Force the overwrite to happen in the right store.
+				return false;
+		}
+		else {
+			// By default, overwrite offset[0] when not writing to wrong store.
+			indexToOverwrite = 0;
+		}
+
+		// Do the overwriting.
+		if (logDEBUG)
+			Logger.debug(this, "collision, write to i=" + indexToOverwrite + ", offset=" + offset[indexToOverwrite]);
+		oldEntry = readEntry(offset[indexToOverwrite], null, null, false);
+		writeEntry(entry, digestedKey, offset[indexToOverwrite], group);
+		if (oldEntry.generation != generation)
+			keyCount.incrementAndGet();
+		onWrite();
+		return true;
 	}
 
 	private boolean onWrite() {
@@ -576,6 +743,10 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	private RandomAccessFile hdRAF;
 	private FileChannel hdFC;
 	private final int hdPadding;
+	/** If true, probe and write slots through metaMap and hdMap where possible. */
+	private final boolean memoryMapped;
+	private MemoryMappedStoreFile metaMap;
+	private MemoryMappedStoreFile hdMap;
 
 	/**
 	 * Data entry
@@ -616,6 +787,8 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 		/** Control block length */
 		private static final int METADATA_LENGTH = 0x80;
+		/** Position of the flag in the control block */
+		private static final int FLAG_POSITION = 0x30;
 
 		byte[] plainRoutingKey;
 		byte[] digestedRoutingKey;
@@ -780,16 +953,8 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		}
 
 		public int getSlotFilterEntry(byte[] digestedRoutingKey, long flags) {
-			int value = (digestedRoutingKey[2] & 0xFF) + ((digestedRoutingKey[1] & 0xFF) << 8) +
-				((digestedRoutingKey[0] & 0xFF) << 16);
-			value |= SLOT_CHECKED;
-			if((flags & ENTRY_FLAG_OCCUPIED) != 0)
-				value |= SLOT_OCCUPIED;
-			if((flags & ENTRY_NEW_BLOCK) != 0)
-				value |= SLOT_NEW_BLOCK;
-			if((flags & ENTRY_WRONG_STORE) != 0)
-				value |= SLOT_WRONG_STORE;
-			return value;
+			return SaltedHashFreenetStore.this.getSlotFilterEntry(digestedRoutingKey[0], digestedRoutingKey[1],
+			        digestedRoutingKey[2], flags);
 		}
 		
 		public int getSlotFilterEntry() {
@@ -798,6 +963,18 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 	}
 
+	private int getSlotFilterEntry(byte key0, byte key1, byte key2, long flags) {
+		int value = (key2 & 0xFF) + ((key1 & 0xFF) << 8) + ((key0 & 0xFF) << 16);
+		value |= SLOT_CHECKED;
+		if((flags & Entry.ENTRY_FLAG_OCCUPIED) != 0)
+			value |= SLOT_OCCUPIED;
+		if((flags & Entry.ENTRY_NEW_BLOCK) != 0)
+			value |= SLOT_NEW_BLOCK;
+		if((flags & Entry.ENTRY_WRONG_STORE) != 0)
+			value |= SLOT_WRONG_STORE;
+		return value;
+	}
+
 	public boolean slotCacheLikelyMatch(int value, byte[] digestedRoutingKey) {
 		if((value & (SLOT_CHECKED)) == 0) return false;
 		if((value & (SLOT_OCCUPIED)) == 0) return false;
@@ -855,6 +1032,13 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			throw new Error("Could not aquire lock for file " + baseDir.toPath().resolve(name + ".hd"), ex);
 		}
 
+		if (memoryMapped) {
+			metaMap = new MemoryMappedStoreFile(metaFC, metaFile.getName(), Entry.METADATA_LENGTH,
+			        MemoryMappedStoreFile.DEFAULT_WINDOW_SIZE);
+			hdMap = new MemoryMappedStoreFile(hdFC, hdFile.getName(), headerBlockLength + dataBlockLength + hdPadding,
+			        MemoryMappedStoreFile.DEFAULT_WINDOW_SIZE);
+		}
+
 		return newStore;
 	}
 
@@ -881,22 +1065,24 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			else
 				Logger.minor(this, "Unlikely match");
 		}
-		ByteBuffer mbf = ByteBuffer.allocate(Entry.METADATA_LENGTH);
-
-		do {
-			int status = metaFC.read(mbf, Entry.METADATA_LENGTH * offset + mbf.position());
-			if (status == -1) {
-				Logger.error(this, "Failed to access offset "+offset, new Exception("error"));
-				throw new EOFException();
-			}
-		} while (mbf.hasRemaining());
-		mbf.flip();
+		ByteBuffer mbf = mappedSlot(metaMap, offset);
+		if (mbf == null) {
+			mbf = ByteBuffer.allocate(Entry.METADATA_LENGTH);
 
-		Entry entry = new Entry(mbf, null);
-		entry.curOffset = offset;
+			do {
+				int status = metaFC.read(mbf, Entry.METADATA_LENGTH * offset + mbf.position());
+				if (status == -1) {
+					Logger.error(this, "Failed to access offset "+offset, new Exception("error"));
+					throw new EOFException();
+				}
+			} while (mbf.hasRemaining());
+			mbf.flip();
+		}
 
-		byte[] slotDigestedRoutingKey = entry.digestedRoutingKey;
-		int trueCache = entry.getSlotFilterEntry();
+		// Look at the flags and the key before decoding the entry, so that a mismatch on a
+		// mapped slot does not copy anything.
+		long slotFlag = mbf.getLong(Entry.FLAG_POSITION);
+		int trueCache = getSlotFilterEntry(mbf.get(0), mbf.get(1), mbf.get(2), slotFlag);
 		if(trueCache != cache && !slotFilterDisabled) {
 			if(validCache)
 				Logger.error(this, "Slot cache has changed for slot "+offset+" from "+cache+" to "+trueCache);
@@ -904,7 +1090,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		}
 		
 		if (routingKey != null) {
-			if (entry.isFree()) {
+			if ((slotFlag & Entry.ENTRY_FLAG_OCCUPIED) == 0) {
 				if(validCache && !likelyMatch && !slotCacheIsFree(cache)) {
 					Logger.error(this, "Slot falsely identified as non-free on slot "+offset+" cache was "+cache);
 					bloomFalsePos.incrementAndGet();
@@ -912,7 +1098,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 					Logger.minor(this, "True negative!");
 				return null;
 			}
-			if (!Arrays.equals(digestedRoutingKey, slotDigestedRoutingKey)) {
+			if (!digestedKeyEquals(mbf, digestedRoutingKey)) {
 				if(validCache && likelyMatch) {
 					Logger.normal(this, "False positive from slot cache on slot "+offset+" cache was "+cache);
 					bloomFalsePos.incrementAndGet();
@@ -925,7 +1111,12 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 				Logger.error(this, "False NEGATIVE from slot cache on slot "+offset+" cache was "+cache);
 				bloomFalsePos.incrementAndGet();
 			}
+		}
 
+		Entry entry = new Entry(mbf, null);
+		entry.curOffset = offset;
+
+		if (routingKey != null) {
 			if (withData) {
 				ByteBuffer hdBuf = readHD(offset);
 				entry.setHD(hdBuf);
@@ -944,6 +1135,29 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		return entry;
 	}
 
+	/** Compare the digested key stored in a metadata slot without copying it out. */
+	private static boolean digestedKeyEquals(ByteBuffer metaDataBuf, byte[] digestedRoutingKey) {
+		for (int i = 0; i < digestedRoutingKey.length; i++) {
+			if (metaDataBuf.get(i) != digestedRoutingKey[i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Get a slot from a memory-mapped store file.
+	 *
+	 * @return <code>null</code> if the store is not memory-mapped, the slot is not mapped, or the
+	 *         store is being resized. The caller must then use the FileChannel.
+	 */
+	private ByteBuffer mappedSlot(MemoryMappedStoreFile map, long offset) {
+		// The files are truncated and extended during a resize, so stay on the channel until
+		// it is finished.
+		if (map == null || prevStoreSize != 0)
+			return null;
+		return map.slot(offset);
+	}
+
 	/**
 	 * Read header + data from disk
 	 *
@@ -951,6 +1165,10 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	 * @throws IOException
 	 */
 	private ByteBuffer readHD(long offset) throws IOException {
+		ByteBuffer mapped = mappedSlot(hdMap, offset);
+		if (mapped != null)
+			return mapped;
+
 		ByteBuffer buf = ByteBuffer.allocate(headerBlockLength + dataBlockLength + hdPadding);
 
 		long pos = (headerBlockLength + dataBlockLength + hdPadding) * offset;
@@ -1009,6 +1227,17 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	 * </ul>
 	 */
 	private void writeEntry(Entry entry, byte[] digestedRoutingKey, long offset) throws IOException {
+		writeEntry(entry, digestedRoutingKey, offset, null);
+	}
+
+	/**
+	 * Write entry to disk, or queue it on a group write.
+	 *
+	 * @param group
+	 *            If not null, the slots which are not memory mapped are queued here and only hit
+	 *            the disk when the group is flushed. The slot filter is updated immediately.
+	 */
+	private void writeEntry(Entry entry, byte[] digestedRoutingKey, long offset, GroupWrite group) throws IOException {
 		if(offset >= Integer.MAX_VALUE) throw new IllegalArgumentException();
 		
 		if(!slotFilterDisabled)
@@ -1017,38 +1246,131 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		cipherManager.encrypt(entry, random);
 
 		ByteBuffer bf = entry.toMetaDataBuffer();
-		do {
-			int status = metaFC.write(bf, Entry.METADATA_LENGTH * offset + bf.position());
-			if (status == -1)
-				throw new EOFException();
-		} while (bf.hasRemaining());
-
-		bf = entry.toHDBuffer();
-		if (bf != null) {
-			long pos = (headerBlockLength + dataBlockLength + hdPadding) * offset;
+		ByteBuffer mapped = mappedSlot(metaMap, offset);
+		if (mapped != null) {
+			mapped.put(bf);
+		} else if (group != null) {
+			group.meta.put(offset, bf);
+		} else {
 			do {
-				int status = hdFC.write(bf, pos + bf.position());
+				int status = metaFC.write(bf, Entry.METADATA_LENGTH * offset + bf.position());
 				if (status == -1)
 					throw new EOFException();
 			} while (bf.hasRemaining());
 		}
 
+		bf = entry.toHDBuffer();
+		if (bf != null) {
+			mapped = mappedSlot(hdMap, offset);
+			if (mapped != null) {
+				mapped.put(bf);
+			} else if (group != null) {
+				group.hd.put(offset, bf);
+			} else {
+				long pos = (headerBlockLength + dataBlockLength + hdPadding) * offset;
+				do {
+					int status = hdFC.write(bf, pos + bf.position());
+					if (status == -1)
+						throw new EOFException();
+				} while (bf.hasRemaining());
+			}
+		}
+
 		entry.curOffset = offset;
 	}
 
+	/** Upper bound on the number of slots written by a single gathering write. */
+	private static final int MAX_GATHER_SLOTS = 64;
+
+	/**
+	 * Writes queued by putAll(). Nothing is read back from a group, so the caller must flush it
+	 * before probing any slot which has been queued.
+	 */
+	private class GroupWrite {
+		/** Encrypted metadata by slot offset. */
+		final TreeMap<Long, ByteBuffer> meta = new TreeMap<Long, ByteBuffer>();
+		/** Encrypted header and data by slot offset. */
+		final TreeMap<Long, ByteBuffer> hd = new TreeMap<Long, ByteBuffer>();
+
+		boolean contains(long offset) {
+			return meta.containsKey(offset) || hd.containsKey(offset);
+		}
+
+		/**
+		 * Write everything out in ascending slot order, so the disk sees one sweep rather than
+		 * random seeks. Runs of neighbouring slots are written with a single gathering write.
+		 */
+		void flush() throws IOException {
+			if (meta.isEmpty() && hd.isEmpty())
+				return;
+			writeRuns(metaFC, meta, Entry.METADATA_LENGTH);
+			writeRuns(hdFC, hd, headerBlockLength + dataBlockLength + hdPadding);
+			meta.clear();
+			hd.clear();
+		}
+
+		private void writeRuns(FileChannel fc, TreeMap<Long, ByteBuffer> slots, long slotLength) throws IOException {
+			ByteBuffer[] run = new ByteBuffer[MAX_GATHER_SLOTS];
+			int runLength = 0;
+			long runStart = -1;
+			for (Map.Entry<Long, ByteBuffer> e : slots.entrySet()) {
+				long offset = e.getKey();
+				if (runLength == run.length || (runLength > 0 && offset != runStart + runLength)) {
+					writeRun(fc, runStart * slotLength, run, runLength);
+					runLength = 0;
+				}
+				if (runLength == 0)
+					runStart = offset;
+				run[runLength++] = e.getValue();
+			}
+			if (runLength > 0)
+				writeRun(fc, runStart * slotLength, run, runLength);
+		}
+
+		private void writeRun(FileChannel fc, long pos, ByteBuffer[] run, int runLength) throws IOException {
+			if (runLength == 1) {
+				ByteBuffer bf = run[0];
+				do {
+					int status = fc.write(bf, pos + bf.position());
+					if (status == -1)
+						throw new EOFException();
+				} while (bf.hasRemaining());
+				return;
+			}
+			// Gathering writes use the channel position. Everything else on these channels uses
+			// positional I/O, which doesn't care about the position, so only serialize group
+			// writes against each other.
+			synchronized (fc) {
+				fc.position(pos);
+				while (run[runLength - 1].hasRemaining())
+					fc.write(run, 0, runLength);
+			}
+		}
+	}
+
 	private void flushAndClose(boolean abort) {
 		Logger.normal(this, "Flush and closing this store: " + name);
+		if (memoryMapped) {
+			try {
+				metaMap.force();
+				hdMap.force();
+			} catch (Exception e) {
+				Logger.error(this, "error flushing store", e);
+			}
+			metaMap.invalidate();
+			hdMap.invalidate();
+		}
 		try {
 			metaFC.force(true);
 			metaFC.close();
 		} catch (Exception e) {
-			Logger.error(this, "error flusing store", e);
+			Logger.error(this, "error flushing store", e);
 		}
 		try {
 			hdFC.force(true);
 			hdFC.close();
 		} catch (Exception e) {
-			Logger.error(this, "error flusing store", e);
+			Logger.error(this, "error flushing store", e);
 		}
 		if(!slotFilterDisabled) {
 			if(!abort)
@@ -1079,6 +1401,12 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			final long newMetaLen = Entry.METADATA_LENGTH * storeMaxEntries;
 			final long newHdLen = (headerBlockLength + dataBlockLength + hdPadding) * storeMaxEntries;
 
+			if (memoryMapped) {
+				// Must not touch a mapping past the end of a truncated file.
+				metaMap.invalidate();
+				hdMap.invalidate();
+			}
+
 			if (preallocate) {
 				try (WrapperKeepalive wrapperKeepalive = new WrapperKeepalive();)
 				{
@@ -1115,15 +1443,17 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	 *  +----+---------------+-------+-------+
 	 *  |0020| Est Key Count |  Gen  | Flags |
 	 *  +----+-------+-------+-------+-------+
-	 *  |0030|   K   |      (reserved)       |
+	 *  |0030|   K   |Rebuild|   Migrated    |
 	 *  +----+-------+-------+---------------+
 	 *  |0040|    writes     |     hits      |
 	 *  +----+---------------+---------------+
 	 *  |0050|    misses     | bloomFalsePos |
 	 *  +----+---------------+---------------+
 	 *
-	 *  Gen = Generation
-	 *    K = K for bloom filter
+	 *      Gen = Generation
+	 *        K = K for bloom filter
+	 *  Rebuild = Slot filter rebuild progress (entries done)
+	 * Migrated = Resize progress (entries moved from the old store)
 	 * </pre>
 	 */
 	private final File configFile;
@@ -1145,7 +1475,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			if(masterKey != null) {
 				BlockCipher cipher;
 				try {
-					cipher = new Rijndael(256, 128);
+					cipher = Rijndael.create(256, 128);
 				} catch (UnsupportedCipherException e) {
 					throw new Error("Impossible: no Rijndael(256,128): "+e, e);
 				}
@@ -1171,7 +1501,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 					if(masterKey != null) {
 						BlockCipher cipher;
 						try {
-							cipher = new Rijndael(256, 128);
+							cipher = Rijndael.create(256, 128);
 						} catch (UnsupportedCipherException e) {
 							throw new Error("Impossible: no Rijndael(256,128): "+e, e);
 						}
@@ -1187,6 +1517,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 					storeSize = raf.readLong();
 					if(storeSize <= 0) throw new IOException("Bogus datastore size");
 					prevStoreSize = raf.readLong();
+					resizeCursor = prevStoreSize;
 					keyCount.set(raf.readLong());
 					generation = raf.readInt();
 					flags = raf.readInt();
@@ -1199,8 +1530,15 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 					try {
 						raf.readInt(); // bloomFilterK
-						raf.readInt(); // reserved
-						raf.readLong(); // reserved
+						rebuildCursor = raf.readInt(); // slot filter rebuild progress, was reserved
+						// After an unclean shutdown the slot filter is only as good as the last
+						// write, which may be older than the checkpoint.
+						if (rebuildCursor < 0 || rebuildCursor > storeSize || prevStoreSize != 0 ||
+						        (((flags & FLAG_DIRTY) != 0) && ResizablePersistentIntBuffer.getPersistenceTime() != -1))
+							rebuildCursor = 0;
+						long migrated = raf.readLong(); // resize progress, was reserved
+						if (prevStoreSize != 0 && migrated > 0 && migrated <= prevStoreSize)
+							resizeCursor = prevStoreSize - migrated;
 						long w = raf.readLong();
 						writes.set(w);
 						initialWrites = w;
@@ -1255,8 +1593,10 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 				raf.writeInt(generation);
 				raf.writeInt(flags);
 				raf.writeInt(0); // bloomFilterK
-				raf.writeInt(0);
-				raf.writeLong(0);
+				raf.writeInt((int) rebuildCursor);
+				// Number of old slots already migrated, so an interrupted resize can resume.
+				// Older versions wrote 0 here, which means start from the beginning.
+				raf.writeLong(prevStoreSize == 0 ? 0 : prevStoreSize - resizeCursor);
 				raf.writeLong(writes.get());
 				raf.writeLong(hits.get());
 				raf.writeLong(misses.get());
@@ -1275,7 +1615,15 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 }
 
 	// ------------- Store resizing
-	private long prevStoreSize = 0;
+	private volatile long prevStoreSize = 0;
+	/** Progress of the current resize. The resize walks the old slots downwards, so the old
+	 * slots at or above this offset have already been migrated: anything they held has been
+	 * moved to its new location (or dropped), and fetches need not probe them. Set before
+	 * prevStoreSize when a resize starts, and persisted in the config file. */
+	private volatile long resizeCursor = 0;
+	/** Progress of the slot filter rebuild: the slot filter entries for the slots below this
+	 * have been rebuilt and written to disk. Persisted in the config file. */
+	private volatile long rebuildCursor = 0;
 	private Lock cleanerLock = new ReentrantLock(); // local to this datastore
 	private Condition cleanerCondition = cleanerLock.newCondition();
 	private static Lock cleanerGlobalLock = new ReentrantLock(); // global across all datastore
@@ -1310,6 +1658,16 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		 * How often the clean should run
 		 */
 		private static final int CLEANER_PERIOD = 5 * 60 * 1000; // 5 minutes
+		/**
+		 * How long to wait between two steps of a resize
+		 */
+		private static final int RESIZE_TICK_PERIOD = 1000; // 1 second
+		/**
+		 * How many batches of RESIZE_MEMORY_ENTRIES slots to migrate per step of a resize. In
+		 * between we release the global cleaner lock, so other stores get a turn, and save the
+		 * progress.
+		 */
+		private static final int RESIZE_BATCHES_PER_TICK = 64;
 
 		private volatile boolean isRebuilding;
 		private volatile boolean isResizing;
@@ -1346,9 +1704,9 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 					if (_prevStoreSize != 0 && cleanerGlobalLock.tryLock()) {
 						try {
 							isResizing = true;
-							resizeStore(_prevStoreSize, true);
+							resizeStore(_prevStoreSize, true, RESIZE_BATCHES_PER_TICK);
 						} finally {
-							isResizing = false;
+							isResizing = prevStoreSize != 0 && !shutdown;
 							cleanerGlobalLock.unlock();
 						}
 					}
@@ -1373,7 +1731,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 					writeConfigFile();
 
 					try {
-						cleanerCondition.await(CLEANER_PERIOD, TimeUnit.MILLISECONDS);
+						cleanerCondition.await(prevStoreSize != 0 ? RESIZE_TICK_PERIOD : CLEANER_PERIOD, TimeUnit.MILLISECONDS);
 					} catch (InterruptedException e) {
 						Logger.debug(this, "interrupted", e);
 					}
@@ -1385,25 +1743,39 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 		private static final int RESIZE_MEMORY_ENTRIES = 128; // temporary memory store size (in # of entries)
 
+		/** Entries removed from their old slots by the resize which haven't found a new slot yet.
+		 * Kept across steps of the resize. */
+		private final Deque<Entry> oldEntryList = new LinkedList<Entry>();
+
 		/**
-		 * Move old entries to new location and resize store
+		 * Move old entries to new location and resize store. Carries on from resizeCursor, so a
+		 * resize can be done in steps, and resumed after a restart.
+		 *
+		 * @param maxBatches
+		 *            Stop after this many batches of RESIZE_MEMORY_ENTRIES slots.
 		 */
-		private void resizeStore(final long _prevStoreSize, final boolean sleep) {
-			Logger.normal(this, "Starting datastore resize");
-			System.out.println("Resizing datastore "+name);
+		private void resizeStore(final long _prevStoreSize, final boolean sleep, long maxBatches) {
+			final long startCursor = resizeCursor;
+			if (startCursor >= _prevStoreSize) {
+				Logger.normal(this, "Starting datastore resize");
+				System.out.println("Resizing datastore "+name);
+			} else if (logMINOR) {
+				Logger.minor(this, "Continuing datastore resize at " + startCursor + " (" + name + ")");
+			}
 
 			BatchProcessor<T> resizeProcesser = new BatchProcessor<T>() {
-				Deque<Entry> oldEntryList = new LinkedList<Entry>();
-
 				@Override
 				public void init() {
 					if (storeSize > _prevStoreSize)
 						setStoreFileSize(storeSize);
 
+					if (startCursor < _prevStoreSize)
+						return; // Resuming, the generation was bumped when we started.
 					configLock.writeLock().lock();
 					try {
 						generation++;
 						keyCount.set(0);
+						oldEntryList.clear();
 					} finally {
 						configLock.writeLock().unlock();
 					}
@@ -1465,7 +1837,10 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 						if (resolveOldEntry(it.next()))
 							it.remove();
 
-					return _prevStoreSize == prevStoreSize;
+					if (_prevStoreSize != prevStoreSize)
+						return false;
+					resizeCursor = entriesLeft;
+					return true;
 				}
 
 				@Override
@@ -1480,6 +1855,8 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 						if (_prevStoreSize != prevStoreSize)
 							return;
 						prevStoreSize = 0;
+						oldEntryList.clear();
+						rebuildCursor = 0;
 						if(!slotFilterDisabled) {
 							if(slotFilter.size() != (int)storeSize)
 								slotFilter.resize((int)storeSize);
@@ -1501,17 +1878,40 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 				}
 			};
 
-			batchProcessEntries(resizeProcesser, _prevStoreSize, true, sleep);
+			batchProcessEntries(resizeProcesser, _prevStoreSize, startCursor, true, sleep, maxBatches);
 		}
 		
 		/**
-		 * Rebuild bloom filter
+		 * How many threads to use for rebuilding the slot filter. More than a few just
+		 * makes the disk seek.
+		 */
+		private final int rebuildThreads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+		/**
+		 * Rebuild bloom filter (nowadays the slot filter).
+		 * 
+		 * The slots are split between rebuildThreads workers. Every slot has its own entry in the
+		 * slot filter, so the workers can fill it in directly without stepping on each other.
+		 * Every REBUILD_BATCHES_PER_CHECKPOINT batches, once all the workers are done with them,
+		 * the slot filter is written to disk and the progress saved in the config file, so a
+		 * restart carries on from there.
 		 */
-		private void rebuildBloom(boolean sleep) {
+		private void rebuildBloom(final boolean sleep) {
+			rebuildBloom(sleep, Long.MAX_VALUE);
+		}
+
+		/**
+		 * @param maxCheckpoints
+		 *            Stop after this many checkpoints, as if we had been interrupted.
+		 */
+		private void rebuildBloom(final boolean sleep, long maxCheckpoints) {
 			if(slotFilterDisabled) return;
-			Logger.normal(this, "Start rebuilding slot filter (" + name + ")");
+			long startCursor = rebuildCursor;
+			if (startCursor == 0)
+				Logger.normal(this, "Start rebuilding slot filter (" + name + ")");
+			else
+				Logger.normal(this, "Continue rebuilding slot filter at " + startCursor + " (" + name + ")");
 			
-			BatchProcessor<T> rebuildBloomProcessor = new BatchProcessor<T>() {
+			final BatchProcessor<T> rebuildBloomProcessor = new BatchProcessor<T>() {
 				@Override
 				public void init() {
 					configLock.writeLock().lock();
@@ -1520,8 +1920,6 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 					} finally {
 						configLock.writeLock().unlock();
 					}
-
-					WrapperManager.signalStarting((int) (RESIZE_MEMORY_ENTRIES * SECONDS.toMillis(5) + SECONDS.toMillis(1)));
 				}
 				
 				@Override
@@ -1545,18 +1943,8 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 					return NOT_MODIFIED;
 				}
 				
-				int i = 0;
 				@Override
 				public boolean batch(long entriesLeft) {
-					WrapperManager.signalStarting((int) (RESIZE_MEMORY_ENTRIES * SECONDS.toMillis(5) + SECONDS.toMillis(1)));
-
-					if (i++ % 16 == 0)
-						writeConfigFile();
-					if (i++ % 1024 == 0) {
-						if(!slotFilterDisabled)
-							slotFilter.forceWrite();
-					}
-					
 					return prevStoreSize == 0;
 				}
 				
@@ -1571,6 +1959,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 					configLock.writeLock().lock();
 					try {
 						flags &= ~FLAG_REBUILD_BLOOM;
+						rebuildCursor = 0;
 						writeConfigFile();
 					} finally {
 						configLock.writeLock().unlock();
@@ -1584,28 +1973,122 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 				}
 			};
 			
-			batchProcessEntries(rebuildBloomProcessor, storeSize, false, sleep);
+			final long size = storeSize;
+			entriesTotal = size;
+			entriesLeft = size - startCursor;
+			entriesPerSecond = 0;
+			if (startCursor == 0)
+				rebuildBloomProcessor.init();
+			
+			ExecutorService workers = Executors.newFixedThreadPool(rebuildThreads, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					// Same priority as the cleaner which waits for them.
+					Thread t = new NativeThread(r, "Store-" + name + "-Rebuild", NativeThread.LOW_PRIORITY, false);
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			long startTime = System.currentTimeMillis();
+			try {
+				for (long cursor = startCursor; cursor < size; ) {
+					if (maxCheckpoints-- <= 0)
+						return;
+					WrapperManager.signalStarting((int) (RESIZE_MEMORY_ENTRIES * SECONDS.toMillis(5) + SECONDS.toMillis(1)));
+					final long end = Math.min(size, cursor + (long) REBUILD_BATCHES_PER_CHECKPOINT * RESIZE_MEMORY_ENTRIES);
+					final AtomicLong nextOffset = new AtomicLong(cursor);
+					final AtomicBoolean failed = new AtomicBoolean();
+					List<Future<?>> tasks = new ArrayList<Future<?>>(rebuildThreads);
+					for (int t = 0; t < rebuildThreads; t++) {
+						tasks.add(workers.submit(new Runnable() {
+							@Override
+							public void run() {
+								long offset;
+								while (!failed.get() && (offset = nextOffset.getAndAdd(RESIZE_MEMORY_ENTRIES)) < end) {
+									if (shutdown || !rebuildBloomProcessor.batch(0) ||
+									        !batchProcessEntries(offset, RESIZE_MEMORY_ENTRIES, rebuildBloomProcessor)) {
+										failed.set(true);
+										return;
+									}
+									entriesLeft = Math.max(0, size - nextOffset.get());
+									if (sleep) {
+										try {
+											Thread.sleep(100);
+										} catch (InterruptedException e) {
+											failed.set(true);
+											return;
+										}
+									}
+								}
+							}
+						}));
+					}
+					for (Future<?> task : tasks) {
+						try {
+							task.get();
+						} catch (ExecutionException e) {
+							Logger.error(this, "Caught: "+e.getCause()+" while rebuilding slot filter", e.getCause());
+							failed.set(true);
+						}
+					}
+					if (failed.get()) {
+						rebuildBloomProcessor.abort();
+						return;
+					}
+					
+					// Everything below end is done. Make sure it is on disk before we say so.
+					slotFilter.forceWrite();
+					cursor = end;
+					rebuildCursor = end;
+					entriesLeft = size - end;
+					long elapsed = System.currentTimeMillis() - startTime;
+					if (elapsed > 0)
+						entriesPerSecond = (end - startCursor) * 1000 / elapsed;
+					writeConfigFile();
+					System.err.println(name + " cleaner in progress: " + end + "/" + size + " (" + entriesPerSecond + " entries/sec)");
+				}
+				rebuildBloomProcessor.finish();
+			} catch (InterruptedException e) {
+				rebuildBloomProcessor.abort();
+			} finally {
+				workers.shutdownNow();
+			}
 		}
 
-
+		/** Throughput of the slot filter rebuild, for the user alert. */
+		private volatile long entriesPerSecond;
 
 		private volatile long entriesLeft;
 		private volatile long entriesTotal;
 
 		private void batchProcessEntries(BatchProcessor<T> processor, long storeSize, boolean reverse, boolean sleep) {
+			batchProcessEntries(processor, storeSize, reverse ? storeSize : 0, reverse, sleep, Long.MAX_VALUE);
+		}
+
+		/**
+		 * @param resumeOffset
+		 *            If reverse, process the slots below this offset, otherwise the slots from this
+		 *            offset upwards.
+		 * @param maxBatches
+		 *            Return after this many batches. The processor is neither finished nor
+		 *            aborted, the caller is expected to come back later with a new resumeOffset.
+		 */
+		private void batchProcessEntries(BatchProcessor<T> processor, long storeSize, long resumeOffset, boolean reverse, boolean sleep, long maxBatches) {
 			
-			entriesLeft = entriesTotal = storeSize;
+			entriesTotal = storeSize;
+			entriesLeft = reverse ? resumeOffset : storeSize - resumeOffset;
 
 			long startOffset, step;
 			if (!reverse) {
-				startOffset = 0;
+				startOffset = resumeOffset;
 				step = RESIZE_MEMORY_ENTRIES;
 			} else {
-				startOffset = ((storeSize - 1) / RESIZE_MEMORY_ENTRIES) * RESIZE_MEMORY_ENTRIES;
+				startOffset = resumeOffset > 0 ? ((resumeOffset - 1) / RESIZE_MEMORY_ENTRIES) * RESIZE_MEMORY_ENTRIES : -1;
 				step = -RESIZE_MEMORY_ENTRIES;
 			}
 
 			int i = 0;
+			long batches = 0;
 			processor.init();
 			try {
 				for (long curOffset = startOffset; curOffset >= 0 && curOffset < storeSize; curOffset += step) {
@@ -1613,6 +2096,8 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 						processor.abort();
 						return;
 					}
+					if (batches++ >= maxBatches)
+						return;
 
 					if (i++ % 64 == 0)
 						System.err.println(name + " cleaner in progress: " + (entriesTotal - entriesLeft) + "/"
@@ -1655,14 +2140,14 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		 */
 		private boolean batchProcessEntries(long offset, int length, BatchProcessor<T> processor) {
 			boolean wantFreeEntries = processor.wantFreeEntries();
-			Condition[] locked = new Condition[length];
+			long[] offsets = new long[length];
+			for (int i = 0; i < length; i++)
+				offsets[i] = offset + i;
+			// acquire all locks in the region, will unlock in the finally block
+			int[] locked = lockManager.lockEntries(offsets);
+			if (locked == null)
+				return false;
 			try {
-				// acquire all locks in the region, will unlock in the finally block
-				for (int i = 0; i < length; i++) {
-					locked[i] = lockManager.lockEntry(offset + i);
-					if (locked[i] == null)
-						return false;
-				}
 
 				long startFileOffset = offset * Entry.METADATA_LENGTH;
 				long entriesToRead = length;
@@ -1752,9 +2237,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 				return true;
 			} finally {
 				// unlock
-				for (int i = 0; i < length; i++)
-					if (locked[i] != null)
-						lockManager.unlockEntry(offset + i, locked[i]);
+				lockManager.unlockEntries(locked);
 			}
 		}
 
@@ -1765,7 +2248,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		 * @return <code>true</code> if the entry have put back successfully.
 		 */
 		private boolean resolveOldEntry(Entry entry) {
-			Map<Long, Condition> lockMap = lockDigestedKey(entry.getDigestedRoutingKey(), false);
+			int[] lockMap = lockDigestedKey(entry.getDigestedRoutingKey(), false);
 			if (lockMap == null)
 				return false;
 			try {
@@ -1843,7 +2326,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 				return NodeL10n.getBase().getString("SaltedHashFreenetStore.shortRebuildProgress" + (slotFilter.isNew() ? "New" : ""), 
 				        new String[] { "name", "processed", "total" },//
 				        new String[] { name, String.valueOf(cleaner.entriesTotal - cleaner.entriesLeft) ,
-				                String.valueOf(cleaner.entriesTotal)  });
+				                String.valueOf(cleaner.entriesTotal)  }) + getRateText();
 		}
 
 		@Override
@@ -1857,7 +2340,13 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 				return NodeL10n.getBase().getString("SaltedHashFreenetStore.longRebuildProgress" + (slotFilter.isNew() ? "New" : ""),
 				        new String[] { "name", "processed", "total" },
 				        new String[] { name, String.valueOf(cleaner.entriesTotal - cleaner.entriesLeft) ,
-				                String.valueOf(cleaner.entriesTotal)  });
+				                String.valueOf(cleaner.entriesTotal)  }) + getRateText();
+		}
+
+		private String getRateText() {
+			long rate = cleaner.entriesPerSecond;
+			if (rate <= 0) return "";
+			return " " + NodeL10n.getBase().getString("SaltedHashFreenetStore.rebuildRate", "rate", String.valueOf(rate));
 		}
 
 		@Override
@@ -1922,6 +2411,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			}
 
 			old = storeSize;
+			resizeCursor = storeSize;
 			prevStoreSize = storeSize;
 			storeSize = newStoreSize;
 			if(!slotFilterDisabled)
@@ -1961,55 +2451,28 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	 * operation failed.
 	 *
 	 * @param digestedKey
-	 * @return <code>true</code> if all the offsets are locked.
+	 * @return The locks to pass to unlockDigestedKey(), or <code>null</code> if they could not
+	 *         all be taken.
 	 */
-	private Map<Long, Condition> lockDigestedKey(byte[] digestedKey, boolean usePrevStoreSize) {
-		// use a set to prevent duplicated offsets,
-		// a sorted set to prevent deadlocks
-		SortedSet<Long> offsets = new TreeSet<Long>();
-		long[] offsetArray = getOffsetFromDigestedKey(digestedKey, storeSize);
-		for (long offset : offsetArray)
-			offsets.add(offset);
+	private int[] lockDigestedKey(byte[] digestedKey, boolean usePrevStoreSize) {
+		long[] offsets = getOffsetFromDigestedKey(digestedKey, storeSize);
 		if (usePrevStoreSize && prevStoreSize != 0) {
-			offsetArray = getOffsetFromDigestedKey(digestedKey, prevStoreSize);
-			for (long offset : offsetArray)
-				offsets.add(offset);
-		}
-
-		Map<Long, Condition> locked = new TreeMap<Long, Condition>();
-		for (long offset : offsets) {
-			Condition condition = lockManager.lockEntry(offset);
-			if (condition == null)
-				break;
-			locked.put(offset, condition);
+			long cursor = resizeCursor;
+			long[] prevOffsets = getOffsetFromDigestedKey(digestedKey, prevStoreSize);
+			int count = offsets.length;
+			offsets = Arrays.copyOf(offsets, count + prevOffsets.length);
+			for (long offset : prevOffsets)
+				if (offset < cursor)
+					offsets[count++] = offset;
+			offsets = Arrays.copyOf(offsets, count);
 		}
 
-		if (locked.size() == offsets.size()) {
-			return locked;
-		} else {
-			// failed, remove the locks
-			for (Map.Entry<Long, Condition> e : locked.entrySet())
-				lockManager.unlockEntry(e.getKey(), e.getValue());
-			return null;
-		}
+		return lockManager.lockEntries(offsets);
 	}
 
-	private void unlockDigestedKey(byte[] digestedKey, boolean usePrevStoreSize, Map<Long, Condition> lockMap) {
-		// use a set to prevent duplicated offsets
-		SortedSet<Long> offsets = new TreeSet<Long>();
-		long[] offsetArray = getOffsetFromDigestedKey(digestedKey, storeSize);
-		for (long offset : offsetArray)
-			offsets.add(offset);
-		if (usePrevStoreSize && prevStoreSize != 0) {
-			offsetArray = getOffsetFromDigestedKey(digestedKey, prevStoreSize);
-			for (long offset : offsetArray)
-				offsets.add(offset);
-		}
-
-		for (long offset : offsets) {
-			lockManager.unlockEntry(offset, lockMap.get(offset));
-			lockMap.remove(offset);
-		}
+	private void unlockDigestedKey(byte[] digestedKey, boolean usePrevStoreSize, int[] lockMap) {
+		// The resize cursor may have moved since we locked, so unlock exactly what we locked.
+		lockManager.unlockEntries(lockMap);
 	}
 
 	public class ShutdownDB implements Runnable {
@@ -2102,6 +2565,8 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	private AtomicLong writes = new AtomicLong();
 	private AtomicLong keyCount = new AtomicLong();
 	private AtomicLong bloomFalsePos = new AtomicLong();
+	/** Total time spent in fetch() for hits since startup, in nanoseconds. Not persisted. */
+	private AtomicLong hitTime = new AtomicLong();
 	
 	private long initialHits;
 	private long initialMisses;
@@ -2128,6 +2593,39 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		return keyCount.get();
 	}
 
+	/** Testing only! Run up to maxBatches batches of a pending resize on the caller's thread. */
+	void resizeStep(long maxBatches) {
+		cleanerGlobalLock.lock();
+		try {
+			if (prevStoreSize != 0)
+				cleanerThread.resizeStore(prevStoreSize, false, maxBatches);
+		} finally {
+			cleanerGlobalLock.unlock();
+		}
+	}
+
+	/** Testing only! Rebuild the slot filter on the caller's thread, stopping after
+	 * maxCheckpoints checkpoints. */
+	void rebuildSlotFilter(long maxCheckpoints) {
+		cleanerGlobalLock.lock();
+		try {
+			if ((flags & FLAG_REBUILD_BLOOM) != 0)
+				cleanerThread.rebuildBloom(false, maxCheckpoints);
+		} finally {
+			cleanerGlobalLock.unlock();
+		}
+	}
+
+	/** Testing only! */
+	long getRebuildCursor() {
+		return rebuildCursor;
+	}
+
+	/** Testing only! */
+	long getResizeCursor() {
+		return prevStoreSize == 0 ? 0 : resizeCursor;
+	}
+
 	@Override
 	public long getMaxKeys() {
 		configLock.readLock().lock();
@@ -2229,6 +2727,14 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			public long writes() {
 				return writes.get() - initialWrites;
 			}
+
+			@Override
+			public double avgHitLatency() throws StatsNotAvailableException {
+				long sessionHits = hits();
+				if (sessionHits <= 0)
+					throw new StatsNotAvailableException();
+				return (double) hitTime.get() / sessionHits;
+			}
 			
 		};
 	}
@@ -4,9 +4,20 @@ package freenet.support;
 public abstract class MemoryLimitedJob {
     
     protected final long initialAllocation;
+    /** Urgent jobs are started before ordinary jobs of the same priority, e.g. because other jobs
+     * are waiting for them. */
+    protected final boolean urgent;
+    /** The number of jobs started ahead of this one while it didn't fit. Protected by the
+     * MemoryLimitedJobRunner. */
+    int bypassed;
     
     public MemoryLimitedJob(long initial) {
+        this(initial, false);
+    }
+    
+    public MemoryLimitedJob(long initial, boolean urgent) {
         this.initialAllocation = initial;
+        this.urgent = urgent;
     }
     
     /** All memory limited jobs run at LOW_PRIORITY. This affects queueing. */
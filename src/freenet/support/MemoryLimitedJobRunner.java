@@ -1,23 +1,36 @@
 package freenet.support;
 
 import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
 
 import freenet.node.PrioRunnable;
 import freenet.support.io.NativeThread;
 
 /** Start jobs as long as there is sufficient memory (or other limited resource) available, then 
  * queue them. FIXME I bet there is something like this in the standard libraries?
+ * 
+ * Jobs are started in priority order, urgent jobs first within each priority, and otherwise in
+ * the order they were queued. If the next job doesn't fit in the memory that is left, later jobs
+ * of the same priority which do fit are started instead, so a big job doesn't stop several 
+ * smaller ones running in parallel. But no job is overtaken by more than MAX_BYPASS others,
+ * after that we wait for it to fit, so it can't be starved. Jobs of lower priority never start
+ * ahead of a job which is waiting.
  * @author toad
  */
 public class MemoryLimitedJobRunner {
     
     public static final int THREAD_PRIORITY = NativeThread.LOW_PRIORITY;
+    /** Maximum number of jobs we will start ahead of a job that doesn't fit yet. */
+    static final int MAX_BYPASS = 8;
     public long capacity;
     /** The amount of some limited resource that is in use */
     private long counter;
-    /** The jobs we can't start yet. FIXME Always FIFO order? Small jobs first? Prioritised even? */
+    /** The jobs we can't start yet. Two queues for each priority, urgent jobs then the rest. */
     private final Deque<MemoryLimitedJob>[] jobs;
+    private int maxBypass = MAX_BYPASS;
     private final Executor executor;
     private int runningThreads;
     private int maxThreads;
@@ -32,7 +45,7 @@ public class MemoryLimitedJobRunner {
     public MemoryLimitedJobRunner(long capacity, int maxThreads, Executor executor, int priorities) {
         this.capacity = capacity;
         this.counter = 0;
-        this.jobs = (ArrayDeque<MemoryLimitedJob>[])new ArrayDeque<?>[priorities];
+        this.jobs = (ArrayDeque<MemoryLimitedJob>[])new ArrayDeque<?>[priorities * 2];
         for(int i=0;i<jobs.length;i++) 
             jobs[i] = new ArrayDeque<MemoryLimitedJob>();
         this.executor = executor;
@@ -45,8 +58,8 @@ public class MemoryLimitedJobRunner {
     public synchronized void queueJob(final MemoryLimitedJob job) {
         if(shutdown) return;
         if(job.initialAllocation > capacity) throw new IllegalArgumentException("Job size "+job.initialAllocation+" > capacity "+capacity);
-        if(logMINOR) Logger.minor(this, "Queueing job "+job+" at priority "+job.getPriority());
-        jobs[job.getPriority()].add(job);
+        if(logMINOR) Logger.minor(this, "Queueing job "+job+" at priority "+job.getPriority()+(job.urgent ? " (urgent)" : ""));
+        jobs[job.getPriority() * 2 + (job.urgent ? 0 : 1)].add(job);
         maybeStartJobs();
     }
 
@@ -64,18 +77,33 @@ public class MemoryLimitedJobRunner {
     
     private synchronized void maybeStartJobs() {
         if(shutdown) return;
-        while(true) {
-            MemoryLimitedJob job = null;
-            int prio = 0;
-            for(;prio<jobs.length;prio++) {
-                job = jobs[prio].peekFirst();
-                if(job != null) break;
+        for(int prio=0;prio*2<jobs.length;prio++) {
+            // Jobs of this priority which don't fit yet.
+            List<MemoryLimitedJob> waiting = null;
+            for(int i=prio*2;i<prio*2+2;i++) {
+                Iterator<MemoryLimitedJob> it = jobs[i].iterator();
+                while(it.hasNext()) {
+                    if(runningThreads >= maxThreads) return;
+                    MemoryLimitedJob job = it.next();
+                    if(job.initialAllocation + counter > capacity) {
+                        if(job.bypassed >= maxBypass) return;
+                        if(waiting == null) waiting = new ArrayList<MemoryLimitedJob>();
+                        waiting.add(job);
+                        continue;
+                    }
+                    it.remove();
+                    boolean stop = false;
+                    if(waiting != null) {
+                        if(logMINOR) Logger.minor(this, "Starting "+job+" ahead of "+waiting);
+                        for(MemoryLimitedJob w : waiting) {
+                            if(++w.bypassed >= maxBypass) stop = true;
+                        }
+                    }
+                    startJob(job);
+                    if(stop) return;
+                }
             }
-            if(job == null) return;
-            if(job.initialAllocation + counter <= capacity && runningThreads < maxThreads) {
-                jobs[prio].removeFirst();
-                startJob(job);
-            } else return;
+            if(waiting != null) return;
         }
     }
     
@@ -100,6 +128,11 @@ public class MemoryLimitedJobRunner {
         });
     }
 
+    /** For tests. 0 means strictly in order. */
+    synchronized void setMaxBypass(int val) {
+        maxBypass = val;
+    }
+
     /** For tests and stats. How much of the scarce resource is used right now? */
     long used() {
         return counter;
@@ -50,6 +50,7 @@ public class PrioritizedTicker implements Ticker, Runnable {
 	final NativeThread myThread;
 	final Executor executor;
 	static final int MAX_SLEEP_TIME = 200;
+	final TickerLateness lateness = new TickerLateness();
 	
 	public PrioritizedTicker(Executor executor, int portNumber) {
 		this.executor = executor;
@@ -98,11 +99,13 @@ public class PrioritizedTicker implements Ticker, Runnable {
 						for(Job r: (Job[]) o) {
 							jobsToRun.add(r);
 							timedJobsQueued.remove(r);
+							lateness.report(now - tRun);
 						}
 					} else {
 						Job r = (Job) o;
 						jobsToRun.add(r);
 						timedJobsQueued.remove(r);
+						lateness.report(now - tRun);
 					}
 				} else {
 					sleepTime = Math.min(sleepTime, tRun.longValue() - now);
@@ -250,6 +253,11 @@ public class PrioritizedTicker implements Ticker, Runnable {
 		return executor;
 	}
 
+	/** @return How late jobs have been started. */
+	public TickerLateness getLateness() {
+		return lateness;
+	}
+
 	int queuedJobs() {
 		synchronized(timedJobsByTime) {
 			return timedJobsQueued.size();
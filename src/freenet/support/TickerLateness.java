@@ -0,0 +1,65 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+/**
+ * How late a {@link Ticker} starts its jobs compared to the time they were scheduled for. Kept as
+ * a histogram with power of two buckets, so it is cheap enough to update for every job.
+ */
+public class TickerLateness {
+
+	/** Bucket 0 counts jobs that were on time, bucket i jobs between 2^(i-1) and 2^i - 1 ms late,
+	 * the last bucket everything later. */
+	static final int BUCKETS = 18;
+
+	private final long[] buckets = new long[BUCKETS];
+	private long count;
+	private long total;
+	private long max;
+
+	/** Record that a job was started this many milliseconds after it should have been. */
+	public synchronized void report(long lateness) {
+		if(lateness < 0) lateness = 0;
+		buckets[bucket(lateness)]++;
+		count++;
+		total += lateness;
+		if(lateness > max) max = lateness;
+	}
+
+	static int bucket(long lateness) {
+		int b = 64 - Long.numberOfLeadingZeros(lateness);
+		return Math.min(b, BUCKETS - 1);
+	}
+
+	/** @return The number of jobs started. */
+	public synchronized long count() {
+		return count;
+	}
+
+	public synchronized double meanMillis() {
+		return count == 0 ? 0.0 : ((double) total) / count;
+	}
+
+	public synchronized long maxMillis() {
+		return max;
+	}
+
+	/**
+	 * @param fraction E.g. 0.99 for the 99th percentile.
+	 * @return An upper bound on the lateness of the given fraction of jobs, in milliseconds,
+	 * accurate to a factor of two.
+	 */
+	public synchronized long percentileMillis(double fraction) {
+		if(count == 0) return 0;
+		long wanted = (long) Math.ceil(count * fraction);
+		long seen = 0;
+		for(int i = 0; i < BUCKETS - 1; i++) {
+			seen += buckets[i];
+			if(seen >= wanted)
+				return Math.min(max, (1L << i) - 1);
+		}
+		return max;
+	}
+
+}
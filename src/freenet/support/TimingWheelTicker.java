@@ -0,0 +1,399 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import freenet.node.FastRunnable;
+import freenet.support.Logger.LogLevel;
+
+/**
+ * A {@link Ticker} which keeps its jobs in a hierarchical timing wheel rather than a sorted map,
+ * so that queueing and removing a job is O(1) however many are queued.
+ *
+ * There are four wheels of 256 slots. The first has one slot per millisecond, each of the others
+ * one slot per revolution of the wheel below it; jobs further away than that (about 50 days) wait
+ * in an overflow list. Whenever a wheel completes a revolution, the next slot of the wheel above
+ * is emptied into it. The ticker thread collects everything that has become due under one lock,
+ * then hands the whole batch to the executor, and sleeps until the next occupied slot.
+ *
+ * Scheduling uses System.nanoTime(), so changes to the system clock don't delay or bring forward
+ * jobs queued with an offset.
+ *
+ * This extends PrioritizedTicker so that it can be used for Node.ticker, which plugins use, but
+ * replaces all of its scheduling. Only the thread, the executor and the lateness are shared.
+ */
+public class TimingWheelTicker extends PrioritizedTicker {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerLogThresholdCallback(new LogThresholdCallback(){
+			@Override
+			public void shouldUpdate(){
+				logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
+			}
+		});
+	}
+
+	static final int WHEEL_BITS = 8;
+	static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+	static final int WHEEL_MASK = WHEEL_SIZE - 1;
+	static final int LEVELS = 4;
+	/** Wake up at least this often even if nothing is due, in case of a missed notify. */
+	static final int MAX_WHEEL_SLEEP_TIME = 1000;
+
+	private final static class Job {
+		final String name;
+		final Runnable job;
+		/** Tick at which the job should run */
+		final long deadline;
+		/** Order in which jobs were queued, so jobs due at the same time run in that order */
+		final long seq;
+		/** Which wheel it is in, or LEVELS for the overflow list */
+		int level;
+		int slot;
+		Job prev;
+		Job next;
+		/** Other copies of the same Runnable */
+		Job nextSame;
+
+		Job(String name, Runnable job, long deadline, long seq) {
+			this.name = name;
+			this.job = job;
+			this.deadline = deadline;
+			this.seq = seq;
+		}
+
+		@Override
+		public String toString() {
+			return name + " (" + job + ")";
+		}
+	}
+
+	private final Job[][] heads = new Job[LEVELS + 1][WHEEL_SIZE];
+	private final Job[][] tails = new Job[LEVELS + 1][WHEEL_SIZE];
+	private final int[] levelCounts = new int[LEVELS + 1];
+	/** Queued jobs by Runnable, for removal and noDupes. */
+	private final IdentityHashMap<Runnable, Job> byRunnable = new IdentityHashMap<Runnable, Job>();
+	private int queued;
+	private long nextSeq;
+	/** The next tick which has not been dealt with yet */
+	private long tick;
+	/** When the ticker thread will next look at the wheel */
+	private long wakeAt;
+	private final long startNanos;
+
+	public TimingWheelTicker(Executor executor, int portNumber) {
+		super(executor, portNumber);
+		startNanos = System.nanoTime();
+	}
+
+	/** @return Milliseconds since the ticker was created. */
+	long now() {
+		return (System.nanoTime() - startNanos) / 1000000;
+	}
+
+	@Override
+	public void run() {
+		if(logMINOR) Logger.minor(this, "In Ticker.run()");
+		freenet.support.Logger.OSThread.logPID(this);
+		while(true) {
+			try {
+				realRun();
+			} catch(Throwable t) {
+				Logger.error(this, "Caught in Ticker: " + t, t);
+				System.err.println("Caught in Ticker: " + t);
+				t.printStackTrace();
+			}
+		}
+	}
+
+	private void realRun() {
+		List<Job> jobsToRun;
+		synchronized(this) {
+			long now = now();
+			jobsToRun = advance(now);
+			if(jobsToRun == null) {
+				long sleepTime = Math.min(nextDue() - now, MAX_WHEEL_SLEEP_TIME);
+				if(sleepTime > 0) {
+					wakeAt = now + sleepTime;
+					if(logMINOR)
+						Logger.minor(this, "Sleeping for " + sleepTime);
+					try {
+						wait(sleepTime);
+					} catch(InterruptedException e) {
+						// Ignore, just wake up.
+					}
+				}
+				return;
+			}
+			// Anything queued while we are running the batch will be seen straight afterwards.
+			wakeAt = now;
+		}
+		runJobs(jobsToRun);
+	}
+
+	/** Run whatever is due, without waiting. For tests. */
+	void runDueJobs() {
+		List<Job> jobsToRun;
+		synchronized(this) {
+			jobsToRun = advance(now());
+		}
+		if(jobsToRun != null)
+			runJobs(jobsToRun);
+	}
+
+	private void runJobs(List<Job> jobsToRun) {
+		if(jobsToRun.size() > 1)
+			Collections.sort(jobsToRun, BY_TIME);
+		for(Job r : jobsToRun) {
+			if(logMINOR)
+				Logger.minor(this, "Running " + r);
+			if(r.job instanceof FastRunnable) {
+				// Run in-line
+				try {
+					r.job.run();
+				} catch(Throwable t) {
+					Logger.error(this, "Caught " + t + " running " + r, t);
+				}
+			} else {
+				try {
+					executor.execute(r.job, r.name, true);
+				} catch(Throwable t) {
+					Logger.error(this, "Caught in Ticker: " + t, t);
+					System.err.println("Caught in Ticker: " + t);
+					t.printStackTrace();
+					System.err.println("Will retry above failed operation...");
+					queueTimedJob(r.job, r.name, 200, true, false);
+				}
+			}
+		}
+	}
+
+	private static final Comparator<Job> BY_TIME = new Comparator<Job>() {
+
+		@Override
+		public int compare(Job a, Job b) {
+			if(a.deadline != b.deadline) return a.deadline < b.deadline ? -1 : 1;
+			if(a.seq != b.seq) return a.seq < b.seq ? -1 : 1;
+			return 0;
+		}
+
+	};
+
+	/** Move the wheels on to the given tick, and remove everything due by then.
+	 * @return The jobs to run, or null if there are none. */
+	private List<Job> advance(long now) {
+		List<Job> due = null;
+		while(tick <= now) {
+			if((tick & WHEEL_MASK) == 0) {
+				if((tick & 0xFFFFFFFFL) == 0)
+					cascade(LEVELS, 0);
+				for(int level = LEVELS - 1; level > 0; level--) {
+					if((tick & ((1L << (WHEEL_BITS * level)) - 1)) == 0)
+						cascade(level, (int) (tick >>> (WHEEL_BITS * level)) & WHEEL_MASK);
+				}
+			}
+			int slot = (int) tick & WHEEL_MASK;
+			Job j = heads[0][slot];
+			if(j != null) {
+				if(due == null) due = new ArrayList<Job>();
+				heads[0][slot] = tails[0][slot] = null;
+				while(j != null) {
+					Job next = j.next;
+					j.prev = j.next = null;
+					levelCounts[0]--;
+					queued--;
+					forget(j);
+					lateness.report(now - j.deadline);
+					due.add(j);
+					j = next;
+				}
+			}
+			tick++;
+			if(tick <= now) {
+				// Skip revolutions of the lower wheels which have nothing in them.
+				int empty = 0;
+				while(empty < LEVELS && levelCounts[empty] == 0) empty++;
+				if(empty == LEVELS && levelCounts[LEVELS] == 0) {
+					tick = now + 1;
+				} else if(empty > 0) {
+					long unit = 1L << (WHEEL_BITS * empty);
+					long boundary = (tick + unit - 1) & ~(unit - 1);
+					tick = Math.min(boundary, now + 1);
+				}
+			}
+		}
+		return due;
+	}
+
+	/** Empty one slot of a higher wheel into the lower wheels. */
+	private void cascade(int level, int slot) {
+		Job j = heads[level][slot];
+		if(j == null) return;
+		heads[level][slot] = tails[level][slot] = null;
+		while(j != null) {
+			Job next = j.next;
+			j.prev = j.next = null;
+			levelCounts[level]--;
+			insert(j);
+			j = next;
+		}
+	}
+
+	/** @return The earliest tick at which something may need doing. */
+	private long nextDue() {
+		long due = Long.MAX_VALUE;
+		// Jobs in the higher wheels may be due soon after they are moved down.
+		for(int level = 1; level <= LEVELS; level++) {
+			if(levelCounts[level] > 0) {
+				long unit = 1L << (WHEEL_BITS * level);
+				due = (tick + unit - 1) & ~(unit - 1);
+				break;
+			}
+		}
+		if(levelCounts[0] > 0) {
+			for(long t = tick; t < tick + WHEEL_SIZE && t < due; t++) {
+				if(heads[0][(int) t & WHEEL_MASK] != null) return t;
+			}
+		}
+		return due;
+	}
+
+	/** Put a job in the right slot for its deadline. */
+	private void insert(Job j) {
+		long t = Math.max(j.deadline, tick);
+		long delta = t - tick;
+		int level = 0;
+		while(level < LEVELS && delta >= (1L << (WHEEL_BITS * (level + 1))))
+			level++;
+		int slot = level == LEVELS ? 0 : (int) (t >>> (WHEEL_BITS * level)) & WHEEL_MASK;
+		j.level = level;
+		j.slot = slot;
+		Job tail = tails[level][slot];
+		if(tail == null) {
+			heads[level][slot] = j;
+		} else {
+			tail.next = j;
+			j.prev = tail;
+		}
+		tails[level][slot] = j;
+		levelCounts[level]++;
+	}
+
+	private void unlink(Job j) {
+		if(j.prev == null)
+			heads[j.level][j.slot] = j.next;
+		else
+			j.prev.next = j.next;
+		if(j.next == null)
+			tails[j.level][j.slot] = j.prev;
+		else
+			j.next.prev = j.prev;
+		j.prev = j.next = null;
+		levelCounts[j.level]--;
+		queued--;
+	}
+
+	/** Remove a job which is being run from byRunnable. */
+	private void forget(Job j) {
+		Job first = byRunnable.get(j.job);
+		if(first == j) {
+			if(j.nextSame == null)
+				byRunnable.remove(j.job);
+			else
+				byRunnable.put(j.job, j.nextSame);
+			return;
+		}
+		for(Job prev = first; prev != null; prev = prev.nextSame) {
+			if(prev.nextSame == j) {
+				prev.nextSame = j.nextSame;
+				return;
+			}
+		}
+	}
+
+	@Override
+	public void queueTimedJob(Runnable job, long offset) {
+		queueTimedJob(job, "Scheduled job: "+job, offset, false, false);
+	}
+
+	@Override
+	public void queueTimedJob(Runnable runner, String name, long offset, boolean runOnTickerAnyway, boolean noDupes) {
+		if(offset < 0) offset = 0;
+		queueTimedJobInner(runner, name, offset, runOnTickerAnyway, noDupes);
+	}
+
+	@Override
+	public void queueTimedJobAbsolute(Runnable runner, String name, long time,
+			boolean runOnTickerAnyway, boolean noDupes) {
+		queueTimedJobInner(runner, name, time - System.currentTimeMillis(), runOnTickerAnyway, noDupes);
+	}
+
+	private void queueTimedJobInner(Runnable runner, String name, long offset,
+			boolean runOnTickerAnyway, boolean noDupes) {
+		if(noDupes) runOnTickerAnyway = true;
+		if(offset <= 0 && !runOnTickerAnyway) {
+			if(logMINOR) Logger.minor(this, "Running directly: "+runner);
+			executor.execute(runner, name);
+			return;
+		}
+		synchronized(this) {
+			long deadline = now() + Math.max(offset, 0);
+			Job first = byRunnable.get(runner);
+			if(noDupes && first != null) {
+				for(Job j = first; j != null; j = j.nextSame) {
+					if(j.deadline <= deadline) {
+						Logger.normal(this, "Not re-running as already queued: "+runner+" for "+name);
+						return;
+					}
+				}
+				// Delete the existing jobs because the new job will run first.
+				for(Job j = first; j != null; j = j.nextSame)
+					unlink(j);
+				first = null;
+			}
+			Job job = new Job(name, runner, deadline, nextSeq++);
+			job.nextSame = first;
+			byRunnable.put(runner, job);
+			insert(job);
+			queued++;
+			if(deadline < wakeAt) {
+				wakeAt = deadline;
+				notifyAll();
+			}
+		}
+	}
+
+	@Override
+	public void removeQueuedJob(Runnable runnable) {
+		synchronized(this) {
+			Job j = byRunnable.remove(runnable);
+			for(; j != null; j = j.nextSame)
+				unlink(j);
+		}
+	}
+
+	@Override
+	synchronized int queuedJobs() {
+		return queued;
+	}
+
+	@Override
+	synchronized int queuedJobsUniqueTimes() {
+		HashSet<Long> times = new HashSet<Long>();
+		for(Job first : byRunnable.values()) {
+			for(Job j = first; j != null; j = j.nextSame)
+				times.add(j.deadline);
+		}
+		return times.size();
+	}
+
+}
@@ -0,0 +1,527 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import java.lang.reflect.Method;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import freenet.node.PrioRunnable;
+import freenet.support.io.NativeThread;
+
+/**
+ * Executor with a bounded pool of threads for each priority, which steal work from each other.
+ *
+ * A job submitted from one of the pool's threads of the same priority goes on that thread's own
+ * deque, any other job goes on the shared queue for its priority. Idle threads take jobs from
+ * their own deque first, then from the shared queue, then from the other end of the other
+ * threads' deques. Submitting a job never takes a global lock.
+ *
+ * Many of our jobs block, e.g. waiting for a message, so a bounded pool could deadlock with every
+ * thread waiting for a job stuck in the queue behind it. So while there are jobs queued, a manager
+ * thread checks regularly for jobs which have been queued for more than STARVATION_TIME, and
+ * starts an extra thread for each of them, beyond the bound, unless one is already starting.
+ * Extra threads exit as soon as they run out of work. If enabled
+ * and supported by the JVM (Java 21 or later), the extra threads are virtual threads instead.
+ *
+ * The manager thread runs at maximum priority and creates threads when the submitting thread's
+ * priority is too low to create them itself, like the Ticker does for PooledExecutor.
+ */
+public class WorkStealingExecutor implements Executor {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerClass(WorkStealingExecutor.class);
+	}
+
+	/** Maximum time a thread will wait for a job before exiting */
+	static final long TIMEOUT = PooledExecutor.TIMEOUT;
+	/** A job queued for longer than this with no thread free to run it gets an extra thread */
+	static final long STARVATION_TIME = 100;
+	/** How often the manager looks for starving jobs, while any jobs are queued */
+	private static final long CHECK_PERIOD = 50;
+	/** Maximum number of extra threads started by each check, per priority */
+	private static final int MAX_EXTRA_THREADS_PER_CHECK = 64;
+
+	/** Thread.startVirtualThread(Runnable), or null if not available */
+	private static final Method START_VIRTUAL_THREAD;
+
+	static {
+		Method m = null;
+		try {
+			m = Thread.class.getMethod("startVirtualThread", Runnable.class);
+		} catch (NoSuchMethodException e) {
+			// Before Java 21.
+		} catch (SecurityException e) {
+			// Ignore.
+		}
+		START_VIRTUAL_THREAD = m;
+	}
+
+	private final Lane[] lanes = new Lane[NativeThread.JAVA_PRIORITY_RANGE + 1];
+	private final int maxThreadsPerPriority;
+	private final boolean virtualThreads;
+	private final AtomicInteger waitingThreadsCount = new AtomicInteger();
+	private final AtomicLong jobCount = new AtomicLong();
+	private final AtomicLong extraThreadCount = new AtomicLong();
+	/** Lanes which need a thread created by the manager */
+	private final ConcurrentLinkedQueue<Lane> spawnRequests = new ConcurrentLinkedQueue<Lane>();
+	volatile Thread manager;
+
+	/** @return True if this JVM can run jobs on virtual threads. */
+	public static boolean virtualThreadsAvailable() {
+		return START_VIRTUAL_THREAD != null;
+	}
+
+	/** @return The default maximum number of threads per priority, which depends on the number of
+	 * processors. */
+	public static int defaultMaxThreadsPerPriority() {
+		return Math.max(8, 4 * Runtime.getRuntime().availableProcessors());
+	}
+
+	public WorkStealingExecutor() {
+		this(defaultMaxThreadsPerPriority(), false);
+	}
+
+	/**
+	 * @param maxThreadsPerPriority Maximum number of threads for each priority, not counting
+	 * extra threads for starving jobs.
+	 * @param virtualThreads If true, and the JVM supports it, use virtual threads instead of
+	 * extra pooled threads for starving jobs.
+	 */
+	public WorkStealingExecutor(int maxThreadsPerPriority, boolean virtualThreads) {
+		if(maxThreadsPerPriority < 1) throw new IllegalArgumentException();
+		this.maxThreadsPerPriority = maxThreadsPerPriority;
+		this.virtualThreads = virtualThreads && virtualThreadsAvailable();
+		if(virtualThreads && !virtualThreadsAvailable())
+			Logger.normal(this, "Virtual threads not supported by this JVM, using pooled threads for blocked jobs");
+		for(int i = 0; i < lanes.length; i++)
+			lanes[i] = new Lane(i + 1);
+	}
+
+	public void start() {
+		startManager();
+	}
+
+	private void startManager() {
+		if(manager != null) return;
+		synchronized(this) {
+			if(manager != null) return;
+			Manager m = new Manager();
+			m.setDaemon(true);
+			m.start();
+			manager = m;
+		}
+	}
+
+	@Override
+	public void execute(Runnable job) {
+		execute(job, "<noname>");
+	}
+
+	@Override
+	public void execute(Runnable job, String jobName) {
+		execute(job, jobName, false);
+	}
+
+	@Override
+	public void execute(Runnable runnable, String jobName, boolean fromTicker) {
+		int prio = NativeThread.NORM_PRIORITY;
+		if(runnable instanceof PrioRunnable)
+			prio = ((PrioRunnable) runnable).getPriority();
+
+		if(logMINOR)
+			Logger.minor(this, "Executing " + runnable + " as " + jobName + " at prio " + prio);
+		if(prio < NativeThread.MIN_PRIORITY || prio > NativeThread.MAX_PRIORITY)
+			throw new IllegalArgumentException("Unreconized priority level : " + prio + '!');
+
+		startManager();
+		Lane lane = lanes[prio - 1];
+		Job job = new Job(runnable, jobName, (int) jobCount.incrementAndGet());
+		if(lane.queued.getAndIncrement() == 0)
+			LockSupport.unpark(manager); // It may be waiting for something to check.
+		Thread current = Thread.currentThread();
+		if(current instanceof Worker && ((Worker) current).lane == lane)
+			((Worker) current).local.addFirst(job);
+		else
+			lane.queue.add(job);
+		lane.signal(fromTicker);
+	}
+
+	@Override
+	public int[] runningThreads() {
+		int[] result = new int[lanes.length];
+		for(int i = 0; i < result.length; i++)
+			result[i] = lanes[i].threads.get() - lanes[i].idleCount.get() + lanes[i].virtualRunning.get();
+		return result;
+	}
+
+	@Override
+	public int[] waitingThreads() {
+		int[] result = new int[lanes.length];
+		for(int i = 0; i < result.length; i++)
+			result[i] = lanes[i].idleCount.get();
+		return result;
+	}
+
+	@Override
+	public int getWaitingThreadsCount() {
+		return waitingThreadsCount.get();
+	}
+
+	/** @return The number of threads started beyond the bound because jobs were starving. */
+	public long getExtraThreadCount() {
+		return extraThreadCount.get();
+	}
+
+	public long getJobCount() {
+		return jobCount.get();
+	}
+
+	private static class Job {
+		private final Runnable runnable;
+		private final String name;
+		private final int id;
+		private final long queued;
+
+		Job(Runnable runnable, String name, int id) {
+			this.runnable = runnable;
+			this.name = name;
+			this.id = id;
+			this.queued = System.currentTimeMillis();
+		}
+	}
+
+	/** Threads and queues for one priority */
+	private class Lane {
+		final int prio;
+		final ConcurrentLinkedQueue<Job> queue = new ConcurrentLinkedQueue<Job>();
+		final List<Worker> workers = new CopyOnWriteArrayList<Worker>();
+		/** Idle workers, most recently idle first so we keep reusing the same threads */
+		final ConcurrentLinkedDeque<Worker> idle = new ConcurrentLinkedDeque<Worker>();
+		final AtomicInteger idleCount = new AtomicInteger();
+		/** Pooled threads, including extra threads */
+		final AtomicInteger threads = new AtomicInteger();
+		final AtomicInteger virtualRunning = new AtomicInteger();
+		final AtomicLong threadCounter = new AtomicLong();
+		/** Jobs waiting for a thread, on the shared queue or on a worker's deque */
+		final AtomicInteger queued = new AtomicInteger();
+		/** Extra threads which have been started but haven't looked for a job yet */
+		final AtomicInteger starting = new AtomicInteger();
+
+		Lane(int prio) {
+			this.prio = prio;
+		}
+
+		/** Wake an idle worker for a newly queued job, or create one if there is room. */
+		void signal(boolean fromTicker) {
+			Worker w = pollIdle();
+			if(w != null) {
+				w.wake();
+				return;
+			}
+			if(!reserveThread()) return; // The manager will deal with it if it starves.
+			if(NativeThread.usingNativeCode() && !fromTicker && prio > Thread.currentThread().getPriority()) {
+				// We can't create a thread with a higher priority than ours, get the manager to do it.
+				spawnRequests.add(this);
+				LockSupport.unpark(manager);
+			} else {
+				spawn(!fromTicker, false);
+			}
+		}
+
+		/** Count a new thread if we are below the bound. */
+		boolean reserveThread() {
+			while(true) {
+				int t = threads.get();
+				if(t >= maxThreadsPerPriority) return false;
+				if(threads.compareAndSet(t, t + 1)) return true;
+			}
+		}
+
+		/** Start a worker. The caller must already have counted it in threads. */
+		void spawn(boolean dontCheckRenice, boolean extra) {
+			long threadNo = threadCounter.getAndIncrement();
+			// Will be coalesced by thread count listings if we use "@" or "for"
+			Worker w = new Worker(this, "Pooled thread awaiting work @" + threadNo + " for prio " + prio, threadNo, dontCheckRenice, extra);
+			if(extra) starting.incrementAndGet();
+			w.setDaemon(true);
+			workers.add(w);
+			if(logMINOR)
+				Logger.minor(WorkStealingExecutor.this, "Starting " + (extra ? "extra " : "") + "thread " + w);
+			w.start();
+		}
+
+		Worker pollIdle() {
+			Worker w = idle.pollFirst();
+			if(w != null) {
+				idleCount.decrementAndGet();
+				waitingThreadsCount.decrementAndGet();
+			}
+			return w;
+		}
+
+		boolean removeIdle(Worker w) {
+			if(!idle.remove(w)) return false;
+			idleCount.decrementAndGet();
+			waitingThreadsCount.decrementAndGet();
+			return true;
+		}
+
+		void addIdle(Worker w) {
+			idleCount.incrementAndGet();
+			waitingThreadsCount.incrementAndGet();
+			idle.addFirst(w);
+		}
+
+		/** Find a job: own deque, then shared queue, then steal. */
+		Job poll(Worker self) {
+			Job job = innerPoll(self);
+			if(job != null) queued.decrementAndGet();
+			return job;
+		}
+
+		private Job innerPoll(Worker self) {
+			Job job;
+			if(self != null) {
+				job = self.local.pollFirst();
+				if(job != null) return job;
+			}
+			job = queue.poll();
+			if(job != null) return job;
+			for(Worker w : workers) {
+				if(w == self) continue;
+				job = w.local.pollLast();
+				if(job != null) return job;
+			}
+			return null;
+		}
+
+		/** @return The number of jobs, up to max, which have been waiting since before the given
+		 * time. */
+		int countStarving(long before, int max) {
+			int count = 0;
+			for(Job job : queue) {
+				if(job.queued >= before || count >= max) break;
+				count++;
+			}
+			for(Worker w : workers) {
+				for(Iterator<Job> i = w.local.descendingIterator(); i.hasNext() && count < max;) {
+					if(i.next().queued >= before) break;
+					count++;
+				}
+			}
+			return count;
+		}
+
+		/** Run jobs on a virtual thread until there are none left. */
+		void startVirtual() {
+			virtualRunning.incrementAndGet();
+			starting.incrementAndGet();
+			try {
+				START_VIRTUAL_THREAD.invoke(null, new Runnable() {
+
+					@Override
+					public void run() {
+						starting.decrementAndGet();
+						try {
+							Job job;
+							while((job = poll(null)) != null)
+								runJob(job, null);
+						} finally {
+							virtualRunning.decrementAndGet();
+						}
+					}
+
+				});
+			} catch (Exception e) {
+				virtualRunning.decrementAndGet();
+				starting.decrementAndGet();
+				Logger.error(WorkStealingExecutor.this, "Unable to start virtual thread: " + e, e);
+				threads.incrementAndGet();
+				spawn(false, true);
+			}
+		}
+	}
+
+	private static void runJob(Job job, Thread thread) {
+		try {
+			if(thread != null)
+				thread.setName(job.name + "(" + ((Worker) thread).threadNo + ")");
+			job.runnable.run();
+		} catch(Throwable t) {
+			Logger.error(WorkStealingExecutor.class, "Caught " + t + " running job " + job.runnable + " (" + job.name + ")", t);
+		}
+	}
+
+	public class Worker extends NativeThread {
+		final Lane lane;
+		final String defaultName;
+		final long threadNo;
+		final ConcurrentLinkedDeque<Job> local = new ConcurrentLinkedDeque<Job>();
+		/** Started by the manager for a starving job */
+		private final boolean extra;
+		private volatile boolean woken;
+		private volatile Job job;
+
+		Worker(Lane lane, String defaultName, long threadNo, boolean dontCheckRenice, boolean extra) {
+			super(defaultName, lane.prio, dontCheckRenice);
+			this.lane = lane;
+			this.defaultName = defaultName;
+			this.threadNo = threadNo;
+			this.extra = extra;
+		}
+
+		public int getJobId() {
+			Job j = job;
+			return j != null ? j.id : 0;
+		}
+
+		void wake() {
+			woken = true;
+			LockSupport.unpark(this);
+		}
+
+		@Override
+		public void realRun() {
+			long ranJobs = 0;
+			if(extra) lane.starting.decrementAndGet();
+			try {
+				while(true) {
+					Job j = lane.poll(this);
+					if(j == null) {
+						j = waitForJob();
+						if(j == null) break;
+					}
+					job = j;
+					runJob(j, this);
+					job = null;
+					ranJobs++;
+				}
+			} finally {
+				lane.workers.remove(this);
+				// Anything left on our deque goes back to the shared queue.
+				Job j;
+				while((j = local.pollLast()) != null)
+					lane.queue.add(j);
+				if(logMINOR)
+					Logger.minor(this, "Exiting having executed " + ranJobs + " jobs : " + this);
+			}
+		}
+
+		/** @return A job, or null if we should exit. On returning null, we have already been
+		 * removed from the thread count. */
+		private Job waitForJob() {
+			if(lane.threads.get() > maxThreadsPerPriority) {
+				// Extra thread, no longer needed.
+				lane.threads.decrementAndGet();
+				return recheckAfterExit();
+			}
+			setName(defaultName);
+			woken = false;
+			lane.addIdle(this);
+			long deadline = System.currentTimeMillis() + TIMEOUT;
+			while(true) {
+				// A job may have been queued before we were visible as idle.
+				Job j = lane.poll(this);
+				if(j != null) {
+					lane.removeIdle(this);
+					return j;
+				}
+				if(woken) {
+					woken = false;
+					if(!lane.removeIdle(this)) {
+						// Taken off the idle list for a job, which may have gone to someone else.
+						// Go back on the list.
+						lane.addIdle(this);
+					}
+					continue;
+				}
+				long now = System.currentTimeMillis();
+				if(now >= deadline) {
+					if(lane.removeIdle(this)) {
+						lane.threads.decrementAndGet();
+						return recheckAfterExit();
+					}
+					// Somebody is waking us, wait for it.
+					deadline = now + CHECK_PERIOD;
+					continue;
+				}
+				LockSupport.parkNanos(this, MILLISECONDS.toNanos(deadline - now));
+			}
+		}
+
+		/** We have stopped counting ourselves, but a job may have been queued in the meantime by
+		 * a thread which saw us in the count. */
+		private Job recheckAfterExit() {
+			if(lane.queue.isEmpty() || !lane.reserveThread()) return null;
+			Job j = lane.poll(this);
+			if(j == null) lane.threads.decrementAndGet();
+			return j;
+		}
+	}
+
+	private class Manager extends NativeThread {
+
+		Manager() {
+			super("Executor manager", NativeThread.MAX_PRIORITY, false);
+		}
+
+		@Override
+		public void realRun() {
+			while(true) {
+				try {
+					Lane lane;
+					while((lane = spawnRequests.poll()) != null)
+						lane.spawn(false, false);
+					checkStarving();
+				} catch (Throwable t) {
+					Logger.error(this, "Caught " + t, t);
+				}
+				if(anyQueued())
+					LockSupport.parkNanos(this, MILLISECONDS.toNanos(CHECK_PERIOD));
+				else
+					LockSupport.park(this); // Until execute() queues a job, or a spawn request.
+			}
+		}
+
+		private boolean anyQueued() {
+			for(Lane lane : lanes)
+				if(lane.queued.get() > 0) return true;
+			return false;
+		}
+
+		private void checkStarving() {
+			long before = System.currentTimeMillis() - STARVATION_TIME;
+			for(Lane lane : lanes) {
+				if(lane.idleCount.get() > 0) continue;
+				// Threads which are already starting will take some of the jobs.
+				int max = Math.min(MAX_EXTRA_THREADS_PER_CHECK, lane.queued.get() - lane.starting.get());
+				if(max <= 0) continue;
+				int starving = lane.countStarving(before, max);
+				if(starving == 0) continue;
+				if(logMINOR)
+					Logger.minor(this, starving + " jobs starving at priority " + lane.prio + ", starting extra threads");
+				extraThreadCount.addAndGet(starving);
+				for(int i = 0; i < starving; i++) {
+					if(virtualThreads) {
+						lane.startVirtual();
+					} else {
+						lane.threads.incrementAndGet();
+						lane.spawn(false, true);
+					}
+				}
+			}
+		}
+	}
+}
@@ -147,4 +147,9 @@ public class Bzip2Compressor extends AbstractCompressor {
 		System.arraycopy(buf, 0, output, 0, bytes);
 		return bytes;
 	}
+
+	@Override
+	public InputStream decompressingInputStream(InputStream input) throws IOException {
+		return new BZip2CompressorInputStream(HeaderStreams.augInput(BZ_HEADER, input));
+	}
 }
@@ -184,6 +184,11 @@ public interface Compressor {
 			return compressor.decompress(dbuf, i, j, output);
 		}
 
+		@Override
+		public InputStream decompressingInputStream(InputStream input) throws IOException {
+			return compressor.decompressingInputStream(input);
+		}
+
 		public static int countCompressors() {
 			return values.length;
 		}
@@ -249,4 +254,16 @@ public interface Compressor {
 	 * @returns The number of bytes actually written.
 	 */
 	int decompress(byte[] dbuf, int i, int j, byte[] output) throws CompressionOutputSizeException;
+
+	/**
+	 * Decompress data as it is read, on the reader's thread. This does not limit the length, see
+	 * DecompressorPipeline.
+	 * @param input Where to read the data to decompress from. May be read from immediately, so
+	 * don't call this until the data is available.
+	 * @return A stream of the decompressed data, or null if we can only decompress to an
+	 * OutputStream, via decompress().
+	 */
+	default InputStream decompressingInputStream(InputStream input) throws IOException {
+		return null;
+	}
 }
@@ -0,0 +1,338 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.compress;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import freenet.crypt.HashResult;
+import freenet.crypt.MultiHashInputStream;
+import freenet.keys.CHKBlock;
+import freenet.support.Logger;
+import freenet.support.api.BucketFactory;
+import freenet.support.api.RandomAccessBucket;
+import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
+import freenet.support.io.CountedOutputStream;
+import freenet.support.io.NullOutputStream;
+
+/**
+ * Choose the best compressor for a big insert without running each one over all the data in turn.
+ * First compress a sample of the data with each codec to estimate how well they will do, and
+ * drop any that clearly won't be worth it. Then run the rest in parallel on the RealCompressor's
+ * threads. As soon as one finishes, any others whose output is already bigger are stopped, as they
+ * can't do any better.
+ */
+public class CompressorChooser {
+
+	private static volatile boolean logMINOR;
+	static {
+		Logger.registerClass(CompressorChooser.class);
+	}
+
+	/** Size of each chunk of the sample. */
+	static final int SAMPLE_CHUNK_SIZE = 256 * 1024;
+	/** Number of chunks in the sample, spread evenly through the data. */
+	static final int SAMPLE_CHUNKS = 4;
+	/** Don't bother sampling if the data is smaller than this, just try each codec in turn. */
+	public static final long MIN_SIZE = 4 * SAMPLE_CHUNK_SIZE * SAMPLE_CHUNKS;
+	/** Drop a codec if the sample suggests its output will be this much bigger (in percent) than
+	 * the best. */
+	static final int ESTIMATE_MARGIN = 10;
+
+	/** The result of compress(). */
+	public static class Result {
+		/** The best codec, or null if none of them are worth using. */
+		public final COMPRESSOR_TYPE codec;
+		/** The compressed data, or the original data if codec is null. */
+		public final RandomAccessBucket data;
+		/** Null unless we were asked to generate hashes. */
+		public final HashResult[] hashes;
+		/** Milliseconds spent on each codec, including sampling. */
+		public final Map<COMPRESSOR_TYPE, Long> times;
+
+		Result(COMPRESSOR_TYPE codec, RandomAccessBucket data, HashResult[] hashes, Map<COMPRESSOR_TYPE, Long> times) {
+			this.codec = codec;
+			this.data = data;
+			this.hashes = hashes;
+			this.times = Collections.unmodifiableMap(times);
+		}
+	}
+
+	private final RandomAccessBucket data;
+	private final long origSize;
+	private final BucketFactory bf;
+	private final RealCompressor rc;
+	private final long generateHashes;
+	private final int minSize;
+	private final long amountOfDataToCheckCompressionRatio;
+	private final int minimumCompressionPercentage;
+	private final long maxTimeForSingleCompressor;
+	private final Map<COMPRESSOR_TYPE, Long> times = new EnumMap<COMPRESSOR_TYPE, Long>(COMPRESSOR_TYPE.class);
+	private final Map<COMPRESSOR_TYPE, Long> estimates = new EnumMap<COMPRESSOR_TYPE, Long>(COMPRESSOR_TYPE.class);
+
+	/**
+	 * @param generateHashes Hashes to compute while reading the data, as for MultiHashInputStream.
+	 * @param minSize If the compressed data is no bigger than this, it fits in a single block.
+	 * @param amountOfDataToCheckCompressionRatio See Compressor.compress().
+	 * @param minimumCompressionPercentage See Compressor.compress().
+	 * @param maxTimeForSingleCompressor Once we have a result, stop any codec that has taken longer
+	 * than this.
+	 */
+	public CompressorChooser(RandomAccessBucket data, BucketFactory bf, RealCompressor rc, long generateHashes,
+			int minSize, long amountOfDataToCheckCompressionRatio, int minimumCompressionPercentage,
+			long maxTimeForSingleCompressor) {
+		this.data = data;
+		this.origSize = data.size();
+		this.bf = bf;
+		this.rc = rc;
+		this.generateHashes = generateHashes;
+		this.minSize = minSize;
+		this.amountOfDataToCheckCompressionRatio = amountOfDataToCheckCompressionRatio;
+		this.minimumCompressionPercentage = minimumCompressionPercentage;
+		this.maxTimeForSingleCompressor = maxTimeForSingleCompressor;
+	}
+
+	/** Compress a sample of the data with each codec.
+	 * @return The codecs worth trying on all the data, the most promising first. */
+	public COMPRESSOR_TYPE[] sample(COMPRESSOR_TYPE[] comps) throws IOException {
+		byte[] sample = readSample();
+		long best = Long.MAX_VALUE;
+		for(COMPRESSOR_TYPE comp : comps) {
+			long start = System.currentTimeMillis();
+			try {
+				CountedOutputStream os = new CountedOutputStream(new NullOutputStream());
+				comp.compress(new ByteArrayInputStream(sample), os, sample.length, Long.MAX_VALUE);
+				long estimate = os.written() * origSize / sample.length;
+				estimates.put(comp, estimate);
+				best = Math.min(best, estimate);
+			} catch (RuntimeException e) {
+				Logger.error(this, "Compression failed with codec "+comp+" : "+e, e);
+			} finally {
+				addTime(comp, System.currentTimeMillis() - start);
+			}
+		}
+		List<COMPRESSOR_TYPE> candidates = new ArrayList<COMPRESSOR_TYPE>(comps.length);
+		for(COMPRESSOR_TYPE comp : comps) {
+			Long estimate = estimates.get(comp);
+			if(estimate == null) continue;
+			if(logMINOR) Logger.minor(this, "Estimated size with "+comp+" is "+estimate+" of "+origSize);
+			if(estimate >= origSize) continue;
+			// The codec would fail the check after amountOfDataToCheckCompressionRatio.
+			if(minimumCompressionPercentage != 0 && origSize > amountOfDataToCheckCompressionRatio &&
+					100 - estimate * 100 / origSize < minimumCompressionPercentage) continue;
+			if(estimate > best + best * ESTIMATE_MARGIN / 100) continue;
+			candidates.add(comp);
+		}
+		// Stable, so if two are about the same, the faster one comes first.
+		Collections.sort(candidates, new Comparator<COMPRESSOR_TYPE>() {
+
+			@Override
+			public int compare(COMPRESSOR_TYPE a, COMPRESSOR_TYPE b) {
+				return Long.compare(estimates.get(a), estimates.get(b));
+			}
+
+		});
+		return candidates.toArray(new COMPRESSOR_TYPE[candidates.size()]);
+	}
+
+	private byte[] readSample() throws IOException {
+		byte[] sample = new byte[SAMPLE_CHUNK_SIZE * SAMPLE_CHUNKS];
+		long gap = origSize / SAMPLE_CHUNKS - SAMPLE_CHUNK_SIZE;
+		if(gap < 0) throw new IllegalStateException("Too small to sample");
+		DataInputStream is = new DataInputStream(data.getInputStream());
+		try {
+			for(int i=0;i<SAMPLE_CHUNKS;i++) {
+				is.readFully(sample, i * SAMPLE_CHUNK_SIZE, SAMPLE_CHUNK_SIZE);
+				if(i < SAMPLE_CHUNKS - 1) skipFully(is, gap);
+			}
+		} finally {
+			is.close();
+		}
+		return sample;
+	}
+
+	private static void skipFully(InputStream is, long length) throws IOException {
+		while(length > 0) {
+			long skipped = is.skip(length);
+			if(skipped <= 0) {
+				if(is.read() < 0) throw new EOFException();
+				skipped = 1;
+			}
+			length -= skipped;
+		}
+	}
+
+	private synchronized void addTime(COMPRESSOR_TYPE comp, long time) {
+		Long old = times.get(comp);
+		times.put(comp, old == null ? time : old + time);
+	}
+
+	/** Compress the data with each of the codecs in parallel and pick the best.
+	 * @param candidates The codecs to try, in order of preference, normally from sample().
+	 * @throws IOException If we can't read the data or write the compressed data. */
+	public Result compress(COMPRESSOR_TYPE[] candidates) throws IOException {
+		final AtomicLong best = new AtomicLong(origSize);
+		long startTime = System.currentTimeMillis();
+		List<Attempt> attempts = new ArrayList<Attempt>(candidates.length);
+		for(int i=0;i<candidates.length;i++)
+			attempts.add(new Attempt(candidates[i], i == 0 && generateHashes != 0, best, startTime));
+		rc.runAll(attempts);
+		Attempt winner = null;
+		HashResult[] hashes = null;
+		IOException failure = null;
+		for(Attempt a : attempts) {
+			addTime(a.comp, a.time);
+			if(a.hashes != null) hashes = a.hashes;
+			if(a.failure != null) failure = a.failure;
+			if(a.result == null) continue;
+			if(winner == null || a.isBetterThan(winner)) {
+				if(winner != null) winner.result.free();
+				winner = a;
+			} else
+				a.result.free();
+		}
+		if(failure != null) {
+			if(winner != null) winner.result.free();
+			throw failure;
+		}
+		if(hashes == null && generateHashes != 0)
+			hashes = computeHashes();
+		if(winner == null)
+			return new Result(null, data, hashes, times);
+		if(logMINOR) Logger.minor(this, "Best codec is "+winner.comp+" size "+winner.size+" of "+origSize+" times "+times);
+		return new Result(winner.comp, winner.result, hashes, times);
+	}
+
+	private HashResult[] computeHashes() throws IOException {
+		try(MultiHashInputStream hasher = new MultiHashInputStream(data.getInputStream(), generateHashes)) {
+			hasher.skip(Long.MAX_VALUE);
+			return hasher.getResults();
+		}
+	}
+
+	/** Compressing all the data with one codec. */
+	private class Attempt implements Runnable {
+
+		final COMPRESSOR_TYPE comp;
+		final boolean hash;
+		final AtomicLong best;
+		final long startTime;
+		/** Set by run(). Visible to compress() because runAll() waits for us. */
+		RandomAccessBucket result;
+		long size;
+		HashResult[] hashes;
+		IOException failure;
+		long time;
+
+		Attempt(COMPRESSOR_TYPE comp, boolean hash, AtomicLong best, long startTime) {
+			this.comp = comp;
+			this.hash = hash;
+			this.best = best;
+			this.startTime = startTime;
+		}
+
+		@Override
+		public void run() {
+			long start = System.currentTimeMillis();
+			boolean success = false;
+			try {
+				result = bf.makeBucket(-1);
+				try(InputStream raw = data.getInputStream();
+						OutputStream os = new BoundedOutputStream(result.getOutputStream(), best, startTime)) {
+					MultiHashInputStream hasher = hash ? new MultiHashInputStream(raw, generateHashes) : null;
+					InputStream is = hasher != null ? hasher : raw;
+					try {
+						rc.compress(comp, is, os, origSize, origSize, amountOfDataToCheckCompressionRatio,
+								minimumCompressionPercentage);
+						success = true;
+					} catch (CompressionOutputSizeException | CompressionRatioException e) {
+						if(logMINOR) Logger.minor(this, "Stopped compressing with "+comp+" : "+e);
+						if(hasher != null) is.skip(Long.MAX_VALUE);
+					}
+					if(hasher != null) hashes = hasher.getResults();
+				}
+			} catch (IOException e) {
+				failure = e;
+				success = false;
+			} catch (RuntimeException e) {
+				// ArithmeticException has been seen in bzip2 codec.
+				Logger.error(this, "Compression failed with codec "+comp+" : "+e, e);
+				success = false;
+			} finally {
+				time = System.currentTimeMillis() - start;
+			}
+			if(!success) {
+				if(result != null) result.free();
+				result = null;
+				return;
+			}
+			size = result.size();
+			// Anything bigger can't be better.
+			while(true) {
+				long oldBest = best.get();
+				if(size >= oldBest || best.compareAndSet(oldBest, size)) break;
+			}
+		}
+
+		/** Compare the same way InsertCompressor does when trying each codec in turn. */
+		boolean isBetterThan(Attempt other) {
+			long blocks = size <= minSize ? -1 : size / CHKBlock.DATA_LENGTH;
+			long otherBlocks = other.size <= minSize ? -1 : other.size / CHKBlock.DATA_LENGTH;
+			if(blocks != otherBlocks) return blocks < otherBlocks;
+			// Prefer the faster codec.
+			return comp.ordinal() < other.comp.ordinal();
+		}
+
+	}
+
+	/** Stop compressing once we've written more than the best result so far, or if the codec is
+	 * taking too long and we already have a result. */
+	private class BoundedOutputStream extends FilterOutputStream {
+
+		private final AtomicLong best;
+		private final long startTime;
+		private long written;
+
+		BoundedOutputStream(OutputStream os, AtomicLong best, long startTime) {
+			super(os);
+			this.best = best;
+			this.startTime = startTime;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			check(1);
+			out.write(b);
+		}
+
+		@Override
+		public void write(byte[] buf, int offset, int length) throws IOException {
+			check(length);
+			out.write(buf, offset, length);
+		}
+
+		private void check(int length) throws CompressionOutputSizeException {
+			written += length;
+			long limit = best.get();
+			if(written > limit)
+				throw new CompressionOutputSizeException(written);
+			if(limit < origSize && System.currentTimeMillis() - startTime > maxTimeForSingleCompressor)
+				throw new CompressionOutputSizeException();
+		}
+
+	}
+
+}
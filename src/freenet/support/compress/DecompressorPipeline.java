@@ -0,0 +1,313 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+* Public License, version 2 (or at your option any later version). See
+* http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.compress;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import freenet.support.Executor;
+import freenet.support.Logger;
+
+/** Decompresses a stream through any number of layers of compression without a thread for each
+ * layer. The decompressors are stacked as InputStreams, so they run on whichever thread reads the
+ * result. A decompressor which can only write to an OutputStream is run on the shared Executor
+ * instead, with a pipe to the next layer. Each layer is only started when it is first read from,
+ * so the caller can start reading before it has written any data to the input.
+ *
+ * Any error is stored, and waitFinished() waits for the result to have been read or closed.
+ */
+public class DecompressorPipeline {
+
+	private static volatile boolean logMINOR;
+	static {
+		Logger.registerClass(DecompressorPipeline.class);
+	}
+
+	/** Size of the pipe to and from a decompressor running on the Executor. */
+	static final int PIPE_SIZE = 32768;
+
+	private final InputStream input;
+	/** In the order in which they are applied. */
+	private final List<Compressor> decompressors;
+	final long maxLen;
+	private final Executor executor;
+	private boolean finished = false;
+	private Throwable error = null;
+	private int threads;
+
+	/** Creates a new DecompressorPipeline
+	 * @param inputStream The stream that will be decompressed, if compressed
+	 * @param decompressors The decompressors, the last one is applied first. This list will be
+	 * emptied.
+	 * @param maxLen The maximum number of bytes to extract, at each layer
+	 * @param executor Where to run any decompressors that can't be read from directly
+	 */
+	public DecompressorPipeline(InputStream inputStream, List<? extends Compressor> decompressors, long maxLen, Executor executor) throws IOException {
+		this.maxLen = maxLen;
+		this.executor = executor;
+		if(inputStream == null) {
+			IOException e = new IOException("Input stream may not be null");
+			onFailure(e);
+			throw e;
+		}
+		input = inputStream;
+		this.decompressors = new ArrayList<Compressor>(decompressors.size());
+		while(!decompressors.isEmpty()) {
+			Compressor compressor = decompressors.remove(decompressors.size()-1);
+			if(logMINOR) Logger.minor(this, "Decompressing with "+compressor);
+			this.decompressors.add(compressor);
+		}
+	}
+
+	/** Chains the decompressors together. Nothing is decompressed until the result is read.
+	 * @return An InputStream from which uncompressed data may be read
+	 */
+	public synchronized InputStream execute() throws Throwable {
+		if(error != null) throw error;
+		if(decompressors.isEmpty()) {
+			onFinish();
+			return input;
+		}
+		InputStream is = input;
+		for(Compressor compressor : decompressors)
+			is = new Layer(compressor, is);
+		return new Output(is);
+	}
+
+	/** Stores the first nonrecoverable exception, and wakes threads blocking on completion. */
+	public synchronized void onFailure(Throwable t) {
+		if(error == null) error = t;
+		onFinish();
+	}
+
+	/** Marks that the decompression of the stream has finished and wakes
+	 * threads blocking on completion */
+	public synchronized void onFinish() {
+		finished = true;
+		notifyAll();
+	}
+
+	/** Blocks until the result has been read to the end or closed. */
+	public synchronized void waitFinished() throws Throwable {
+		while(!finished) {
+			try {
+				wait();
+			} catch(InterruptedException e) {
+				//Do nothing
+			}
+		}
+		if(error != null) throw error;
+	}
+
+	/** Returns an exception which was thrown during decompression
+	 * @return Returns an exception which was caught during the decompression
+	 */
+	public synchronized Throwable getError() {
+		return error;
+	}
+
+	/** @return The number of decompressors which have been started on the Executor. */
+	public synchronized int countThreads() {
+		return threads;
+	}
+
+	/** The result. Records when it has been read to the end, closed, or failed. */
+	private class Output extends FilterInputStream {
+
+		Output(InputStream is) {
+			super(is);
+		}
+
+		@Override
+		public int read() throws IOException {
+			try {
+				int x = in.read();
+				if(x < 0) onFinish();
+				return x;
+			} catch (IOException | RuntimeException e) {
+				onFailure(e);
+				throw e;
+			}
+		}
+
+		@Override
+		public int read(byte[] buf, int offset, int length) throws IOException {
+			try {
+				int x = in.read(buf, offset, length);
+				if(x < 0) onFinish();
+				return x;
+			} catch (IOException | RuntimeException e) {
+				onFailure(e);
+				throw e;
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				in.close();
+			} finally {
+				onFinish();
+			}
+		}
+
+	}
+
+	/** One layer of decompression. Opens the decompressor on the first read, and enforces maxLen. */
+	private class Layer extends InputStream {
+
+		private final Compressor compressor;
+		private final InputStream input;
+		private InputStream output;
+		private long written;
+		private boolean closed;
+
+		Layer(Compressor compressor, InputStream input) {
+			this.compressor = compressor;
+			this.input = input;
+		}
+
+		private InputStream open() throws IOException {
+			if(output != null) return output;
+			if(closed) throw new IOException("Already closed");
+			InputStream is = new BufferedInputStream(input);
+			output = compressor.decompressingInputStream(is);
+			if(output == null) output = startThread(compressor, is);
+			return output;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] buf = new byte[1];
+			int x = read(buf, 0, 1);
+			if(x <= 0) return -1;
+			return buf[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] buf, int offset, int length) throws IOException {
+			int x = open().read(buf, offset, length);
+			if(x > 0) {
+				written += x;
+				if(written > maxLen) tooBig();
+			}
+			return x;
+		}
+
+		/** Read on to try to find out how big it is, as Compressor.decompress() does. */
+		private void tooBig() throws IOException {
+			long maxCheckSizeLength = maxLen > Long.MAX_VALUE / 5 ? Long.MAX_VALUE : maxLen * 5;
+			byte[] buf = new byte[32768];
+			while(written < maxCheckSizeLength) {
+				int x = output.read(buf, 0, (int) Math.min(buf.length, maxCheckSizeLength - written));
+				if(x <= -1) throw new CompressionOutputSizeException(written);
+				written += x;
+			}
+			throw new CompressionOutputSizeException();
+		}
+
+		@Override
+		public int available() throws IOException {
+			return output == null ? 0 : output.available();
+		}
+
+		@Override
+		public void close() throws IOException {
+			closed = true;
+			if(output != null)
+				output.close();
+			else
+				input.close();
+		}
+
+	}
+
+	private InputStream startThread(Compressor compressor, InputStream is) throws IOException {
+		PipedInputStream pipeIn = new PipedInputStream(PIPE_SIZE);
+		PipedOutputStream pipeOut = new PipedOutputStream(pipeIn);
+		DecompressorJob job = new DecompressorJob(compressor, is, pipeOut);
+		synchronized(this) {
+			threads++;
+		}
+		if(logMINOR) Logger.minor(this, "Starting "+compressor+" on the executor");
+		executor.execute(job, "Decompressor for "+compressor);
+		return new JobOutput(pipeIn, job);
+	}
+
+	/** Runs a decompressor which can only write to an OutputStream. */
+	private class DecompressorJob implements Runnable {
+
+		final Compressor compressor;
+		private final InputStream input;
+		private final OutputStream output;
+		private IOException failure;
+
+		DecompressorJob(Compressor compressor, InputStream input, PipedOutputStream output) {
+			this.compressor = compressor;
+			this.input = input;
+			this.output = new BufferedOutputStream(output);
+		}
+
+		@Override
+		public void run() {
+			try(InputStream in = input; OutputStream out = output) {
+				// Closing the pipe tells the reader we are done, so set the failure first.
+				try {
+					compressor.decompress(in, out, maxLen, maxLen * 4);
+				} catch (IOException e) {
+					setFailure(e);
+				} catch (Throwable t) {
+					setFailure(new IOException(t));
+				}
+			} catch (IOException e) {
+				setFailure(e);
+			}
+		}
+
+		/** Keeps the first failure, which is what went wrong. */
+		private synchronized void setFailure(IOException e) {
+			if(failure == null) failure = e;
+		}
+
+		synchronized void checkFailure() throws IOException {
+			if(failure != null) throw failure;
+		}
+
+	}
+
+	/** Reads from a DecompressorJob, and passes on its failure rather than a truncated stream. */
+	private static class JobOutput extends FilterInputStream {
+
+		private final DecompressorJob job;
+
+		JobOutput(PipedInputStream pipe, DecompressorJob job) {
+			super(pipe);
+			this.job = job;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int x = in.read();
+			if(x < 0) job.checkFailure();
+			return x;
+		}
+
+		@Override
+		public int read(byte[] buf, int offset, int length) throws IOException {
+			int x = in.read(buf, offset, length);
+			if(x < 0) job.checkFailure();
+			return x;
+		}
+
+	}
+
+}
@@ -138,4 +138,9 @@ public class GzipCompressor extends AbstractCompressor {
 		System.arraycopy(buf, 0, output, 0, bytes);
 		return bytes;
 	}
+
+	@Override
+	public InputStream decompressingInputStream(InputStream input) throws IOException {
+		return new GZIPInputStream(input);
+	}
 }
@@ -0,0 +1,332 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+* Public License, version 2 (or at your option any later version). See
+* http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.compress;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Decodes LZMA as it is read. The SevenZip decoder can only write to an OutputStream, which needs
+ * a thread and a pipe to read from. This follows the reference decoder in the LZMA SDK
+ * (LzmaSpec.cpp), and reads the same streams as NewLZMACompressor and OldLZMACompressor: the
+ * compressed data after the properties, terminated by an end marker.
+ */
+class LZMAInputStream extends InputStream {
+
+	private static final int NUM_STATES = 12;
+	private static final int NUM_POS_BITS_MAX = 4;
+	private static final int NUM_LEN_TO_POS_STATES = 4;
+	private static final int NUM_POS_SLOT_BITS = 6;
+	private static final int START_POS_MODEL_INDEX = 4;
+	private static final int END_POS_MODEL_INDEX = 14;
+	private static final int NUM_FULL_DISTANCES = 1 << (END_POS_MODEL_INDEX >>> 1);
+	private static final int NUM_ALIGN_BITS = 4;
+	private static final int MATCH_MIN_LEN = 2;
+	private static final int MATCH_MAX_LEN = MATCH_MIN_LEN + 8 + 8 + 256 - 1;
+	private static final int MIN_DICTIONARY_SIZE = 1 << 12;
+	private static final int NUM_BIT_MODEL_TOTAL_BITS = 11;
+	private static final int NUM_MOVE_BITS = 5;
+	private static final int TOP_MASK = 0xFF000000;
+
+	private final InputStream in;
+	private final int lc;
+	private final int lp;
+	private final int pb;
+
+	/** Circular buffer of the last dictionary.length bytes of output. */
+	private final byte[] dictionary;
+	/** Where the next byte goes in the dictionary. */
+	private int pos;
+	private boolean full;
+	private long totalPos;
+	/** Bytes decoded but not read yet, the ones just before pos. */
+	private int unread;
+	private boolean finished;
+
+	private int range;
+	private int code;
+
+	private final short[] literalProbs;
+	private final short[] isMatch = new short[NUM_STATES << NUM_POS_BITS_MAX];
+	private final short[] isRep = new short[NUM_STATES];
+	private final short[] isRepG0 = new short[NUM_STATES];
+	private final short[] isRepG1 = new short[NUM_STATES];
+	private final short[] isRepG2 = new short[NUM_STATES];
+	private final short[] isRep0Long = new short[NUM_STATES << NUM_POS_BITS_MAX];
+	private final short[] posSlot = new short[NUM_LEN_TO_POS_STATES << NUM_POS_SLOT_BITS];
+	private final short[] posDecoders = new short[1 + NUM_FULL_DISTANCES - END_POS_MODEL_INDEX];
+	private final short[] align = new short[1 << NUM_ALIGN_BITS];
+	private final LenDecoder lenDecoder = new LenDecoder();
+	private final LenDecoder repLenDecoder = new LenDecoder();
+
+	private int state;
+	private int rep0;
+	private int rep1;
+	private int rep2;
+	private int rep3;
+
+	/**
+	 * @param in The compressed data, after the properties.
+	 * @param props The 5 byte properties: lc, lp and pb, then the dictionary size. The caller
+	 * should check the dictionary size, we allocate it.
+	 */
+	LZMAInputStream(InputStream in, byte[] props) throws IOException {
+		int d = props[0] & 0xFF;
+		if(d >= 9 * 5 * 5) throw new InvalidCompressedDataException("Invalid properties");
+		lc = d % 9;
+		d /= 9;
+		lp = d % 5;
+		pb = d / 5;
+		int dictionarySize = 0;
+		for(int i=0;i<4;i++)
+			dictionarySize |= (props[1 + i] & 0xFF) << (i * 8);
+		if(dictionarySize < 0) throw new InvalidCompressedDataException("Invalid dictionary size");
+		dictionary = new byte[Math.max(dictionarySize, MIN_DICTIONARY_SIZE)];
+		literalProbs = new short[0x300 << (lc + lp)];
+		for(short[] probs : new short[][] { literalProbs, isMatch, isRep, isRepG0, isRepG1, isRepG2,
+				isRep0Long, posSlot, posDecoders, align })
+			initProbs(probs);
+		this.in = in;
+		// The first byte is always 0.
+		readByte();
+		for(int i=0;i<4;i++)
+			code = (code << 8) | readByte();
+		range = -1;
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] buf = new byte[1];
+		int x = read(buf, 0, 1);
+		if(x <= 0) return -1;
+		return buf[0] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] buf, int offset, int length) throws IOException {
+		if(length == 0) return 0;
+		// Don't overwrite anything that hasn't been read yet.
+		while(!finished && unread < length && unread + MATCH_MAX_LEN <= dictionary.length)
+			decode();
+		if(unread == 0) return -1;
+		int count = Math.min(length, unread);
+		int start = pos - unread;
+		if(start < 0) start += dictionary.length;
+		int first = Math.min(count, dictionary.length - start);
+		System.arraycopy(dictionary, start, buf, offset, first);
+		System.arraycopy(dictionary, 0, buf, offset + first, count - first);
+		unread -= count;
+		return count;
+	}
+
+	@Override
+	public int available() {
+		return unread;
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+	/** Decode one literal or match. */
+	private void decode() throws IOException {
+		int posState = (int) totalPos & ((1 << pb) - 1);
+		if(decodeBit(isMatch, (state << NUM_POS_BITS_MAX) + posState) == 0) {
+			decodeLiteral();
+			state = state < 4 ? 0 : (state < 10 ? state - 3 : state - 6);
+			return;
+		}
+		int len;
+		if(decodeBit(isRep, state) != 0) {
+			if(totalPos == 0) throw new InvalidCompressedDataException("Repeat match at start");
+			if(decodeBit(isRepG0, state) == 0) {
+				if(decodeBit(isRep0Long, (state << NUM_POS_BITS_MAX) + posState) == 0) {
+					state = state < 7 ? 9 : 11;
+					putByte(getByte(rep0 + 1));
+					return;
+				}
+			} else {
+				int dist;
+				if(decodeBit(isRepG1, state) == 0) {
+					dist = rep1;
+				} else {
+					if(decodeBit(isRepG2, state) == 0) {
+						dist = rep2;
+					} else {
+						dist = rep3;
+						rep3 = rep2;
+					}
+					rep2 = rep1;
+				}
+				rep1 = rep0;
+				rep0 = dist;
+			}
+			len = repLenDecoder.decode(posState);
+			state = state < 7 ? 8 : 11;
+		} else {
+			rep3 = rep2;
+			rep2 = rep1;
+			rep1 = rep0;
+			len = lenDecoder.decode(posState);
+			state = state < 7 ? 7 : 10;
+			rep0 = decodeDistance(len);
+			if(rep0 == -1) {
+				finished = true;
+				return;
+			}
+			if(rep0 < 0 || rep0 >= dictionary.length || (!full && rep0 >= pos))
+				throw new InvalidCompressedDataException("Invalid distance");
+		}
+		len += MATCH_MIN_LEN;
+		int dist = rep0 + 1;
+		for(int i=0;i<len;i++)
+			putByte(getByte(dist));
+	}
+
+	private void decodeLiteral() throws IOException {
+		int prevByte = totalPos == 0 ? 0 : getByte(1) & 0xFF;
+		int litState = (((int) totalPos & ((1 << lp) - 1)) << lc) + (prevByte >>> (8 - lc));
+		int base = 0x300 * litState;
+		int symbol = 1;
+		if(state >= 7) {
+			int matchByte = getByte(rep0 + 1);
+			do {
+				int matchBit = (matchByte >>> 7) & 1;
+				matchByte <<= 1;
+				int bit = decodeBit(literalProbs, base + ((1 + matchBit) << 8) + symbol);
+				symbol = (symbol << 1) | bit;
+				if(matchBit != bit) break;
+			} while(symbol < 0x100);
+		}
+		while(symbol < 0x100)
+			symbol = (symbol << 1) | decodeBit(literalProbs, base + symbol);
+		putByte((byte) symbol);
+	}
+
+	/** @return The distance minus one, or -1 for the end marker. */
+	private int decodeDistance(int len) throws IOException {
+		int lenState = Math.min(len, NUM_LEN_TO_POS_STATES - 1);
+		int slot = bitTree(posSlot, lenState << NUM_POS_SLOT_BITS, NUM_POS_SLOT_BITS);
+		if(slot < START_POS_MODEL_INDEX) return slot;
+		int numDirectBits = (slot >>> 1) - 1;
+		int dist = (2 | (slot & 1)) << numDirectBits;
+		if(slot < END_POS_MODEL_INDEX) {
+			dist += reverseBitTree(posDecoders, dist - slot, numDirectBits);
+		} else {
+			dist += directBits(numDirectBits - NUM_ALIGN_BITS) << NUM_ALIGN_BITS;
+			dist += reverseBitTree(align, 0, NUM_ALIGN_BITS);
+		}
+		return dist;
+	}
+
+	private byte getByte(int dist) {
+		int i = pos - dist;
+		if(i < 0) i += dictionary.length;
+		return dictionary[i];
+	}
+
+	private void putByte(byte b) {
+		dictionary[pos++] = b;
+		if(pos == dictionary.length) {
+			pos = 0;
+			full = true;
+		}
+		totalPos++;
+		unread++;
+	}
+
+	private int readByte() throws IOException {
+		int b = in.read();
+		if(b < 0) throw new EOFException();
+		return b;
+	}
+
+	private int decodeBit(short[] probs, int i) throws IOException {
+		int prob = probs[i];
+		int bound = (range >>> NUM_BIT_MODEL_TOTAL_BITS) * prob;
+		int bit;
+		if((code ^ 0x80000000) < (bound ^ 0x80000000)) {
+			range = bound;
+			probs[i] = (short) (prob + (((1 << NUM_BIT_MODEL_TOTAL_BITS) - prob) >>> NUM_MOVE_BITS));
+			bit = 0;
+		} else {
+			range -= bound;
+			code -= bound;
+			probs[i] = (short) (prob - (prob >>> NUM_MOVE_BITS));
+			bit = 1;
+		}
+		if((range & TOP_MASK) == 0) {
+			range <<= 8;
+			code = (code << 8) | readByte();
+		}
+		return bit;
+	}
+
+	private int directBits(int count) throws IOException {
+		int result = 0;
+		do {
+			range >>>= 1;
+			code -= range;
+			int t = 0 - (code >>> 31);
+			code += range & t;
+			if(code == range) throw new InvalidCompressedDataException("Corrupted range coder");
+			if((range & TOP_MASK) == 0) {
+				range <<= 8;
+				code = (code << 8) | readByte();
+			}
+			result = (result << 1) + (t + 1);
+		} while(--count > 0);
+		return result;
+	}
+
+	private int bitTree(short[] probs, int offset, int numBits) throws IOException {
+		int m = 1;
+		for(int i=0;i<numBits;i++)
+			m = (m << 1) + decodeBit(probs, offset + m);
+		return m - (1 << numBits);
+	}
+
+	private int reverseBitTree(short[] probs, int offset, int numBits) throws IOException {
+		int m = 1;
+		int symbol = 0;
+		for(int i=0;i<numBits;i++) {
+			int bit = decodeBit(probs, offset + m);
+			m = (m << 1) + bit;
+			symbol |= bit << i;
+		}
+		return symbol;
+	}
+
+	private static void initProbs(short[] probs) {
+		Arrays.fill(probs, (short) (1 << (NUM_BIT_MODEL_TOTAL_BITS - 1)));
+	}
+
+	private class LenDecoder {
+
+		private final short[] choice = new short[2];
+		private final short[] low = new short[1 << (NUM_POS_BITS_MAX + 3)];
+		private final short[] mid = new short[1 << (NUM_POS_BITS_MAX + 3)];
+		private final short[] high = new short[1 << 8];
+
+		LenDecoder() {
+			initProbs(choice);
+			initProbs(low);
+			initProbs(mid);
+			initProbs(high);
+		}
+
+		int decode(int posState) throws IOException {
+			if(decodeBit(choice, 0) == 0)
+				return bitTree(low, posState << 3, 3);
+			if(decodeBit(choice, 1) == 0)
+				return 8 + bitTree(mid, posState << 3, 3);
+			return 16 + bitTree(high, 0, 8);
+		}
+
+	}
+
+}
@@ -141,22 +141,31 @@ public class NewLZMACompressor extends AbstractCompressor {
 
 	@Override
 	public long decompress(InputStream is, OutputStream os, long maxLength, long maxCheckSizeBytes) throws IOException, CompressionOutputSizeException {
-		byte[] props = new byte[5];
-		DataInputStream dis = new DataInputStream(is);
-		dis.readFully(props);
+		byte[] props = readProperties(is);
 		CountedOutputStream cos = new CountedOutputStream(os);
+		Decoder decoder = new Decoder();
+		if(!decoder.SetDecoderProperties(props)) throw new InvalidCompressedDataException("Invalid properties");
+		decoder.Code(is, cos, maxLength);
+		//cos.flush();
+		return cos.written();
+	}
+
+	@Override
+	public InputStream decompressingInputStream(InputStream input) throws IOException {
+		byte[] props = readProperties(input);
+		return new LZMAInputStream(input, props);
+	}
 
+	private static byte[] readProperties(InputStream is) throws IOException {
+		byte[] props = new byte[5];
+		new DataInputStream(is).readFully(props);
 		int dictionarySize = 0;
 		for (int i = 0; i < 4; i++)
 			dictionarySize += ((props[1 + i]) & 0xFF) << (i * 8);
 
 		if(dictionarySize < 0) throw new InvalidCompressedDataException("Invalid dictionary size");
 		if(dictionarySize > MAX_DICTIONARY_SIZE) throw new TooBigDictionaryException();
-		Decoder decoder = new Decoder();
-		if(!decoder.SetDecoderProperties(props)) throw new InvalidCompressedDataException("Invalid properties");
-		decoder.Code(is, cos, maxLength);
-		//cos.flush();
-		return cos.written();
+		return props;
 	}
 
 	@Override
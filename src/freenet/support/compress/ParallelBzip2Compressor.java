@@ -0,0 +1,335 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+* Public License, version 2 (or at your option any later version). See
+* http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.compress;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+
+import freenet.support.Logger;
+import freenet.support.api.Bucket;
+import freenet.support.api.BucketFactory;
+import freenet.support.io.CountedOutputStream;
+
+/**
+ * Compresses bzip2 blocks in parallel on the RealCompressor's threads. Each block of a bzip2
+ * stream is compressed independently, so we cut the input into blocks ourselves, compress each
+ * one as a separate stream, and then stitch the blocks together into a single stream with the
+ * right combined CRC. The output is an ordinary bzip2 stream (without the "BZ", like
+ * Bzip2Compressor), so any node can decompress it.
+ */
+public class ParallelBzip2Compressor extends AbstractCompressor {
+
+	private static volatile boolean logMINOR;
+	static {
+		Logger.registerClass(ParallelBzip2Compressor.class);
+	}
+
+	/** Block size in units of 100KB, the maximum, as for BZip2CompressorOutputStream. */
+	static final int BLOCK_SIZE_100K = 9;
+	/** BZip2CompressorOutputStream starts a new block after this many bytes after run length
+	 * encoding. We keep each block within this so that it produces exactly one block. */
+	static final int MAX_BLOCK_SIZE = BLOCK_SIZE_100K * 100000 - 20;
+	/** Below this there is at most one block anyway. */
+	public static final long MIN_SIZE = 2 * MAX_BLOCK_SIZE;
+
+	private static final long BLOCK_MAGIC = 0x314159265359L;
+	private static final long END_MAGIC = 0x177245385090L;
+	/** "BZh9" then the block magic. */
+	private static final int BLOCK_CRC_OFFSET = 32 + 48;
+
+	private final RealCompressor rc;
+	private final int blocksPerBatch;
+
+	/**
+	 * @param rc Where to run the blocks.
+	 * @param threads How many blocks to compress at once.
+	 */
+	public ParallelBzip2Compressor(RealCompressor rc, int threads) {
+		this.rc = rc;
+		// Keep the threads busy while we write out the last batch.
+		this.blocksPerBatch = Math.max(2, threads * 2);
+	}
+
+	@Override
+	public Bucket compress(Bucket data, BucketFactory bf, long maxReadLength, long maxWriteLength)
+			throws IOException, CompressionOutputSizeException {
+		Bucket output = bf.makeBucket(maxWriteLength);
+		try (InputStream is = data.getInputStream();
+			 OutputStream os = output.getOutputStream()) {
+			compress(is, os, maxReadLength, maxWriteLength);
+		}
+		return output;
+	}
+
+	@Override
+	public long compress(InputStream is, OutputStream os, long maxReadLength, long maxWriteLength,
+						 long amountOfDataToCheckCompressionRatio, int minimumCompressionPercentage)
+			throws IOException, CompressionRatioException {
+		if(maxReadLength <= 0)
+			throw new IllegalArgumentException();
+		CountedOutputStream cos = new CountedOutputStream(os);
+		BitWriter out = new BitWriter(cos);
+		// Bzip2Compressor leaves out the "BZ".
+		out.write(8, 'h');
+		out.write(8, '0' + BLOCK_SIZE_100K);
+		BlockReader reader = new BlockReader(is, maxReadLength);
+		boolean checkCompressionEffect = minimumCompressionPercentage != 0;
+		int combinedCRC = 0;
+		long read = 0;
+		int blocks = 0;
+		while(true) {
+			List<Block> batch = new ArrayList<Block>(blocksPerBatch);
+			for(int i=0;i<blocksPerBatch;i++) {
+				Block block = reader.next();
+				if(block == null) break;
+				batch.add(block);
+			}
+			if(batch.isEmpty()) break;
+			rc.runAll(batch);
+			for(Block block : batch) {
+				if(block.failure != null) throw block.failure;
+				for(CompressedBlock c : block.compressed) {
+					out.copy(c.data, 32, c.end);
+					combinedCRC = ((combinedCRC << 1) | (combinedCRC >>> 31)) ^ c.crc;
+					blocks++;
+				}
+				read += block.length;
+			}
+			if(cos.written() > maxWriteLength)
+				throw new CompressionOutputSizeException();
+			if(checkCompressionEffect && read > amountOfDataToCheckCompressionRatio) {
+				checkCompressionEffect(read, cos.written(), minimumCompressionPercentage);
+				checkCompressionEffect = false;
+			}
+		}
+		out.write(48, END_MAGIC);
+		out.write(32, combinedCRC);
+		out.flush();
+		cos.flush();
+		if(cos.written() > maxWriteLength)
+			throw new CompressionOutputSizeException();
+		if(logMINOR)
+			Logger.minor(this, "Compressed "+read+" bytes to "+cos.written()+" in "+blocks+" blocks");
+		return cos.written();
+	}
+
+	@Override
+	public long decompress(InputStream is, OutputStream os, long maxLength, long maxCheckSizeBytes) throws IOException, CompressionOutputSizeException {
+		return COMPRESSOR_TYPE.BZIP2.decompress(is, os, maxLength, maxCheckSizeBytes);
+	}
+
+	@Override
+	public int decompress(byte[] dbuf, int i, int j, byte[] output) throws CompressionOutputSizeException {
+		return COMPRESSOR_TYPE.BZIP2.decompress(dbuf, i, j, output);
+	}
+
+	@Override
+	public InputStream decompressingInputStream(InputStream input) throws IOException {
+		return COMPRESSOR_TYPE.BZIP2.decompressingInputStream(input);
+	}
+
+	/** Cuts the input into blocks which BZip2CompressorOutputStream will not split. */
+	private static class BlockReader {
+
+		private final InputStream is;
+		private long remaining;
+		private final byte[] buf = new byte[32768];
+		private int bufOffset;
+		private int bufLength;
+
+		BlockReader(InputStream is, long maxReadLength) {
+			this.is = is;
+			this.remaining = maxReadLength;
+		}
+
+		/** @return The next block, or null if there is no more data. */
+		Block next() throws IOException {
+			byte[] data = new byte[MAX_BLOCK_SIZE];
+			int length = 0;
+			// Follow the run length encoding that the block size limit applies to.
+			int encoded = 0;
+			int prev = -1;
+			int run = 0;
+			while(length < data.length) {
+				if(bufOffset == bufLength && !fill()) break;
+				int b = buf[bufOffset] & 0xFF;
+				if(b == prev && run < 255) {
+					run++;
+				} else {
+					if(encoded + encodedLength(run) + 1 > MAX_BLOCK_SIZE) break;
+					encoded += encodedLength(run);
+					prev = b;
+					run = 1;
+				}
+				if(encoded + encodedLength(run) > MAX_BLOCK_SIZE) break;
+				data[length++] = buf[bufOffset++];
+			}
+			if(length == 0) return null;
+			return new Block(data, length);
+		}
+
+		private boolean fill() throws IOException {
+			if(remaining == 0) return false;
+			int x = is.read(buf, 0, (int) Math.min(buf.length, remaining));
+			if(x <= -1) return false;
+			if(x == 0) throw new IOException("Returned zero from read()");
+			bufOffset = 0;
+			bufLength = x;
+			remaining -= x;
+			return true;
+		}
+
+		/** A run of 4 or more is encoded as 4 bytes and a count. */
+		private static int encodedLength(int run) {
+			return run < 4 ? run : 5;
+		}
+
+	}
+
+	/** One block of input, compressed by run(). */
+	private static class Block implements Runnable {
+
+		final byte[] data;
+		final int length;
+		/** Normally one, unless BZip2CompressorOutputStream split it after all. */
+		final List<CompressedBlock> compressed = new ArrayList<CompressedBlock>(1);
+		RuntimeException failure;
+
+		Block(byte[] data, int length) {
+			this.data = data;
+			this.length = length;
+		}
+
+		@Override
+		public void run() {
+			try {
+				compress(0, length);
+			} catch (RuntimeException e) {
+				// ArithmeticException has been seen in bzip2 codec.
+				failure = e;
+			}
+		}
+
+		private void compress(int offset, int length) {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream(length / 2);
+			try {
+				BZip2CompressorOutputStream bz2os = new BZip2CompressorOutputStream(baos, BLOCK_SIZE_100K);
+				bz2os.write(data, offset, length);
+				bz2os.close();
+			} catch (IOException e) {
+				throw new Error("Impossible: "+e, e);
+			}
+			CompressedBlock c = CompressedBlock.parse(baos.toByteArray());
+			if(c != null) {
+				compressed.add(c);
+			} else if(length > 1) {
+				Logger.error(this, "Block of "+length+" bytes was compressed to more than one block");
+				compress(offset, length / 2);
+				compress(offset + length / 2, length - length / 2);
+			} else
+				throw new IllegalStateException("Unable to parse compressed block");
+		}
+
+	}
+
+	/** A bzip2 stream containing exactly one block. */
+	private static class CompressedBlock {
+
+		final byte[] data;
+		/** The bit offset of the end of stream marker. */
+		final long end;
+		final int crc;
+
+		private CompressedBlock(byte[] data, long end, int crc) {
+			this.data = data;
+			this.end = end;
+			this.crc = crc;
+		}
+
+		/** @return Null unless the stream contains exactly one block. */
+		static CompressedBlock parse(byte[] data) {
+			if(data.length * 8L < BLOCK_CRC_OFFSET + 32 + 80) return null;
+			if(readBits(data, 32, 48) != BLOCK_MAGIC) return null;
+			int crc = (int) readBits(data, BLOCK_CRC_OFFSET, 32);
+			// The stream ends with the end of stream marker and the combined CRC, which is the
+			// same as the block CRC if there is only one block, padded to a whole byte.
+			for(int padding=0;padding<8;padding++) {
+				long end = data.length * 8L - padding - 80;
+				if(readBits(data, end, 48) == END_MAGIC && (int) readBits(data, end + 48, 32) == crc &&
+						readBits(data, end + 80, padding) == 0)
+					return new CompressedBlock(data, end, crc);
+			}
+			return null;
+		}
+
+	}
+
+	/** Read up to 56 bits, most significant first. */
+	static long readBits(byte[] data, long offset, int count) {
+		long value = 0;
+		for(int i=0;i<count;i++) {
+			long bit = offset + i;
+			value = (value << 1) | ((data[(int) (bit >>> 3)] >>> (7 - (bit & 7))) & 1);
+		}
+		return value;
+	}
+
+	/** Writes bits most significant first, as bzip2 does. */
+	private static class BitWriter {
+
+		private final OutputStream os;
+		private final byte[] buf = new byte[32768];
+		private int bufLength;
+		private long bits;
+		private int count;
+
+		BitWriter(OutputStream os) {
+			this.os = os;
+		}
+
+		/** Write up to 48 bits. */
+		void write(int n, long value) throws IOException {
+			bits = (bits << n) | (value & ((1L << n) - 1));
+			count += n;
+			while(count >= 8) {
+				count -= 8;
+				buf[bufLength++] = (byte) (bits >>> count);
+				if(bufLength == buf.length) {
+					os.write(buf, 0, bufLength);
+					bufLength = 0;
+				}
+			}
+			bits &= (1L << count) - 1;
+		}
+
+		/** Copy bits from start (inclusive) to end (exclusive). */
+		void copy(byte[] data, long start, long end) throws IOException {
+			long bit = start;
+			int shift = (int) (start & 7);
+			while(end - bit >= 8) {
+				int i = (int) (bit >>> 3);
+				int value = (data[i] & 0xFF) << 8;
+				if(shift != 0) value |= data[i + 1] & 0xFF;
+				write(8, value >>> (8 - shift));
+				bit += 8;
+			}
+			write((int) (end - bit), readBits(data, bit, (int) (end - bit)));
+		}
+
+		/** Pad to a whole byte and write everything out. */
+		void flush() throws IOException {
+			if(count > 0) write(8 - count, 0);
+			os.write(buf, 0, bufLength);
+			bufLength = 0;
+		}
+
+	}
+
+}
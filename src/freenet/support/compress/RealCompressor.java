@@ -3,9 +3,16 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.support.compress;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadFactory;
 
@@ -14,10 +21,13 @@ import freenet.client.InsertException.InsertExceptionMode;
 import freenet.client.async.ClientContext;
 import freenet.node.PrioRunnable;
 import freenet.support.Logger;
+import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
 import freenet.support.io.NativeThread;
 
 public class RealCompressor {
     private final ExecutorService executorService;
+    private final int threads;
+    private final ParallelBzip2Compressor parallelBzip2;
     private ClientContext context;
 
     private static volatile boolean logMINOR;
@@ -26,8 +36,9 @@ public class RealCompressor {
     }
 
     public RealCompressor() {
-        this.executorService = Executors.newFixedThreadPool(getMaxRunningCompressionThreads(),
-                                                            new CompressorThreadFactory());
+        this.threads = getMaxRunningCompressionThreads();
+        this.executorService = Executors.newFixedThreadPool(threads, new CompressorThreadFactory());
+        this.parallelBzip2 = new ParallelBzip2Compressor(this, threads);
     }
 
     public void setClientContext(ClientContext context) {
@@ -80,6 +91,53 @@ public class RealCompressor {
         }
     }
 
+    /** Run the tasks in parallel on the compressor threads, and wait for them all to finish. The
+     * caller runs any tasks that no compressor thread has picked up yet, in order, so this is safe
+     * to call from a compression job even if all the threads are busy. */
+    public void runAll(List<? extends Runnable> tasks) {
+        List<FutureTask<Void>> futures = new ArrayList<FutureTask<Void>>(tasks.size());
+        for(Runnable r : tasks)
+            futures.add(new FutureTask<Void>(r, null));
+        for(int i=1;i<futures.size();i++) {
+            try {
+                executorService.execute(futures.get(i));
+            } catch (RejectedExecutionException e) {
+                // Shutting down, run it ourselves.
+            }
+        }
+        // FutureTask.run() does nothing if the task has already been started.
+        for(FutureTask<Void> f : futures)
+            f.run();
+        for(FutureTask<Void> f : futures) {
+            boolean interrupted = false;
+            while(true) {
+                try {
+                    f.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    Logger.error(this, "Caught in compression task: "+e.getCause(), e.getCause());
+                    break;
+                }
+            }
+            if(interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Compress with the given codec, splitting the data across the compressor threads if the
+     * codec can do that and still produce a stream that any node can decompress. Only BZIP2 can.
+     * @see Compressor#compress(InputStream, OutputStream, long, long, long, int) */
+    public long compress(COMPRESSOR_TYPE comp, InputStream is, OutputStream os, long maxReadLength,
+            long maxWriteLength, long amountOfDataToCheckCompressionRatio, int minimumCompressionPercentage)
+            throws IOException, CompressionRatioException {
+        if(comp == COMPRESSOR_TYPE.BZIP2 && threads > 1 && maxReadLength >= ParallelBzip2Compressor.MIN_SIZE)
+            return parallelBzip2.compress(is, os, maxReadLength, maxWriteLength,
+                    amountOfDataToCheckCompressionRatio, minimumCompressionPercentage);
+        return comp.compress(is, os, maxReadLength, maxWriteLength, amountOfDataToCheckCompressionRatio,
+                minimumCompressionPercentage);
+    }
+
     private static int getMaxRunningCompressionThreads() {
         int maxRunningThreads = 1;
 
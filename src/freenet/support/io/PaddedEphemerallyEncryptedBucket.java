@@ -15,6 +15,7 @@ import java.util.Arrays;
 import java.util.Random;
 
 import freenet.client.async.ClientContext;
+import freenet.crypt.BlockCipher;
 import freenet.crypt.MasterSecret;
 import freenet.crypt.PCFBMode;
 import freenet.crypt.RandomSource;
@@ -315,10 +316,10 @@ public class PaddedEphemerallyEncryptedBucket implements Bucket, Serializable {
 		}
 	}
 
-	private synchronized Rijndael getRijndael() {
-		Rijndael aes;
+	private synchronized BlockCipher getRijndael() {
+		BlockCipher aes;
 		try {
-			aes = new Rijndael(256, 256);
+			aes = Rijndael.create(256, 256);
 		} catch (UnsupportedCipherException e) {
 			throw new Error(e);
 		}
@@ -328,7 +329,7 @@ public class PaddedEphemerallyEncryptedBucket implements Bucket, Serializable {
 
 	@SuppressWarnings("deprecation")
 	public PCFBMode getPCFB() {
-		Rijndael aes = getRijndael();
+		BlockCipher aes = getRijndael();
 		if(iv != null)
 			return PCFBMode.create(aes, iv);
 		else
@@ -0,0 +1,171 @@
+package freenet.client;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import freenet.support.TestProperty;
+
+/** Runs the OnionFECCodec tests on GF256FECCodec, and checks that it gives exactly the same
+ * results as OnionFECCodec. */
+public class GF256FECCodecTest extends OnionFECCodecTest {
+
+    private final OnionFECCodec reference = new OnionFECCodec();
+
+    public GF256FECCodecTest() {
+        codec = new GF256FECCodec();
+    }
+
+    @Test
+    public void testDefault() {
+        assertTrue(FECCodec.getInstance(Metadata.SplitfileAlgorithm.ONION_STANDARD) instanceof GF256FECCodec);
+    }
+
+    @Test
+    public void testCheckBlocks() {
+        assertFalse(codec instanceof OnionFECCodec);
+        for(InsertContext.CompatibilityMode mode : InsertContext.CompatibilityMode.values()) {
+            for(int data=1;data<=256;data++)
+                assertEquals(reference.getCheckBlocks(data, mode), codec.getCheckBlocks(data, mode));
+        }
+    }
+
+    @Test
+    public void testSameAsOnion() {
+        Random r = new Random(21712106);
+        int iterations = TestProperty.EXTENSIVE ? 100 : 20;
+        for(int i=0;i<iterations;i++) {
+            int data = r.nextInt(254)+1;
+            int check = r.nextInt(256 - data)+1;
+            // Not always a multiple of the bit plane chunk size.
+            int blockLength = 1 + r.nextInt(1000);
+            compare(data, check, blockLength, r);
+        }
+        compare(128, 128, 4096, r);
+        compare(1, 255, 100, r);
+        compare(255, 1, 100, r);
+    }
+
+    private void compare(int data, int check, int blockLength, Random r) {
+        byte[][] dataBlocks = new byte[data][blockLength];
+        for(byte[] block : dataBlocks)
+            r.nextBytes(block);
+        byte[][] expected = new byte[check][blockLength];
+        byte[][] checkBlocks = new byte[check][blockLength];
+        // Only encode some of them, with rubbish in those we don't encode.
+        boolean[] present = new boolean[check];
+        for(int i=0;i<check;i++) {
+            present[i] = r.nextInt(4) == 0;
+            if(present[i]) r.nextBytes(checkBlocks[i]);
+        }
+        reference.encode(dataBlocks, expected, present.clone(), blockLength);
+        codec.encode(dataBlocks, checkBlocks, present.clone(), blockLength);
+        for(int i=0;i<check;i++)
+            if(!present[i]) assertArrayEquals(expected[i], checkBlocks[i]);
+        // Decode from the check blocks we have encoded, and the data blocks we haven't lost.
+        byte[][] decoded = new byte[data][];
+        boolean[] dataPresent = new boolean[data];
+        int available = 0;
+        for(int i=0;i<check;i++)
+            if(!present[i]) available++;
+        for(int i=0;i<data;i++) {
+            decoded[i] = new byte[blockLength];
+            if(available == 0 || r.nextBoolean()) {
+                dataPresent[i] = true;
+                System.arraycopy(dataBlocks[i], 0, decoded[i], 0, blockLength);
+            } else
+                available--;
+        }
+        boolean[] checkPresent = new boolean[check];
+        for(int i=0;i<check;i++)
+            checkPresent[i] = !present[i];
+        codec.decode(decoded, checkBlocks, dataPresent, checkPresent, blockLength);
+        for(int i=0;i<data;i++)
+            assertArrayEquals(dataBlocks[i], decoded[i]);
+    }
+
+    @Test
+    public void testBitPlanes() {
+        Random r = new Random(21722106);
+        byte[] buf = new byte[64];
+        r.nextBytes(buf);
+        long[] planes = new long[8];
+        GF256FECCodec.loadPlanes(buf, 0, planes);
+        for(int i=0;i<64;i++)
+            for(int p=0;p<8;p++)
+                assertEquals((buf[i] >> p) & 1, (planes[p] >>> i) & 1);
+        byte[] out = new byte[64];
+        GF256FECCodec.storePlanes(planes, out, 0);
+        assertArrayEquals(buf, out);
+    }
+
+    @Test
+    public void testMultiplySame() {
+        // The byte table and bit plane versions should agree for any number of outputs.
+        Random r = new Random(21732106);
+        for(int outputs=1;outputs<=9;outputs++) {
+            int k = 1 + r.nextInt(20);
+            int length = 1 + r.nextInt(300);
+            byte[] rows = new byte[outputs*k];
+            r.nextBytes(rows);
+            byte[][] inputs = new byte[k][length];
+            for(byte[] input : inputs)
+                r.nextBytes(input);
+            byte[][] a = new byte[outputs][length];
+            byte[][] b = new byte[outputs][length];
+            GF256FECCodec.multiplyBytes(rows, inputs, a, length);
+            GF256FECCodec.multiplyBitPlanes(rows, inputs, b, length);
+            for(int i=0;i<outputs;i++) {
+                assertArrayEquals(a[i], b[i]);
+                for(int x=0;x<length;x++) {
+                    int expected = 0;
+                    for(int j=0;j<k;j++)
+                        expected ^= GF256FECCodec.mul(rows[i*k+j] & 0xff, inputs[j][x] & 0xff);
+                    assertEquals(expected, a[i][x] & 0xff);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testBenchmark() {
+        if(!TestProperty.BENCHMARK) return;
+        Random r = new Random(21742106);
+        int blockLength = 32768;
+        int data = 128;
+        int check = 128;
+        byte[][] dataBlocks = new byte[data][blockLength];
+        for(byte[] block : dataBlocks)
+            r.nextBytes(block);
+        byte[][] checkBlocks = new byte[check][blockLength];
+        FECCodec[] codecs = new FECCodec[] { reference, codec };
+        for(int round=0;round<3;round++) {
+            for(FECCodec c : codecs) {
+                String name = c.getClass().getSimpleName();
+                long start = System.nanoTime();
+                c.encode(dataBlocks, checkBlocks, new boolean[check], blockLength);
+                long time = System.nanoTime() - start;
+                System.out.println(name+" encode "+data+"+"+check+" x 32KiB: "+(time/1000000)+"ms");
+                for(int lost : new int[] { 1, 16, 128 }) {
+                    byte[][] decoded = new byte[data][];
+                    boolean[] dataPresent = new boolean[data];
+                    for(int i=0;i<data;i++) {
+                        dataPresent[i] = i >= lost;
+                        decoded[i] = dataPresent[i] ? dataBlocks[i].clone() : new byte[blockLength];
+                    }
+                    boolean[] checkPresent = new boolean[check];
+                    for(int i=0;i<check;i++) checkPresent[i] = true;
+                    start = System.nanoTime();
+                    c.decode(decoded, checkBlocks, dataPresent, checkPresent, blockLength);
+                    time = System.nanoTime() - start;
+                    for(int i=0;i<lost;i++)
+                        assertArrayEquals(dataBlocks[i], decoded[i]);
+                    System.out.println(name+" decode "+lost+" lost data blocks: "+(time/1000000)+"ms");
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,114 @@
+package freenet.client.async;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import freenet.support.MemoryLimitedChunk;
+import freenet.support.MemoryLimitedJob;
+import freenet.support.MemoryLimitedJobRunner;
+import freenet.support.PooledExecutor;
+import freenet.support.io.NativeThread;
+
+public class SplitFileFetcherCrossSegmentStorageTest {
+
+    /** A cross-segment with 3 data blocks and 1 check block, 2 from each of segments a and b. */
+    private SplitFileFetcherCrossSegmentStorage makeCrossSegment(SplitFileFetcherSegmentStorage a,
+            SplitFileFetcherSegmentStorage b) {
+        SplitFileFetcherStorage parent = mock(SplitFileFetcherStorage.class);
+        SplitFileFetcherCrossSegmentStorage cross =
+            new SplitFileFetcherCrossSegmentStorage(0, 3, 1, parent, null);
+        cross.addDataBlock(a, 0);
+        cross.addDataBlock(b, 0);
+        cross.addDataBlock(a, 1);
+        cross.addDataBlock(b, 1);
+        return cross;
+    }
+
+    @Test
+    public void testNeedsBlocksFrom() {
+        SplitFileFetcherSegmentStorage a = mock(SplitFileFetcherSegmentStorage.class);
+        SplitFileFetcherSegmentStorage b = mock(SplitFileFetcherSegmentStorage.class);
+        SplitFileFetcherSegmentStorage other = mock(SplitFileFetcherSegmentStorage.class);
+        SplitFileFetcherCrossSegmentStorage cross = makeCrossSegment(a, b);
+        assertTrue(cross.needsBlocksFrom(a));
+        assertTrue(cross.needsBlocksFrom(b));
+        assertFalse(cross.needsBlocksFrom(other));
+        // Once we have all of b's blocks, decoding b gives us nothing.
+        cross.onFetchedRelevantBlock(b, 0);
+        assertTrue(cross.needsBlocksFrom(b));
+        cross.onFetchedRelevantBlock(b, 1);
+        assertFalse(cross.needsBlocksFrom(b));
+        assertTrue(cross.needsBlocksFrom(a));
+    }
+
+    /** A segment decode whose blocks a cross-segment is waiting for starts first, even though it
+     * was queued last. */
+    @Test
+    public void testDecodeOrder() throws InterruptedException {
+        SplitFileFetcherSegmentStorage a = mock(SplitFileFetcherSegmentStorage.class);
+        SplitFileFetcherSegmentStorage b = mock(SplitFileFetcherSegmentStorage.class);
+        SplitFileFetcherCrossSegmentStorage cross = makeCrossSegment(a, b);
+        cross.onFetchedRelevantBlock(b, 0);
+        cross.onFetchedRelevantBlock(b, 1);
+        MemoryLimitedJobRunner runner =
+            new MemoryLimitedJobRunner(1, 1, new PooledExecutor(), NativeThread.JAVA_PRIORITY_RANGE);
+        List<String> order = new ArrayList<String>();
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(3);
+        // Keep the only thread busy so the decodes have to queue.
+        runner.queueJob(new Decode("blocker", false, order, blocked, done));
+        runner.queueJob(new Decode("b", cross.needsBlocksFrom(b), order, null, done));
+        runner.queueJob(new Decode("a", cross.needsBlocksFrom(a), order, null, done));
+        blocked.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        synchronized(order) {
+            assertEquals("blocker", order.get(0));
+            assertEquals("a", order.get(1));
+            assertEquals("b", order.get(2));
+        }
+    }
+
+    private static class Decode extends MemoryLimitedJob {
+
+        private final String name;
+        private final List<String> order;
+        private final CountDownLatch wait;
+        private final CountDownLatch done;
+
+        Decode(String name, boolean urgent, List<String> order, CountDownLatch wait, CountDownLatch done) {
+            super(1, urgent);
+            this.name = name;
+            this.order = order;
+            this.wait = wait;
+            this.done = done;
+        }
+
+        @Override
+        public int getPriority() {
+            return NativeThread.NORM_PRIORITY;
+        }
+
+        @Override
+        public boolean start(MemoryLimitedChunk chunk) {
+            synchronized(order) {
+                order.add(name);
+            }
+            try {
+                if(wait != null) wait.await();
+            } catch (InterruptedException e) {
+                // Ignore.
+            }
+            done.countDown();
+            return true;
+        }
+
+    }
+
+}
@@ -10,7 +10,9 @@ import org.bouncycastle.util.encoders.Hex;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.nio.ByteBuffer;
 import java.security.Security;
+import java.util.Arrays;
 import java.util.Random;
 
 import freenet.support.TestProperty;
@@ -77,6 +79,24 @@ public class HMACTest {
     assertEquals(Hex.toHexString(hmac), Hex.toHexString(knownSHA256));
   }
 
+  @Test
+  public void testByteBuffers() {
+    byte[] key = new byte[32];
+    random.nextBytes(key);
+    byte[] data = new byte[1500];
+    random.nextBytes(data);
+    byte[] expected = HMAC.macWithSHA256(key, Arrays.copyOfRange(data, 10, 1400));
+    ByteBuffer heap = ByteBuffer.wrap(data, 10, 1390);
+    assertArrayEquals(expected, HMAC.macWithSHA256(key, heap));
+    assertEquals(1400, heap.position());
+    ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+    direct.put(data);
+    direct.position(10);
+    direct.limit(1400);
+    assertArrayEquals(expected, HMAC.macWithSHA256(key, direct));
+    assertArrayEquals(knownSHA256, HMAC.macWithSHA256(knownKey, ByteBuffer.wrap(plaintext)));
+  }
+
   // ant -Dtest.skip=false -Dtest.class=freenet.crypt.HMACTest -Dtest.benchmark=true unit
   @Test
   public void testBenchmark() {
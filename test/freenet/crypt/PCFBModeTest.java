@@ -2,6 +2,8 @@ package freenet.crypt;
 
 import static org.junit.Assert.*;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.Arrays;
 
 import org.junit.Test;
@@ -169,4 +171,70 @@ public class PCFBModeTest {
 		}
 	}
 
+
+	@Test
+	public void testByteBufferSameAsArrays() throws UnsupportedCipherException {
+		for(int i = 0; i < 200; i++) {
+			int bits = mt.nextBoolean() ? 256 : 128;
+			byte[] plaintext = new byte[mt.nextInt(5000) + 1];
+			byte[] key = new byte[32];
+			byte[] iv = new byte[bits / 8];
+			mt.nextBytes(plaintext);
+			mt.nextBytes(key);
+			mt.nextBytes(iv);
+			BlockCipher cipher = Rijndael.create(256, bits);
+			cipher.initialize(key);
+			PCFBMode pcfb = PCFBMode.create(cipher, iv);
+			byte[] ciphertext = plaintext.clone();
+			pcfb.blockEncipher(ciphertext, 0, ciphertext.length);
+			for(int kind = 0; kind < 4; kind++) {
+				ByteBuffer buf = makeBuffer(ciphertext, kind);
+				pcfb = PCFBMode.create(cipher, iv);
+				decipherInPieces(pcfb, buf);
+				assertTrue(Arrays.equals(plaintext, contents(buf)));
+			}
+		}
+	}
+
+	private void decipherInPieces(PCFBMode pcfb, ByteBuffer buf) {
+		int length = buf.limit();
+		while(buf.position() < length) {
+			int count = mt.nextInt(length - buf.position()) + 1;
+			ByteBuffer piece = buf.duplicate();
+			piece.limit(buf.position() + count);
+			pcfb.blockDecipher(piece);
+			assertEquals(piece.limit(), piece.position());
+			buf.position(piece.position());
+		}
+	}
+
+	/** A heap, direct, little-endian direct or unaligned direct buffer holding data. */
+	private static ByteBuffer makeBuffer(byte[] data, int kind) {
+		ByteBuffer buf;
+		switch(kind) {
+		case 0:
+			return ByteBuffer.wrap(data.clone());
+		case 1:
+			buf = ByteBuffer.allocateDirect(data.length);
+			break;
+		case 2:
+			buf = ByteBuffer.allocateDirect(data.length).order(ByteOrder.LITTLE_ENDIAN);
+			break;
+		default:
+			buf = ByteBuffer.allocateDirect(data.length + 3);
+			buf.position(3);
+			buf = buf.slice();
+		}
+		buf.put(data);
+		buf.flip();
+		return buf;
+	}
+
+	private static byte[] contents(ByteBuffer buf) {
+		byte[] data = new byte[buf.limit()];
+		ByteBuffer b = buf.duplicate();
+		b.position(0);
+		b.get(data);
+		return data;
+	}
 }
@@ -0,0 +1,134 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.crypt.ciphers;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import freenet.crypt.BlockCipher;
+import freenet.crypt.CTRBlockCipher;
+import freenet.crypt.PCFBMode;
+import freenet.crypt.UnsupportedCipherException;
+import freenet.support.TestProperty;
+
+public class JceAESTest {
+
+	private static final Random rand = new Random(12345);
+
+	private static final int[] KEY_SIZES = new int[] { 128, 192, 256 };
+
+	@Test
+	public void testSameAsRijndael() throws UnsupportedCipherException {
+		for(int keysize : KEY_SIZES) {
+			if(!JceAES.isAvailable(keysize)) continue;
+			for(int k = 0; k < 16; k++) {
+				byte[] key = new byte[32];
+				rand.nextBytes(key);
+				Rijndael reference = new Rijndael(keysize, 128);
+				reference.initialize(key);
+				JceAES aes = new JceAES(keysize);
+				aes.initialize(key);
+				for(int i = 0; i < 64; i++) {
+					byte[] plain = new byte[16];
+					rand.nextBytes(plain);
+					byte[] expected = new byte[16];
+					reference.encipher(plain, expected);
+					byte[] cipher = new byte[16];
+					aes.encipher(plain, cipher);
+					assertArrayEquals(expected, cipher);
+					byte[] plain2 = new byte[16];
+					aes.decipher(cipher, plain2);
+					assertArrayEquals(plain, plain2);
+					// In place.
+					byte[] buf = plain.clone();
+					aes.encipher(buf, buf);
+					assertArrayEquals(expected, buf);
+					aes.decipher(buf, buf);
+					assertArrayEquals(plain, buf);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testCTRSameAsRijndael() throws UnsupportedCipherException {
+		byte[] key = new byte[32];
+		rand.nextBytes(key);
+		byte[] iv = new byte[16];
+		rand.nextBytes(iv);
+		byte[] plain = new byte[32768 + 7];
+		rand.nextBytes(plain);
+		byte[][] results = new byte[2][];
+		BlockCipher[] ciphers = new BlockCipher[] { new Rijndael(256, 128), Rijndael.create(256, 128) };
+		for(int i = 0; i < ciphers.length; i++) {
+			ciphers[i].initialize(key);
+			CTRBlockCipher ctr = new CTRBlockCipher(ciphers[i]);
+			ctr.init(iv);
+			results[i] = new byte[plain.length];
+			ctr.processBytes(plain, 0, plain.length, results[i], 0);
+		}
+		assertArrayEquals(results[0], results[1]);
+	}
+
+	@Test
+	public void testCreate() throws UnsupportedCipherException {
+		for(int keysize : KEY_SIZES) {
+			BlockCipher c = Rijndael.create(keysize, 128);
+			assertEquals(JceAES.isAvailable(keysize), c instanceof JceAES);
+			assertEquals(128, c.getBlockSize());
+			assertEquals(keysize, c.getKeySize());
+		}
+		assertTrue(Rijndael.create(256, 256) instanceof Rijndael);
+		// We should always be able to do 128-bit keys.
+		assertTrue(JceAES.isAvailable(128));
+		try {
+			Rijndael.create(100, 128);
+			fail();
+		} catch (UnsupportedCipherException e) {
+			// Expected.
+		}
+	}
+
+	@Test
+	public void testBenchmark() throws UnsupportedCipherException {
+		if(!TestProperty.BENCHMARK) return;
+		byte[] key = new byte[32];
+		rand.nextBytes(key);
+		BlockCipher[] ciphers = new BlockCipher[] { new Rijndael(256, 128), new JceAES(256) };
+		for(int round = 0; round < 3; round++) {
+			for(BlockCipher c : ciphers) {
+				c.initialize(key);
+				String name = c.getClass().getSimpleName();
+				// CHK data blocks are encrypted with AES-256 in CTR mode.
+				byte[] data = new byte[32768];
+				byte[] iv = new byte[16];
+				long start = System.nanoTime();
+				int blocks = 2000;
+				for(int i = 0; i < blocks; i++) {
+					iv[0] = (byte) i;
+					CTRBlockCipher ctr = new CTRBlockCipher(c);
+					ctr.init(iv);
+					ctr.processBytes(data, 0, data.length, data, 0);
+				}
+				long time = System.nanoTime() - start;
+				System.out.println(name + " CTR, 32KB blocks: " + (blocks * (long) data.length * 1000 / time) + "MB/s");
+				// Packet sized messages in PCFB mode.
+				byte[] packet = new byte[1280];
+				int packets = 50000;
+				start = System.nanoTime();
+				for(int i = 0; i < packets; i++) {
+					iv[0] = (byte) i;
+					PCFBMode pcfb = PCFBMode.create(c, iv);
+					pcfb.blockEncipher(packet, 0, packet.length);
+				}
+				time = System.nanoTime() - start;
+				System.out.println(name + " PCFB, " + packet.length + " byte packets: " + (packets * (long) packet.length * 1000 / time) + "MB/s");
+			}
+		}
+	}
+
+}
@@ -0,0 +1,274 @@
+package freenet.io.comm;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import freenet.keys.Key;
+import freenet.keys.NodeCHK;
+import freenet.support.ByteBufferInputStream;
+import freenet.support.Serializer;
+import freenet.support.ShortBuffer;
+import freenet.support.TestProperty;
+
+/**
+ * Checks that MessageCodec produces and accepts exactly what the field by field Serializer code
+ * it replaced did.
+ */
+public class MessageCodecTest {
+
+	private static final MessageType allTypes = new MessageType("MessageCodecTest", DMT.PRIORITY_LOW) {{
+		addField("boolean", Boolean.class);
+		addField("byte", Byte.class);
+		addField("short", Short.class);
+		addField("int", Integer.class);
+		addField("long", Long.class);
+		addField("double", Double.class);
+		addField("float", Float.class);
+		addField("string", String.class);
+		addField("shortBuffer", ShortBuffer.class);
+		addField("doubles", double[].class);
+		addField("floats", float[].class);
+		addField("key", NodeCHK.class);
+		addLinkedListField("list", Long.class);
+	}};
+
+	private static Message[] commonMessages() {
+		Random r = new Random(1234);
+		byte[] routingKey = new byte[32];
+		r.nextBytes(routingKey);
+		NodeCHK key = new NodeCHK(routingKey, Key.ALGO_AES_CTR_256_SHA256);
+		byte[] headers = new byte[36];
+		r.nextBytes(headers);
+		byte[] data = new byte[1024];
+		r.nextBytes(data);
+		return new Message[] {
+				DMT.createFNPCHKDataRequest(r.nextLong(), (short)18, key),
+				DMT.createFNPAccepted(r.nextLong()),
+				DMT.createFNPRejectedLoop(r.nextLong()),
+				DMT.createFNPRejectedOverload(r.nextLong(), false, true, false),
+				DMT.createFNPDataNotFound(r.nextLong()),
+				DMT.createFNPRouteNotFound(r.nextLong(), (short)3),
+				DMT.createFNPCHKDataFound(r.nextLong(), headers),
+				DMT.createFNPInsertRequest(r.nextLong(), (short)18, key),
+				DMT.createFNPInsertReply(r.nextLong()),
+				DMT.createFNPDataInsert(r.nextLong(), headers),
+				DMT.createFNPBulkPacketSend(r.nextLong(), 7, data, true),
+		};
+	}
+
+	private static Message allTypesMessage() {
+		Message m = new Message(allTypes);
+		m.set("boolean", true);
+		m.set("byte", (byte)-3);
+		m.set("short", (short)-1234);
+		m.set("int", -123456789);
+		m.set("long", Long.MIN_VALUE + 17);
+		m.set("double", Math.PI);
+		m.set("float", -0.0f);
+		m.set("string", "Freenet é");
+		m.set("shortBuffer", new ShortBuffer(new byte[] { 1, 2, 3 }));
+		m.set("doubles", new double[] { 0.1, 0.2 });
+		m.set("floats", new float[] { Float.NaN, 1.5f });
+		byte[] routingKey = new byte[32];
+		Arrays.fill(routingKey, (byte)5);
+		m.set("key", new NodeCHK(routingKey, Key.ALGO_AES_CTR_256_SHA256));
+		LinkedList<Long> list = new LinkedList<Long>();
+		list.add(1L);
+		list.add(-2L);
+		m.set("list", list);
+		return m;
+	}
+
+	/** The old encoder: every field through Serializer in field order. */
+	private static byte[] referenceEncode(Message m) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(baos);
+		dos.writeInt(m.getSpec().getName().hashCode());
+		for (String name : m.getSpec().getOrderedFields())
+			Serializer.writeToDataOutputStream(m.getObject(name), dos);
+		dos.flush();
+		return baos.toByteArray();
+	}
+
+	/** The old decoder: every field through Serializer, type checked, into a HashMap. Also creates
+	 * an (empty) Message so that the benchmark compares like with like. */
+	private static Map<String, Object> referenceDecode(byte[] buf) throws IOException {
+		ByteBufferInputStream bb = new ByteBufferInputStream(buf);
+		MessageType spec = MessageType.getSpec(bb.readInt(), false);
+		new Message(spec);
+		HashMap<String, Object> payload = new HashMap<String, Object>(8);
+		for (String name : spec.getOrderedFields()) {
+			Class<?> type = spec.getFields().get(name);
+			Object value;
+			if (type.equals(LinkedList.class))
+				value = Serializer.readListFromDataInputStream(spec.getLinkedListTypes().get(name), bb);
+			else
+				value = Serializer.readFromDataInputStream(type, bb);
+			assertTrue(spec.checkType(name, value));
+			payload.put(name, value);
+		}
+		return payload;
+	}
+
+	private static void assertFieldEquals(Object expected, Object actual) {
+		if (expected instanceof double[])
+			assertTrue(Arrays.equals((double[])expected, (double[])actual));
+		else if (expected instanceof float[])
+			assertTrue(Arrays.equals((float[])expected, (float[])actual));
+		else if (expected instanceof ShortBuffer)
+			assertArrayEquals(((ShortBuffer)expected).getData(), ((ShortBuffer)actual).getData());
+		else
+			assertEquals(expected, actual);
+	}
+
+	private void checkCompatible(Message m) throws IOException {
+		byte[] encoded = m.encodeToPacket();
+		assertArrayEquals(referenceEncode(m), encoded);
+		Map<String, Object> reference = referenceDecode(encoded);
+		Message decoded = Message.decodeMessageFromPacket(encoded, 0, encoded.length, null, 0);
+		assertNotNull(decoded);
+		assertEquals(m.getSpec(), decoded.getSpec());
+		for (String name : m.getSpec().getOrderedFields()) {
+			assertTrue(decoded.isSet(name));
+			assertFieldEquals(reference.get(name), decoded.getObject(name));
+			assertFieldEquals(m.getObject(name), decoded.getObject(name));
+		}
+		assertArrayEquals(encoded, decoded.encodeToPacket());
+	}
+
+	@Test
+	public void testCommonMessages() throws IOException {
+		for (Message m : commonMessages())
+			checkCompatible(m);
+	}
+
+	@Test
+	public void testAllFieldTypes() throws IOException {
+		Message m = allTypesMessage();
+		checkCompatible(m);
+		assertTrue(m.getBoolean("boolean"));
+		assertEquals((byte)-3, m.getByte("byte"));
+		assertEquals((short)-1234, m.getShort("short"));
+		assertEquals(-123456789, m.getInt("int"));
+		assertEquals(Long.MIN_VALUE + 17, m.getLong("long"));
+		assertEquals(Math.PI, m.getDouble("double"), 0.0);
+		assertEquals(Float.floatToRawIntBits(-0.0f), Float.floatToRawIntBits(m.getFloat("float")));
+		assertEquals(Short.valueOf((short)-1234), m.getObject("short"));
+		// Boxed and unboxed setters store the same thing.
+		m.set("long", Long.valueOf(5));
+		assertEquals(5L, m.getLong("long"));
+	}
+
+	@Test
+	public void testSubMessages() throws IOException {
+		Message m = DMT.createFNPAccepted(42);
+		Message sub = DMT.createFNPRealTimeFlag(true);
+		m.addSubMessage(sub);
+		byte[] encoded = m.encodeToPacket();
+		byte[] main = referenceEncode(m);
+		byte[] subEncoded = referenceEncode(sub);
+		assertEquals(main.length + 2 + subEncoded.length, encoded.length);
+		assertArrayEquals(main, Arrays.copyOf(encoded, main.length));
+		Message decoded = Message.decodeMessageFromPacket(encoded, 0, encoded.length, null, 0);
+		assertEquals(42, decoded.getLong(DMT.UID));
+		assertEquals(true, decoded.getSubMessage(DMT.FNPRealTimeFlag).getBoolean(DMT.REAL_TIME_FLAG));
+	}
+
+	@Test
+	public void testUnsetAndUnknownFields() {
+		Message m = new Message(allTypes);
+		assertFalse(m.isSet("long"));
+		assertNull(m.getObject("long"));
+		assertFalse(m.isSet("string"));
+		assertFalse(m.isSet("nonexistent"));
+		assertNull(m.getObject("nonexistent"));
+		try {
+			m.getLong("long");
+			fail();
+		} catch (RuntimeException e) {
+			// Expected.
+		}
+		try {
+			m.set("int", Long.valueOf(1));
+			fail();
+		} catch (IncorrectTypeException e) {
+			// Expected.
+		}
+		try {
+			m.set("nonexistent", 1L);
+			fail();
+		} catch (IllegalStateException e) {
+			// Expected.
+		}
+		try {
+			m.encodeToPacket();
+			fail();
+		} catch (Message.FieldNotSetException e) {
+			// Expected.
+		}
+	}
+
+	@Test
+	public void testBenchmark() throws IOException {
+		if (!TestProperty.BENCHMARK) return;
+		Message[] messages = commonMessages();
+		byte[][] encoded = new byte[messages.length][];
+		for (int i = 0; i < messages.length; i++)
+			encoded[i] = messages[i].encodeToPacket();
+		for (int round = 0; round < 3; round++) {
+			// Warm up first, only print the last round.
+			boolean print = round == 2;
+			int iterations = 200000;
+			long sink = 0;
+			long bytes = allocatedBytes();
+			long start = System.nanoTime();
+			for (int i = 0; i < iterations; i++)
+				sink += referenceDecode(encoded[i % encoded.length]).size();
+			report(print, "Serializer decode", iterations, System.nanoTime() - start, allocatedBytes() - bytes);
+			bytes = allocatedBytes();
+			start = System.nanoTime();
+			for (int i = 0; i < iterations; i++) {
+				byte[] buf = encoded[i % encoded.length];
+				sink += Message.decodeMessageFromPacket(buf, 0, buf.length, null, 0).getLong(DMT.UID);
+			}
+			report(print, "MessageCodec decode", iterations, System.nanoTime() - start, allocatedBytes() - bytes);
+			bytes = allocatedBytes();
+			start = System.nanoTime();
+			for (int i = 0; i < iterations; i++)
+				sink += referenceEncode(messages[i % messages.length]).length;
+			report(print, "Serializer encode", iterations, System.nanoTime() - start, allocatedBytes() - bytes);
+			bytes = allocatedBytes();
+			start = System.nanoTime();
+			for (int i = 0; i < iterations; i++)
+				sink += messages[i % messages.length].encodeToPacket().length;
+			report(print, "MessageCodec encode", iterations, System.nanoTime() - start, allocatedBytes() - bytes);
+			if (sink == 42) System.out.println();
+		}
+	}
+
+	private static void report(boolean print, String what, int iterations, long nanos, long bytes) {
+		if (!print) return;
+		System.out.println(what+": "+(iterations * 1000000000L / nanos)+" messages/sec"+
+				(bytes < 0 ? "" : ", "+(bytes / iterations)+" bytes allocated per message"));
+	}
+
+	/** @return Bytes allocated by this thread so far, or -1 if the JVM can't tell us. */
+	private static long allocatedBytes() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean)
+			return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		return -1;
+	}
+
+}
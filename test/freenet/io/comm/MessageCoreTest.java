@@ -0,0 +1,180 @@
+package freenet.io.comm;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import freenet.support.PooledExecutor;
+
+/**
+ * Tests that MessageCore matches messages to the same filters with its filter index as it would
+ * by trying every filter in order of timeout.
+ */
+public class MessageCoreTest {
+
+	private MessageCore core;
+
+	private static class Callback implements AsyncMessageFilterCallback {
+		final List<Message> matched = new ArrayList<Message>();
+		int timedOut;
+		boolean shouldTimeout;
+
+		@Override
+		public synchronized void onMatched(Message m) {
+			matched.add(m);
+		}
+
+		@Override
+		public synchronized boolean shouldTimeout() {
+			return shouldTimeout;
+		}
+
+		@Override
+		public synchronized void onTimeout() {
+			timedOut++;
+		}
+
+		@Override
+		public void onDisconnect(PeerContext ctx) {
+			fail();
+		}
+
+		@Override
+		public void onRestarted(PeerContext ctx) {
+			fail();
+		}
+	}
+
+	@Before
+	public void setUp() {
+		core = new MessageCore(new PooledExecutor());
+	}
+
+	private Callback add(MessageFilter filter) throws DisconnectedException {
+		Callback cb = new Callback();
+		core.addAsyncFilter(filter, cb, null);
+		return cb;
+	}
+
+	private static MessageFilter accepted(long uid, long timeout) {
+		return MessageFilter.create().setType(DMT.FNPAccepted).setField(DMT.UID, uid).setTimeout(timeout);
+	}
+
+	@Test
+	public void testMatchByUID() throws DisconnectedException {
+		Callback[] callbacks = new Callback[1000];
+		for(int i = 0; i < callbacks.length; i++)
+			callbacks[i] = add(accepted(i, 60000));
+		Message m = DMT.createFNPAccepted(500);
+		core.checkFilters(m, null);
+		for(int i = 0; i < callbacks.length; i++) {
+			if(i == 500)
+				assertEquals(1, callbacks[i].matched.size());
+			else
+				assertEquals(0, callbacks[i].matched.size());
+		}
+		assertSame(m, callbacks[500].matched.get(0));
+		// Only matched once.
+		core.checkFilters(DMT.createFNPAccepted(500), null);
+		assertEquals(1, callbacks[500].matched.size());
+		assertEquals(1, core.getUnclaimedFIFOSize());
+	}
+
+	@Test
+	public void testEarlierTimeoutWins() throws DisconnectedException {
+		Callback late = add(MessageFilter.create().setType(DMT.FNPAccepted).setTimeout(60000));
+		Callback exact = add(accepted(1, 50000));
+		Callback early = add(MessageFilter.create().setType(DMT.FNPAccepted).setTimeout(40000));
+		core.checkFilters(DMT.createFNPAccepted(1), null);
+		assertEquals(1, early.matched.size());
+		core.checkFilters(DMT.createFNPAccepted(1), null);
+		assertEquals(1, exact.matched.size());
+		core.checkFilters(DMT.createFNPAccepted(1), null);
+		assertEquals(1, late.matched.size());
+		assertEquals(0, core.getUnclaimedFIFOSize());
+	}
+
+	@Test
+	public void testOrChain() throws DisconnectedException {
+		MessageFilter loop = MessageFilter.create().setType(DMT.FNPRejectedLoop).setField(DMT.UID, 2L).setTimeout(60000);
+		Callback cb = add(accepted(1, 60000).or(loop));
+		core.checkFilters(DMT.createFNPAccepted(2), null);
+		assertEquals(0, cb.matched.size());
+		core.checkFilters(DMT.createFNPRejectedLoop(2), null);
+		assertEquals(1, cb.matched.size());
+		assertEquals(DMT.FNPRejectedLoop, cb.matched.get(0).getSpec());
+		// Removed under both keys.
+		core.checkFilters(DMT.createFNPAccepted(1), null);
+		assertEquals(1, cb.matched.size());
+	}
+
+	@Test
+	public void testAnyType() throws DisconnectedException {
+		Callback cb = add(MessageFilter.create().setField(DMT.UID, 7L).setTimeout(60000));
+		core.checkFilters(DMT.createFNPAccepted(6), null);
+		assertEquals(0, cb.matched.size());
+		core.checkFilters(DMT.createFNPRejectedLoop(7), null);
+		assertEquals(1, cb.matched.size());
+	}
+
+	@Test
+	public void testUnclaimed() throws DisconnectedException {
+		for(int i = 0; i < 100; i++)
+			core.checkFilters(DMT.createFNPAccepted(i), null);
+		core.checkFilters(DMT.createFNPRejectedLoop(50), null);
+		assertEquals(101, core.getUnclaimedFIFOSize());
+		assertEquals(Integer.valueOf(100), core.getUnclaimedFIFOMessageCounts().get(DMT.FNPAccepted.getName()));
+		Callback cb = add(MessageFilter.create().setType(DMT.FNPRejectedLoop).setField(DMT.UID, 50L).setTimeout(60000));
+		assertEquals(1, cb.matched.size());
+		assertEquals(DMT.FNPRejectedLoop, cb.matched.get(0).getSpec());
+		cb = add(accepted(50, 60000));
+		assertEquals(1, cb.matched.size());
+		assertEquals(99, core.getUnclaimedFIFOSize());
+		// Oldest first.
+		cb = add(MessageFilter.create().setType(DMT.FNPAccepted).setTimeout(60000));
+		assertEquals(0L, cb.matched.get(0).getLong(DMT.UID));
+		assertEquals(98, core.getUnclaimedFIFOSize());
+		// The filter was matched immediately, so it is not waiting.
+		core.checkFilters(DMT.createFNPAccepted(1000), null);
+		assertEquals(1, cb.matched.size());
+		assertEquals(99, core.getUnclaimedFIFOSize());
+	}
+
+	@Test
+	public void testTimeout() throws DisconnectedException, InterruptedException {
+		Callback quick = add(accepted(1, 10));
+		Callback slow = add(accepted(2, 60000));
+		Callback cancelled = add(accepted(3, 60000));
+		Thread.sleep(20);
+		long next = core.removeTimedOutFilters(Long.MAX_VALUE);
+		assertEquals(1, quick.timedOut);
+		assertEquals(0, slow.timedOut);
+		assertTrue(next > System.currentTimeMillis() + 50000);
+		cancelled.shouldTimeout = true;
+		core.removeTimedOutFilters(Long.MAX_VALUE);
+		// Callbacks are only asked to time out early every so often.
+		assertEquals(0, cancelled.timedOut);
+		core.checkFilters(DMT.createFNPAccepted(3), null);
+		assertEquals(1, cancelled.timedOut);
+		assertEquals(0, cancelled.matched.size());
+		core.checkFilters(DMT.createFNPAccepted(1), null);
+		assertEquals(0, quick.matched.size());
+		core.checkFilters(DMT.createFNPAccepted(2), null);
+		assertEquals(1, slow.matched.size());
+	}
+
+	@Test
+	public void testWaitFor() throws DisconnectedException {
+		core.checkFilters(DMT.createFNPAccepted(1), null);
+		assertNotNull(core.waitFor(accepted(1, 1000), null));
+		assertEquals(0, core.getUnclaimedFIFOSize());
+		assertNull(core.waitFor(accepted(1, 10), null));
+		core.checkFilters(DMT.createFNPAccepted(1), null);
+		assertEquals(1, core.getUnclaimedFIFOSize());
+	}
+
+}
@@ -0,0 +1,71 @@
+package freenet.io.comm;
+
+import static org.junit.Assert.*;
+
+import java.io.FileDescriptor;
+import java.lang.reflect.Field;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class MultiSendTest {
+
+	@Test
+	public void testLoopback() throws Exception {
+		if(!MultiSend.available()) return;
+		InetAddress localhost = InetAddress.getByName("127.0.0.1");
+		DatagramChannel channel = DatagramChannel.open();
+		DatagramSocket receiver = new DatagramSocket(0, localhost);
+		try {
+			channel.socket().bind(new InetSocketAddress(localhost, 0));
+			int fd = getFd(channel);
+			int family = MultiSend.getFamily(fd);
+			assertTrue(family == MultiSend.AF_INET || family == MultiSend.AF_INET6);
+			receiver.setSoTimeout(10000);
+			Peer peer = new Peer(localhost, receiver.getLocalPort());
+			int count = 5;
+			byte[][] packets = new byte[count][];
+			Peer[] destinations = new Peer[count];
+			InetAddress[] addresses = new InetAddress[count];
+			for(int i = 0; i < count; i++) {
+				packets[i] = new byte[100 + i];
+				Arrays.fill(packets[i], (byte) i);
+				destinations[i] = peer;
+				addresses[i] = localhost;
+			}
+			// Too big to send this way: stop before it.
+			packets[3] = new byte[MultiSend.MAX_PACKET_SIZE + 1];
+			MultiSend multiSend = new MultiSend(2);
+			// Limited by the capacity.
+			assertEquals(2, multiSend.send(fd, family, packets, destinations, addresses, 0, count));
+			assertEquals(1, multiSend.send(fd, family, packets, destinations, addresses, 2, count));
+			assertEquals(0, multiSend.send(fd, family, packets, destinations, addresses, 3, count));
+			assertEquals(1, multiSend.send(fd, family, packets, destinations, addresses, 4, count));
+			byte[] buf = new byte[MultiSend.MAX_PACKET_SIZE];
+			for(int i : new int[] { 0, 1, 2, 4 }) {
+				DatagramPacket received = new DatagramPacket(buf, buf.length);
+				receiver.receive(received);
+				assertArrayEquals(packets[i], Arrays.copyOf(buf, received.getLength()));
+				assertEquals(channel.socket().getLocalPort(), received.getPort());
+			}
+		} finally {
+			channel.close();
+			receiver.close();
+		}
+	}
+
+	private static int getFd(DatagramChannel channel) throws Exception {
+		Field f = channel.getClass().getDeclaredField("fd");
+		f.setAccessible(true);
+		FileDescriptor fdi = (FileDescriptor) f.get(channel);
+		f = FileDescriptor.class.getDeclaredField("fd");
+		f.setAccessible(true);
+		return f.getInt(fdi);
+	}
+
+}
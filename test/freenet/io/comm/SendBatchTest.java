@@ -0,0 +1,92 @@
+package freenet.io.comm;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+
+import java.net.InetAddress;
+
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class SendBatchTest {
+
+	@Test
+	public void testBounds() throws Exception {
+		UdpSocketHandler handler = mock(UdpSocketHandler.class);
+		InetAddress address = InetAddress.getByName("127.0.0.1");
+		Peer peer = new Peer(address, 1234);
+		SendBatch batch = new SendBatch();
+		// Full.
+		for(int i = 0; i < SendBatch.MAX_PACKETS * 2; i++)
+			batch.add(handler, new byte[] { (byte) i }, peer, address);
+		verify(handler, times(2)).send(any(MultiSend.class), any(byte[][].class), any(Peer[].class),
+				any(InetAddress[].class), eq(SendBatch.MAX_PACKETS));
+		assertEquals(2, batch.getFlushes());
+		assertEquals(SendBatch.MAX_PACKETS * 2, batch.getPacketsFlushed());
+		// Waited too long.
+		batch.add(handler, new byte[1], peer, address);
+		batch.flushIfDue();
+		assertEquals(2, batch.getFlushes());
+		Thread.sleep(SendBatch.MAX_DELAY_NANOS / (1000 * 1000) + 1);
+		batch.flushIfDue();
+		assertEquals(3, batch.getFlushes());
+		// Nothing to send.
+		batch.flush();
+		assertEquals(3, batch.getFlushes());
+		assertEquals(SendBatch.MAX_PACKETS * 2 + 1, batch.getPacketsFlushed());
+	}
+
+	@Test
+	public void testGroupedBySocket() throws Exception {
+		UdpSocketHandler first = mock(UdpSocketHandler.class);
+		UdpSocketHandler second = mock(UdpSocketHandler.class);
+		InetAddress address = InetAddress.getByName("127.0.0.1");
+		Peer peer = new Peer(address, 1234);
+		byte[][] packets = new byte[5][];
+		for(int i = 0; i < packets.length; i++)
+			packets[i] = new byte[] { (byte) i };
+		SendBatch batch = new SendBatch();
+		batch.add(first, packets[0], peer, address);
+		batch.add(second, packets[1], peer, address);
+		batch.add(first, packets[2], peer, address);
+		batch.add(second, packets[3], peer, address);
+		batch.add(first, packets[4], peer, address);
+		// Each socket gets its own packets, in the order they were queued.
+		ExpectPackets firstSent = new ExpectPackets(packets[0], packets[2], packets[4]);
+		ExpectPackets secondSent = new ExpectPackets(packets[1], packets[3]);
+		doAnswer(firstSent).when(first).send(any(MultiSend.class), any(byte[][].class), any(Peer[].class),
+				any(InetAddress[].class), anyInt());
+		doAnswer(secondSent).when(second).send(any(MultiSend.class), any(byte[][].class), any(Peer[].class),
+				any(InetAddress[].class), anyInt());
+		batch.flush();
+		assertTrue(firstSent.called);
+		assertTrue(secondSent.called);
+		assertEquals(1, batch.getFlushes());
+		assertEquals(5, batch.getPacketsFlushed());
+	}
+
+	private static class ExpectPackets implements Answer<Void> {
+
+		private final byte[][] expected;
+		boolean called;
+
+		ExpectPackets(byte[]... expected) {
+			this.expected = expected;
+		}
+
+		@Override
+		public Void answer(InvocationOnMock invocation) {
+			Object[] args = invocation.getArguments();
+			assertEquals(expected.length, args[4]);
+			byte[][] sent = (byte[][]) args[1];
+			for(int i = 0; i < expected.length; i++)
+				assertSame(expected[i], sent[i]);
+			called = true;
+			return null;
+		}
+
+	}
+
+}
@@ -0,0 +1,271 @@
+package freenet.node;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import freenet.keys.CHKBlock;
+import freenet.keys.ClientCHK;
+import freenet.keys.ClientCHKBlock;
+import freenet.keys.Key;
+import freenet.keys.KeyDecodeException;
+import freenet.keys.KeyVerifyException;
+import freenet.support.Executor;
+import freenet.support.PooledExecutor;
+import freenet.support.TestProperty;
+import freenet.support.io.ArrayBucket;
+
+public class BlockVerifierTest {
+
+	/** Records the completions for one ordering key, and checks they are never called at once. */
+	private static class Ordered implements BlockVerifier.Completion<Integer> {
+		final List<Integer> completed = new ArrayList<Integer>();
+		final AtomicBoolean busy = new AtomicBoolean();
+		final CountDownLatch done;
+		volatile boolean overlapped;
+
+		Ordered(CountDownLatch done) {
+			this.done = done;
+		}
+
+		@Override
+		public void onVerified(Integer block) {
+			if(!busy.compareAndSet(false, true)) overlapped = true;
+			completed.add(block);
+			Thread.yield();
+			busy.set(false);
+			done.countDown();
+		}
+
+		@Override
+		public void onVerifyFailed(KeyVerifyException e) {
+			onVerified(Integer.parseInt(e.getMessage()));
+		}
+	}
+
+	private static class Slow implements BlockVerifier.Verification<Integer> {
+		private final int value;
+		private final int delay;
+
+		Slow(int value, int delay) {
+			this.value = value;
+			this.delay = delay;
+		}
+
+		@Override
+		public Integer verify() throws KeyVerifyException {
+			long end = System.nanoTime() + delay * 1000L;
+			while(System.nanoTime() < end);
+			if(value % 7 == 0)
+				throw new KeyVerifyException(Integer.toString(value));
+			return value;
+		}
+	}
+
+	/** Runs nothing until told to. */
+	private static class HeldExecutor implements Executor {
+		final List<Runnable> jobs = new ArrayList<Runnable>();
+
+		@Override
+		public void execute(Runnable job) {
+			jobs.add(job);
+		}
+
+		@Override
+		public void execute(Runnable job, String jobName) {
+			jobs.add(job);
+		}
+
+		@Override
+		public void execute(Runnable job, String jobName, boolean fromTicker) {
+			jobs.add(job);
+		}
+
+		@Override
+		public int[] waitingThreads() {
+			return new int[0];
+		}
+
+		@Override
+		public int[] runningThreads() {
+			return new int[0];
+		}
+
+		@Override
+		public int getWaitingThreadsCount() {
+			return 0;
+		}
+	}
+
+	@Test
+	public void testCompletionsInOrder() throws InterruptedException {
+		BlockVerifier verifier = new BlockVerifier(new PooledExecutor(), 4);
+		Random r = new Random(1);
+		int count = 5000;
+		CountDownLatch done = new CountDownLatch(count);
+		Ordered[] keys = new Ordered[20];
+		for(int i = 0; i < keys.length; i++)
+			keys[i] = new Ordered(done);
+		for(int i = 0; i < count; i++) {
+			Ordered key = keys[r.nextInt(keys.length)];
+			verifier.submit(key, new Slow(i, r.nextInt(200)), key);
+		}
+		assertTrue(done.await(60, TimeUnit.SECONDS));
+		for(Ordered key : keys) {
+			assertFalse(key.overlapped);
+			for(int i = 1; i < key.completed.size(); i++)
+				assertTrue(key.completed.get(i - 1) < key.completed.get(i));
+		}
+		assertEquals(0, verifier.getQueueDepth());
+		assertEquals(count, verifier.getVerifiedCount());
+	}
+
+	@Test
+	public void testFullQueue() throws InterruptedException {
+		HeldExecutor executor = new HeldExecutor();
+		BlockVerifier verifier = new BlockVerifier(executor, 1);
+		CountDownLatch done = new CountDownLatch(BlockVerifier.MAX_QUEUED + 2);
+		Ordered first = new Ordered(done);
+		Ordered other = new Ordered(done);
+		verifier.submit(first, new Slow(1, 0), first);
+		for(int i = 1; i < BlockVerifier.MAX_QUEUED; i++)
+			verifier.submit(other, new Slow(i + 1, 0), other);
+		assertEquals(1, executor.jobs.size());
+		assertEquals(BlockVerifier.MAX_QUEUED, verifier.getQueueDepth());
+		// The queue is full, so we verify this one ourselves, but it can't be completed before
+		// the one which is still queued.
+		verifier.submit(first, new Slow(1000, 0), first);
+		assertEquals(1, verifier.getVerifiedInlineCount());
+		assertTrue(first.completed.isEmpty());
+		// Nothing is waiting on this one.
+		Ordered unordered = new Ordered(done);
+		verifier.submit(null, new Slow(2000, 0), unordered);
+		// Completions are called on the executor.
+		assertTrue(unordered.completed.isEmpty());
+		assertEquals(2, executor.jobs.size());
+		for(int i = 0; i < executor.jobs.size(); i++)
+			executor.jobs.get(i).run();
+		assertEquals(1, unordered.completed.size());
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		assertEquals(2, first.completed.size());
+		assertEquals(1, (int) first.completed.get(0));
+		assertEquals(1000, (int) first.completed.get(1));
+		assertEquals(0, verifier.getQueueDepth());
+	}
+
+	/** A completion which blocks, e.g. waiting for an opennet noderef, mustn't hold up the rest. */
+	@Test
+	public void testBlockingCompletion() throws InterruptedException {
+		BlockVerifier verifier = new BlockVerifier(new PooledExecutor(), 1);
+		final CountDownLatch blocked = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		BlockVerifier.Completion<Integer> blocking = new BlockVerifier.Completion<Integer>() {
+
+			@Override
+			public void onVerified(Integer block) {
+				blocked.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					// Ignore.
+				}
+			}
+
+			@Override
+			public void onVerifyFailed(KeyVerifyException e) {
+				onVerified(null);
+			}
+
+		};
+		verifier.submit(null, new Slow(1, 0), blocking);
+		assertTrue(blocked.await(10, TimeUnit.SECONDS));
+		int count = BlockVerifier.BATCH_SIZE * 4;
+		CountDownLatch done = new CountDownLatch(count * 2);
+		Ordered unordered = new Ordered(done);
+		Ordered ordered = new Ordered(done);
+		for(int i = 0; i < count; i++) {
+			verifier.submit(null, new Slow(i, 0), unordered);
+			verifier.submit(ordered, new Slow(i, 0), ordered);
+		}
+		try {
+			assertTrue(done.await(10, TimeUnit.SECONDS));
+			assertEquals(0, verifier.getVerifiedInlineCount());
+		} finally {
+			release.countDown();
+		}
+	}
+
+	@Test
+	public void testBenchmark() throws Exception {
+		if(!TestProperty.BENCHMARK) return;
+		Random r = new Random(2);
+		final ClientCHKBlock[] blocks = new ClientCHKBlock[64];
+		for(int i = 0; i < blocks.length; i++) {
+			byte[] data = new byte[CHKBlock.DATA_LENGTH];
+			r.nextBytes(data);
+			blocks[i] = ClientCHKBlock.encode(new ArrayBucket(data), false, false, (short)-1, data.length, null, null, Key.ALGO_AES_CTR_256_SHA256);
+		}
+		int cores = Runtime.getRuntime().availableProcessors();
+		BlockVerifier verifier = new BlockVerifier(new PooledExecutor(), cores);
+		int count = 4000;
+		for(int round = 0; round < 3; round++) {
+			long start = System.nanoTime();
+			for(int i = 0; i < count; i++)
+				verifyAndDecode(blocks[i % blocks.length]);
+			long inline = System.nanoTime() - start;
+			final CountDownLatch done = new CountDownLatch(count);
+			final AtomicInteger failed = new AtomicInteger();
+			start = System.nanoTime();
+			for(int i = 0; i < count; i++) {
+				final ClientCHKBlock block = blocks[i % blocks.length];
+				verifier.submit(null, new BlockVerifier.Verification<ClientCHKBlock>() {
+
+					@Override
+					public ClientCHKBlock verify() throws KeyVerifyException {
+						return verifyAndDecode(block);
+					}
+
+				}, new BlockVerifier.Completion<ClientCHKBlock>() {
+
+					@Override
+					public void onVerified(ClientCHKBlock block) {
+						done.countDown();
+					}
+
+					@Override
+					public void onVerifyFailed(KeyVerifyException e) {
+						failed.incrementAndGet();
+						done.countDown();
+					}
+
+				});
+			}
+			assertTrue(done.await(60, TimeUnit.SECONDS));
+			long pipelined = System.nanoTime() - start;
+			assertEquals(0, failed.get());
+			System.out.println("Verify and decode "+count+" CHKs: "+(inline / count / 1000)+"us each inline, "+
+					(pipelined / count / 1000)+"us each on "+cores+" cores, mean latency "+verifier.getAverageLatency()+"ms");
+		}
+	}
+
+	private static ClientCHKBlock verifyAndDecode(ClientCHKBlock encoded) throws KeyVerifyException {
+		CHKBlock block = new CHKBlock(encoded.getBlock().getRawData(), encoded.getBlock().getRawHeaders(), encoded.getBlock().getKey(), Key.ALGO_AES_CTR_256_SHA256);
+		ClientCHK key = encoded.getClientKey();
+		ClientCHKBlock decoded = new ClientCHKBlock(block, key);
+		try {
+			decoded.memoryDecode();
+		} catch (KeyDecodeException e) {
+			throw new KeyVerifyException(e);
+		}
+		return decoded;
+	}
+
+}
@@ -0,0 +1,81 @@
+package freenet.node;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class CubicCongestionControlTest {
+
+	@Test
+	public void testSlowStartAndLoss() {
+		CubicCongestionControl cc = new CubicCongestionControl();
+		cc.onRoundTripTime(100);
+		long now = 1000;
+		for(int i = 0; i < 20; i++)
+			cc.onAcked(1000, now);
+		assertEquals(CubicCongestionControl.INITIAL_WINDOW + 20, cc.getWindowSize(), 0.0);
+		// Not beyond what we are actually using.
+		cc.onAcked(25, now);
+		assertEquals(25, cc.getWindowSize(), 0.0);
+		cc.onLost(3, now);
+		assertEquals(25 * CubicCongestionControl.BETA, cc.getWindowSize(), 1e-9);
+		// Only once per round trip.
+		cc.onLost(1, now + 50);
+		assertEquals(25 * CubicCongestionControl.BETA, cc.getWindowSize(), 1e-9);
+		// Grows back towards where we lost packets, and beyond.
+		double last = cc.getWindowSize();
+		for(int rtt = 1; rtt < 100; rtt++) {
+			for(int i = 0; i < (int) cc.getWindowSize(); i++)
+				cc.onAcked(1000, now + rtt * 100);
+			assertTrue(cc.getWindowSize() > last);
+			last = cc.getWindowSize();
+		}
+		assertTrue(last > 25);
+		cc.onLost(1, now + 100 * 100);
+		assertEquals(last * CubicCongestionControl.BETA, cc.getWindowSize(), 1e-9);
+		assertTrue(cc.getWindowSize() >= CubicCongestionControl.MIN_WINDOW);
+	}
+
+	@Test
+	public void testPacing() {
+		CubicCongestionControl cc = new CubicCongestionControl();
+		long now = 1000;
+		// No round trip time yet, so no pacing.
+		for(int i = 0; i < 100; i++) {
+			assertTrue(cc.nextSendTime(now) <= now);
+			cc.onSent(now);
+		}
+		cc.onRoundTripTime(100);
+		for(int i = 0; i < 100; i++)
+			cc.onAcked(1000, now);
+		cc.onLost(1, now);
+		// 77 packets over 100ms at 1.25 times: one every 1.04ms.
+		int sent = 0;
+		for(long t = now; t < now + 100; t++) {
+			while(cc.nextSendTime(t) <= t) {
+				cc.onSent(t);
+				sent++;
+			}
+		}
+		double expected = cc.getWindowSize() * CubicCongestionControl.PACING_GAIN;
+		assertEquals(expected, sent, 3);
+		// A burst after being idle is limited.
+		now += 10000;
+		sent = 0;
+		while(cc.nextSendTime(now) <= now) {
+			cc.onSent(now);
+			sent++;
+		}
+		assertTrue(sent <= 2);
+	}
+
+	@Test
+	public void testThrottleHasNoPacing() {
+		CongestionControl cc = CongestionControl.Type.THROTTLE.create(null);
+		for(int i = 0; i < 100; i++)
+			cc.onSent(1000);
+		assertEquals(1000, cc.nextSendTime(1000));
+		assertEquals(Integer.MAX_VALUE, cc.getWindowSize(), 0.0);
+	}
+
+}
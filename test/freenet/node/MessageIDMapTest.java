@@ -0,0 +1,86 @@
+package freenet.node;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class MessageIDMapTest {
+
+	private static final int WINDOW = 1024;
+	private static final int NUM_IDS = 1 << 28;
+
+	@Test
+	public void testSameAsHashMap() {
+		Random r = new Random(1);
+		MessageIDMap<Integer> map = new MessageIDMap<Integer>(WINDOW);
+		Map<Integer, Integer> reference = new HashMap<Integer, Integer>();
+		// Start near the end so the IDs wrap around.
+		int low = NUM_IDS - 3000;
+		for(int i = 0; i < 100000; i++) {
+			int id = (low + r.nextInt(WINDOW)) % NUM_IDS;
+			switch(r.nextInt(3)) {
+			case 0:
+				assertEquals(reference.put(id, i), map.put(id, i));
+				break;
+			case 1:
+				assertEquals(reference.remove(id), map.remove(id));
+				break;
+			default:
+				assertEquals(reference.get(id), map.get(id));
+			}
+			assertEquals(reference.size(), map.size());
+			if(i % 1000 == 0) {
+				Set<Integer> values = new HashSet<Integer>();
+				for(Integer v : map)
+					assertTrue(values.add(v));
+				assertEquals(new HashSet<Integer>(reference.values()), values);
+				// Move the window on, forgetting what is now behind it.
+				int step = r.nextInt(200);
+				for(int j = 0; j < step; j++) {
+					int id2 = (low + j) % NUM_IDS;
+					assertEquals(reference.remove(id2), map.remove(id2));
+				}
+				low = (low + step) % NUM_IDS;
+			}
+		}
+		map.clear();
+		assertTrue(map.isEmpty());
+		assertFalse(map.iterator().hasNext());
+	}
+
+	@Test
+	public void testOutsideWindow() {
+		MessageIDMap<Integer> map = new MessageIDMap<Integer>(WINDOW);
+		map.put(5, 5);
+		try {
+			map.put(5 + WINDOW, 6);
+			fail();
+		} catch (IllegalStateException e) {
+			// Expected.
+		}
+	}
+
+	@Test
+	public void testSet() {
+		MessageIDSet set = new MessageIDSet(WINDOW);
+		for(int id = NUM_IDS - 100; id != 100; id = (id + 1) % NUM_IDS) {
+			assertFalse(set.contains(id));
+			set.add(id);
+			assertTrue(set.contains(id));
+			if(id % 3 == 0) {
+				set.remove(id);
+				assertFalse(set.contains(id));
+			}
+		}
+		assertTrue(set.contains(NUM_IDS - 2));
+		assertFalse(set.contains(NUM_IDS - 4));
+		assertTrue(set.contains(1));
+	}
+
+}
@@ -5,7 +5,9 @@ package freenet.node;
 
 import static org.junit.Assert.*;
 
+import java.lang.management.ManagementFactory;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -15,12 +17,15 @@ import org.junit.Before;
 import org.junit.Test;
 
 import freenet.crypt.BlockCipher;
+import freenet.crypt.HMAC;
+import freenet.crypt.PCFBMode;
 import freenet.crypt.ciphers.Rijndael;
 import freenet.io.comm.DMT;
 import freenet.io.comm.FreenetInetAddress;
 import freenet.io.comm.Message;
 import freenet.io.comm.Peer;
 import freenet.support.MutableBoolean;
+import freenet.support.TestProperty;
 
 public class NewPacketFormatTest {
 	@Before
@@ -138,6 +143,33 @@ public class NewPacketFormatTest {
 		assertEquals(1, receiver.handleDecryptedPacket(fragment2, receiverKey).size());
 	}
 
+	/** The ID just past the end of the message window has the same slot in the receive buffers
+	 * as the start of the window, so it must be rejected, including when the window wraps. */
+	@Test
+	public void testMessageIDAtEndOfWindow() throws BlockedTooLongException {
+		final int numMessageIDs = 268435456;
+		final int windowSize = 65536;
+		for(int start : new int[] { 0, numMessageIDs - 10 }) {
+			NewPacketFormat receiver = new NewPacketFormat(new NullBasePeerNode(), 0, start);
+			SessionKey receiverKey = new SessionKey(null, null, null, null, null, null, null, null, new NewPacketFormatKeyContext(0, 0), 1);
+
+			// The first half of a message, so it stays in the receive buffers.
+			NPFPacket p = new NPFPacket();
+			p.addMessageFragment(new MessageFragment(false, true, true, start, 100, 200, 0, new byte[100], null));
+			assertEquals(0, receiver.handleDecryptedPacket(p, receiverKey).size());
+
+			p = new NPFPacket();
+			p.addMessageFragment(new MessageFragment(false, true, true, (start + windowSize) % numMessageIDs,
+					100, 200, 0, new byte[100], null));
+			assertEquals(0, receiver.handleDecryptedPacket(p, receiverKey).size());
+
+			// The first message can still be completed.
+			p = new NPFPacket();
+			p.addMessageFragment(new MessageFragment(false, true, false, start, 100, 200, 100, new byte[100], null));
+			assertEquals(1, receiver.handleDecryptedPacket(p, receiverKey).size());
+		}
+	}
+
 	@Test
 	public void testReceiveUnknownMessageLength() throws BlockedTooLongException {
 		NullBasePeerNode senderNode = new NullBasePeerNode();
@@ -461,4 +493,150 @@ public class NewPacketFormatTest {
 		assertTrue(Arrays.equals(message, copyOfMessage));
 		assertTrue(Arrays.equals(message, receiverNode.decryptedMessages.get(0)));
 	}
+
+	/** Counts the messages it receives rather than keeping copies of them. */
+	private static class CountingPeerNode extends NullBasePeerNode {
+		int messages;
+		long bytes;
+
+		@Override
+		public void verified(SessionKey s) {
+			// Ignore
+		}
+
+		@Override
+		protected void processDecryptedMessage(byte[] data, int offset, int length, int overhead) {
+			messages++;
+			bytes += length;
+		}
+	}
+
+	/** Encrypt a packet the same way as NewPacketFormat.maybeSendPacket(). */
+	private static byte[] encrypt(NPFPacket packet, SessionKey key, Random random) {
+		byte[] data = new byte[packet.getLength() + NewPacketFormat.HMAC_LENGTH];
+		packet.toBytes(data, NewPacketFormat.HMAC_LENGTH, random);
+		byte[] IV = new byte[key.ivCipher.getBlockSize() / 8];
+		System.arraycopy(key.ivNonce, 0, IV, 0, IV.length);
+		System.arraycopy(data, NewPacketFormat.HMAC_LENGTH, IV, IV.length - 4, 4);
+		key.ivCipher.encipher(IV, IV);
+		PCFBMode.create(key.outgoingCipher, IV).blockEncipher(data, NewPacketFormat.HMAC_LENGTH, data.length - NewPacketFormat.HMAC_LENGTH);
+		byte[] text = Arrays.copyOfRange(data, NewPacketFormat.HMAC_LENGTH, data.length);
+		System.arraycopy(HMAC.macWithSHA256(key.hmacKey, text), 0, data, 0, NewPacketFormat.HMAC_LENGTH);
+		return data;
+	}
+
+	/** Packets carrying one fragment each: alternately whole 1000 byte messages, and halves of
+	 * 2200 byte messages. */
+	private static byte[][] createPackets(int count, int firstSeqNum, int firstMessageID, SessionKey key, Random random) {
+		byte[][] packets = new byte[count][];
+		int messageID = firstMessageID;
+		for(int i = 0; i < count; i++) {
+			NPFPacket packet = new NPFPacket();
+			packet.setSequenceNumber(firstSeqNum + i);
+			if(i % 3 == 0) {
+				byte[] data = new byte[1000];
+				random.nextBytes(data);
+				packet.addMessageFragment(new MessageFragment(false, false, true, messageID++, data.length, data.length, 0, data, null));
+			} else {
+				byte[] data = new byte[1100];
+				random.nextBytes(data);
+				boolean first = i % 3 == 1;
+				packet.addMessageFragment(new MessageFragment(false, true, first, messageID, data.length, 2200, first ? 0 : 1100, data, null));
+				if(!first) messageID++;
+			}
+			packets[i] = encrypt(packet, key, random);
+		}
+		return packets;
+	}
+
+	private static long allocatedBytes() {
+		return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	@Test
+	public void testReceiveAllocationBenchmark() {
+		if(!TestProperty.BENCHMARK) return;
+		Random random = new Random(1);
+		byte[][] keys = new byte[3][32];
+		for(byte[] k : keys)
+			random.nextBytes(k);
+		BlockCipher cipher = new Rijndael();
+		cipher.initialize(keys[0]);
+		BlockCipher ivCipher = new Rijndael();
+		ivCipher.initialize(keys[1]);
+		byte[] ivNonce = new byte[16];
+		random.nextBytes(ivNonce);
+		int count = 30000;
+		for(int round = 0; round < 6; round++) {
+			int seqNum = 1000 + round * count;
+			int messageID = 5000 + round * count * 2 / 3;
+			CountingPeerNode receiver = new CountingPeerNode();
+			SessionKey key = new SessionKey(null, cipher, keys[0], cipher, keys[0], ivCipher, ivNonce, keys[2],
+					new NewPacketFormatKeyContext(0, seqNum), 0);
+			receiver.currentKey = key;
+			NewPacketFormat npf = new NewPacketFormat(receiver, 0, messageID);
+			byte[][] packets = createPackets(count, seqNum, messageID, key, random);
+			boolean direct = (round & 1) == 1;
+			// What UdpSocketHandler does with a DatagramChannel: one direct buffer for every packet.
+			ByteBuffer buf = ByteBuffer.allocateDirect(1500);
+			long allocated = allocatedBytes();
+			long start = System.nanoTime();
+			for(byte[] packet : packets) {
+				if(direct) {
+					buf.clear();
+					buf.put(packet);
+					buf.flip();
+					assertTrue(npf.handleReceivedPacket(buf, 0, null));
+				} else {
+					assertTrue(npf.handleReceivedPacket(packet, 0, packet.length, 0, null));
+				}
+			}
+			long time = System.nanoTime() - start;
+			allocated = allocatedBytes() - allocated;
+			assertEquals(count * 2 / 3, receiver.messages);
+			System.out.println((direct ? "Direct ByteBuffer: " : "byte[]: ")+(allocated / count)+" bytes allocated per packet, "+(time / count)+"ns per packet");
+		}
+	}
+	@Test
+	public void testFragmentedTransferBenchmark() throws BlockedTooLongException {
+		if(!TestProperty.BENCHMARK) return;
+		int count = 20000;
+		// Bigger than a packet, so every message is fragmented.
+		int size = 2200;
+		for(int round = 0; round < 5; round++) {
+			NullBasePeerNode senderNode = new NullBasePeerNode();
+			NewPacketFormat sender = new NewPacketFormat(senderNode, 0, 0);
+			PeerMessageQueue senderQueue = new PeerMessageQueue();
+			NewPacketFormat receiver = new NewPacketFormat(new NullBasePeerNode(), 0, 0);
+			SessionKey senderKey = new SessionKey(null, null, null, null, null, null, null, null, new NewPacketFormatKeyContext(0, 0), 1);
+			senderNode.currentKey = senderKey;
+			SessionKey receiverKey = new SessionKey(null, null, null, null, null, null, null, null, new NewPacketFormatKeyContext(0, 0), 1);
+			byte[] data = new byte[size];
+			int queued = 0;
+			int received = 0;
+			int packets = 0;
+			long allocated = allocatedBytes();
+			long start = System.nanoTime();
+			while(received < count) {
+				// Keep the queue topped up, like a block transfer does.
+				for(; queued < count && queued - received < 256; queued++)
+					senderQueue.queueAndEstimateSize(new MessageItem(data, null, false, null, DMT.PRIORITY_BULK_DATA, false, false), Integer.MAX_VALUE);
+				NPFPacket packet = sender.createPacket(1400, senderQueue, senderKey, false);
+				if(packet != null) {
+					packets++;
+					received += receiver.handleDecryptedPacket(packet, receiverKey).size();
+				}
+				if(packet == null || packets % 32 == 0) {
+					// What the receiver would put in its next packet.
+					NPFPacket acks = new NPFPacket();
+					receiverKey.packetContext.addAcks(acks, 1400, System.currentTimeMillis());
+					sender.handleDecryptedPacket(acks, senderKey);
+				}
+			}
+			long time = System.nanoTime() - start;
+			allocated = allocatedBytes() - allocated;
+			System.out.println("Fragmented transfer: "+(allocated / packets)+" bytes allocated per packet, "+
+					(time / packets)+"ns per packet, "+((long) count * size * 1000 / time)+"MB/s");
+		}
+	}
 }
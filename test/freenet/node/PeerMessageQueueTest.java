@@ -5,8 +5,23 @@ package freenet.node;
 
 import static org.junit.Assert.*;
 
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
 import org.junit.Test;
 
+import freenet.io.comm.DMT;
+import freenet.support.BitArray;
+import freenet.support.Buffer;
+import freenet.support.TestProperty;
+
 public class PeerMessageQueueTest {
 	@Test
 	public void testUrgentTimeEmpty() {
@@ -87,4 +102,119 @@ public class PeerMessageQueueTest {
 		//grabQueuedMessageItem() should return the most urgent item, even though it was queued last
 		assertSame(itemUrgent, pmq.grabQueuedMessageItem(0));
 	}
+
+	/** Messages which haven't been drained from the intake queues must be counted. */
+	@Test
+	public void testQueueLengthBytes() {
+		PeerMessageQueue pmq = new PeerMessageQueue();
+		assertEquals(0, pmq.getMessageQueueLengthBytes());
+		MessageItem item1 = new MessageItem(new byte[1024], null, false, null, (short) 0, false, false);
+		MessageItem item2 = bulkItem(1, 0);
+		pmq.queueAndEstimateSize(item1, 1024);
+		pmq.queueAndEstimateSize(item2, 1024);
+		long expected = item1.getLength() + 2 + item2.getLength() + 2;
+		assertEquals(expected, pmq.getMessageQueueLengthBytes());
+		// Draining them into the priority queues doesn't change it.
+		assertFalse(pmq.mustSendSize(0, Integer.MAX_VALUE));
+		assertEquals(expected, pmq.getMessageQueueLengthBytes());
+		assertNotNull(pmq.grabQueuedMessageItem(0));
+		assertNotNull(pmq.grabQueuedMessageItem(0));
+		assertEquals(0, pmq.getMessageQueueLengthBytes());
+	}
+
+	private static MessageItem bulkItem(long uid, int packetNo) {
+		return new MessageItem(DMT.createPacketTransmit(uid, packetNo, new BitArray(1), new Buffer(new byte[32]), false), null, null);
+	}
+
+	@Test
+	public void testRoundRobin() {
+		PeerMessageQueue pmq = new PeerMessageQueue();
+		// Requeued messages are urgent, so we should alternate between the two IDs.
+		for(int i = 0; i < 3; i++) {
+			pmq.pushfrontPrioritizedMessageItem(bulkItem(1, i));
+			pmq.pushfrontPrioritizedMessageItem(bulkItem(2, i));
+		}
+		long last = -1;
+		for(int i = 0; i < 6; i++) {
+			MessageItem item = pmq.grabQueuedMessageItem(0);
+			assertNotNull(item);
+			assertTrue(item.getID() != last);
+			last = item.getID();
+		}
+		assertNull(pmq.grabQueuedMessageItem(0));
+	}
+
+	/** Many threads queueing and removing messages while one thread sends them. Every message
+	 * must be sent exactly once, unless it was removed first. */
+	@Test
+	public void testManyProducers() throws InterruptedException {
+		final PeerMessageQueue pmq = new PeerMessageQueue();
+		final int producers = 16;
+		final int perProducer = TestProperty.EXTENSIVE ? 20000 : 2000;
+		final Set<MessageItem> queued = Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<MessageItem, Boolean>()));
+		final AtomicInteger removed = new AtomicInteger();
+		final AtomicLong enqueueNanos = new AtomicLong();
+		final CountDownLatch done = new CountDownLatch(producers);
+		// Failures in the producer threads, which JUnit wouldn't see.
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		for(int p = 0; p < producers; p++) {
+			final int seed = p;
+			new Thread() {
+				@Override
+				public void run() {
+					Random r = new Random(seed);
+					try {
+						for(int i = 0; i < perProducer; i++) {
+							MessageItem item = bulkItem(seed * 4 + r.nextInt(4), i);
+							queued.add(item);
+							long start = System.nanoTime();
+							pmq.queueAndEstimateSize(item, 1024);
+							enqueueNanos.addAndGet(System.nanoTime() - start);
+							if(r.nextInt(20) == 0 && pmq.removeMessage(item)) {
+								if(!queued.remove(item))
+									failure.compareAndSet(null, new AssertionError("Removed "+item+" which was not queued"));
+								removed.incrementAndGet();
+							}
+							if(r.nextInt(100) == 0) Thread.yield();
+						}
+					} catch (Throwable t) {
+						failure.compareAndSet(null, t);
+					} finally {
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+		int sent = 0;
+		int requeued = 0;
+		while(true) {
+			boolean finished = done.getCount() == 0;
+			MessageItem item = pmq.grabQueuedMessageItem(0);
+			if(item == null) {
+				if(finished) break;
+				Thread.yield();
+				continue;
+			}
+			if(sent % 50 == 0 && requeued++ % 2 == 0) {
+				// Couldn't send it after all.
+				pmq.pushfrontPrioritizedMessageItem(item);
+				continue;
+			}
+			assertTrue(queued.remove(item));
+			sent++;
+		}
+		assertTrue(done.await(0, TimeUnit.SECONDS));
+		if(failure.get() != null)
+			throw new AssertionError("Producer failed", failure.get());
+		assertEquals(0, queued.size());
+		assertEquals(producers * perProducer, sent + removed.get());
+		assertEquals(0, pmq.grabQueuedMessageItems().length);
+		// The size estimate should be back to just the new message.
+		MessageItem item = bulkItem(1, 0);
+		assertEquals(item.getLength() + 2, pmq.queueAndEstimateSize(item, 1024));
+		if(TestProperty.BENCHMARK)
+			System.out.println("Queued "+(producers * perProducer)+" messages from "+producers+" threads: "+
+					(enqueueNanos.get() / (producers * perProducer))+"ns each");
+	}
+
 }
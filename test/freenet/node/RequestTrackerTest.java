@@ -0,0 +1,215 @@
+package freenet.node;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import freenet.node.RequestTracker.CountedRequests;
+
+/**
+ * Checks that the running totals kept by RequestTracker agree with counting the running requests
+ * one by one, as requests start, change state and finish.
+ */
+public class RequestTrackerTest {
+
+	private RequestTracker tracker;
+	private Node node;
+	private PeerNode[] peers;
+
+	@Before
+	public void setUp() throws Exception {
+		PeerManager peerManager = mock(PeerManager.class);
+		when(peerManager.myPeers()).thenReturn(new PeerNode[0]);
+		tracker = new RequestTracker(peerManager, null);
+		tracker.setCheckCounters(true);
+		node = mock(Node.class);
+		setField(Node.class, node, "tracker", tracker);
+		peers = new PeerNode[5];
+		for(int i = 0; i < peers.length; i++) {
+			peers[i] = mock(PeerNode.class);
+			setField(PeerNode.class, peers[i], "myRef", new WeakReference<PeerNode>(peers[i]));
+		}
+	}
+
+	private static void setField(Class<?> c, Object o, String name, Object value) throws Exception {
+		Field f = c.getDeclaredField(name);
+		f.setAccessible(true);
+		f.set(o, value);
+	}
+
+	private CountedRequests count(boolean local, boolean ssk, boolean insert, boolean offer, boolean realTime, boolean ignoreLocalVsRemote) {
+		CountedRequests counter = new CountedRequests();
+		tracker.countRequests(local, ssk, insert, offer, realTime, 3, ignoreLocalVsRemote, counter, new CountedRequests());
+		return counter;
+	}
+
+	/** Every kind of count, which will throw if the running totals are wrong. */
+	private void countEverything() {
+		for(int i = 0; i < 64; i++) {
+			boolean local = (i & 1) != 0;
+			boolean ssk = (i & 2) != 0;
+			boolean insert = (i & 4) != 0;
+			boolean offer = (i & 8) != 0;
+			boolean realTime = (i & 16) != 0;
+			boolean ignoreLocalVsRemote = (i & 32) != 0;
+			count(local, ssk, insert, offer, realTime, ignoreLocalVsRemote);
+			for(PeerNode pn : peers) {
+				for(boolean requestsToNode : new boolean[] { false, true }) {
+					tracker.countRequests(pn, requestsToNode, local, ssk, insert, offer, realTime, 3,
+							ignoreLocalVsRemote, new CountedRequests(), new CountedRequests());
+				}
+			}
+			tracker.countRequests(null, false, local, ssk, insert, offer, realTime, 3,
+					ignoreLocalVsRemote, new CountedRequests(), new CountedRequests());
+			tracker.countAllRequestsByIncomingPeer(false, local, ssk, insert, offer, realTime, 3,
+					ignoreLocalVsRemote, new HashMap<PeerNode, CountedRequests>());
+		}
+	}
+
+	@Test
+	public void testSimpleCounts() {
+		RequestTag local = new RequestTag(false, RequestTag.START.LOCAL, null, false, 1, node);
+		RequestTag remote = new RequestTag(false, RequestTag.START.REMOTE, peers[0], false, 2, node);
+		assertTrue(tracker.lockUID(local));
+		assertTrue(tracker.lockUID(remote));
+		// Remote only, and local only.
+		assertEquals(1, count(false, false, false, false, false, false).total());
+		assertEquals(1, count(true, false, false, false, false, false).total());
+		assertEquals(0, count(false, false, false, false, true, false).total());
+		// Not accepted yet.
+		assertEquals(0, count(false, false, false, false, false, false).expectedTransfersOut());
+		remote.setAccepted();
+		assertEquals(1, count(false, false, false, false, false, false).expectedTransfersOut());
+		remote.addRoutedTo(peers[1], false);
+		CountedRequests to = new CountedRequests();
+		tracker.countRequests(peers[1], true, false, false, false, false, false, 3, false, to, null);
+		assertEquals(1, to.total());
+		InsertTag insert = new InsertTag(true, InsertTag.START.REMOTE, peers[0], true, 3, node);
+		assertTrue(tracker.lockUID(insert));
+		insert.setAccepted();
+		assertEquals(3, count(false, true, true, false, true, false).expectedTransfersOut());
+		insert.setNotRoutedOnwards();
+		assertEquals(0, count(false, true, true, false, true, false).expectedTransfersOut());
+		Map<PeerNode, CountedRequests> bySource = new HashMap<PeerNode, CountedRequests>();
+		tracker.countAllRequestsByIncomingPeer(false, false, false, false, false, false, 3, false, bySource);
+		assertEquals(1, bySource.size());
+		assertEquals(1, bySource.get(peers[0]).total());
+		local.unlockHandler();
+		assertEquals(1, count(false, false, false, false, false, false).total());
+		assertEquals(0, count(true, false, false, false, false, false).total());
+		// No separate local map for offer replies.
+		OfferReplyTag offer = new OfferReplyTag(false, peers[2], false, 4, node);
+		assertTrue(tracker.lockUID(offer));
+		assertEquals(1, count(true, false, false, true, false, false).total());
+		countEverything();
+	}
+
+	/** RequestSender stops routing to the peer but keeps it while waiting for its noderef. */
+	@Test
+	public void testWaitingForOpennet() {
+		RequestTag remote = new RequestTag(false, RequestTag.START.REMOTE, peers[0], false, 1, node);
+		assertTrue(tracker.lockUID(remote));
+		remote.setAccepted();
+		remote.addRoutedTo(peers[1], false);
+		remote.waitingForOpennet(peers[1]);
+		remote.removeRoutingTo(peers[1]);
+		CountedRequests to = new CountedRequests();
+		tracker.countRequests(peers[1], true, false, false, false, false, false, 3, false, to, null);
+		assertEquals(1, to.total());
+		countEverything();
+		remote.finishedWaitingForOpennet(peers[1]);
+		to = new CountedRequests();
+		tracker.countRequests(peers[1], true, false, false, false, false, false, 3, false, to, null);
+		assertEquals(0, to.total());
+		countEverything();
+	}
+
+	@Test
+	public void testRandomChanges() {
+		Random r = new Random(1);
+		List<UIDTag> running = new ArrayList<UIDTag>();
+		Map<UIDTag, PeerNode> waitingForOpennet = new HashMap<UIDTag, PeerNode>();
+		long uid = 0;
+		for(int step = 0; step < 2000; step++) {
+			int op = r.nextInt(12);
+			if(op < 3 || running.isEmpty()) {
+				PeerNode source = r.nextInt(4) == 0 ? null : peers[r.nextInt(peers.length)];
+				boolean realTime = r.nextBoolean();
+				boolean ssk = r.nextBoolean();
+				UIDTag tag;
+				switch(r.nextInt(3)) {
+				case 0:
+					tag = new RequestTag(ssk, source == null ? RequestTag.START.LOCAL : RequestTag.START.REMOTE, source, realTime, uid++, node);
+					break;
+				case 1:
+					tag = new InsertTag(ssk, source == null ? InsertTag.START.LOCAL : InsertTag.START.REMOTE, source, realTime, uid++, node);
+					break;
+				default:
+					tag = new OfferReplyTag(ssk, source, realTime, uid++, node);
+				}
+				if(r.nextBoolean()) tag.setAccepted();
+				assertTrue(tracker.lockUID(tag));
+				running.add(tag);
+			} else {
+				UIDTag tag = running.get(r.nextInt(running.size()));
+				PeerNode peer = peers[r.nextInt(peers.length)];
+				switch(op) {
+				case 3:
+					tag.setAccepted();
+					break;
+				case 4:
+					tag.addRoutedTo(peer, r.nextBoolean());
+					break;
+				case 5:
+					tag.removeRoutingTo(peer);
+					break;
+				case 6:
+					tag.removeFetchingOfferedKeyFrom(peer);
+					break;
+				case 7:
+					tag.setNotRoutedOnwards();
+					break;
+				case 8:
+					tag.reassignToSelf();
+					break;
+				case 9:
+					if(r.nextBoolean())
+						tag.onRestartOrDisconnectSource();
+					else
+						tag.timedOutToHandlerButContinued();
+					break;
+				case 10:
+					if(!(tag instanceof RequestTag)) break;
+					RequestTag rt = (RequestTag) tag;
+					PeerNode waiting = waitingForOpennet.remove(tag);
+					if(waiting != null)
+						rt.finishedWaitingForOpennet(waiting);
+					else if(r.nextBoolean())
+						rt.completedDownstreamTransfers();
+					else {
+						rt.waitingForOpennet(peer);
+						waitingForOpennet.put(tag, peer);
+					}
+					break;
+				default:
+					tag.unlockHandler();
+				}
+			}
+			if(step % 20 == 0)
+				countEverything();
+		}
+		countEverything();
+	}
+
+}
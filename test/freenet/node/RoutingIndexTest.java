@@ -0,0 +1,236 @@
+package freenet.node;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.reset;
+
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import freenet.support.TestProperty;
+
+/**
+ * Checks that routing via the location index picks the same peer as looking at every peer, and
+ * that the index keeps up with connects, disconnects and location changes.
+ */
+public class RoutingIndexTest {
+
+	/** Synthetic peer: a location, the locations of its peers, and whether it is backed off. */
+	private static class FakePeer implements Answer<Object> {
+		double loc;
+		PeerLocation location;
+		boolean backedOff;
+		boolean useFOAF;
+		int examined;
+
+		FakePeer(Random r) {
+			setLocations(r);
+			backedOff = r.nextInt(4) == 0;
+			useFOAF = r.nextBoolean();
+		}
+
+		void setLocations(Random r) {
+			loc = r.nextDouble();
+			double[] peersLocs = new double[r.nextInt(20)];
+			for(int i = 0; i < peersLocs.length; i++)
+				peersLocs[i] = r.nextDouble();
+			location = new PeerLocation(Double.toString(loc));
+			location.updateLocation(loc, peersLocs);
+		}
+
+		@Override
+		public Object answer(InvocationOnMock invocation) throws Throwable {
+			String name = invocation.getMethod().getName();
+			Object[] args = invocation.getArguments();
+			if(name.equals("getLocation"))
+				return loc;
+			if(name.equals("getPeersLocationArray"))
+				return location.getPeersLocationArray();
+			if(name.equals("getClosestPeerLocation"))
+				return location.getClosestPeerLocation((Double) args[0], castSet(args[1]));
+			if(name.equals("shallWeRouteAccordingToOurPeersLocation"))
+				return useFOAF;
+			if(name.equals("isRoutingBackedOff"))
+				return backedOff;
+			if(name.equals("isRoutable")) {
+				examined++;
+				return true;
+			}
+			return Mockito.RETURNS_DEFAULTS.answer(invocation);
+		}
+
+		@SuppressWarnings("unchecked")
+		private static Set<Double> castSet(Object o) {
+			return (Set<Double>) o;
+		}
+
+		/** Same as closerPeer(): the closest of our location and our peers' locations. */
+		double distance(double target, Set<Double> exclude) {
+			double diff = Location.distance(loc, target);
+			if(useFOAF) {
+				double l = location.getClosestPeerLocation(target, exclude);
+				if(!Double.isNaN(l))
+					diff = Math.min(diff, Location.distance(l, target));
+			}
+			return diff;
+		}
+	}
+
+	private PeerManager peerManager;
+	private PeerNode[] peers;
+	private FakePeer[] fakes;
+
+	private void createPeers(int count, Random r) throws Exception {
+		Node node = mock(Node.class);
+		peerManager = new PeerManager(node, mock(SemiOrderedShutdownHook.class));
+		peers = new PeerNode[count];
+		fakes = new FakePeer[count];
+		for(int i = 0; i < count; i++) {
+			fakes[i] = new FakePeer(r);
+			peers[i] = mock(PeerNode.class, fakes[i]);
+		}
+		setConnected(peers);
+	}
+
+	private void setConnected(PeerNode[] connected) throws Exception {
+		for(String name : new String[] { "myPeers", "connectedPeers" }) {
+			Field f = PeerManager.class.getDeclaredField(name);
+			f.setAccessible(true);
+			f.set(peerManager, connected.clone());
+		}
+	}
+
+	private PeerNode route(PeerNode source, Set<PeerNode> routedTo, double target) {
+		return peerManager.closerPeer(source, routedTo, target, true, false, -1, null, 2.0, null, (short) 10, 0, source == null, false, null, false, System.currentTimeMillis(), false);
+	}
+
+	/** Look at every peer: the closest not backed off, or the closest backed off if there are none. */
+	private PeerNode reference(PeerNode[] connected, PeerNode source, Set<PeerNode> routedTo, double target) {
+		Set<Double> exclude = new HashSet<Double>();
+		exclude.add(0.0); // Our location, from the mock Node.
+		exclude.add(source == null ? -1.0 : source.getLocation());
+		for(PeerNode pn : routedTo)
+			exclude.add(pn.getLocation());
+		PeerNode best = null;
+		double bestDiff = Double.MAX_VALUE;
+		PeerNode bestBackedOff = null;
+		double bestBackedOffDiff = Double.MAX_VALUE;
+		for(PeerNode pn : connected) {
+			if(pn == source || routedTo.contains(pn)) continue;
+			FakePeer fake = fakes[Arrays.asList(peers).indexOf(pn)];
+			double diff = fake.distance(target, exclude);
+			if(fake.backedOff) {
+				if(diff < bestBackedOffDiff) {
+					bestBackedOffDiff = diff;
+					bestBackedOff = pn;
+				}
+			} else if(diff < bestDiff) {
+				bestDiff = diff;
+				best = pn;
+			}
+		}
+		return best != null ? best : bestBackedOff;
+	}
+
+	@Test
+	public void testCursorOrder() throws Exception {
+		Random r = new Random(1);
+		createPeers(50, r);
+		RoutingIndex index = new RoutingIndex();
+		for(int round = 0; round < 20; round++) {
+			// Some connects, disconnects and location changes.
+			PeerNode[] connected = new PeerNode[r.nextInt(peers.length + 1)];
+			for(int i = 0; i < connected.length; i++)
+				connected[i] = peers[i];
+			for(int i = 0; i < 5; i++) {
+				int x = r.nextInt(peers.length);
+				fakes[x].setLocations(r);
+				index.locationChanged(peers[x]);
+			}
+			RoutingIndex.Snapshot snapshot = index.get(connected);
+			assertSame(snapshot, index.get(connected));
+			double target = r.nextDouble();
+			RoutingIndex.Cursor cursor = snapshot.byDistanceFrom(target);
+			Set<Integer> seen = new HashSet<Integer>();
+			double last = 0.0;
+			int i;
+			while((i = cursor.next()) >= 0) {
+				assertTrue(seen.add(i));
+				FakePeer fake = fakes[i];
+				double expected = Location.distance(fake.loc, target);
+				for(double l : fake.location.getPeersLocationArray())
+					expected = Math.min(expected, Location.distance(l, target));
+				assertEquals(expected, cursor.distance(), 0.0);
+				assertTrue(cursor.distance() >= last);
+				last = cursor.distance();
+			}
+			assertEquals(connected.length, seen.size());
+		}
+	}
+
+	@Test
+	public void testSameChoiceAsFullScan() throws Exception {
+		Random r = new Random(2);
+		createPeers(100, r);
+		for(int round = 0; round < 1000; round++) {
+			if(round % 50 == 0) {
+				PeerNode[] connected = new PeerNode[20 + r.nextInt(peers.length - 19)];
+				for(int i = 0; i < connected.length; i++)
+					connected[i] = peers[r.nextInt(peers.length)];
+				connected = new HashSet<PeerNode>(Arrays.asList(connected)).toArray(new PeerNode[0]);
+				setConnected(connected);
+			}
+			if(r.nextInt(10) == 0) {
+				int x = r.nextInt(peers.length);
+				fakes[x].setLocations(r);
+				peerManager.peerLocationChanged(peers[x]);
+			}
+			PeerNode[] connected = peerManager.connectedPeers();
+			PeerNode source = r.nextBoolean() ? null : connected[r.nextInt(connected.length)];
+			Set<PeerNode> routedTo = new HashSet<PeerNode>();
+			for(int i = r.nextInt(5); i > 0; i--)
+				routedTo.add(connected[r.nextInt(connected.length)]);
+			double target = r.nextDouble();
+			assertSame(reference(connected, source, routedTo, target), route(source, routedTo, target));
+		}
+	}
+
+	@Test
+	public void testBenchmark() throws Exception {
+		if(!TestProperty.BENCHMARK) return;
+		Random r = new Random(3);
+		for(int count : new int[] { 20, 50, 100, 200, 500 }) {
+			createPeers(count, r);
+			Set<PeerNode> routedTo = new HashSet<PeerNode>();
+			long time = 0;
+			long examined = 0;
+			int decisions = 0;
+			for(int round = 0; round < 50; round++) {
+				// Mockito remembers every call, so start afresh each round.
+				reset(peers);
+				for(FakePeer fake : fakes)
+					fake.examined = 0;
+				long start = System.nanoTime();
+				for(int i = 0; i < 200; i++)
+					route(null, routedTo, r.nextDouble());
+				long end = System.nanoTime();
+				if(round < 10) continue; // Warm up.
+				time += end - start;
+				decisions += 200;
+				for(FakePeer fake : fakes)
+					examined += fake.examined;
+			}
+			System.out.println(count + " peers: " + (time / decisions) + "ns per routing decision, " +
+					((double) examined / decisions) + " peers examined");
+		}
+	}
+
+}
@@ -140,6 +140,44 @@ public class CachingFreenetStoreTest {
 		}
 	}
 
+	/* Check that flushing the cache writes the blocks to the salted hash store in batches */
+	@Test
+	public void testBatchedFlushCHK() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		CHKStore store = new CHKStore();
+		File f = getStorePath("testBatchedFlushCHK");
+		try (SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, "testCachingFreenetStoreCHK",
+				store, weakPRNG, 200, false, SemiOrderedShutdownHook.get(), true, true, ticker, null)) {
+			// Big enough that adding the blocks doesn't start a flush of its own.
+			CachingFreenetStoreTracker tracker = new CachingFreenetStoreTracker(Fields.parseLong("10M"),
+					cachingFreenetStorePeriod, ticker);
+			try (CachingFreenetStore<CHKBlock> cachingStore = new CachingFreenetStore<CHKBlock>(store, saltStore, tracker)) {
+				cachingStore.start(null, true);
+
+				List<ClientCHKBlock> blocks = new ArrayList<ClientCHKBlock>();
+				for (int i = 0; i < 30; i++) {
+					ClientCHKBlock block = encodeBlockCHK("test" + i);
+					store.put(block.getBlock(), false);
+					blocks.add(block);
+				}
+				assertEquals(0, tracker.getFlushCount());
+
+				tracker.pushAllCachingStores();
+				assertEquals(0, tracker.getSizeOfCache());
+				assertEquals(2, tracker.getFlushCount());
+				assertEquals(10, tracker.getLastFlushBatchSize());
+				assertEquals(15.0, tracker.getAverageFlushBatchSize(), 0.0);
+				assertTrue(tracker.getAverageFlushLatency() > 0);
+
+				for (int i = 0; i < blocks.size(); i++) {
+					ClientCHK key = blocks.get(i).getClientKey();
+					CHKBlock verify = saltStore.fetch(key.getRoutingKey(), key.getNodeCHK().getFullKey(), false, false, false, false, null);
+					assertNotNull(verify);
+					assertEquals("test" + i, decodeBlockCHK(verify, key));
+				}
+			}
+		}
+	}
+
 	/*
 	 * Check that if the size limit is 0 (and therefore presumably if it is smaller
 	 * than the key being cached), we will pass through immediately.
@@ -392,7 +430,7 @@ public class CachingFreenetStoreTest {
 
 				// Nothing to write.
 				assertTrue(tracker.getSizeOfCache() == 0);
-				assert (cachingStore.pushLeastRecentlyBlock() == -1);
+				assert (cachingStore.pushLeastRecentlyBlocks(1) == -1);
 
 				// Write one key to the store.
 
@@ -411,16 +449,16 @@ public class CachingFreenetStoreTest {
 
 				// Write.
 				assertEquals(tracker.getSizeOfCache(), sskBlockSize);
-				assertEquals(cachingStore.pushLeastRecentlyBlock(), sskBlockSize);
+				assertEquals(cachingStore.pushLeastRecentlyBlocks(1), sskBlockSize);
 
 				// Nothing to write.
-				assertEquals(cachingStore.pushLeastRecentlyBlock(), -1);
+				assertEquals(cachingStore.pushLeastRecentlyBlocks(1), -1);
 			}
 		}
 	}
 
 	/**
-	 * pushLeastRecentlyBlock() with collisions: Lock { Grab a block for key K. (Do
+	 * pushLeastRecentlyBlocks() with collisions: Lock { Grab a block for key K. (Do
 	 * not remove it) } Write the block. Lock { Detected a different block for key
 	 * K. Return 0 rather than removing it. }
 	 */
@@ -461,7 +499,7 @@ public class CachingFreenetStoreTest {
 
 				// Nothing to write.
 				assertTrue(tracker.getSizeOfCache() == 0);
-				assertEquals(cachingStore.pushLeastRecentlyBlock(), -1);
+				assertEquals(cachingStore.pushLeastRecentlyBlocks(1), -1);
 
 				// Write one key to the cache. It will not be written through to disk.
 				String test = "test";
@@ -481,7 +519,7 @@ public class CachingFreenetStoreTest {
 
 					@Override
 					public Long call() throws Exception {
-						return cachingStore.pushLeastRecentlyBlock();
+						return cachingStore.pushLeastRecentlyBlocks(1);
 					}
 
 				});
@@ -524,7 +562,7 @@ public class CachingFreenetStoreTest {
 				assertTrue(store.fetch(key, false, false, false, false, null).equals(sskBlock2));
 
 				// Still needs writing.
-				assertEquals(cachingStore.pushLeastRecentlyBlock(), sskBlockSize);
+				assertEquals(cachingStore.pushLeastRecentlyBlocks(1), sskBlockSize);
 				assertTrue(store.fetch(key, false, false, false, false, null).equals(sskBlock2));
 			}
 		}
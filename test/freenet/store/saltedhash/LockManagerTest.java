@@ -0,0 +1,43 @@
+package freenet.store.saltedhash;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class LockManagerTest {
+
+	@Test
+	public void testSharedLocks() throws InterruptedException {
+		final LockManager lockManager = new LockManager();
+		// Offsets which share a lock are only locked once, and the locks are sorted.
+		int[] locked = lockManager.lockEntries(LockManager.STRIPES + 1, 0, LockManager.STRIPES, 1);
+		assertArrayEquals(new int[] { 0, 1 }, locked);
+		final CountDownLatch done = new CountDownLatch(1);
+		Thread t = new Thread() {
+
+			@Override
+			public void run() {
+				int[] other = lockManager.lockEntries(LockManager.STRIPES * 2 + 1);
+				lockManager.unlockEntries(other);
+				done.countDown();
+			}
+
+		};
+		t.start();
+		assertFalse(done.await(100, TimeUnit.MILLISECONDS));
+		lockManager.unlockEntries(locked);
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testShutdown() {
+		LockManager lockManager = new LockManager();
+		lockManager.unlockEntries(lockManager.lockEntries(1, 2, 3));
+		lockManager.shutdown();
+		assertNull(lockManager.lockEntries(1));
+	}
+
+}
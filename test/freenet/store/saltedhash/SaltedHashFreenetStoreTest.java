@@ -5,6 +5,8 @@ import static org.junit.Assert.*;
 import java.io.File;
 import java.io.IOException;
 import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.junit.After;
 import org.junit.Before;
@@ -33,6 +35,7 @@ import freenet.keys.SSKBlock;
 import freenet.keys.SSKEncodeException;
 import freenet.keys.SSKVerifyException;
 import freenet.node.SemiOrderedShutdownHook;
+import freenet.node.stats.StatsNotAvailableException;
 import freenet.store.CHKStore;
 import freenet.store.GetPubkey;
 import freenet.store.KeyCollisionException;
@@ -42,6 +45,7 @@ import freenet.store.SSKStore;
 import freenet.store.SimpleGetPubkey;
 import freenet.support.PooledExecutor;
 import freenet.support.SimpleReadOnlyArrayBucket;
+import freenet.support.TestProperty;
 import freenet.support.Ticker;
 import freenet.support.TrivialTicker;
 import freenet.support.api.Bucket;
@@ -101,6 +105,192 @@ public class SaltedHashFreenetStoreTest {
 		saltStore.close();
 	}
 
+	/* Simple test with CHK for a memory-mapped SaltedHashFreenetStore */
+	@Test
+	public void testSimpleCHKMemoryMapped() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException, StatsNotAvailableException {
+		checkSimpleCHKMemoryMapped(false);
+		checkSimpleCHKMemoryMapped(true);
+	}
+
+	private void checkSimpleCHKMemoryMapped(boolean useSlotFilter) throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException, StatsNotAvailableException {
+		File f = new File(tempDir, "saltstore");
+		FileUtil.removeAll(f);
+
+		CHKStore store = new CHKStore();
+		SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, "testSaltedHashFreenetStoreCHKMapped", store, weakPRNG, 10, useSlotFilter, SemiOrderedShutdownHook.get(), true, true, ticker, null, true);
+		saltStore.start(null, true);
+
+		for(int i=0;i<5;i++) {
+			String test = "test" + i;
+			ClientCHKBlock block = encodeBlockCHK(test);
+			store.put(block.getBlock(), false);
+			ClientCHK key = block.getClientKey();
+			CHKBlock verify = store.fetch(key.getNodeCHK(), false, false, null);
+			String data = decodeBlockCHK(verify, key);
+			assertEquals(test, data);
+		}
+		assertNull(store.fetch(encodeBlockCHK("not inserted").getClientKey().getNodeCHK(), false, false, null));
+		assertEquals(5, saltStore.getSessionAccessStats().hits());
+		assertEquals(1, saltStore.getSessionAccessStats().misses());
+		assertTrue(saltStore.getSessionAccessStats().avgHitLatency() > 0);
+
+		saltStore.close();
+
+		// Re-open without mapping, the data must still be there.
+		store = new CHKStore();
+		saltStore = SaltedHashFreenetStore.construct(f, "testSaltedHashFreenetStoreCHKMapped", store, weakPRNG, 10, useSlotFilter, SemiOrderedShutdownHook.get(), true, true, ticker, null, false);
+		saltStore.start(null, true);
+		for(int i=0;i<5;i++) {
+			String test = "test" + i;
+			ClientCHK key = encodeBlockCHK(test).getClientKey();
+			CHKBlock verify = store.fetch(key.getNodeCHK(), false, false, null);
+			assertEquals(test, decodeBlockCHK(verify, key));
+		}
+		saltStore.close();
+	}
+
+	/* Many threads fetching present and absent keys at once must all get the right answer */
+	@Test
+	public void testConcurrentFetchCHK() throws Exception {
+		checkConcurrentFetchCHK(false);
+		checkConcurrentFetchCHK(true);
+	}
+
+	private void checkConcurrentFetchCHK(boolean useSlotFilter) throws Exception {
+		File f = new File(tempDir, "saltstore");
+		FileUtil.removeAll(f);
+
+		CHKStore store = new CHKStore();
+		SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, "testSaltedHashFreenetStoreConcurrentCHK", store, weakPRNG, 100, useSlotFilter, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+		saltStore.start(null, true);
+		try {
+			runConcurrentFetches(store, 10, 10, 8, 50);
+			assertEquals(8 * 50 * 10, saltStore.getSessionAccessStats().hits());
+			assertEquals(8 * 50 * 10, saltStore.getSessionAccessStats().misses());
+		} finally {
+			saltStore.close();
+		}
+	}
+
+	/* Throughput of concurrent fetches, mostly misses, on a store kept in RAM if possible.
+	 * Run with -Dtest.benchmark=true. */
+	@Test
+	public void testFetchContentionBenchmark() throws Exception {
+		if(!TestProperty.BENCHMARK) return;
+		File shm = new File("/dev/shm");
+		File f = shm.isDirectory() && shm.canWrite() ? new File(shm, "saltstore-benchmark") : new File(tempDir, "saltstore");
+		FileUtil.removeAll(f);
+
+		CHKStore store = new CHKStore();
+		SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, "testSaltedHashFreenetStoreBenchmark", store, weakPRNG, 10000, true, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+		saltStore.start(null, true);
+		try {
+			for(int threads = 1; threads <= 32; threads *= 2) {
+				long time = runConcurrentFetches(store, 100, 900, threads, 20);
+				long fetches = threads * 20L * 1000;
+				System.out.println("Fetch contention: " + threads + " threads: " + (fetches * 1000000000L / time) + " fetches/sec");
+			}
+		} finally {
+			saltStore.close();
+			FileUtil.removeAll(f);
+		}
+	}
+
+	/** Insert present keys, then have each thread fetch every present and absent key
+	 * rounds times, checking the results.
+	 * @return Elapsed time in nanoseconds. */
+	private long runConcurrentFetches(final CHKStore store, int present, int absent, int threads, final int rounds) throws Exception {
+		final ClientCHK[] keys = new ClientCHK[present + absent];
+		for(int i=0;i<keys.length;i++) {
+			ClientCHKBlock block = encodeBlockCHK("test" + i);
+			if(i < present)
+				store.put(block.getBlock(), false);
+			keys[i] = block.getClientKey();
+		}
+		final int presentKeys = present;
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] workers = new Thread[threads];
+		for(int t=0;t<threads;t++) {
+			workers[t] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						for(int r=0;r<rounds;r++) {
+							for(int i=0;i<keys.length;i++) {
+								CHKBlock block = store.fetch(keys[i].getNodeCHK(), false, false, null);
+								if((block != null) != (i < presentKeys))
+									throw new AssertionError("Wrong result for key " + i + ": " + block);
+							}
+						}
+					} catch (Throwable e) {
+						failure.compareAndSet(null, e);
+					}
+				}
+			};
+			workers[t].start();
+		}
+		long startTime = System.nanoTime();
+		start.countDown();
+		for(Thread worker : workers)
+			worker.join();
+		long time = System.nanoTime() - startTime;
+		if(failure.get() != null)
+			throw new AssertionError(failure.get());
+		return time;
+	}
+
+	/* A resize done in steps must keep every block reachable in between, and carry on
+	 * where it left off after a restart */
+	@Test
+	public void testIncrementalResumedResizeCHK() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		File f = new File(tempDir, "saltstore");
+		FileUtil.removeAll(f);
+		SaltedHashFreenetStore.NO_CLEANER_SLEEP = false; // Don't let the cleaner thread interfere.
+
+		CHKStore store = new CHKStore();
+		SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, "testSaltedHashFreenetStoreResizeCHK", store, weakPRNG, 1000, true, SemiOrderedShutdownHook.get(), true, false, ticker, null);
+		saltStore.start(null, true);
+		ClientCHK[] keys = new ClientCHK[50];
+		for(int i=0;i<keys.length;i++) {
+			ClientCHKBlock block = encodeBlockCHK("test" + i);
+			store.put(block.getBlock(), false);
+			keys[i] = block.getClientKey();
+		}
+		saltStore.close();
+
+		// Reopen with a bigger size, migrate two batches, and check everything is still there.
+		store = new CHKStore();
+		saltStore = SaltedHashFreenetStore.construct(f, "testSaltedHashFreenetStoreResizeCHK", store, weakPRNG, 2000, true, SemiOrderedShutdownHook.get(), true, false, ticker, null);
+		saltStore.start(null, true);
+		assertEquals(1000, saltStore.getResizeCursor());
+		saltStore.resizeStep(2);
+		assertEquals(768, saltStore.getResizeCursor());
+		checkBlocksCHK(store, keys);
+		saltStore.close();
+
+		// The resize must resume from the saved cursor, not from the top.
+		store = new CHKStore();
+		saltStore = SaltedHashFreenetStore.construct(f, "testSaltedHashFreenetStoreResizeCHK", store, weakPRNG, 2000, true, SemiOrderedShutdownHook.get(), true, false, ticker, null);
+		saltStore.start(null, true);
+		assertEquals(768, saltStore.getResizeCursor());
+		checkBlocksCHK(store, keys);
+		saltStore.resizeStep(Long.MAX_VALUE);
+		assertEquals(0, saltStore.getResizeCursor());
+		assertEquals(2000, saltStore.getMaxKeys());
+		checkBlocksCHK(store, keys);
+		saltStore.close();
+	}
+
+	private void checkBlocksCHK(CHKStore store, ClientCHK[] keys) throws IOException, CHKVerifyException, CHKDecodeException {
+		for(int i=0;i<keys.length;i++) {
+			CHKBlock verify = store.fetch(keys[i].getNodeCHK(), false, false, null);
+			assertNotNull("Lost block " + i, verify);
+			assertEquals("test" + i, decodeBlockCHK(verify, keys[i]));
+		}
+	}
+
 	/* Simple test with SSK for SaltedHashFreenetStore without slotFilter */
 	@Test
 	public void testSimpleSSK() throws IOException, KeyCollisionException, SSKVerifyException, KeyDecodeException, SSKEncodeException, InvalidCompressionCodecException {
@@ -280,6 +280,48 @@ public class SaltedHashSlotFilterTest {
 		}
 	}
 
+	@Test
+	public void testCHKResumeSlotFilterRebuild()
+			throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException, InterruptedException {
+		ResizablePersistentIntBuffer.setPersistenceTime(-1);
+		File f = getStorePath("testCHKResumeSlotFilterRebuild");
+		int oldBatchesPerCheckpoint = SaltedHashFreenetStore.REBUILD_BATCHES_PER_CHECKPOINT;
+		SaltedHashFreenetStore.REBUILD_BATCHES_PER_CHECKPOINT = 1;
+		SaltedHashFreenetStore.NO_CLEANER_SLEEP = false; // Rebuild on this thread only.
+		try {
+			CHKStore store = new CHKStore();
+			try (SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, "testCachingFreenetStoreCHK",
+					store, weakPRNG, 1000, false, SemiOrderedShutdownHook.get(), true, true, ticker, null)) {
+				saltStore.start(null, true);
+				populateStore(store, saltStore, TEST_COUNT);
+			}
+
+			// Turn on slot filters, rebuild part of it and stop.
+			store = new CHKStore();
+			try (SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, "testCachingFreenetStoreCHK",
+					store, weakPRNG, 1000, true, SemiOrderedShutdownHook.get(), true, true, ticker, null)) {
+				saltStore.start(null, true);
+				assertEquals(0, saltStore.getRebuildCursor());
+				saltStore.rebuildSlotFilter(2);
+				assertEquals(256, saltStore.getRebuildCursor());
+			}
+
+			// After a clean restart it must carry on from the checkpoint.
+			store = new CHKStore();
+			try (SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, "testCachingFreenetStoreCHK",
+					store, weakPRNG, 1000, true, SemiOrderedShutdownHook.get(), true, true, ticker, null)) {
+				saltStore.start(null, true);
+				assertEquals(256, saltStore.getRebuildCursor());
+				saltStore.rebuildSlotFilter(Long.MAX_VALUE);
+				assertEquals(0, saltStore.getRebuildCursor());
+				saltStore.testingWaitForCleanerDone(0, 1);
+				checkStore(store, saltStore, TEST_COUNT, true);
+			}
+		} finally {
+			SaltedHashFreenetStore.REBUILD_BATCHES_PER_CHECKPOINT = oldBatchesPerCheckpoint;
+		}
+	}
+
 	private String decodeBlockCHK(CHKBlock verify, ClientCHK key)
 			throws CHKVerifyException, CHKDecodeException, IOException {
 		ClientCHKBlock cb = new ClientCHKBlock(verify, key);
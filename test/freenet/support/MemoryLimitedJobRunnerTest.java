@@ -2,8 +2,15 @@ package freenet.support;
 
 import static org.junit.Assert.*;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
 import org.junit.Test;
 
+import freenet.client.FECCodec;
+import freenet.client.Metadata.SplitfileAlgorithm;
+import freenet.keys.CHKBlock;
 import freenet.support.io.NativeThread;
 
 public class MemoryLimitedJobRunnerTest {
@@ -17,9 +24,19 @@ public class MemoryLimitedJobRunnerTest {
         private boolean canFinish;
         private boolean isFinished;
         private final Object completionSemaphore;
+        private final int priority;
         
         SynchronousJob(long size, boolean canStart, Object semaphore) {
-            super(size);
+            this(size, false, canStart, semaphore);
+        }
+        
+        SynchronousJob(long size, boolean urgent, boolean canStart, Object semaphore) {
+            this(size, NativeThread.NORM_PRIORITY, urgent, canStart, semaphore);
+        }
+        
+        SynchronousJob(long size, int priority, boolean urgent, boolean canStart, Object semaphore) {
+            super(size, urgent);
+            this.priority = priority;
             this.canStart = canStart;
             canFinish = false;
             completionSemaphore = semaphore;
@@ -27,7 +44,7 @@ public class MemoryLimitedJobRunnerTest {
 
         @Override
         public int getPriority() {
-            return NativeThread.NORM_PRIORITY;
+            return priority;
         }
 
         @Override
@@ -330,6 +347,228 @@ public class MemoryLimitedJobRunnerTest {
         waitForZero(runner);
     }
 
+    @Test
+    public void testStartSmallerJobs() throws InterruptedException {
+        final Object completion = new Object();
+        MemoryLimitedJobRunner runner = new MemoryLimitedJobRunner(10, 10, executor, NativeThread.JAVA_PRIORITY_RANGE);
+        SynchronousJob first = new SynchronousJob(6, true, completion);
+        SynchronousJob big = new SynchronousJob(6, true, completion);
+        SynchronousJob small = new SynchronousJob(4, true, completion);
+        runner.queueJob(first);
+        runner.queueJob(big);
+        runner.queueJob(small);
+        // The small job fits alongside the first one, so doesn't have to wait for the big one.
+        waitForAllStarted(new SynchronousJob[] { first, small }, completion);
+        assertFalse(big.isStarted());
+        first.setCanFinish();
+        small.setCanFinish();
+        waitForAllStarted(new SynchronousJob[] { big }, completion);
+        big.setCanFinish();
+        waitForAllFinished(new SynchronousJob[] { first, big, small }, completion);
+        waitForZero(runner);
+    }
+    
+    @Test
+    public void testBypassLimit() throws InterruptedException {
+        final Object completion = new Object();
+        MemoryLimitedJobRunner runner = new MemoryLimitedJobRunner(100, 100, executor, NativeThread.JAVA_PRIORITY_RANGE);
+        SynchronousJob first = new SynchronousJob(60, true, completion);
+        SynchronousJob big = new SynchronousJob(50, true, completion);
+        SynchronousJob[] small = new SynchronousJob[MemoryLimitedJobRunner.MAX_BYPASS * 2];
+        runner.queueJob(first);
+        runner.queueJob(big);
+        for(int i=0;i<small.length;i++) {
+            small[i] = new SynchronousJob(1, true, completion);
+            runner.queueJob(small[i]);
+        }
+        waitForAllStarted(new SynchronousJob[] { first }, completion);
+        SynchronousJob[] bypassed = new SynchronousJob[MemoryLimitedJobRunner.MAX_BYPASS];
+        System.arraycopy(small, 0, bypassed, 0, bypassed.length);
+        waitForAllStarted(bypassed, completion);
+        Thread.sleep(100);
+        // The rest would fit, but the big job has waited long enough.
+        for(int i=bypassed.length;i<small.length;i++)
+            assertFalse(small[i].isStarted());
+        assertFalse(big.isStarted());
+        first.setCanFinish();
+        waitForAllStarted(new SynchronousJob[] { big }, completion);
+        waitForAllStarted(small, completion);
+        big.setCanFinish();
+        for(SynchronousJob job : small)
+            job.setCanFinish();
+        waitForAllFinished(small, completion);
+        waitForZero(runner);
+    }
+    
+    @Test
+    public void testUrgentFirst() throws InterruptedException {
+        final Object completion = new Object();
+        MemoryLimitedJobRunner runner = new MemoryLimitedJobRunner(1, 1, executor, NativeThread.JAVA_PRIORITY_RANGE);
+        SynchronousJob first = new SynchronousJob(1, true, completion);
+        SynchronousJob normal = new SynchronousJob(1, true, completion);
+        SynchronousJob urgent = new SynchronousJob(1, true, true, completion);
+        SynchronousJob urgent2 = new SynchronousJob(1, true, true, completion);
+        runner.queueJob(first);
+        runner.queueJob(normal);
+        runner.queueJob(urgent);
+        runner.queueJob(urgent2);
+        waitForAllStarted(new SynchronousJob[] { first }, completion);
+        first.setCanFinish();
+        waitForAllStarted(new SynchronousJob[] { urgent }, completion);
+        assertFalse(normal.isStarted());
+        assertFalse(urgent2.isStarted());
+        urgent.setCanFinish();
+        waitForAllStarted(new SynchronousJob[] { urgent2 }, completion);
+        assertFalse(normal.isStarted());
+        urgent2.setCanFinish();
+        waitForAllStarted(new SynchronousJob[] { normal }, completion);
+        normal.setCanFinish();
+        waitForAllFinished(new SynchronousJob[] { first, normal, urgent, urgent2 }, completion);
+        waitForZero(runner);
+    }
+    
+    /** Only jobs of the same priority may start ahead of a job which doesn't fit. */
+    @Test
+    public void testBypassSamePriorityOnly() throws InterruptedException {
+        final Object completion = new Object();
+        MemoryLimitedJobRunner runner = new MemoryLimitedJobRunner(10, 10, executor, NativeThread.JAVA_PRIORITY_RANGE);
+        // Lower numbers are started first.
+        SynchronousJob first = new SynchronousJob(6, 1, false, true, completion);
+        SynchronousJob big = new SynchronousJob(6, 1, false, true, completion);
+        SynchronousJob lower = new SynchronousJob(1, 2, false, true, completion);
+        SynchronousJob same = new SynchronousJob(1, 1, false, true, completion);
+        runner.queueJob(first);
+        runner.queueJob(big);
+        runner.queueJob(lower);
+        runner.queueJob(same);
+        waitForAllStarted(new SynchronousJob[] { first, same }, completion);
+        Thread.sleep(100);
+        assertFalse(big.isStarted());
+        assertFalse(lower.isStarted());
+        first.setCanFinish();
+        waitForAllStarted(new SynchronousJob[] { big, lower }, completion);
+        big.setCanFinish();
+        lower.setCanFinish();
+        same.setCanFinish();
+        waitForAllFinished(new SynchronousJob[] { first, big, lower, same }, completion);
+        waitForZero(runner);
+    }
+    
+    /** A job which is overtaken counts every job which starts ahead of it, even when another job
+     * which doesn't fit is queued in front of it. */
+    @Test
+    public void testBypassCountKept() throws InterruptedException {
+        final Object completion = new Object();
+        MemoryLimitedJobRunner runner = new MemoryLimitedJobRunner(100, 100, executor, NativeThread.JAVA_PRIORITY_RANGE);
+        runner.setMaxBypass(2);
+        SynchronousJob first = new SynchronousJob(60, true, completion);
+        SynchronousJob big = new SynchronousJob(50, true, completion);
+        SynchronousJob small1 = new SynchronousJob(1, true, completion);
+        runner.queueJob(first);
+        runner.queueJob(big);
+        runner.queueJob(small1);
+        waitForAllStarted(new SynchronousJob[] { first, small1 }, completion);
+        // Goes in front of big, and doesn't fit either.
+        SynchronousJob urgent = new SynchronousJob(50, true, true, completion);
+        runner.queueJob(urgent);
+        SynchronousJob small2 = new SynchronousJob(1, true, completion);
+        runner.queueJob(small2);
+        waitForAllStarted(new SynchronousJob[] { small2 }, completion);
+        // big has been overtaken twice now.
+        SynchronousJob small3 = new SynchronousJob(1, true, completion);
+        runner.queueJob(small3);
+        Thread.sleep(100);
+        assertFalse(small3.isStarted());
+        first.setCanFinish();
+        waitForAllStarted(new SynchronousJob[] { urgent }, completion);
+        urgent.setCanFinish();
+        waitForAllStarted(new SynchronousJob[] { big, small3 }, completion);
+        for(SynchronousJob job : new SynchronousJob[] { big, small1, small2, small3 })
+            job.setCanFinish();
+        waitForAllFinished(new SynchronousJob[] { first, urgent, big, small1, small2, small3 }, completion);
+        waitForZero(runner);
+    }
+    
+    /** A decode which takes a time proportional to its size. */
+    class SimulatedDecode extends MemoryLimitedJob {
+        
+        private final long millis;
+        private final List<Long> finished;
+        private final long startTime;
+        
+        SimulatedDecode(long size, boolean urgent, long millis, List<Long> finished, long startTime) {
+            super(size, urgent);
+            this.millis = millis;
+            this.finished = finished;
+            this.startTime = startTime;
+        }
+
+        @Override
+        public int getPriority() {
+            return NativeThread.NORM_PRIORITY;
+        }
+
+        @Override
+        public boolean start(MemoryLimitedChunk chunk) {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                // Ignore.
+            }
+            synchronized(finished) {
+                finished.add(System.currentTimeMillis() - startTime);
+                finished.notifyAll();
+            }
+            return true;
+        }
+        
+    }
+    
+    /** Simulate decoding a 2GB splitfile with cross-segments, using the default memory limit for
+     * a node with a 1GB or 2GB heap and 8 cores, with and without starting smaller jobs early. */
+    @Test
+    public void testBenchmarkSplitfileDecode() throws InterruptedException {
+        if(!TestProperty.BENCHMARK) return;
+        FECCodec codec = FECCodec.getInstance(SplitfileAlgorithm.ONION_STANDARD);
+        // 128 data blocks, 3 cross-check blocks and 125 check blocks per segment.
+        int segments = (int) ((2L << 30) / CHKBlock.DATA_LENGTH / 128);
+        long segmentSize = 256L * CHKBlock.DATA_LENGTH + 
+            Math.max(codec.maxMemoryOverheadDecode(131, 125), codec.maxMemoryOverheadEncode(131, 125));
+        long crossSegmentSize = 131L * CHKBlock.DATA_LENGTH + 
+            Math.max(codec.maxMemoryOverheadDecode(128, 3), codec.maxMemoryOverheadEncode(128, 3));
+        int threads = 4;
+        for(int round=0;round<4;round++) {
+            long heap = (round % 2 + 1) * 1024L*1024*1024;
+            long capacity = FECCodec.MIN_MEMORY_ALLOCATION + (heap - 512L*1024*1024)/20;
+            for(boolean inOrder : new boolean[] { true, false }) {
+                MemoryLimitedJobRunner runner = new MemoryLimitedJobRunner(capacity, threads, executor, NativeThread.JAVA_PRIORITY_RANGE);
+                if(inOrder) runner.setMaxBypass(0);
+                Random r = new Random(round);
+                List<Long> finished = new ArrayList<Long>();
+                long start = System.currentTimeMillis();
+                int jobs = 0;
+                for(int i=0;i<segments;i++) {
+                    // Segments become decodable as they are fetched, a bit faster than we can decode them.
+                    runner.queueJob(new SimulatedDecode(segmentSize, false, 8, finished, start));
+                    jobs++;
+                    // Some segments need the cross-segments to decode.
+                    if(r.nextInt(4) == 0) {
+                        runner.queueJob(new SimulatedDecode(crossSegmentSize, !inOrder, 4, finished, start));
+                        jobs++;
+                    }
+                    if(i % 8 == 7) Thread.sleep(r.nextInt(8));
+                }
+                synchronized(finished) {
+                    while(finished.size() < jobs)
+                        finished.wait();
+                }
+                long total = System.currentTimeMillis() - start;
+                System.out.println((inOrder ? "In order: " : "Bypassing: ")+segments+" segments, "+(jobs-segments)+
+                        " cross-segments decoded in "+total+"ms with "+(heap >> 20)+"MiB heap");
+            }
+        }
+    }
+    
     protected void checkRunner(MemoryLimitedJobRunner runner) {
         long used = runner.used();
         assertTrue(used <= runner.capacity);
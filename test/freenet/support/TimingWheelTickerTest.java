@@ -0,0 +1,163 @@
+package freenet.support;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import freenet.node.FastRunnable;
+
+public class TimingWheelTickerTest {
+
+	/** Ticker driven by a fake clock, for checking the wheels without waiting. */
+	private static class FakeClockTicker extends TimingWheelTicker {
+		long time;
+
+		FakeClockTicker() {
+			super(new PooledExecutor(), 0);
+		}
+
+		@Override
+		long now() {
+			return time;
+		}
+	}
+
+	private class Job implements FastRunnable {
+		final long runAt;
+		long ranAt = -1;
+
+		Job(long runAt) {
+			this.runAt = runAt;
+		}
+
+		@Override
+		public void run() {
+			assertEquals(-1, ranAt);
+			ranAt = clock.time;
+			ran.add(this);
+		}
+	}
+
+	private FakeClockTicker clock;
+	private List<Job> ran;
+
+	@Test
+	public void testRunsOnTime() {
+		clock = new FakeClockTicker();
+		ran = new ArrayList<Job>();
+		Random r = new Random(1234);
+		List<Job> jobs = new ArrayList<Job>();
+		Set<Job> cancelled = new HashSet<Job>();
+		// Offsets in every wheel, and beyond them.
+		long[] ranges = { 1L << 8, 1L << 16, 1L << 24, 1L << 32, 1L << 34 };
+		for(int i = 0; i < 5000; i++) {
+			long offset = (long) (r.nextDouble() * ranges[i % ranges.length]);
+			Job job = new Job(clock.time + offset);
+			jobs.add(job);
+			clock.queueTimedJob(job, "test", offset, true, false);
+			if(r.nextInt(10) == 0) {
+				clock.removeQueuedJob(job);
+				cancelled.add(job);
+			}
+			if(r.nextInt(100) == 0) {
+				clock.time += r.nextInt(1000);
+				clock.runDueJobs();
+			}
+		}
+		while(clock.queuedJobs() > 0) {
+			// Mostly small steps, occasionally a long sleep.
+			clock.time += r.nextInt(20) == 0 ? (long) (r.nextDouble() * (1L << 30)) : r.nextInt(1 << 20);
+			clock.runDueJobs();
+			for(Job job : jobs) {
+				if(cancelled.contains(job)) continue;
+				if(job.runAt <= clock.time)
+					assertTrue("runAt "+job.runAt+" ranAt "+job.ranAt+" now "+clock.time, job.ranAt >= job.runAt && job.ranAt <= clock.time);
+				else
+					assertEquals(-1, job.ranAt);
+			}
+		}
+		for(Job job : jobs) {
+			if(cancelled.contains(job))
+				assertEquals(-1, job.ranAt);
+			else
+				assertTrue(job.ranAt >= job.runAt);
+		}
+		assertEquals(jobs.size() - cancelled.size(), ran.size());
+		assertEquals(ran.size(), clock.getLateness().count());
+	}
+
+	@Test
+	public void testOrder() {
+		clock = new FakeClockTicker();
+		ran = new ArrayList<Job>();
+		Job[] jobs = new Job[1000];
+		for(int i = 0; i < jobs.length; i++) {
+			jobs[i] = new Job((i * 7919) % 500);
+			clock.queueTimedJob(jobs[i], "test", jobs[i].runAt, true, false);
+		}
+		clock.time = 1000;
+		clock.runDueJobs();
+		assertEquals(jobs.length, ran.size());
+		for(int i = 1; i < ran.size(); i++) {
+			Job a = ran.get(i - 1);
+			Job b = ran.get(i);
+			assertTrue(a.runAt <= b.runAt);
+		}
+	}
+
+	@Test
+	public void testNoDupes() {
+		clock = new FakeClockTicker();
+		ran = new ArrayList<Job>();
+		Job job = new Job(0);
+		clock.queueTimedJob(job, "test", 100, false, true);
+		clock.queueTimedJob(job, "test", 200, false, true);
+		assertEquals(1, clock.queuedJobs());
+		// Earlier replaces later.
+		clock.queueTimedJob(job, "test", 50, false, true);
+		assertEquals(1, clock.queuedJobs());
+		clock.time = 60;
+		clock.runDueJobs();
+		assertEquals(60, job.ranAt);
+		assertEquals(0, clock.queuedJobs());
+	}
+
+	@Test
+	public void testRealTime() throws InterruptedException {
+		// Driven from here rather than by the ticker thread, which can't be stopped.
+		TimingWheelTicker ticker = new TimingWheelTicker(new PooledExecutor(), 0);
+		final CountDownLatch done = new CountDownLatch(3);
+		final long start = System.currentTimeMillis();
+		final long[] times = new long[3];
+		for(int i = 0; i < 3; i++) {
+			final int x = i;
+			ticker.queueTimedJob(new Runnable() {
+
+				@Override
+				public void run() {
+					times[x] = System.currentTimeMillis();
+					done.countDown();
+				}
+
+			}, (i + 1) * 100);
+		}
+		assertEquals(3, ticker.queuedJobsUniqueTimes());
+		long giveUp = System.currentTimeMillis() + 10000;
+		do {
+			ticker.runDueJobs();
+		} while(!done.await(5, TimeUnit.MILLISECONDS) && System.currentTimeMillis() < giveUp);
+		assertEquals(0, done.getCount());
+		for(int i = 0; i < 3; i++)
+			assertTrue(times[i] >= start + (i + 1) * 100);
+		assertEquals(0, ticker.queuedJobs());
+	}
+
+}
@@ -0,0 +1,190 @@
+package freenet.support;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import freenet.node.PrioRunnable;
+import freenet.support.io.NativeThread;
+
+public class WorkStealingExecutorTest {
+
+	private static class Job implements PrioRunnable {
+		private final int prio;
+		private final CountDownLatch done;
+		volatile int ranAt;
+
+		Job(int prio, CountDownLatch done) {
+			this.prio = prio;
+			this.done = done;
+		}
+
+		@Override
+		public void run() {
+			ranAt = Thread.currentThread().getPriority();
+			done.countDown();
+		}
+
+		@Override
+		public int getPriority() {
+			return prio;
+		}
+	}
+
+	@Test
+	public void testRunsAllJobs() throws InterruptedException {
+		WorkStealingExecutor exec = new WorkStealingExecutor(4, false);
+		exec.start();
+		CountDownLatch done = new CountDownLatch(10000);
+		Job[] jobs = new Job[10000];
+		for(int i = 0; i < jobs.length; i++) {
+			jobs[i] = new Job(NativeThread.MIN_PRIORITY + i % NativeThread.JAVA_PRIORITY_RANGE, done);
+			exec.execute(jobs[i], "test");
+		}
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		assertEquals(10000, exec.getJobCount());
+		if(!NativeThread.usingNativeCode()) {
+			for(Job job : jobs)
+				assertEquals(job.prio, job.ranAt);
+		}
+	}
+
+	@Test
+	public void testJobsQueuedFromWorkers() throws InterruptedException {
+		final WorkStealingExecutor exec = new WorkStealingExecutor(4, false);
+		exec.start();
+		final CountDownLatch done = new CountDownLatch(1000);
+		// Jobs started from a worker go on its own deque, and get stolen by the other workers.
+		exec.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				for(int i = 0; i < 1000; i++)
+					exec.execute(new Job(NativeThread.NORM_PRIORITY, done));
+			}
+
+		});
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testBlockedJobsDoNotStarve() throws InterruptedException {
+		WorkStealingExecutor exec = new WorkStealingExecutor(1, false);
+		exec.start();
+		final CountDownLatch second = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(1);
+		// The only thread waits for a job queued after it. An extra thread must run that job.
+		exec.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					if(second.await(10, TimeUnit.SECONDS))
+						done.countDown();
+				} catch (InterruptedException e) {
+					// Fail below.
+				}
+			}
+
+		});
+		exec.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				second.countDown();
+			}
+
+		});
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		assertTrue(exec.getExtraThreadCount() > 0);
+	}
+
+	@Test
+	public void testExtraThreadPerBlockedJob() throws InterruptedException {
+		WorkStealingExecutor exec = new WorkStealingExecutor(1, false);
+		exec.start();
+		final int count = 20;
+		final CountDownLatch started = new CountDownLatch(count);
+		final CountDownLatch release = new CountDownLatch(1);
+		try {
+			// Each job needs its own thread, and no more than that.
+			for(int i = 0; i < count; i++) {
+				exec.execute(new Runnable() {
+
+					@Override
+					public void run() {
+						started.countDown();
+						try {
+							release.await();
+						} catch (InterruptedException e) {
+							// Ignore.
+						}
+					}
+
+				});
+			}
+			assertTrue(started.await(10, TimeUnit.SECONDS));
+			Thread.sleep(WorkStealingExecutor.STARVATION_TIME * 3);
+			assertEquals(count - 1, exec.getExtraThreadCount());
+		} finally {
+			release.countDown();
+		}
+	}
+
+	@Test
+	public void testManagerWaitsWhenIdle() throws InterruptedException {
+		WorkStealingExecutor exec = new WorkStealingExecutor(4, false);
+		exec.start();
+		CountDownLatch done = new CountDownLatch(1);
+		exec.execute(new Job(NativeThread.NORM_PRIORITY, done));
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		for(int i = 0; i < 100 && exec.manager.getState() != Thread.State.WAITING; i++)
+			Thread.sleep(10);
+		// Parked until there is something to check, rather than polling.
+		assertEquals(Thread.State.WAITING, exec.manager.getState());
+		done = new CountDownLatch(1);
+		exec.execute(new Job(NativeThread.NORM_PRIORITY, done));
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testThreadCounts() throws InterruptedException {
+		WorkStealingExecutor exec = new WorkStealingExecutor(8, false);
+		exec.start();
+		final CountDownLatch started = new CountDownLatch(3);
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicInteger finished = new AtomicInteger();
+		for(int i = 0; i < 3; i++) {
+			exec.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					started.countDown();
+					try {
+						release.await();
+					} catch (InterruptedException e) {
+						// Ignore.
+					}
+					finished.incrementAndGet();
+				}
+
+			});
+		}
+		assertTrue(started.await(10, TimeUnit.SECONDS));
+		int norm = NativeThread.NORM_PRIORITY - 1;
+		assertEquals(3, exec.runningThreads()[norm]);
+		assertEquals(0, exec.waitingThreads()[norm]);
+		release.countDown();
+		for(int i = 0; i < 100 && exec.waitingThreads()[norm] < 3; i++)
+			Thread.sleep(10);
+		assertEquals(3, finished.get());
+		assertEquals(0, exec.runningThreads()[norm]);
+		assertEquals(3, exec.waitingThreads()[norm]);
+		assertEquals(3, exec.getWaitingThreadsCount());
+	}
+
+}
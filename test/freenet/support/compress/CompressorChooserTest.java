@@ -0,0 +1,203 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+* Public License, version 2 (or at your option any later version). See
+* http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.compress;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import freenet.crypt.HashResult;
+import freenet.crypt.HashType;
+import freenet.crypt.MultiHashInputStream;
+import freenet.keys.CHKBlock;
+import freenet.support.TestProperty;
+import freenet.support.api.BucketFactory;
+import freenet.support.api.RandomAccessBucket;
+import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
+import freenet.support.io.ArrayBucket;
+import freenet.support.io.ArrayBucketFactory;
+import freenet.support.io.BucketTools;
+import freenet.support.io.Closer;
+
+/**
+ * Test case for {@link freenet.support.compress.CompressorChooser} class.
+ */
+public class CompressorChooserTest {
+
+	private static final COMPRESSOR_TYPE[] ALL = new COMPRESSOR_TYPE[] {
+		COMPRESSOR_TYPE.GZIP, COMPRESSOR_TYPE.BZIP2, COMPRESSOR_TYPE.LZMA_NEW };
+
+	private static final long HASHES = HashType.SHA256.bitmask;
+
+	private final BucketFactory bf = new ArrayBucketFactory();
+
+	@Test
+	public void testRunAll() {
+		RealCompressor rc = new RealCompressor();
+		try {
+			final AtomicInteger count = new AtomicInteger();
+			List<Runnable> tasks = new ArrayList<Runnable>();
+			for(int i=0;i<10;i++) {
+				tasks.add(new Runnable() {
+
+					@Override
+					public void run() {
+						count.incrementAndGet();
+					}
+
+				});
+			}
+			tasks.add(new Runnable() {
+
+				@Override
+				public void run() {
+					throw new IllegalStateException("Should be logged, not thrown");
+				}
+
+			});
+			rc.runAll(tasks);
+			assertEquals(10, count.get());
+		} finally {
+			rc.shutdown();
+		}
+	}
+
+	@Test
+	public void testCompressible() throws IOException {
+		RandomAccessBucket data = new ArrayBucket(makeText(new Random(1), (int) CompressorChooser.MIN_SIZE + 12345));
+		RealCompressor rc = new RealCompressor();
+		try {
+			CompressorChooser chooser = new CompressorChooser(data, bf, rc, HASHES,
+					CHKBlock.MAX_COMPRESSED_DATA_LENGTH, Long.MAX_VALUE, 0, Long.MAX_VALUE);
+			COMPRESSOR_TYPE[] candidates = chooser.sample(ALL);
+			assertTrue(candidates.length > 0);
+			CompressorChooser.Result result = chooser.compress(candidates);
+			assertNotNull(result.codec);
+			assertTrue(result.data.size() < data.size());
+			// No worse than trying each codec in turn.
+			long best = Long.MAX_VALUE;
+			for(COMPRESSOR_TYPE comp : ALL) {
+				ByteArrayOutputStream baos = new ByteArrayOutputStream();
+				InputStream is = data.getInputStream();
+				try {
+					comp.compress(is, baos, data.size(), Long.MAX_VALUE);
+				} finally {
+					Closer.close(is);
+				}
+				best = Math.min(best, baos.size() / CHKBlock.DATA_LENGTH);
+			}
+			assertEquals(best, result.data.size() / CHKBlock.DATA_LENGTH);
+			// Round trip.
+			ByteArrayOutputStream decompressed = new ByteArrayOutputStream();
+			InputStream is = result.data.getInputStream();
+			try {
+				result.codec.decompress(is, decompressed, data.size(), data.size());
+			} finally {
+				Closer.close(is);
+			}
+			assertTrue(Arrays.equals(BucketTools.toByteArray(data), decompressed.toByteArray()));
+			assertTrue(HashResult.strictEquals(result.hashes, hash(data)));
+			for(COMPRESSOR_TYPE comp : ALL)
+				assertTrue(result.times.containsKey(comp));
+		} finally {
+			rc.shutdown();
+		}
+	}
+
+	@Test
+	public void testIncompressible() throws IOException {
+		byte[] buf = new byte[(int) CompressorChooser.MIN_SIZE];
+		new Random(2).nextBytes(buf);
+		RandomAccessBucket data = new ArrayBucket(buf);
+		RealCompressor rc = new RealCompressor();
+		try {
+			CompressorChooser chooser = new CompressorChooser(data, bf, rc, HASHES,
+					CHKBlock.MAX_COMPRESSED_DATA_LENGTH, Long.MAX_VALUE, 0, Long.MAX_VALUE);
+			COMPRESSOR_TYPE[] candidates = chooser.sample(ALL);
+			assertEquals(0, candidates.length);
+			CompressorChooser.Result result = chooser.compress(candidates);
+			assertNull(result.codec);
+			assertSame(data, result.data);
+			assertTrue(HashResult.strictEquals(result.hashes, hash(data)));
+		} finally {
+			rc.shutdown();
+		}
+	}
+
+	@Test
+	public void testBenchmark() throws IOException {
+		if(!TestProperty.BENCHMARK) return;
+		RandomAccessBucket data = new ArrayBucket(makeText(new Random(3), 32 * 1024 * 1024));
+		RealCompressor rc = new RealCompressor();
+		try {
+			for(int round = 0; round < 3; round++) {
+				long start = System.currentTimeMillis();
+				long best = Long.MAX_VALUE;
+				for(COMPRESSOR_TYPE comp : ALL) {
+					ByteArrayOutputStream baos = new ByteArrayOutputStream();
+					InputStream is = data.getInputStream();
+					try {
+						comp.compress(is, baos, data.size(), Long.MAX_VALUE);
+					} finally {
+						Closer.close(is);
+					}
+					best = Math.min(best, baos.size());
+				}
+				long sequential = System.currentTimeMillis() - start;
+				start = System.currentTimeMillis();
+				CompressorChooser chooser = new CompressorChooser(data, bf, rc, 0,
+						CHKBlock.MAX_COMPRESSED_DATA_LENGTH, Long.MAX_VALUE, 0, Long.MAX_VALUE);
+				CompressorChooser.Result result = chooser.compress(chooser.sample(ALL));
+				long parallel = System.currentTimeMillis() - start;
+				System.out.println("Compress "+data.size()+" bytes: sequential "+sequential+"ms to "+best+
+						", sampled and parallel "+parallel+"ms to "+result.data.size()+" with "+result.codec+
+						" times "+result.times);
+				result.data.free();
+			}
+		} finally {
+			rc.shutdown();
+		}
+	}
+
+	private static HashResult[] hash(RandomAccessBucket data) throws IOException {
+		MultiHashInputStream hasher = new MultiHashInputStream(data.getInputStream(), HASHES);
+		try {
+			hasher.skip(Long.MAX_VALUE);
+			return hasher.getResults();
+		} finally {
+			hasher.close();
+		}
+	}
+
+	/** Random words, so it compresses well but not equally well with every codec. */
+	private static byte[] makeText(Random r, int length) {
+		String[] words = new String[500];
+		for(int i=0;i<words.length;i++) {
+			char[] word = new char[1 + r.nextInt(10)];
+			for(int j=0;j<word.length;j++)
+				word[j] = (char) ('a' + r.nextInt(26));
+			words[i] = new String(word);
+		}
+		byte[] buf = new byte[length];
+		int offset = 0;
+		while(offset < length) {
+			String word = words[(int) Math.abs(r.nextGaussian() * words.length / 4) % words.length];
+			for(int i=0;i<word.length() && offset < length;i++)
+				buf[offset++] = (byte) word.charAt(i);
+			if(offset < length)
+				buf[offset++] = (byte) (r.nextInt(12) == 0 ? '\n' : ' ');
+		}
+		return buf;
+	}
+
+}
@@ -0,0 +1,384 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+* Public License, version 2 (or at your option any later version). See
+* http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.compress;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import freenet.support.PooledExecutor;
+import freenet.support.TestProperty;
+import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
+import freenet.support.io.FileUtil;
+
+/**
+ * Test case for {@link freenet.support.compress.DecompressorPipeline} class.
+ */
+public class DecompressorPipelineTest {
+
+	private final PooledExecutor executor = new PooledExecutor();
+
+	@Test
+	public void testEachCodec() throws Throwable {
+		byte[] data = makeData(new Random(1), 2 * 1024 * 1024);
+		for(COMPRESSOR_TYPE comp : COMPRESSOR_TYPE.values()) {
+			byte[] compressed = compress(comp, data);
+			DecompressorPipeline pipeline = new DecompressorPipeline(new ByteArrayInputStream(compressed),
+					list(comp), data.length, executor);
+			assertTrue(comp.name, Arrays.equals(data, readAll(pipeline.execute())));
+			pipeline.waitFinished();
+			// Only the old LZMA has to run on another thread.
+			assertEquals(comp.name, comp == COMPRESSOR_TYPE.LZMA ? 1 : 0, pipeline.countThreads());
+		}
+	}
+
+	@Test
+	public void testSmall() throws Throwable {
+		for(byte[] data : new byte[][] { new byte[0], new byte[] { 1 }, "Hello world".getBytes("UTF-8") }) {
+			for(COMPRESSOR_TYPE comp : COMPRESSOR_TYPE.values()) {
+				byte[] compressed = compress(comp, data);
+				DecompressorPipeline pipeline = new DecompressorPipeline(new ByteArrayInputStream(compressed),
+						list(comp), 1024, executor);
+				assertTrue(comp.name, Arrays.equals(data, readAll(pipeline.execute())));
+				pipeline.waitFinished();
+			}
+		}
+	}
+
+	/** The LZMA decoder must give the same result as the SevenZip one, including over the
+	 * dictionary size. */
+	@Test
+	public void testLZMAInputStream() throws IOException {
+		Random r = new Random(2);
+		for(int size : new int[] { 100, 5000, 70000, 3 * 1024 * 1024 }) {
+			byte[] data = makeData(r, size);
+			byte[] compressed = compress(COMPRESSOR_TYPE.LZMA_NEW, data);
+			InputStream is = COMPRESSOR_TYPE.LZMA_NEW.decompressingInputStream(new ByteArrayInputStream(compressed));
+			assertTrue(Arrays.equals(data, readAll(is)));
+		}
+		// Random data, mostly literals.
+		byte[] data = new byte[1024 * 1024];
+		r.nextBytes(data);
+		byte[] compressed = compress(COMPRESSOR_TYPE.LZMA_NEW, data);
+		InputStream is = COMPRESSOR_TYPE.LZMA_NEW.decompressingInputStream(new ByteArrayInputStream(compressed));
+		assertTrue(Arrays.equals(data, readAll(is)));
+		// Truncated.
+		is = COMPRESSOR_TYPE.LZMA_NEW.decompressingInputStream(new ByteArrayInputStream(compressed, 0, compressed.length / 2));
+		try {
+			readAll(is);
+			fail();
+		} catch (IOException e) {
+			// Expected.
+		}
+	}
+
+	/** Garbage after valid properties must give an IOException, not some other exception, and
+	 * must not hang. */
+	@Test(timeout = 60000)
+	public void testLZMACorrupted() throws Throwable {
+		Random r = new Random(7);
+		byte[] data = makeData(r, 100000);
+		byte[] compressed = compress(COMPRESSOR_TYPE.LZMA_NEW, data);
+		int failed = 0;
+		for(int i = 0; i < 200; i++) {
+			// Random payload.
+			byte[] corrupt = Arrays.copyOf(compressed, 5 + 1 + r.nextInt(compressed.length));
+			for(int j = 5; j < corrupt.length; j++)
+				corrupt[j] = (byte) r.nextInt();
+			try {
+				decompressLZMA(corrupt, data.length);
+				fail("Decoded random data");
+			} catch (IOException e) {
+				// Expected.
+			}
+			// A few bytes changed in a valid stream. This may still decode, but to the wrong data.
+			corrupt = compressed.clone();
+			for(int j = 0; j < 1 + r.nextInt(4); j++)
+				corrupt[5 + r.nextInt(corrupt.length - 5)] ^= 1 + r.nextInt(255);
+			try {
+				if(!Arrays.equals(data, decompressLZMA(corrupt, data.length))) failed++;
+			} catch (IOException e) {
+				failed++;
+			}
+		}
+		assertTrue(failed > 0);
+	}
+
+	/** Decompress with a pipeline, limited to twice the expected size. */
+	private byte[] decompressLZMA(byte[] compressed, int length) throws Throwable {
+		DecompressorPipeline pipeline = new DecompressorPipeline(new ByteArrayInputStream(compressed),
+				list(COMPRESSOR_TYPE.LZMA_NEW), length * 2, executor);
+		byte[] output = readAll(pipeline.execute());
+		pipeline.waitFinished();
+		return output;
+	}
+
+	@Test
+	public void testLayers() throws Throwable {
+		byte[] data = makeData(new Random(3), 1024 * 1024);
+		byte[] compressed = compress(COMPRESSOR_TYPE.GZIP, compress(COMPRESSOR_TYPE.LZMA,
+				compress(COMPRESSOR_TYPE.BZIP2, compress(COMPRESSOR_TYPE.LZMA_NEW, data))));
+		List<Compressor> decompressors = list(COMPRESSOR_TYPE.LZMA_NEW, COMPRESSOR_TYPE.BZIP2,
+				COMPRESSOR_TYPE.LZMA, COMPRESSOR_TYPE.GZIP);
+		DecompressorPipeline pipeline = new DecompressorPipeline(new ByteArrayInputStream(compressed),
+				decompressors, data.length, executor);
+		assertTrue(decompressors.isEmpty());
+		assertTrue(Arrays.equals(data, readAll(pipeline.execute())));
+		pipeline.waitFinished();
+		assertEquals(1, pipeline.countThreads());
+	}
+
+	/** As used by the fetchers: nothing has been written when we start. */
+	@Test
+	public void testPipe() throws Throwable {
+		byte[] data = makeData(new Random(4), 2 * 1024 * 1024);
+		for(COMPRESSOR_TYPE comp : new COMPRESSOR_TYPE[] { COMPRESSOR_TYPE.GZIP, COMPRESSOR_TYPE.LZMA_NEW, COMPRESSOR_TYPE.LZMA }) {
+			byte[] compressed = compress(comp, data);
+			PipedInputStream pipeIn = new PipedInputStream();
+			PipedOutputStream pipeOut = new PipedOutputStream(pipeIn);
+			DecompressorPipeline pipeline = new DecompressorPipeline(pipeIn, list(comp), data.length, executor);
+			InputStream is = pipeline.execute();
+			Writer writer = new Writer(pipeOut, compressed);
+			writer.start();
+			assertTrue(comp.name, Arrays.equals(data, readAll(is)));
+			pipeline.waitFinished();
+			writer.join();
+			assertNull(writer.failure);
+		}
+	}
+
+	@Test
+	public void testTooBig() throws Throwable {
+		byte[] data = makeData(new Random(5), 1024 * 1024);
+		for(COMPRESSOR_TYPE comp : COMPRESSOR_TYPE.values()) {
+			byte[] compressed = compress(comp, data);
+			DecompressorPipeline pipeline = new DecompressorPipeline(new ByteArrayInputStream(compressed),
+					list(comp), data.length / 2, executor);
+			try {
+				readAll(pipeline.execute());
+				fail();
+			} catch (CompressionOutputSizeException e) {
+				// Less than five times the limit, so we know how big it is.
+				if(comp != COMPRESSOR_TYPE.LZMA)
+					assertEquals(comp.name, data.length, e.estimatedSize);
+			}
+			try {
+				pipeline.waitFinished();
+				fail();
+			} catch (CompressionOutputSizeException e) {
+				// Expected.
+			}
+		}
+		// Too big for the estimate.
+		byte[] compressed = compress(COMPRESSOR_TYPE.GZIP, data);
+		DecompressorPipeline pipeline = new DecompressorPipeline(new ByteArrayInputStream(compressed),
+				list(COMPRESSOR_TYPE.GZIP), data.length / 10, executor);
+		try {
+			readAll(pipeline.execute());
+			fail();
+		} catch (CompressionOutputSizeException e) {
+			assertEquals(-1, e.estimatedSize);
+		}
+	}
+
+	@Test
+	public void testNoDecompressors() throws Throwable {
+		InputStream input = new ByteArrayInputStream(new byte[10]);
+		DecompressorPipeline pipeline = new DecompressorPipeline(input, list(), 10, executor);
+		assertSame(input, pipeline.execute());
+		pipeline.waitFinished();
+	}
+
+	/** Compare with running each layer on its own thread, as the fetchers used to. The caller
+	 * writes to a pipe, and another thread reads the decompressed data. */
+	@Test
+	public void testBenchmark() throws Throwable {
+		if(!TestProperty.BENCHMARK) return;
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		Random r = new Random(6);
+		for(COMPRESSOR_TYPE comp : new COMPRESSOR_TYPE[] { COMPRESSOR_TYPE.GZIP, COMPRESSOR_TYPE.BZIP2, COMPRESSOR_TYPE.LZMA_NEW }) {
+			for(int size : new int[] { 10, 100 }) {
+				// Most of it is random, so the compressed size is about the same.
+				byte[] data = makeData(r, size * 1024 * 1024);
+				for(int i=0;i<data.length;i+=2)
+					data[i] = (byte) r.nextInt();
+				byte[] compressed = compress(comp, data);
+				for(int round = 0; round < 2; round++) {
+					for(boolean pull : new boolean[] { false, true }) {
+						PipedInputStream pipeIn = new PipedInputStream();
+						PipedOutputStream pipeOut = new PipedOutputStream(pipeIn);
+						long startedThreads = threads.getTotalStartedThreadCount();
+						long start = System.currentTimeMillis();
+						Reader reader;
+						if(pull) {
+							DecompressorPipeline pipeline = new DecompressorPipeline(pipeIn, list(comp), data.length, executor);
+							reader = new Reader(pipeline.execute());
+							reader.start();
+							pipeOut.write(compressed);
+							pipeOut.close();
+							pipeline.waitFinished();
+						} else {
+							PipedOutputStream layerOut = new PipedOutputStream();
+							PipedInputStream layerIn = new PipedInputStream(layerOut);
+							Layer layer = new Layer(comp, pipeIn, layerOut, data.length);
+							layer.start();
+							reader = new Reader(layerIn);
+							reader.start();
+							pipeOut.write(compressed);
+							pipeOut.close();
+							layer.join();
+							assertNull(layer.failure);
+						}
+						reader.join();
+						long time = System.currentTimeMillis() - start;
+						assertEquals(data.length, reader.read);
+						// Not counting the reader.
+						long started = threads.getTotalStartedThreadCount() - startedThreads - 1;
+						System.out.println(comp.name+" "+compressed.length+" bytes compressed: "+
+								(pull ? "pipeline" : "thread per layer")+" "+time+"ms, "+
+								(data.length * 1000L / Math.max(1, time) / 1024 / 1024)+"MB/s, "+started+" threads started");
+					}
+				}
+			}
+		}
+	}
+
+	private static class Writer extends Thread {
+
+		private final PipedOutputStream os;
+		private final byte[] data;
+		volatile IOException failure;
+
+		Writer(PipedOutputStream os, byte[] data) {
+			this.os = os;
+			this.data = data;
+		}
+
+		@Override
+		public void run() {
+			try {
+				os.write(data);
+				os.close();
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+
+	}
+
+	/** One layer of decompression on its own thread. */
+	private static class Layer extends Thread {
+
+		private final Compressor compressor;
+		private final InputStream is;
+		private final OutputStream os;
+		private final long maxLen;
+		volatile IOException failure;
+
+		Layer(Compressor compressor, InputStream is, OutputStream os, long maxLen) {
+			this.compressor = compressor;
+			this.is = new BufferedInputStream(is);
+			this.os = new BufferedOutputStream(os);
+			this.maxLen = maxLen;
+		}
+
+		@Override
+		public void run() {
+			try {
+				compressor.decompress(is, os, maxLen, maxLen * 4);
+				is.close();
+				os.close();
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+
+	}
+
+	private static class Reader extends Thread {
+
+		private final InputStream is;
+		volatile long read;
+
+		Reader(InputStream is) {
+			this.is = is;
+		}
+
+		@Override
+		public void run() {
+			try {
+				byte[] buf = new byte[32768];
+				int x;
+				long total = 0;
+				while((x = is.read(buf)) > 0)
+					total += x;
+				read = total;
+				is.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+	}
+
+	private static List<Compressor> list(Compressor... decompressors) {
+		return new ArrayList<Compressor>(Arrays.asList(decompressors));
+	}
+
+	private static byte[] compress(COMPRESSOR_TYPE comp, byte[] data) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		comp.compress(new ByteArrayInputStream(data), baos, Math.max(1, data.length), Long.MAX_VALUE);
+		return baos.toByteArray();
+	}
+
+	private static byte[] readAll(InputStream is) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		try {
+			FileUtil.copy(is, baos, -1);
+		} finally {
+			is.close();
+		}
+		return baos.toByteArray();
+	}
+
+	/** Repeated words, some long repeats, and some noise. */
+	private static byte[] makeData(Random r, int length) {
+		byte[] data = new byte[length];
+		int offset = 0;
+		while(offset < length) {
+			int x = r.nextInt(10);
+			int len = Math.min(length - offset, 1 + r.nextInt(300));
+			if(x < 5 && offset > 0) {
+				int from = r.nextInt(offset);
+				len = Math.min(len, offset - from);
+				System.arraycopy(data, from, data, offset, len);
+			} else if(x < 8) {
+				for(int i=0;i<len;i++)
+					data[offset + i] = (byte) ('a' + r.nextInt(6));
+			} else {
+				for(int i=0;i<len;i++)
+					data[offset + i] = (byte) r.nextInt();
+			}
+			offset += len;
+		}
+		return data;
+	}
+
+}
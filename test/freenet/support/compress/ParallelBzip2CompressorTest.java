@@ -0,0 +1,158 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+* Public License, version 2 (or at your option any later version). See
+* http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.compress;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.junit.After;
+import org.junit.Test;
+
+import freenet.support.TestProperty;
+import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
+import freenet.support.io.FileUtil;
+import freenet.support.io.HeaderStreams;
+
+/**
+ * Test case for {@link freenet.support.compress.ParallelBzip2Compressor} class.
+ */
+public class ParallelBzip2CompressorTest {
+
+	private final RealCompressor rc = new RealCompressor();
+	private final ParallelBzip2Compressor compressor = new ParallelBzip2Compressor(rc, 4);
+
+	@After
+	public void tearDown() {
+		rc.shutdown();
+	}
+
+	@Test
+	public void testText() throws IOException {
+		byte[] data = new byte[3 * 1024 * 1024 + 17];
+		Random r = new Random(1);
+		for(int i=0;i<data.length;i++)
+			data[i] = (byte) ('a' + Math.min(25, (int) Math.abs(r.nextGaussian() * 6)));
+		byte[] compressed = checkRoundTrip(data);
+		// About the same as compressing it all on one thread.
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		COMPRESSOR_TYPE.BZIP2.compress(new ByteArrayInputStream(data), baos, data.length, Long.MAX_VALUE);
+		assertTrue(compressed.length < baos.size() * 101 / 100);
+	}
+
+	@Test
+	public void testRandom() throws IOException {
+		byte[] data = new byte[2 * 1024 * 1024];
+		new Random(2).nextBytes(data);
+		checkRoundTrip(data);
+	}
+
+	/** Runs of 4 are encoded as 5 bytes, runs of 255 as 5 bytes, so the blocks have to be cut by
+	 * the encoded size, not the size of the input. */
+	@Test
+	public void testRuns() throws IOException {
+		byte[] data = new byte[4 * 1024 * 1024];
+		Random r = new Random(3);
+		int i = 0;
+		while(i < data.length / 2) {
+			byte b = (byte) r.nextInt(256);
+			for(int j=0;j<4 && i < data.length;j++)
+				data[i++] = b;
+		}
+		// The rest are zero.
+		checkRoundTrip(data);
+		checkRoundTrip(new byte[ParallelBzip2Compressor.MAX_BLOCK_SIZE * 2]);
+	}
+
+	@Test
+	public void testSmall() throws IOException {
+		checkRoundTrip(new byte[0]);
+		checkRoundTrip(new byte[] { 1 });
+		checkRoundTrip("Hello world".getBytes("UTF-8"));
+	}
+
+	@Test
+	public void testMaxWriteLength() throws IOException {
+		byte[] data = new byte[2 * 1024 * 1024];
+		new Random(4).nextBytes(data);
+		try {
+			compressor.compress(new ByteArrayInputStream(data), new ByteArrayOutputStream(), data.length, data.length);
+			fail();
+		} catch (CompressionOutputSizeException e) {
+			// Expected.
+		}
+	}
+
+	@Test
+	public void testMaxReadLength() throws IOException {
+		byte[] data = new byte[2 * 1024 * 1024];
+		new Random(5).nextBytes(data);
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		compressor.compress(new ByteArrayInputStream(data), baos, 1000000, Long.MAX_VALUE);
+		assertTrue(Arrays.equals(Arrays.copyOf(data, 1000000), decompress(baos.toByteArray(), data.length)));
+	}
+
+	@Test
+	public void testCompressionRatio() throws IOException {
+		byte[] data = new byte[4 * 1024 * 1024];
+		new Random(6).nextBytes(data);
+		try {
+			compressor.compress(new ByteArrayInputStream(data), new ByteArrayOutputStream(), data.length,
+					Long.MAX_VALUE, 1024 * 1024, 10);
+			fail();
+		} catch (CompressionRatioException e) {
+			// Expected.
+		}
+	}
+
+	@Test
+	public void testBenchmark() throws IOException {
+		if(!TestProperty.BENCHMARK) return;
+		byte[] data = new byte[32 * 1024 * 1024];
+		Random r = new Random(7);
+		for(int i=0;i<data.length;i++)
+			data[i] = (byte) ('a' + Math.min(25, (int) Math.abs(r.nextGaussian() * 6)));
+		int cores = Runtime.getRuntime().availableProcessors();
+		for(int round = 0; round < 3; round++) {
+			long start = System.currentTimeMillis();
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			COMPRESSOR_TYPE.BZIP2.compress(new ByteArrayInputStream(data), baos, data.length, Long.MAX_VALUE);
+			long sequential = System.currentTimeMillis() - start;
+			int sequentialSize = baos.size();
+			start = System.currentTimeMillis();
+			baos = new ByteArrayOutputStream();
+			compressor.compress(new ByteArrayInputStream(data), baos, data.length, Long.MAX_VALUE);
+			long parallel = System.currentTimeMillis() - start;
+			System.out.println("Compress "+data.length+" bytes with bzip2: "+sequential+"ms to "+sequentialSize+
+					" on one thread, "+parallel+"ms to "+baos.size()+" on "+cores+" cores");
+		}
+	}
+
+	/** Decompress with both Bzip2Compressor and a standard bzip2 decoder. */
+	private byte[] checkRoundTrip(byte[] data) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		compressor.compress(new ByteArrayInputStream(data), baos, Math.max(1, data.length), Long.MAX_VALUE);
+		byte[] compressed = baos.toByteArray();
+		assertTrue(Arrays.equals(data, decompress(compressed, data.length)));
+		InputStream is = new BZip2CompressorInputStream(HeaderStreams.augInput(Bzip2Compressor.BZ_HEADER,
+				new ByteArrayInputStream(compressed)));
+		baos = new ByteArrayOutputStream();
+		FileUtil.copy(is, baos, -1);
+		assertTrue(Arrays.equals(data, baos.toByteArray()));
+		return compressed;
+	}
+
+	private static byte[] decompress(byte[] compressed, int maxLength) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		COMPRESSOR_TYPE.BZIP2.decompress(new ByteArrayInputStream(compressed), baos, Math.max(1, maxLength), -1);
+		return baos.toByteArray();
+	}
+
+}